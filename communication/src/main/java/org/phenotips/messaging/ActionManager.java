@@ -31,12 +31,13 @@
 public interface ActionManager
 {
     /**
-     * Send the initial email to the owner of the matched patient.
+     * Send the initial email to the owner of the matched patient. The mail may be sent in the background, after this
+     * method returns.
      *
      * @param connection the anonymous communication linking the two patients and their owners that are involved in this
      *            connection
      * @param options the mail content options selected by the user
-     * @return {@code 0} if the mail was successfully sent, other numbers in case of errors
+     * @return {@code 0} if the mail was successfully sent or queued, other numbers in case of errors
      */
     int sendInitialMails(Connection connection, Map<String, Object> options);
 
@@ -50,11 +51,12 @@
     int grantAccess(Connection connection);
 
     /**
-     * Send the followup email to the user requesting access.
+     * Send the followup email to the user requesting access. The mail may be sent in the background, after this method
+     * returns.
      *
      * @param connection the anonymous communication linking the two patients and their owners that are involved in this
      *            connection
-     * @return {@code 0} if the mail was successfully sent, other numbers in case of errors
+     * @return {@code 0} if the mail was successfully sent or queued, other numbers in case of errors
      */
     int sendSuccessMail(Connection connection);
 }
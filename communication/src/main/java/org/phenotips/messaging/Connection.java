@@ -26,21 +26,26 @@
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.model.reference.DocumentReference;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 
 import org.hibernate.annotations.Type;
 
 /**
  * Stores a connection between the owners of two matched patients, anonymously, to be used for email communication. The
  * identities of the two parties are kept private, since mails are sent behind the scenes, while the users only see the
- * {@link #id identifier of the connection}.
+ * {@link #getToken() opaque token of the connection}.
  *
  * @version $Id$
  * @since 1.0M1
  */
 @Entity
+@Table(uniqueConstraints = @UniqueConstraint(
+    columnNames = { "referencePatient", "targetPatient", "initiatingUser", "contactedUser" }))
 public class Connection
 {
     /** @see #getId() */
@@ -48,6 +53,10 @@
     @GeneratedValue
     private long id;
 
+    /** @see #getToken() */
+    @Column(unique = true, length = 32)
+    private String token;
+
     /** @see #getInitiatingUser() */
     @Type(type = "org.phenotips.messaging.DocumentReferenceType")
     private DocumentReference initiatingUser;
@@ -86,8 +95,9 @@ public Connection(PatientSimilarityView patientPair)
     }
 
     /**
-     * The identifier of this connection can be exposed, and is the only thing needed to
-     * {@link ConnectionManager#getConnectionById(Long) retrieve back the full connection}.
+     * The identifier of this connection, which can be used to
+     * {@link ConnectionManager#getConnectionById(Long) retrieve back the full connection}. It used to be exposed as the
+     * contact token, and such links are still honored, but new links use the {@link #getToken() token}.
      *
      * @return a numerical identifier
      */
@@ -96,6 +106,32 @@ public Long getId()
         return this.id;
     }
 
+    /**
+     * The contact token of this connection, which can be exposed, and is all that's needed to
+     * {@link ConnectionManager#getConnectionByToken(String) retrieve back the full connection}. Unlike the numerical
+     * identifier, the token can't be guessed, and it is known before the connection is stored, see
+     * {@link ConnectionManager#getToken(PatientSimilarityView)}.
+     *
+     * @return the token, {@code null} for connections stored before tokens were introduced and not used since
+     * @since 1.0M7
+     */
+    public String getToken()
+    {
+        return this.token;
+    }
+
+    /**
+     * Set the contact token of this connection.
+     *
+     * @param token the token, as returned by {@link ConnectionManager#getToken(PatientSimilarityView)} for the patient
+     *            pair of this connection
+     * @since 1.0M7
+     */
+    public void setToken(String token)
+    {
+        this.token = token;
+    }
+
     /**
      * The user that initiated the communication, one of the owners of the reference patient.
      *
@@ -21,6 +21,9 @@
 
 import org.xwiki.component.annotation.Role;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * Creates and retrieves {@link Connection}s.
  *
@@ -30,6 +33,17 @@
 @Role
 public interface ConnectionManager
 {
+    /**
+     * Compute the contact token of a patient pair, without accessing the storage. The token is the same for all the
+     * views of the same pair of patients, and it can't be guessed without knowing the secret key of this instance. The
+     * corresponding connection is only stored once it is actually needed, through {@link #getConnection}.
+     *
+     * @param patientPair the two patients involved in the connection
+     * @return an opaque token identifying the connection between the two patients
+     * @since 1.0M7
+     */
+    String getToken(PatientSimilarityView patientPair);
+
     /**
      * Search for an existing connection for the patient pair view; if one exists, return it, otherwise create, store
      * and return a new connection, with the data from the passed patient pair view.
@@ -46,4 +60,25 @@
      * @return the requested connection, if it was found in the database, {@code null} otherwise
      */
     Connection getConnectionById(Long id);
+
+    /**
+     * Retrieve an existing connection from the storage, given its contact token. Numerical tokens are the identifiers
+     * of connections exposed before opaque tokens were introduced, and are still accepted.
+     *
+     * @param token a token, as returned by {@link #getToken(PatientSimilarityView)}, or a connection identifier
+     * @return the requested connection, if it was already stored, {@code null} otherwise
+     * @since 1.0M7
+     */
+    Connection getConnectionByToken(String token);
+
+    /**
+     * Retrieve several existing connections from the storage at once, given their contact tokens, which is much faster
+     * than retrieving them one by one.
+     *
+     * @param tokens tokens, as returned by {@link #getToken(PatientSimilarityView)}, or connection identifiers
+     * @return the connections which were already stored, keyed by the requested token; tokens for which no connection
+     *         was stored yet are missing from the map
+     * @since 1.0M7
+     */
+    Map<String, Connection> getConnectionsByToken(Collection<String> tokens);
 }
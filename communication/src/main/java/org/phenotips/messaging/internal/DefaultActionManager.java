@@ -23,6 +23,11 @@
 import org.phenotips.messaging.Connection;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -35,21 +40,20 @@
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.plugin.mailsender.MailSenderPlugin;
+import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
 import com.xpn.xwiki.web.Utils;
 
 /**
- * Default implementation for the {@code AcctionManager} role.
+ * Default implementation for the {@code AcctionManager} role. Mails are not sent right away, but added to a
+ * {@link MailQueue persistent queue} and sent in the background.
  *
  * @version $Id$
  * @since 1.0M1
  */
 @Component
 @Singleton
-public class DefaultActionManager implements ActionManager
+public class DefaultActionManager implements ActionManager, Initializable, Disposable
 {
-    private static final String MAIL_SENDER = "mailsender";
-
     private static final String EMAIL = "email";
 
     private static final String RECIPIENT_NAME = "recipientName";
@@ -62,7 +66,7 @@ public class DefaultActionManager implements ActionManager
 
     private static final String PHENOMECENTRAL_EMAIL = "PhenomeCentral <noreply@phenomecentral.org>";
 
-    private static final String FAILED_MAIL_MSG = "Failed to send email: [{}]";
+    private static final String FAILED_MAIL_MSG = "Failed to queue email: [{}]";
 
     private static final String EXTERNAL_LINK_MODE = "view";
 
@@ -80,22 +84,43 @@ public class DefaultActionManager implements ActionManager
     @Inject
     private Logger logger;
 
+    @Inject
+    private HibernateSessionFactory sessionFactory;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    private MailQueue queue;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.queue = new MailQueue(this.sessionFactory, this.execution, this.contextManager, this.logger);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.queue.stop();
+    }
+
     @Override
     public int sendInitialMails(Connection connection, Map<String, Object> options)
     {
         try {
             XWikiContext context = Utils.getContext();
             XWiki xwiki = context.getWiki();
-            MailSenderPlugin mailsender = (MailSenderPlugin) xwiki.getPlugin(MAIL_SENDER, context);
             String to = xwiki.getDocument(connection.getContactedUser(), context).getStringValue(EMAIL);
             options.put(RECIPIENT_NAME,
                 xwiki.getUserName(connection.getContactedUser().toString(), null, false, context));
             options.put(MATCH_CASE_ID, connection.getTargetPatient().getDocument().getName());
             options.put(MATCH_CASE_LINK,
                 xwiki.getExternalURL("data.GrantMatchAccess", EXTERNAL_LINK_MODE, "id=" + connection.getId(), context));
-            mailsender.sendMailFromTemplate("PhenoTips.MatchContact", PHENOMECENTRAL_EMAIL, to,
-                "qc@phenomecentral.org", null, "", options, context);
-            return 0;
+            return this.queue.add(new QueuedMail("PhenoTips.MatchContact", PHENOMECENTRAL_EMAIL, to,
+                "qc@phenomecentral.org", options)) ? 0 : 1;
         } catch (Exception ex) {
             this.logger.error(FAILED_MAIL_MSG, ex.getMessage(), ex);
             return 1;
@@ -125,7 +150,6 @@ public int sendSuccessMail(Connection connection)
             Map<String, Object> options = new HashMap<String, Object>();
             XWikiContext context = Utils.getContext();
             XWiki xwiki = context.getWiki();
-            MailSenderPlugin mailsender = (MailSenderPlugin) xwiki.getPlugin(MAIL_SENDER, context);
             String to = xwiki.getDocument(connection.getInitiatingUser(), context).getStringValue(EMAIL);
             options.put("platformName", PLATFORM);
             options.put("subject", SUBJECT);
@@ -140,9 +164,8 @@ public int sendSuccessMail(Connection connection)
             options.put("matchCaseReferenceLink",
                 xwiki.getDocument(connection.getReferencePatient().getDocument(), context)
                     .getExternalURL(EXTERNAL_LINK_MODE, context));
-            mailsender.sendMailFromTemplate("PhenoTips.MatchSuccessContact", PHENOMECENTRAL_EMAIL,
-                to, null, null, "", options, context);
-            return 0;
+            return this.queue.add(new QueuedMail("PhenoTips.MatchSuccessContact", PHENOMECENTRAL_EMAIL, to, null,
+                options)) ? 0 : 1;
         } catch (Exception ex) {
             this.logger.error(FAILED_MAIL_MSG, ex.getMessage(), ex);
             return 1;
@@ -21,31 +21,91 @@
 import org.phenotips.data.similarity.PatientSimilarityViewFactory;
 import org.phenotips.messaging.Connection;
 import org.phenotips.messaging.ConnectionManager;
+import org.phenotips.messaging.DocumentReferenceType;
+import org.phenotips.messaging.PatientReferenceType;
 
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.environment.Environment;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
-import org.hibernate.Criteria;
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
-import org.hibernate.criterion.Example;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.type.CustomType;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
 
 import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
 
 /**
- * Default implementation for the {@code ConnectionManager} role, based on Hibernate for storage.
+ * Default implementation for the {@code ConnectionManager} role, based on Hibernate for storage. Contact tokens are
+ * HMACs of the pair of patient identifiers, keyed with a random secret generated on first use and kept in the
+ * permanent directory, so that tokens stay valid across restarts.
  *
  * @version $Id$
  * @since 1.0M1
  */
 @Component
 @Singleton
-public class DefaultConnectionManager implements ConnectionManager
+public class DefaultConnectionManager implements ConnectionManager, Initializable
 {
+    /** The algorithm used for computing tokens. */
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /** The number of bytes of the HMAC kept in the token, encoded as twice as many hexadecimal digits. */
+    private static final int TOKEN_BYTES = 16;
+
+    /** The size of the generated secret key, in bytes. */
+    private static final int KEY_BYTES = 32;
+
+    /** Where the secret key is stored, relative to the permanent directory. */
+    private static final String KEY_FILE = "phenotips/messaging/contact-token.key";
+
+    /** How many tokens are looked up in a single query. */
+    private static final int BATCH_SIZE = 500;
+
+    /** How many connections are kept in memory. */
+    private static final int CACHE_CAPACITY = 1000;
+
+    /** The Hibernate type of the patient columns, needed for binding query parameters. */
+    private static final Type PATIENT_TYPE = new CustomType(new PatientReferenceType());
+
+    /** The Hibernate type of the user columns, needed for binding query parameters. */
+    private static final Type USER_TYPE = new CustomType(new DocumentReferenceType());
+
+    /** The name of the query parameter holding the requested tokens. */
+    private static final String TOKENS = "tokens";
+
+    /** Numerical identifiers with more digits may not fit in a {@code long}. */
+    private static final int MAX_LEGACY_TOKEN_LENGTH = 18;
+
     /** Handles persistence. */
     @Inject
     private HibernateSessionFactory sessionFactory;
@@ -54,29 +114,349 @@ public class DefaultConnectionManager implements ConnectionManager
     @Inject
     private PatientSimilarityViewFactory publicPatientSimilarityViewFactory;
 
+    /** Provides the permanent directory where the secret key is stored. */
+    @Inject
+    private Environment environment;
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    /** Used for creating the connections cache. */
+    @Inject
+    private CacheManager cacheManager;
+
+    /** Recently used connections, by identifier. */
+    private Cache<Connection> cache;
+
+    /** The secret key used for computing tokens, loaded lazily. */
+    private SecretKeySpec key;
+
+    @Override
+    public String getToken(PatientSimilarityView patientPair)
+    {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(getKey());
+            byte[] hash = mac.doFinal((patientPair.getReference().getId() + '\n' + patientPair.getId())
+                .getBytes(StandardCharsets.UTF_8));
+            StringBuilder token = new StringBuilder(2 * TOKEN_BYTES);
+            for (int i = 0; i < TOKEN_BYTES; i++) {
+                token.append(Character.forDigit((hash[i] >> 4) & 0xF, 16));
+                token.append(Character.forDigit(hash[i] & 0xF, 16));
+            }
+            return token.toString();
+        } catch (GeneralSecurityException | IOException ex) {
+            throw new IllegalStateException("Failed to compute contact token: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            CacheConfiguration config = new CacheConfiguration();
+            LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+            lru.setMaxEntries(CACHE_CAPACITY);
+            config.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+            this.cache = this.cacheManager.createNewLocalCache(config);
+        } catch (CacheException ex) {
+            this.logger.error("Unable to create the connections cache: {}", ex.getMessage());
+        }
+    }
+
     @Override
     public Connection getConnection(PatientSimilarityView patientPair)
     {
-        Session session = this.sessionFactory.getSessionFactory().openSession();
-        Criteria c = session.createCriteria(Connection.class);
         Connection connection = new Connection(this.publicPatientSimilarityViewFactory.convert(patientPair));
-        c.add(Example.create(connection).excludeProperty("id"));
-        @SuppressWarnings("unchecked")
-        List<Connection> foundEntries = c.list();
-        if (foundEntries.isEmpty()) {
-            Transaction t = session.beginTransaction();
-            t.begin();
-            session.save(connection);
-            t.commit();
-            return connection;
+        connection.setToken(getToken(patientPair));
+        Connection stored;
+        try {
+            stored = store(connection);
+        } catch (ConstraintViolationException ex) {
+            // The same connection was just stored by a concurrent request, the second attempt will find it
+            stored = store(connection);
         }
-        return foundEntries.get(0);
+        cache(stored);
+        return stored;
     }
 
     @Override
     public Connection getConnectionById(Long id)
     {
-        Session session = this.sessionFactory.getSessionFactory().openSession();
-        return (Connection) session.load(Connection.class, id);
+        if (id == null) {
+            return null;
+        }
+        Connection connection = this.cache != null ? this.cache.get(String.valueOf(id)) : null;
+        if (connection == null) {
+            Session session = openSession();
+            try {
+                connection = (Connection) session.get(Connection.class, id);
+            } finally {
+                session.close();
+            }
+            cache(connection);
+        }
+        return connection;
+    }
+
+    @Override
+    public Connection getConnectionByToken(String token)
+    {
+        if (StringUtils.isBlank(token)) {
+            return null;
+        } else if (isLegacyToken(token)) {
+            return getConnectionById(Long.valueOf(token));
+        }
+        Session session = openSession();
+        try {
+            Connection connection = findByToken(session, token);
+            cache(connection);
+            return connection;
+        } finally {
+            session.close();
+        }
+    }
+
+    @Override
+    public Map<String, Connection> getConnectionsByToken(Collection<String> tokens)
+    {
+        Map<String, Connection> result = new HashMap<String, Connection>();
+        List<String> opaqueTokens = new ArrayList<String>();
+        List<Long> ids = new ArrayList<Long>();
+        for (String token : tokens) {
+            if (isLegacyToken(token)) {
+                Connection cached = this.cache != null ? this.cache.get(String.valueOf(Long.valueOf(token))) : null;
+                if (cached != null) {
+                    result.put(token, cached);
+                } else {
+                    ids.add(Long.valueOf(token));
+                }
+            } else if (StringUtils.isNotBlank(token)) {
+                opaqueTokens.add(token);
+            }
+        }
+        if (opaqueTokens.isEmpty() && ids.isEmpty()) {
+            return result;
+        }
+
+        Session session = openSession();
+        try {
+            for (int i = 0; i < opaqueTokens.size(); i += BATCH_SIZE) {
+                List<String> batch = opaqueTokens.subList(i, Math.min(i + BATCH_SIZE, opaqueTokens.size()));
+                @SuppressWarnings("unchecked")
+                List<Connection> found = session.createQuery("from Connection where token in (:tokens)")
+                    .setParameterList(TOKENS, batch).list();
+                for (Connection connection : found) {
+                    result.put(connection.getToken(), connection);
+                }
+            }
+            for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+                List<Long> batch = ids.subList(i, Math.min(i + BATCH_SIZE, ids.size()));
+                @SuppressWarnings("unchecked")
+                List<Connection> found =
+                    session.createQuery("from Connection where id in (:ids)").setParameterList("ids", batch).list();
+                for (Connection connection : found) {
+                    result.put(String.valueOf(connection.getId()), connection);
+                    cache(connection);
+                }
+            }
+        } finally {
+            session.close();
+        }
+        return result;
+    }
+
+    /**
+     * Store a new connection, or return the already stored connection between the same patients and users. Connections
+     * stored before tokens were introduced are found by their parties, and get their token now. Tokens only depend on
+     * the patients, so if the owners of the patients changed since the token was stored, the previous connection loses
+     * its token, which then designates the connection between the current owners; the previous connection can still be
+     * found by its identifier.
+     *
+     * @param connection the connection to store, with its token already set
+     * @return the stored connection
+     * @throws ConstraintViolationException if the same connection was stored concurrently by another request
+     */
+    private Connection store(Connection connection)
+    {
+        Session session = openSession();
+        Transaction t = null;
+        try {
+            Connection stored = findByToken(session, connection.getToken());
+            if (stored != null && hasSameUsers(stored, connection)) {
+                return stored;
+            }
+            t = session.beginTransaction();
+            if (stored != null) {
+                stored.setToken(null);
+                session.update(stored);
+                // Inserts are flushed before updates, so release the unique token before storing it again
+                session.flush();
+                if (this.cache != null) {
+                    this.cache.remove(String.valueOf(stored.getId()));
+                }
+            }
+            stored = findByParties(session, connection);
+            if (stored == null) {
+                session.save(connection);
+                stored = connection;
+            } else {
+                stored.setToken(connection.getToken());
+                session.update(stored);
+            }
+            t.commit();
+            return stored;
+        } catch (HibernateException ex) {
+            if (t != null && t.isActive()) {
+                t.rollback();
+            }
+            throw ex;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Look for a stored connection between the same patients and users, using the unique index on these columns.
+     * Missing parties are not taken into account, as they were ignored by the example query used previously.
+     *
+     * @param session the open session to use
+     * @param connection the connection to look for
+     * @return the matching connection, or {@code null} if no such connection was stored
+     */
+    private Connection findByParties(Session session, Connection connection)
+    {
+        StringBuilder hql = new StringBuilder("from Connection where 1 = 1");
+        Map<String, Object> patients = new LinkedHashMap<String, Object>();
+        Map<String, Object> users = new LinkedHashMap<String, Object>();
+        putIfNotNull(patients, "referencePatient", connection.getReferencePatient());
+        putIfNotNull(patients, "targetPatient", connection.getTargetPatient());
+        putIfNotNull(users, "initiatingUser", connection.getInitiatingUser());
+        putIfNotNull(users, "contactedUser", connection.getContactedUser());
+        for (String property : patients.keySet()) {
+            hql.append(" and ").append(property).append(" = :").append(property);
+        }
+        for (String property : users.keySet()) {
+            hql.append(" and ").append(property).append(" = :").append(property);
+        }
+        Query query = session.createQuery(hql.toString());
+        for (Map.Entry<String, Object> parameter : patients.entrySet()) {
+            query.setParameter(parameter.getKey(), parameter.getValue(), PATIENT_TYPE);
+        }
+        for (Map.Entry<String, Object> parameter : users.entrySet()) {
+            query.setParameter(parameter.getKey(), parameter.getValue(), USER_TYPE);
+        }
+        @SuppressWarnings("unchecked")
+        List<Connection> found = query.setMaxResults(1).list();
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /**
+     * Check if two connections are between the same users. Missing users are not compared, like in
+     * {@link #findByParties(Session, Connection)}.
+     *
+     * @param stored the stored connection
+     * @param connection the requested connection
+     * @return {@code false} if any of the users differ, {@code true} otherwise
+     */
+    private boolean hasSameUsers(Connection stored, Connection connection)
+    {
+        return isSameOrMissing(stored.getInitiatingUser(), connection.getInitiatingUser())
+            && isSameOrMissing(stored.getContactedUser(), connection.getContactedUser());
+    }
+
+    private boolean isSameOrMissing(Object stored, Object requested)
+    {
+        return stored == null || requested == null || stored.equals(requested);
+    }
+
+    /**
+     * Add a query parameter, unless its value is missing.
+     *
+     * @param parameters the parameters collected so far
+     * @param name the name of the parameter, also the name of the matching property
+     * @param value the value of the parameter, may be {@code null}
+     */
+    private void putIfNotNull(Map<String, Object> parameters, String name, Object value)
+    {
+        if (value != null) {
+            parameters.put(name, value);
+        }
+    }
+
+    /**
+     * Remember a connection for future {@link #getConnectionById(Long) lookups by identifier}.
+     *
+     * @param connection the connection to cache, may be {@code null}
+     */
+    private void cache(Connection connection)
+    {
+        if (this.cache != null && connection != null) {
+            this.cache.set(String.valueOf(connection.getId()), connection);
+        }
+    }
+
+    /**
+     * Open a new session. Callers must close it once they're done.
+     *
+     * @return a new session
+     */
+    private Session openSession()
+    {
+        return this.sessionFactory.getSessionFactory().openSession();
+    }
+
+    /**
+     * Look for the connection identified by an opaque token.
+     *
+     * @param session the open session to use
+     * @param token the token to look for
+     * @return the matching connection, or {@code null} if no connection was stored for that token
+     */
+    private Connection findByToken(Session session, String token)
+    {
+        @SuppressWarnings("unchecked")
+        List<Connection> found =
+            session.createQuery("from Connection where token = :token").setString("token", token).list();
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /**
+     * Check if a token is the identifier of a connection, as exposed before opaque tokens were introduced.
+     *
+     * @param token the token to check
+     * @return {@code true} if the token is a number
+     */
+    private boolean isLegacyToken(String token)
+    {
+        return StringUtils.isNotEmpty(token) && token.length() <= MAX_LEGACY_TOKEN_LENGTH
+            && StringUtils.isNumeric(token);
+    }
+
+    /**
+     * Return the secret key used for computing tokens, reading it from the permanent directory, or generating and
+     * storing a new one the first time.
+     *
+     * @return the secret key
+     * @throws IOException if reading or storing the key fails
+     */
+    private synchronized SecretKeySpec getKey() throws IOException
+    {
+        if (this.key == null) {
+            File keyFile = new File(this.environment.getPermanentDirectory(), KEY_FILE);
+            byte[] secret;
+            if (keyFile.isFile()) {
+                secret = Files.readAllBytes(keyFile.toPath());
+            } else {
+                secret = new byte[KEY_BYTES];
+                new SecureRandom().nextBytes(secret);
+                Files.createDirectories(keyFile.getParentFile().toPath());
+                Files.write(keyFile.toPath(), secret);
+                this.logger.info("Generated a new secret key for contact tokens in [{}]", keyFile.getAbsolutePath());
+            }
+            this.key = new SecretKeySpec(secret, HMAC_ALGORITHM);
+        }
+        return this.key;
     }
 }
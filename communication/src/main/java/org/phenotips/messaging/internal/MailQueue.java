@@ -0,0 +1,490 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.messaging.internal;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.StaleStateException;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.plugin.mailsender.MailSenderPlugin;
+import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
+
+/**
+ * Persistent queue of outgoing mails, so that users don't have to wait for the mail server. Mails are stored as
+ * {@link QueuedMail} entries, claimed in batches by a poller thread, and rendered and sent by a small pool of workers.
+ * Failed deliveries are retried with an exponential backoff, and abandoned after {@link #MAX_ATTEMPTS} attempts, when
+ * they are reported in the log and removed from the queue.
+ * Queued mails are versioned, so a mail whose claim expired while its batch was waiting for a worker, and which was
+ * claimed again, is only sent by the worker holding the latest claim.
+ * <p>
+ * Background threads don't have an execution context of their own, so each mail is rendered in a new context, set to
+ * the wiki and the user which queued the mail. New contexts are initialized from the stub context XWiki keeps for
+ * background threads, or, until it is available, from a clone of the context in which the queue was created.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+public class MailQueue
+{
+    /** How many times sending a mail is attempted before giving up. */
+    public static final int MAX_ATTEMPTS = 8;
+
+    /** The delay before the first retry, doubled after each failure. */
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    /** The maximum delay between two retries. */
+    private static final long MAX_RETRY_DELAY = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * How long a claimed mail is reserved for a worker; the lease is renewed when the worker starts sending the mail,
+     * and if the server stops while sending, the mail is sent again later.
+     */
+    private static final long LEASE = TimeUnit.MINUTES.toMillis(10);
+
+    /** How often the queue is checked for mails due to be retried, in seconds. */
+    private static final long POLL_INTERVAL = 30;
+
+    /** How many mails are claimed together, and then rendered and sent one by one by the same worker. */
+    private static final int BATCH_SIZE = 20;
+
+    /** How many batches are sent in parallel. */
+    private static final int WORKERS = 2;
+
+    /** The name of the query parameter holding the current date. */
+    private static final String NOW = "now";
+
+    /** The name of the mail sender plugin. */
+    private static final String MAIL_SENDER = "mailsender";
+
+    /** The user rendering mails queued by guests. */
+    private static final String GUEST_USER = "XWiki.XWikiGuest";
+
+    /** Handles persistence. */
+    private final HibernateSessionFactory sessionFactory;
+
+    /** Provides the current execution context. */
+    private final Execution execution;
+
+    /** Initializes or clones execution contexts for the background threads. */
+    private final ExecutionContextManager contextManager;
+
+    /** Logging helper object. */
+    private final Logger logger;
+
+    /** Claims due mails, periodically and whenever a new mail is queued. */
+    private final ScheduledExecutorService poller;
+
+    /** Renders and sends the claimed mails. */
+    private final ExecutorService workers;
+
+    /**
+     * A clone of the first known request context, only used as a base for rendering mails when XWiki can't initialize
+     * a new context yet; the wiki and the user are always set from the mail.
+     */
+    private volatile ExecutionContext bootstrap;
+
+    /** Whether the mails left without a next attempt, as abandoned mails used to be, were removed already. */
+    private boolean purged;
+
+    /**
+     * Create the queue and start the background threads.
+     *
+     * @param sessionFactory handles persistence
+     * @param execution provides the current execution context
+     * @param contextManager initializes or clones execution contexts for the background threads
+     * @param logger logging helper object
+     */
+    public MailQueue(HibernateSessionFactory sessionFactory, Execution execution,
+        ExecutionContextManager contextManager, Logger logger)
+    {
+        this.sessionFactory = sessionFactory;
+        this.execution = execution;
+        this.contextManager = contextManager;
+        this.logger = logger;
+        captureContext();
+        this.poller = Executors.newSingleThreadScheduledExecutor(new MailThreadFactory("mail-queue-poller"));
+        this.workers = Executors.newFixedThreadPool(WORKERS, new MailThreadFactory("mail-queue-worker"));
+        this.poller.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                poll();
+            }
+        }, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Store a mail and schedule it for sending. This doesn't wait for the mail to be rendered or sent.
+     *
+     * @param mail the mail to send
+     * @return {@code true} if the mail was stored, {@code false} otherwise
+     */
+    public boolean add(QueuedMail mail)
+    {
+        captureContext();
+        XWikiContext xcontext = getXWikiContext(this.execution.getContext());
+        if (xcontext != null) {
+            mail.setOrigin(xcontext.getWikiId(), xcontext.getUser());
+        }
+
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        Transaction t = session.beginTransaction();
+        try {
+            session.save(mail);
+            t.commit();
+        } catch (HibernateException ex) {
+            t.rollback();
+            this.logger.error("Failed to queue mail to [{}]: {}", mail.getRecipient(), ex.getMessage());
+            return false;
+        } finally {
+            session.close();
+        }
+
+        this.poller.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                poll();
+            }
+        });
+        return true;
+    }
+
+    /** Stop the background threads. Mails still in the queue will be sent after the next start. */
+    public void stop()
+    {
+        this.poller.shutdownNow();
+        this.workers.shutdownNow();
+    }
+
+    /** Remember a clone of the current execution context, if none was captured yet. */
+    private void captureContext()
+    {
+        if (this.bootstrap != null) {
+            return;
+        }
+        try {
+            ExecutionContext current = this.execution.getContext();
+            if (getXWikiContext(current) != null) {
+                this.bootstrap = this.contextManager.clone(current);
+            }
+        } catch (ExecutionContextException ex) {
+            this.logger.warn("Failed to clone the execution context for sending mails: {}", ex.getMessage());
+        }
+    }
+
+    /** Claim the mails due to be sent, and pass them to the workers. */
+    private void poll()
+    {
+        for (int i = 0; i < WORKERS; ++i) {
+            final List<QueuedMail> batch = claim();
+            if (batch.isEmpty()) {
+                return;
+            }
+            this.workers.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    send(batch);
+                }
+            });
+            if (batch.size() < BATCH_SIZE) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reserve a batch of due mails, by postponing their next attempt until the end of the lease.
+     *
+     * @return the claimed mails, may be empty
+     */
+    private List<QueuedMail> claim()
+    {
+        Date now = new Date();
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        Transaction t = session.beginTransaction();
+        try {
+            if (!this.purged) {
+                session.createQuery("delete from QueuedMail where nextAttempt is null").executeUpdate();
+            }
+            @SuppressWarnings("unchecked")
+            List<QueuedMail> due = session.createQuery("from QueuedMail where nextAttempt <= :now order by nextAttempt")
+                .setTimestamp(NOW, now).setMaxResults(BATCH_SIZE).list();
+            Date leaseEnd = new Date(now.getTime() + LEASE);
+            for (QueuedMail mail : due) {
+                mail.setNextAttempt(leaseEnd);
+                session.update(mail);
+            }
+            t.commit();
+            this.purged = true;
+            return due;
+        } catch (HibernateException ex) {
+            t.rollback();
+            this.logger.warn("Failed to read the mail queue: {}", ex.getMessage());
+            return new ArrayList<QueuedMail>();
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Render and send a batch of mails, on the current thread, each in a new execution context.
+     *
+     * @param batch the claimed mails
+     */
+    private void send(List<QueuedMail> batch)
+    {
+        for (int i = 0; i < batch.size(); ++i) {
+            QueuedMail mail = batch.get(i);
+            if (!renew(mail)) {
+                continue;
+            }
+            XWikiContext xcontext;
+            try {
+                xcontext = createContext(mail);
+            } catch (ExecutionContextException ex) {
+                this.logger.warn("Failed to create the execution context for sending mails: {}", ex.getMessage());
+                xcontext = null;
+            }
+            if (xcontext == null) {
+                // XWiki isn't ready yet, try again later without counting a failed attempt
+                this.execution.removeContext();
+                postpone(batch.subList(i, batch.size()));
+                return;
+            }
+            try {
+                send(mail, xcontext);
+            } finally {
+                this.execution.removeContext();
+            }
+        }
+    }
+
+    /**
+     * Render and send a mail.
+     *
+     * @param mail the mail to send
+     * @param xcontext the context of the mail, as created by {@link #createContext(QueuedMail)}
+     */
+    private void send(QueuedMail mail, XWikiContext xcontext)
+    {
+        String error = null;
+        try {
+            // The mail sender fails, and the mail is retried, if the template is missing
+            MailSenderPlugin mailsender = (MailSenderPlugin) xcontext.getWiki().getPlugin(MAIL_SENDER, xcontext);
+            if (mailsender.sendMailFromTemplate(mail.getTemplate(), mail.getSender(), mail.getRecipient(),
+                mail.getCopy(), null, "", mail.getParameters(), xcontext) != 0) {
+                error = "The mail could not be rendered or sent";
+            }
+        } catch (Exception ex) {
+            error = ex.getMessage() != null ? ex.getMessage() : ex.getClass().getName();
+        }
+        if (error == null) {
+            remove(mail);
+        } else {
+            release(Collections.singletonList(mail), error);
+        }
+    }
+
+    /**
+     * Extend the lease of a claimed mail, right before sending it.
+     *
+     * @param mail the claimed mail
+     * @return {@code true} if the mail is still claimed by this worker, {@code false} if its lease expired and it was
+     *         claimed again, or sent, in the meantime
+     */
+    private boolean renew(QueuedMail mail)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        Transaction t = session.beginTransaction();
+        try {
+            mail.setNextAttempt(new Date(System.currentTimeMillis() + LEASE));
+            session.update(mail);
+            t.commit();
+            return true;
+        } catch (StaleStateException ex) {
+            t.rollback();
+            this.logger.debug("Queued mail [{}] was claimed again after its lease expired", mail.getId());
+            return false;
+        } catch (HibernateException ex) {
+            t.rollback();
+            this.logger.warn("Failed to renew the claim on queued mail [{}]: {}", mail.getId(), ex.getMessage());
+            return false;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Create and set up a new execution context for rendering a mail, in the wiki and with the rights of the user which
+     * queued the mail.
+     *
+     * @param mail the mail to render
+     * @return the XWiki context of the new execution context, or {@code null} if XWiki is not available yet
+     * @throws ExecutionContextException if the execution context cannot be initialized
+     */
+    private XWikiContext createContext(QueuedMail mail) throws ExecutionContextException
+    {
+        ExecutionContext context = new ExecutionContext();
+        this.contextManager.initialize(context);
+        XWikiContext xcontext = getXWikiContext(context);
+        if (xcontext == null && this.bootstrap != null) {
+            context = this.contextManager.clone(this.bootstrap);
+            xcontext = getXWikiContext(context);
+        }
+        if (xcontext == null) {
+            return null;
+        }
+        this.execution.setContext(context);
+        if (mail.getWiki() != null) {
+            xcontext.setWikiId(mail.getWiki());
+        }
+        xcontext.setUser(mail.getAuthor() != null ? mail.getAuthor() : GUEST_USER);
+        return xcontext;
+    }
+
+    private XWikiContext getXWikiContext(ExecutionContext context)
+    {
+        return context == null ? null : (XWikiContext) context.getProperty(XWikiContext.EXECUTIONCONTEXT_KEY);
+    }
+
+    /**
+     * Put claimed mails back in the queue, to be sent after the usual delay, without counting a failed attempt.
+     *
+     * @param mails the mails to postpone
+     */
+    private void postpone(List<QueuedMail> mails)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        Transaction t = session.beginTransaction();
+        try {
+            Date next = new Date(System.currentTimeMillis() + RETRY_DELAY);
+            for (QueuedMail mail : mails) {
+                mail.setNextAttempt(next);
+                session.update(mail);
+            }
+            t.commit();
+        } catch (HibernateException ex) {
+            t.rollback();
+            this.logger.warn("Failed to reschedule queued mails: {}", ex.getMessage());
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Remove a sent mail from the queue.
+     *
+     * @param mail the sent mail
+     */
+    private void remove(QueuedMail mail)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        Transaction t = session.beginTransaction();
+        try {
+            session.delete(mail);
+            t.commit();
+        } catch (HibernateException ex) {
+            t.rollback();
+            this.logger.warn("Failed to remove sent mail [{}] from the queue: {}", mail.getId(), ex.getMessage());
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Record a failed attempt for each mail, and schedule them for a retry, or remove them from the queue after too
+     * many failures.
+     *
+     * @param mails the mails which couldn't be sent
+     * @param error why sending failed
+     */
+    private void release(List<QueuedMail> mails, String error)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        Transaction t = session.beginTransaction();
+        try {
+            for (QueuedMail mail : mails) {
+                if (mail.getAttempts() + 1 < MAX_ATTEMPTS) {
+                    long delay = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << mail.getAttempts());
+                    mail.fail(error, new Date(System.currentTimeMillis() + delay));
+                    session.update(mail);
+                } else {
+                    this.logger.error("Giving up sending mail [{}] from template [{}] to [{}] after {} attempts: {}",
+                        mail.getId(), mail.getTemplate(), mail.getRecipient(), MAX_ATTEMPTS, error);
+                    session.delete(mail);
+                }
+            }
+            t.commit();
+        } catch (HibernateException ex) {
+            t.rollback();
+            this.logger.warn("Failed to reschedule queued mails: {}", ex.getMessage());
+        } finally {
+            session.close();
+        }
+    }
+
+    /** Creates low priority daemon threads, so that pending mails don't prevent the server from stopping. */
+    private static final class MailThreadFactory implements ThreadFactory
+    {
+        /** The name of the created threads. */
+        private final String name;
+
+        /**
+         * Simple constructor.
+         *
+         * @param name the name of the created threads
+         */
+        MailThreadFactory(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, this.name);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
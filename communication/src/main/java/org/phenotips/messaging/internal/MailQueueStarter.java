@@ -0,0 +1,68 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.messaging.internal;
+
+import org.phenotips.messaging.ActionManager;
+
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+/**
+ * Starts the {@link MailQueue mail queue} once XWiki is ready, so that mails left in the queue by a previous run are
+ * sent without waiting for a new mail to be queued.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Component
+@Named("phenotips-mail-queue-starter")
+@Singleton
+public class MailQueueStarter implements EventListener
+{
+    /** The action manager owning the mail queue, lazily obtained since it starts the queue when initialized. */
+    @Inject
+    private Provider<ActionManager> actionManager;
+
+    @Override
+    public String getName()
+    {
+        return "phenotips-mail-queue-starter";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Collections.<Event>singletonList(new ApplicationReadyEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        this.actionManager.get();
+    }
+}
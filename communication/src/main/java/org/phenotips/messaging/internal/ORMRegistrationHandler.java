@@ -34,8 +34,9 @@
 import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
 
 /**
- * Registers the {@link Connection connection entity} in the Hibernate configuration at startup, since Hibernate doesn't
- * have a clean mechanism for auto-registering optional modular entities at runtime.
+ * Registers the {@link Connection connection} and {@link QueuedMail queued mail} entities in the Hibernate
+ * configuration at startup, since Hibernate doesn't have a clean mechanism for auto-registering optional modular
+ * entities at runtime.
  *
  * @version $Id$
  * @since 1.0M1
@@ -65,5 +66,6 @@ public List<Event> getEvents()
     public void onEvent(Event event, Object source, Object data)
     {
         this.sessionFactory.getConfiguration().addAnnotatedClass(Connection.class);
+        this.sessionFactory.getConfiguration().addAnnotatedClass(QueuedMail.class);
     }
 }
@@ -0,0 +1,313 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.messaging.internal;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Version;
+
+import org.hibernate.annotations.Index;
+
+import net.sf.json.JSONObject;
+
+/**
+ * An outgoing mail waiting in the {@link MailQueue mail queue}. The mail is stored before rendering, as the name of the
+ * template document and the parameters to pass to it, so that the request which created it doesn't have to wait for
+ * the template to be rendered and the mail server to accept the message. The wiki and the user which queued the mail
+ * are stored along with it, so that the mail is rendered in their name.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Entity
+public class QueuedMail
+{
+    /** The maximum length of the stored error message. */
+    private static final int MAX_ERROR_LENGTH = 255;
+
+    /**
+     * Marks the serialized string parameters. json-lib turns strings looking like JSON objects or arrays into objects
+     * and arrays, both when storing and when parsing, so string values are never stored as is.
+     */
+    private static final String STRING_PREFIX = "s:";
+
+    /** Marks the serialized boolean parameters. */
+    private static final String BOOLEAN_PREFIX = "b:";
+
+    /** @see #getId() */
+    @Id
+    @GeneratedValue
+    private long id;
+
+    /**
+     * Incremented by Hibernate on each change, so that a worker whose claim expired can't overwrite or send a mail
+     * claimed again by another worker.
+     */
+    @Version
+    private int version;
+
+    /** @see #getTemplate() */
+    private String template;
+
+    /** @see #getSender() */
+    private String sender;
+
+    /** @see #getRecipient() */
+    private String recipient;
+
+    /** @see #getCopy() */
+    private String copy;
+
+    /** @see #getWiki() */
+    private String wiki;
+
+    /** @see #getAuthor() */
+    private String author;
+
+    /** The template parameters, serialized as a JSON object with prefixed string values. */
+    @Lob
+    private String parameters;
+
+    /** @see #getAttempts() */
+    private int attempts;
+
+    /** @see #getNextAttempt() */
+    @Index(name = "queuedMailNextAttemptIndex")
+    private Date nextAttempt;
+
+    /** @see #getLastError() */
+    private String lastError;
+
+    /** Default constructor used by Hibernate. */
+    public QueuedMail()
+    {
+        // Nothing to do, Hibernate will populate all the fields from the database
+    }
+
+    /**
+     * Constructor for a new mail, to be sent as soon as possible.
+     *
+     * @param template the full name of the template document
+     * @param sender the sender address
+     * @param recipient the recipient address
+     * @param copy the address receiving a copy of the mail, may be {@code null}
+     * @param parameters the parameters passed to the template; strings and booleans are passed back unchanged, other
+     *            values are passed as their string representation, and {@code null} values are left out
+     */
+    public QueuedMail(String template, String sender, String recipient, String copy, Map<String, Object> parameters)
+    {
+        this.template = template;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.copy = copy;
+        this.parameters = serialize(parameters);
+        this.nextAttempt = new Date();
+    }
+
+    /**
+     * The identifier of this mail, as generated by the database.
+     *
+     * @return a numerical identifier
+     */
+    public Long getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * The template used for rendering the mail.
+     *
+     * @return the full name of the template document
+     */
+    public String getTemplate()
+    {
+        return this.template;
+    }
+
+    /**
+     * The sender of the mail.
+     *
+     * @return a mail address
+     */
+    public String getSender()
+    {
+        return this.sender;
+    }
+
+    /**
+     * The recipient of the mail.
+     *
+     * @return a mail address
+     */
+    public String getRecipient()
+    {
+        return this.recipient;
+    }
+
+    /**
+     * The address receiving a copy of the mail.
+     *
+     * @return a mail address, or {@code null} if no copy is sent
+     */
+    public String getCopy()
+    {
+        return this.copy;
+    }
+
+    /**
+     * The wiki where the mail was queued, and where it is rendered.
+     *
+     * @return the identifier of the wiki, or {@code null} if not known
+     */
+    public String getWiki()
+    {
+        return this.wiki;
+    }
+
+    /**
+     * The user which queued the mail, and whose rights are used for rendering it.
+     *
+     * @return the full name of the user's profile document, or {@code null} if the mail was queued by a guest
+     */
+    public String getAuthor()
+    {
+        return this.author;
+    }
+
+    /**
+     * Set the origin of the mail, used for rendering it in the same wiki and with the same rights as the request that
+     * queued it.
+     *
+     * @param wiki the identifier of the current wiki
+     * @param author the full name of the current user's profile document, {@code null} for guests
+     */
+    public void setOrigin(String wiki, String author)
+    {
+        this.wiki = wiki;
+        this.author = author;
+    }
+
+    /**
+     * The parameters passed to the template when rendering the mail.
+     *
+     * @return a modifiable map of parameters
+     */
+    public Map<String, Object> getParameters()
+    {
+        Map<String, Object> result = new HashMap<String, Object>();
+        JSONObject stored = JSONObject.fromObject(this.parameters);
+        Iterator<?> keys = stored.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            Object value = stored.get(key);
+            String serialized = value instanceof String ? (String) value : "";
+            if (serialized.startsWith(STRING_PREFIX)) {
+                result.put(key, serialized.substring(STRING_PREFIX.length()));
+            } else if (serialized.startsWith(BOOLEAN_PREFIX)) {
+                result.put(key, Boolean.valueOf(serialized.substring(BOOLEAN_PREFIX.length())));
+            } else {
+                // Stored before parameters were serialized explicitly
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * How many times sending this mail failed.
+     *
+     * @return the number of failed attempts
+     */
+    public int getAttempts()
+    {
+        return this.attempts;
+    }
+
+    /**
+     * When this mail should be sent next.
+     *
+     * @return the date of the next attempt
+     */
+    public Date getNextAttempt()
+    {
+        return this.nextAttempt;
+    }
+
+    /**
+     * Postpone sending this mail, without counting a failed attempt.
+     *
+     * @param date the date of the next attempt
+     */
+    public void setNextAttempt(Date date)
+    {
+        this.nextAttempt = date;
+    }
+
+    /**
+     * Why sending this mail failed the last time.
+     *
+     * @return an error message, or {@code null} if no attempt failed
+     */
+    public String getLastError()
+    {
+        return this.lastError;
+    }
+
+    /**
+     * Record a failed attempt.
+     *
+     * @param error why sending the mail failed
+     * @param next the date of the next attempt
+     */
+    public void fail(String error, Date next)
+    {
+        ++this.attempts;
+        this.lastError = error != null && error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH)
+            : error;
+        this.nextAttempt = next;
+    }
+
+    /**
+     * Serialize the template parameters explicitly, so that they are passed back to the template unchanged.
+     *
+     * @param parameters the parameters to serialize, may be {@code null}
+     * @return a JSON object holding the prefixed parameter values
+     */
+    private static String serialize(Map<String, Object> parameters)
+    {
+        JSONObject result = new JSONObject();
+        if (parameters == null) {
+            return result.toString();
+        }
+        for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+            Object value = parameter.getValue();
+            if (parameter.getKey() == null || value == null) {
+                continue;
+            }
+            result.put(parameter.getKey(), (value instanceof Boolean ? BOOLEAN_PREFIX : STRING_PREFIX) + value);
+        }
+        return result.toString();
+    }
+}
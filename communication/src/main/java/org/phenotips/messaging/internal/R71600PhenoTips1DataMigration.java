@@ -0,0 +1,254 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.messaging.internal;
+
+import org.xwiki.component.annotation.Component;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.migration.DataMigrationException;
+import com.xpn.xwiki.store.migration.XWikiDBVersion;
+import com.xpn.xwiki.store.migration.hibernate.AbstractHibernateDataMigration;
+
+/**
+ * Adds the unique key over the two patients and the two users to existing {@link org.phenotips.messaging.Connection
+ * connection} tables. Hibernate's schema update only creates unique keys together with new tables, so databases
+ * created before the key was declared still accept duplicate connections. Duplicates already stored are removed
+ * first, keeping the oldest connection of each group; legacy numeric links pointing to a removed duplicate no longer
+ * resolve, but the parties can still be contacted again through the remaining connection.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Component
+@Named("R71600PhenoTips#1")
+@Singleton
+public class R71600PhenoTips1DataMigration extends AbstractHibernateDataMigration
+{
+    /** The name of the table storing connections, as generated by Hibernate. */
+    private static final String TABLE = "Connection";
+
+    /** The name of the unique index created by this migration. */
+    private static final String INDEX = "connection_parties";
+
+    /** The columns identifying the parties of a connection, in the order of the unique key. */
+    private static final List<String> COLUMNS =
+        Arrays.asList("referencePatient", "targetPatient", "initiatingUser", "contactedUser");
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    @Override
+    public String getDescription()
+    {
+        return "Remove duplicate patient connections and make the connected parties unique";
+    }
+
+    @Override
+    public XWikiDBVersion getVersion()
+    {
+        return new XWikiDBVersion(71600);
+    }
+
+    @Override
+    public void hibernateMigrate() throws DataMigrationException, XWikiException
+    {
+        getStore().executeWrite(getXWikiContext(), new HibernateCallback<Object>()
+        {
+            @Override
+            public Object doInHibernate(Session session) throws HibernateException, XWikiException
+            {
+                session.doWork(new UniquePartiesWork());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Removes duplicate connections and creates the unique index, unless the table doesn't exist yet or is already
+     * indexed.
+     */
+    private final class UniquePartiesWork implements Work
+    {
+        @Override
+        public void execute(Connection connection) throws SQLException
+        {
+            DatabaseMetaData metadata = connection.getMetaData();
+            String[] table = findTable(metadata, connection.getCatalog());
+            if (table == null || hasUniqueIndex(metadata, table)) {
+                return;
+            }
+            List<Long> duplicates = findDuplicates(connection, table[2]);
+            deleteDuplicates(connection, table[2], duplicates);
+            Statement statement = connection.createStatement();
+            try {
+                statement.executeUpdate("create unique index " + INDEX + " on " + table[2] + " ("
+                    + COLUMNS.get(0) + ", " + COLUMNS.get(1) + ", " + COLUMNS.get(2) + ", " + COLUMNS.get(3) + ")");
+            } finally {
+                statement.close();
+            }
+            R71600PhenoTips1DataMigration.this.logger.info(
+                "Removed [{}] duplicate patient connections and added the unique key", duplicates.size());
+        }
+
+        /**
+         * Looks up the connection table in the current database, ignoring the case used by the database engine.
+         *
+         * @param metadata the metadata of the current database
+         * @param catalog the current catalog
+         * @return the catalog, schema and name of the table, or {@code null} if the table doesn't exist yet
+         * @throws SQLException if accessing the metadata fails
+         */
+        private String[] findTable(DatabaseMetaData metadata, String catalog) throws SQLException
+        {
+            ResultSet tables = metadata.getTables(catalog, null, "%", new String[] { "TABLE" });
+            try {
+                while (tables.next()) {
+                    if (TABLE.equalsIgnoreCase(tables.getString("TABLE_NAME"))) {
+                        return new String[] { tables.getString("TABLE_CAT"), tables.getString("TABLE_SCHEM"),
+                            tables.getString("TABLE_NAME") };
+                    }
+                }
+                return null;
+            } finally {
+                tables.close();
+            }
+        }
+
+        /**
+         * Checks if a unique index covering exactly the party columns already exists, either because the table was
+         * created after the key was declared, or because this migration already ran.
+         *
+         * @param metadata the metadata of the current database
+         * @param table the catalog, schema and name of the table
+         * @return {@code true} if the key is already enforced
+         * @throws SQLException if accessing the metadata fails
+         */
+        private boolean hasUniqueIndex(DatabaseMetaData metadata, String[] table) throws SQLException
+        {
+            Map<String, Set<String>> indexes = new HashMap<String, Set<String>>();
+            ResultSet info = metadata.getIndexInfo(table[0], table[1], table[2], true, false);
+            try {
+                while (info.next()) {
+                    String index = info.getString("INDEX_NAME");
+                    String column = info.getString("COLUMN_NAME");
+                    if (index == null || column == null) {
+                        continue;
+                    }
+                    Set<String> columns = indexes.get(index);
+                    if (columns == null) {
+                        columns = new HashSet<String>();
+                        indexes.put(index, columns);
+                    }
+                    columns.add(column.toLowerCase(Locale.ROOT));
+                }
+            } finally {
+                info.close();
+            }
+            Set<String> expected = new HashSet<String>();
+            for (String column : COLUMNS) {
+                expected.add(column.toLowerCase(Locale.ROOT));
+            }
+            return indexes.containsValue(expected);
+        }
+
+        /**
+         * Lists the connections sharing all their parties with an older connection. Connections with a missing party
+         * are never duplicates, since the unique index doesn't compare {@code null} values.
+         *
+         * @param connection the JDBC connection to use
+         * @param table the name of the table
+         * @return the identifiers of the connections to remove, may be empty
+         * @throws SQLException if reading the connections fails
+         */
+        private List<Long> findDuplicates(Connection connection, String table) throws SQLException
+        {
+            List<Long> duplicates = new ArrayList<Long>();
+            Set<List<String>> seen = new HashSet<List<String>>();
+            Statement statement = connection.createStatement();
+            try {
+                ResultSet rows = statement.executeQuery("select id, " + COLUMNS.get(0) + ", " + COLUMNS.get(1)
+                    + ", " + COLUMNS.get(2) + ", " + COLUMNS.get(3) + " from " + table + " order by id");
+                while (rows.next()) {
+                    List<String> parties = new ArrayList<String>(COLUMNS.size());
+                    for (int i = 2; i <= COLUMNS.size() + 1; ++i) {
+                        parties.add(rows.getString(i));
+                    }
+                    if (!parties.contains(null) && !seen.add(parties)) {
+                        duplicates.add(rows.getLong(1));
+                    }
+                }
+                rows.close();
+            } finally {
+                statement.close();
+            }
+            return duplicates;
+        }
+
+        /**
+         * Deletes the duplicate connections in a single batch.
+         *
+         * @param connection the JDBC connection to use
+         * @param table the name of the table
+         * @param duplicates the identifiers of the connections to remove
+         * @throws SQLException if deleting fails
+         */
+        private void deleteDuplicates(Connection connection, String table, List<Long> duplicates)
+            throws SQLException
+        {
+            if (duplicates.isEmpty()) {
+                return;
+            }
+            PreparedStatement statement = connection.prepareStatement("delete from " + table + " where id = ?");
+            try {
+                for (Long id : duplicates) {
+                    statement.setLong(1, id);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            } finally {
+                statement.close();
+            }
+        }
+    }
+}
@@ -17,6 +17,10 @@
  */
 package org.phenotips.messaging.script;
 
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.similarity.PatientSimilarityView;
+import org.phenotips.data.similarity.PatientSimilarityViewFactory;
 import org.phenotips.messaging.ActionManager;
 import org.phenotips.messaging.Connection;
 import org.phenotips.messaging.ConnectionManager;
@@ -33,7 +37,7 @@
 /**
  * Stores a connection between the owners of two matched patients, anonymously, to be used for email communication. The
  * identities of the two parties are kept private, since mails are sent behind the scenes, while the users only see the
- * {@link #id identifier of the connection}.
+ * {@link Connection#getToken() opaque token of the connection}.
  *
  * @version $Id$
  * @since 1.0M1
@@ -49,18 +53,60 @@ public class AnonymousCommunicationScriptService implements ScriptService
     @Inject
     private ActionManager actionManager;
 
+    @Inject
+    private PatientRepository patients;
+
+    @Inject
+    @Named("restricted")
+    private PatientSimilarityViewFactory viewFactory;
+
     /**
-     * Send the initial email to the owner of the matched patient.
+     * Send the initial email to the owner of the matched patient, for a connection which has already been stored.
      *
-     * @param connectionId the id of the anonymous communication linking the two patients and their owners that are
-     *            involved in this connection
+     * @param token the token of the anonymous communication linking the two patients and their owners that are
+     *            involved in this connection; numerical identifiers used by older links are also accepted
      * @param options the mail content options selected by the user
-     * @return {@code 0} if the mail was successfully sent, other numbers in case of errors
+     * @return {@code 0} if the mail was successfully sent or queued, other numbers in case of errors
      */
-    public int sendInitialMail(String connectionId, Map<String, Object> options)
+    public int sendInitialMail(String token, Map<String, Object> options)
     {
         try {
-            Connection c = this.connectionManager.getConnectionById(Long.valueOf(connectionId));
+            Connection c = this.connectionManager.getConnectionByToken(token);
+            if (c == null) {
+                return -1;
+            }
+            // FIXME! Add rights check: only the initiating user can do this
+            return this.actionManager.sendInitialMails(c, options);
+        } catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Send the initial email to the owner of the matched patient, storing the connection between the two patients if
+     * this is the first time their owners are put in contact.
+     *
+     * @param token the {@link PatientSimilarityView#getContactToken() contact token} of the match, must correspond to
+     *            the two patients
+     * @param referencePatientId the identifier of the reference patient, owned by the user requesting the contact
+     * @param matchPatientId the identifier of the matched patient, whose owner is being contacted
+     * @param options the mail content options selected by the user
+     * @return {@code 0} if the mail was successfully sent or queued, other numbers in case of errors
+     */
+    public int sendInitialMail(String token, String referencePatientId, String matchPatientId,
+        Map<String, Object> options)
+    {
+        try {
+            Patient reference = this.patients.getPatientById(referencePatientId);
+            Patient match = this.patients.getPatientById(matchPatientId);
+            if (reference == null || match == null) {
+                return sendInitialMail(token, options);
+            }
+            PatientSimilarityView pair = this.viewFactory.makeSimilarPatient(match, reference);
+            if (!this.connectionManager.getToken(pair).equals(token)) {
+                return sendInitialMail(token, options);
+            }
+            Connection c = this.connectionManager.getConnection(pair);
             // FIXME! Add rights check: only the initiating user can do this
             return this.actionManager.sendInitialMails(c, options);
         } catch (Exception ex) {
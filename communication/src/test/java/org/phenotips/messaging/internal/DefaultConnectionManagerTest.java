@@ -0,0 +1,441 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.messaging.internal;
+
+import org.phenotips.components.ComponentManagerRegistry;
+import org.phenotips.data.Patient;
+import org.phenotips.data.permissions.Owner;
+import org.phenotips.data.permissions.PatientAccess;
+import org.phenotips.data.permissions.PermissionsManager;
+import org.phenotips.data.similarity.PatientSimilarityView;
+import org.phenotips.data.similarity.PatientSimilarityViewFactory;
+import org.phenotips.messaging.Connection;
+import org.phenotips.messaging.ConnectionManager;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Provider;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.type.Type;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DefaultConnectionManager} implementation of the {@link ConnectionManager} role. The database is
+ * replaced by a mocked Hibernate session.
+ *
+ * @version $Id$
+ */
+public class DefaultConnectionManagerTest
+{
+    private static final String TOKEN_QUERY = "from Connection where token = :token";
+
+    private static final String TOKENS_QUERY = "from Connection where token in (:tokens)";
+
+    private static final String IDS_QUERY = "from Connection where id in (:ids)";
+
+    @Rule
+    public final MockitoComponentMockingRule<ConnectionManager> mocker =
+        new MockitoComponentMockingRule<ConnectionManager>(DefaultConnectionManager.class);
+
+    private Session session;
+
+    private Transaction transaction;
+
+    private Query tokenQuery;
+
+    private Query partiesQuery;
+
+    private Patient reference;
+
+    private Patient match;
+
+    private PatientSimilarityView pair;
+
+    /** The owner of each patient. */
+    private Map<Patient, DocumentReference> owners = new HashMap<Patient, DocumentReference>();
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception
+    {
+        Environment environment = this.mocker.getInstance(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(Files.createTempDirectory("permanent").toFile());
+
+        HibernateSessionFactory sessionFactory = this.mocker.getInstance(HibernateSessionFactory.class);
+        SessionFactory factory = mock(SessionFactory.class);
+        when(sessionFactory.getSessionFactory()).thenReturn(factory);
+        this.session = mock(Session.class);
+        when(factory.openSession()).thenReturn(this.session);
+        this.transaction = mock(Transaction.class);
+        when(this.transaction.isActive()).thenReturn(true);
+        when(this.session.beginTransaction()).thenReturn(this.transaction);
+        this.tokenQuery = mockQuery(TOKEN_QUERY);
+        this.partiesQuery = mockQuery(Matchers.startsWith("from Connection where 1 = 1"));
+
+        // Connections read the owners of the patients through the permissions manager
+        ComponentManager componentManager = mock(ComponentManager.class);
+        Provider<ComponentManager> provider = mock(Provider.class);
+        when(provider.get()).thenReturn(componentManager);
+        ReflectionUtils.setFieldValue(new ComponentManagerRegistry(), "cmProvider", provider);
+        PermissionsManager permissions = mock(PermissionsManager.class);
+        when(componentManager.getInstance(PermissionsManager.class)).thenReturn(permissions);
+        when(permissions.getPatientAccess(Matchers.any(Patient.class))).thenAnswer(new Answer<PatientAccess>()
+        {
+            @Override
+            public PatientAccess answer(InvocationOnMock invocation)
+            {
+                Owner owner = mock(Owner.class);
+                when(owner.getUser())
+                    .thenReturn(DefaultConnectionManagerTest.this.owners.get(invocation.getArguments()[0]));
+                PatientAccess access = mock(PatientAccess.class);
+                when(access.getOwner()).thenReturn(owner);
+                return access;
+            }
+        });
+
+        this.reference = mockPatient("P0000001", "padams");
+        this.match = mockPatient("P0000002", "hmccoy");
+        this.pair = mockPair(this.reference, this.match);
+        PatientSimilarityViewFactory viewFactory = this.mocker.getInstance(PatientSimilarityViewFactory.class);
+        when(viewFactory.convert(Matchers.any(PatientSimilarityView.class)))
+            .thenAnswer(new Answer<PatientSimilarityView>()
+            {
+                @Override
+                public PatientSimilarityView answer(InvocationOnMock invocation)
+                {
+                    return (PatientSimilarityView) invocation.getArguments()[0];
+                }
+            });
+    }
+
+    /** Tokens are opaque, they only depend on the two patients, and they survive restarts. */
+    @Test
+    public void testTokensOnlyDependOnThePatients() throws Exception
+    {
+        ConnectionManager manager = this.mocker.getComponentUnderTest();
+        String token = manager.getToken(this.pair);
+
+        Assert.assertTrue(token, token.matches("[0-9a-f]{32}"));
+        Assert.assertEquals(token, manager.getToken(mockPair(this.reference, this.match)));
+        Assert.assertFalse(token.equals(manager.getToken(mockPair(this.match, this.reference))));
+        Mockito.verifyZeroInteractions(this.session);
+
+        // The secret key is read back from the permanent directory
+        Environment environment = this.mocker.getInstance(Environment.class);
+        Assert.assertTrue(new File(environment.getPermanentDirectory(), "phenotips/messaging/contact-token.key")
+            .isFile());
+        ReflectionUtils.setFieldValue(manager, "key", null);
+        Assert.assertEquals(token, manager.getToken(this.pair));
+
+        // Another instance has another secret key
+        ReflectionUtils.setFieldValue(manager, "key", null);
+        when(environment.getPermanentDirectory()).thenReturn(Files.createTempDirectory("permanent").toFile());
+        Assert.assertFalse(token.equals(manager.getToken(this.pair)));
+    }
+
+    /** Numerical tokens are the identifiers exposed before opaque tokens, they're still honored. */
+    @Test
+    public void testLegacyNumericTokens() throws Exception
+    {
+        Connection connection = new Connection();
+        when(this.session.get(Connection.class, 42L)).thenReturn(connection);
+        ConnectionManager manager = this.mocker.getComponentUnderTest();
+
+        Assert.assertSame(connection, manager.getConnectionByToken("42"));
+        verify(this.session, Mockito.never()).createQuery(TOKEN_QUERY);
+
+        // Too long to be an identifier
+        Assert.assertNull(manager.getConnectionByToken("12345678901234567890"));
+        verify(this.tokenQuery).setString("token", "12345678901234567890");
+        Assert.assertNull(manager.getConnectionByToken(""));
+    }
+
+    /** Tokens are looked up with one query per batch, and legacy identifiers with a separate query. */
+    @Test
+    public void testGetConnectionsByTokenBatchesQueries() throws Exception
+    {
+        List<String> tokens = new ArrayList<String>();
+        for (int i = 0; i < 600; i++) {
+            tokens.add(String.format("%032x", i + 1000));
+        }
+        Query tokensQuery = mockQuery(TOKENS_QUERY);
+        Connection found = connection(1L, tokens.get(550));
+        doReturn(Collections.emptyList()).doReturn(Collections.singletonList(found)).when(tokensQuery).list();
+        Query idsQuery = mockQuery(IDS_QUERY);
+        Connection legacy = connection(7L, null);
+        doReturn(Collections.singletonList(legacy)).when(idsQuery).list();
+        tokens.add("7");
+
+        Map<String, Connection> result = this.mocker.getComponentUnderTest().getConnectionsByToken(tokens);
+
+        Assert.assertEquals(2, result.size());
+        Assert.assertSame(found, result.get(tokens.get(550)));
+        Assert.assertSame(legacy, result.get("7"));
+        @SuppressWarnings("rawtypes")
+        ArgumentCaptor<Collection> batches = ArgumentCaptor.forClass(Collection.class);
+        verify(tokensQuery, Mockito.times(2)).setParameterList(Matchers.eq("tokens"), batches.capture());
+        Assert.assertEquals(500, batches.getAllValues().get(0).size());
+        Assert.assertEquals(100, batches.getAllValues().get(1).size());
+        verify(idsQuery).setParameterList("ids", Collections.singletonList(7L));
+        verify(this.session).close();
+    }
+
+    /** A new connection is stored with its token, and found by its token afterwards. */
+    @Test
+    public void testNewConnectionIsStored() throws Exception
+    {
+        ConnectionManager manager = this.mocker.getComponentUnderTest();
+        Connection connection = manager.getConnection(this.pair);
+
+        Assert.assertEquals(manager.getToken(this.pair), connection.getToken());
+        Assert.assertEquals(this.owners.get(this.reference), connection.getInitiatingUser());
+        Assert.assertEquals(this.owners.get(this.match), connection.getContactedUser());
+        verify(this.session).save(connection);
+        verify(this.transaction).commit();
+
+        doReturn(Collections.singletonList(connection)).when(this.tokenQuery).list();
+        Assert.assertSame(connection, manager.getConnection(this.pair));
+        verify(this.session).save(connection);
+    }
+
+    /** When a concurrent request stores the same connection first, its connection is returned. */
+    @Test
+    public void testConcurrentInsertIsRetried() throws Exception
+    {
+        Connection concurrent = connection(3L, null);
+        doReturn(Collections.emptyList()).doReturn(Collections.singletonList(concurrent)).when(this.tokenQuery).list();
+        when(this.session.save(Matchers.any(Connection.class)))
+            .thenThrow(new ConstraintViolationException("Duplicate token", null, "token"));
+
+        Assert.assertSame(concurrent, this.mocker.getComponentUnderTest().getConnection(this.pair));
+        verify(this.transaction).rollback();
+        verify(this.session, Mockito.times(2)).close();
+    }
+
+    /** When the owners changed, the token moves to a new connection between the current owners. */
+    @Test
+    public void testOwnerChangeStoresANewConnection() throws Exception
+    {
+        ConnectionManager manager = this.mocker.getComponentUnderTest();
+        String token = manager.getToken(this.pair);
+        Connection previous = connection(5L, token);
+        previous.setInitiatingUser(new DocumentReference("xwiki", "XWiki", "former"));
+        previous.setContactedUser(this.owners.get(this.match));
+        doReturn(Collections.singletonList(previous)).when(this.tokenQuery).list();
+
+        Connection connection = manager.getConnection(this.pair);
+
+        Assert.assertNotSame(previous, connection);
+        Assert.assertEquals(token, connection.getToken());
+        Assert.assertEquals(this.owners.get(this.reference), connection.getInitiatingUser());
+        Assert.assertNull(previous.getToken());
+        InOrder order = Mockito.inOrder(this.session);
+        order.verify(this.session).update(previous);
+        order.verify(this.session).flush();
+        order.verify(this.session).save(connection);
+        verify(this.transaction).commit();
+    }
+
+    /** Connections stored before tokens were introduced are found by their parties, and get their token. */
+    @Test
+    public void testLegacyConnectionGetsItsToken() throws Exception
+    {
+        Connection legacy = connection(9L, null);
+        doReturn(Collections.singletonList(legacy)).when(this.partiesQuery).list();
+        ConnectionManager manager = this.mocker.getComponentUnderTest();
+
+        Assert.assertSame(legacy, manager.getConnection(this.pair));
+        Assert.assertEquals(manager.getToken(this.pair), legacy.getToken());
+        verify(this.partiesQuery).setMaxResults(1);
+        verify(this.session).update(legacy);
+        verify(this.session, Mockito.never()).save(Matchers.any());
+        verify(this.transaction).commit();
+        verify(this.session).close();
+    }
+
+    /** Connections are cached by identifier, including the connections returned after being stored. */
+    @Test
+    public void testConnectionsAreCachedByIdentifier() throws Exception
+    {
+        ConnectionManager manager = this.mocker.getComponentUnderTest();
+        Map<String, Connection> cached = mockCache(manager);
+        Connection connection = connection(42L, null);
+        when(this.session.get(Connection.class, 42L)).thenReturn(connection);
+
+        Assert.assertSame(connection, manager.getConnectionById(42L));
+        Assert.assertSame(connection, manager.getConnectionById(42L));
+        Assert.assertSame(connection, manager.getConnectionByToken("42"));
+        Assert.assertSame(connection, manager.getConnectionsByToken(Collections.singletonList("42")).get("42"));
+        verify(this.session, Mockito.times(1)).get(Connection.class, 42L);
+        verify(this.session, Mockito.times(1)).close();
+
+        Connection legacy = connection(9L, null);
+        doReturn(Collections.singletonList(legacy)).when(this.partiesQuery).list();
+        Assert.assertSame(legacy, manager.getConnection(this.pair));
+        Assert.assertSame(legacy, cached.get("9"));
+        Assert.assertSame(legacy, manager.getConnectionById(9L));
+        verify(this.session, Mockito.never()).get(Connection.class, 9L);
+    }
+
+    /** Sessions are closed and transactions rolled back even when the database fails. */
+    @Test
+    public void testSessionsAreClosedOnErrors() throws Exception
+    {
+        ConnectionManager manager = this.mocker.getComponentUnderTest();
+        when(this.session.get(Connection.class, 42L)).thenThrow(new HibernateException("Database down"));
+        try {
+            manager.getConnectionById(42L);
+            Assert.fail("The database failure should have been propagated");
+        } catch (HibernateException ex) {
+            // Expected
+        }
+        verify(this.session, Mockito.times(1)).close();
+
+        Mockito.doThrow(new HibernateException("Database down")).when(this.tokenQuery).list();
+        try {
+            manager.getConnectionByToken(String.format("%032x", 1000));
+            Assert.fail("The database failure should have been propagated");
+        } catch (HibernateException ex) {
+            // Expected
+        }
+        verify(this.session, Mockito.times(2)).close();
+
+        doReturn(Collections.emptyList()).when(this.tokenQuery).list();
+        Mockito.doThrow(new HibernateException("Database down")).when(this.partiesQuery).list();
+        try {
+            manager.getConnection(this.pair);
+            Assert.fail("The database failure should have been propagated");
+        } catch (HibernateException ex) {
+            // Expected
+        }
+        verify(this.transaction).rollback();
+        verify(this.transaction, Mockito.never()).commit();
+        verify(this.session, Mockito.times(3)).close();
+    }
+
+    private Patient mockPatient(String id, String owner)
+    {
+        Patient patient = mock(Patient.class);
+        when(patient.getId()).thenReturn(id);
+        this.owners.put(patient, new DocumentReference("xwiki", "XWiki", owner));
+        return patient;
+    }
+
+    private PatientSimilarityView mockPair(Patient referencePatient, Patient matchedPatient)
+    {
+        PatientSimilarityView view = mock(PatientSimilarityView.class);
+        String id = matchedPatient.getId();
+        when(view.getId()).thenReturn(id);
+        doReturn(referencePatient).when(view).getReference();
+        this.owners.put(view, this.owners.get(matchedPatient));
+        return view;
+    }
+
+    private Connection connection(Long id, String token)
+    {
+        Connection connection = new Connection();
+        ReflectionUtils.setFieldValue(connection, "id", id);
+        connection.setToken(token);
+        return connection;
+    }
+
+    private Map<String, Connection> mockCache(ConnectionManager manager)
+    {
+        final Map<String, Connection> cached = new HashMap<String, Connection>();
+        @SuppressWarnings("unchecked")
+        Cache<Connection> cache = mock(Cache.class);
+        doAnswer(new Answer<Connection>()
+        {
+            @Override
+            public Connection answer(InvocationOnMock invocation)
+            {
+                return cached.get(invocation.getArguments()[0]);
+            }
+        }).when(cache).get(Matchers.anyString());
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+            {
+                cached.put((String) invocation.getArguments()[0], (Connection) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(cache).set(Matchers.anyString(), Matchers.any(Connection.class));
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+            {
+                cached.remove(invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(cache).remove(Matchers.anyString());
+        ReflectionUtils.setFieldValue(manager, "cache", cache);
+        return cached;
+    }
+
+    private Query mockQuery(String hql)
+    {
+        Query query = mock(Query.class);
+        when(this.session.createQuery(hql)).thenReturn(query);
+        when(query.setString(Matchers.anyString(), Matchers.anyString())).thenReturn(query);
+        when(query.setParameterList(Matchers.anyString(), Matchers.<Collection<?>>any())).thenReturn(query);
+        when(query.setParameter(Matchers.anyString(), Matchers.any(), Matchers.any(Type.class))).thenReturn(query);
+        when(query.setMaxResults(Matchers.anyInt())).thenReturn(query);
+        doReturn(Collections.emptyList()).when(query).list();
+        return query;
+    }
+}
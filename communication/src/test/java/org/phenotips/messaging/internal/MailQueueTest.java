@@ -0,0 +1,254 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.messaging.internal;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StaleObjectStateException;
+import org.hibernate.Transaction;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.plugin.mailsender.MailSenderPlugin;
+import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link MailQueue} class. The mail server is replaced by a mocked mail sender, and the database by a
+ * mocked Hibernate session; the queue's own threads do the sending.
+ *
+ * @version $Id$
+ */
+public class MailQueueTest
+{
+    /** How long to wait for the background threads, in milliseconds. */
+    private static final int WAIT = 5000;
+
+    private static final String TEMPLATE = "PhenoTips.MatchContact";
+
+    private static final String RECIPIENT = "padams@example.org";
+
+    private Session session;
+
+    private Transaction transaction;
+
+    private Query query;
+
+    private Execution execution;
+
+    private XWikiContext mailContext;
+
+    private MailSenderPlugin mailsender;
+
+    private MailQueue queue;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        HibernateSessionFactory sessionFactory = mock(HibernateSessionFactory.class);
+        SessionFactory factory = mock(SessionFactory.class);
+        when(sessionFactory.getSessionFactory()).thenReturn(factory);
+        this.session = mock(Session.class);
+        when(factory.openSession()).thenReturn(this.session);
+        this.transaction = mock(Transaction.class);
+        when(this.session.beginTransaction()).thenReturn(this.transaction);
+        this.query = mock(Query.class);
+        when(this.session.createQuery(Matchers.anyString())).thenReturn(this.query);
+        when(this.query.setTimestamp(Matchers.anyString(), Matchers.any(Date.class))).thenReturn(this.query);
+        when(this.query.setMaxResults(Matchers.anyInt())).thenReturn(this.query);
+
+        // The request queueing the mails
+        XWikiContext requestContext = mock(XWikiContext.class);
+        when(requestContext.getWikiId()).thenReturn("xwiki");
+        when(requestContext.getUser()).thenReturn("XWiki.padams");
+        ExecutionContext request = new ExecutionContext();
+        request.setProperty(XWikiContext.EXECUTIONCONTEXT_KEY, requestContext);
+        this.execution = mock(Execution.class);
+        when(this.execution.getContext()).thenReturn(request);
+
+        // The contexts created for sending the mails
+        this.mailContext = mock(XWikiContext.class);
+        XWiki xwiki = mock(XWiki.class);
+        when(this.mailContext.getWiki()).thenReturn(xwiki);
+        this.mailsender = mock(MailSenderPlugin.class);
+        when(xwiki.getPlugin("mailsender", this.mailContext)).thenReturn(this.mailsender);
+        ExecutionContextManager contextManager = mock(ExecutionContextManager.class);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+            {
+                ((ExecutionContext) invocation.getArguments()[0]).setProperty(XWikiContext.EXECUTIONCONTEXT_KEY,
+                    MailQueueTest.this.mailContext);
+                return null;
+            }
+        }).when(contextManager).initialize(Matchers.any(ExecutionContext.class));
+
+        this.queue = new MailQueue(sessionFactory, this.execution, contextManager, mock(Logger.class));
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.queue.stop();
+    }
+
+    /** A queued mail is sent in the background, in the wiki and with the rights of the user which queued it. */
+    @Test
+    public void testQueuedMailIsSent() throws Exception
+    {
+        QueuedMail mail = queue(0);
+        when(this.mailsender.sendMailFromTemplate(Matchers.eq(TEMPLATE), Matchers.anyString(), Matchers.eq(RECIPIENT),
+            Matchers.<String>any(), Matchers.<String>any(), Matchers.anyString(), Matchers.<Map<String, Object>>any(),
+            Matchers.eq(this.mailContext))).thenReturn(0);
+
+        Assert.assertTrue(this.queue.add(mail));
+        verify(this.session).save(mail);
+        verify(this.session, timeout(WAIT)).delete(mail);
+        Assert.assertEquals("xwiki", mail.getWiki());
+        Assert.assertEquals("XWiki.padams", mail.getAuthor());
+        verify(this.mailContext).setWikiId("xwiki");
+        verify(this.mailContext).setUser("XWiki.padams");
+        Assert.assertEquals(0, mail.getAttempts());
+    }
+
+    /** A failed mail is retried with an exponential backoff. */
+    @Test
+    public void testFailedMailIsRetriedLater() throws Exception
+    {
+        QueuedMail mail = queue(3);
+        rejectMails();
+
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(this.queue.add(mail));
+        // Queueing, claiming, renewing the claim, and recording the failure
+        verify(this.transaction, timeout(WAIT).times(4)).commit();
+        Assert.assertEquals(4, mail.getAttempts());
+        Assert.assertNotNull(mail.getLastError());
+        long delay = mail.getNextAttempt().getTime() - start;
+        Assert.assertTrue("Unexpected retry delay: " + delay, delay >= TimeUnit.SECONDS.toMillis(240)
+            && delay <= TimeUnit.SECONDS.toMillis(240) + WAIT);
+    }
+
+    /** Mails which failed too many times are abandoned and removed from the queue, like mails abandoned earlier. */
+    @Test
+    public void testMailIsAbandonedAfterMaxAttempts() throws Exception
+    {
+        QueuedMail mail = queue(MailQueue.MAX_ATTEMPTS - 1);
+        rejectMails();
+
+        Assert.assertTrue(this.queue.add(mail));
+        verify(this.session, timeout(WAIT)).delete(mail);
+        verify(this.transaction, timeout(WAIT).times(4)).commit();
+        // Only claiming and renewing the claim update the mail
+        verify(this.session, Mockito.times(2)).update(mail);
+        Assert.assertEquals(MailQueue.MAX_ATTEMPTS - 1, mail.getAttempts());
+        verify(this.session).createQuery("delete from QueuedMail where nextAttempt is null");
+        verify(this.query).executeUpdate();
+    }
+
+    /** Template parameters are passed back unchanged, even when they look like JSON. */
+    @Test
+    public void testParametersArePassedUnchanged() throws Exception
+    {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("recipientName", "{\"name\": \"Patch Adams\"}");
+        parameters.put("matchCaseIds", "[\"P0000001\", \"P0000002\"]");
+        parameters.put("comment", "null");
+        parameters.put("quoted", "\"quoted\"");
+        parameters.put("anonymous", Boolean.TRUE);
+        parameters.put("matches", 3);
+        parameters.put("missing", null);
+
+        QueuedMail mail = new QueuedMail(TEMPLATE, "noreply@example.org", RECIPIENT, null, parameters);
+
+        Map<String, Object> expected = new HashMap<String, Object>(parameters);
+        expected.put("matches", "3");
+        expected.remove("missing");
+        Assert.assertEquals(expected, mail.getParameters());
+    }
+
+    /** A mail claimed again by another worker after its lease expired is not sent twice. */
+    @Test
+    public void testMailClaimedAgainIsSkipped() throws Exception
+    {
+        QueuedMail mail = queue(0);
+        // The claim succeeds, but renewing it finds a newer version of the mail
+        doNothing().doThrow(new StaleObjectStateException(QueuedMail.class.getName(), 1L)).when(this.session)
+            .update(mail);
+
+        Assert.assertTrue(this.queue.add(mail));
+        verify(this.transaction, timeout(WAIT)).rollback();
+        Mockito.verifyZeroInteractions(this.mailsender);
+        verify(this.session, Mockito.never()).delete(mail);
+    }
+
+    /**
+     * Create a mail which failed the given number of times, and make it the only one due in the queue.
+     *
+     * @param failures the number of failed attempts
+     * @return the mail
+     */
+    private QueuedMail queue(int failures)
+    {
+        QueuedMail mail = new QueuedMail(TEMPLATE, "noreply@example.org", RECIPIENT, null,
+            Collections.<String, Object>singletonMap("recipientName", "Patch Adams"));
+        for (int i = 0; i < failures; ++i) {
+            mail.fail("Connection refused", new Date());
+        }
+        List<QueuedMail> due = new ArrayList<QueuedMail>(Collections.singletonList(mail));
+        when(this.query.list()).thenReturn(due, new ArrayList<QueuedMail>());
+        return mail;
+    }
+
+    private void rejectMails() throws Exception
+    {
+        when(this.mailsender.sendMailFromTemplate(Matchers.anyString(), Matchers.anyString(), Matchers.anyString(),
+            Matchers.<String>any(), Matchers.<String>any(), Matchers.anyString(), Matchers.<Map<String, Object>>any(),
+            Matchers.any(XWikiContext.class))).thenReturn(-1);
+    }
+}
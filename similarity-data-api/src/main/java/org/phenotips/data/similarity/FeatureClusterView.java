@@ -25,6 +25,7 @@
 import java.util.Collection;
 
 import net.sf.json.JSONObject;
+import net.sf.json.util.JSONBuilder;
 
 /**
  * View of the relationship between a collection of features in each of two patients.
@@ -88,4 +89,13 @@ public interface FeatureClusterView extends Feature
      */
     @Override
     JSONObject toJSON();
+
+    /**
+     * Write the same data as {@link #toJSON()} directly to a streaming JSON builder, without creating the intermediate
+     * json-lib objects.
+     *
+     * @param json the builder to write to, positioned where a value is expected
+     * @since 1.0M7
+     */
+    void writeJSON(JSONBuilder json);
 }
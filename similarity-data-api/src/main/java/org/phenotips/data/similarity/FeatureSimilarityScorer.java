@@ -0,0 +1,55 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+import java.util.Collection;
+
+/**
+ * Scores the phenotypic similarity of two sets of vocabulary terms, given only their identifiers. This is much
+ * cheaper than building a {@link PatientSimilarityView}, since no patient data needs to be loaded, and can be used for
+ * ranking candidates directly from indexed data before fully scoring the best of them. Scorers are named components,
+ * selected through the {@link FeatureSimilarityScorerRegistry}.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Unstable
+@Role
+public interface FeatureSimilarityScorer
+{
+    /**
+     * Score the similarity of two phenotypes.
+     *
+     * @param referenceTerms the identifiers of the terms present in the reference phenotype, e.g. {@code HP:0001382}
+     * @param matchTerms the identifiers of the terms present in the matched phenotype
+     * @return a similarity score between {@code 0} (a poor match) and {@code 1} (a good match); terms not known to the
+     *         scorer are ignored
+     */
+    double getScore(Collection<String> referenceTerms, Collection<String> matchTerms);
+
+    /**
+     * The cost of computing a score with this scorer, so that cheaper scorers can be preferred for pre-filtering
+     * candidates or under heavy load.
+     *
+     * @return the cost profile of this scorer
+     */
+    ScorerCost getCost();
+}
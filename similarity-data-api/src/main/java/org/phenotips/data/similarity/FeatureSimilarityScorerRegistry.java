@@ -0,0 +1,63 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+/**
+ * Selects the {@link FeatureSimilarityScorer feature scorer} to use, as configured in the wiki. The configuration is
+ * checked periodically, so the scorer can be switched at runtime, for example to a cheaper one at peak load.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Unstable
+@Role
+public interface FeatureSimilarityScorerRegistry
+{
+    /**
+     * The name of the scorer currently in use.
+     *
+     * @return the component hint of the configured scorer, or {@code default} if the configured scorer doesn't exist
+     */
+    String getScorerType();
+
+    /**
+     * Return the scorer currently in use.
+     *
+     * @return the configured scorer, or the default scorer if the configured scorer doesn't exist
+     */
+    FeatureSimilarityScorer getScorer();
+
+    /**
+     * Return a scorer with the given name.
+     *
+     * @param type the component hint of the scorer
+     * @return the requested scorer, or the default scorer if the requested scorer doesn't exist
+     */
+    FeatureSimilarityScorer getScorer(String type);
+
+    /**
+     * Return a scorer not exceeding a cost, for example for pre-filtering candidates before fully scoring them.
+     *
+     * @param maxCost the highest acceptable cost
+     * @return the configured scorer if it is cheap enough, otherwise the cheapest available scorer
+     */
+    FeatureSimilarityScorer getScorer(ScorerCost maxCost);
+}
@@ -0,0 +1,51 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity;
+
+import org.phenotips.data.Patient;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Loads the patients matched by a search all at once. Which of the requested patients still exist is checked with a
+ * single query, and the loaded patients are remembered until the end of the current request, so that the same
+ * patients are not loaded again by the next search or page of results.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Unstable
+@Role
+public interface PatientBatchLoader
+{
+    /**
+     * Load several patients. Access rights are not checked.
+     *
+     * @param names the identifiers of the patients, either the names of the patient documents, as returned by a
+     *            {@link PatientCandidateGenerator}, or their full references, including the wiki, as stored in the
+     *            patients index
+     * @return the patients, by requested name, in the order of the requested names; stale names, whose document no
+     *         longer exists or no longer holds a patient record, are left out, while patients that exist but failed to
+     *         load are mapped to {@code null}
+     */
+    Map<String, Patient> load(Collection<String> names);
+}
@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity;
+
+import org.phenotips.data.Patient;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+import java.util.Map;
+
+/**
+ * Finds the patients most likely to match a reference patient, before loading them and computing their full
+ * similarity. Implementations keep their own index of the existing patients.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Unstable
+@Role
+public interface PatientCandidateGenerator
+{
+    /**
+     * Whether the index of the existing patients is available. Building the index may take a while, callers should
+     * find candidates some other way until the generator is ready.
+     *
+     * @return {@code true} if {@link #getCandidates(Patient, int)} can be used, {@code false} otherwise
+     */
+    boolean isReady();
+
+    /**
+     * Find the candidate matches of a reference patient. Access rights are not checked.
+     *
+     * @param referencePatient the reference patient, must not be {@code null}
+     * @param limit the maximum number of candidates to return, all the candidates if not positive
+     * @return the identifiers of the candidate patients (the names of their documents) with an estimate of their
+     *         similarity to the reference patient, best candidates first; the reference patient is not included
+     */
+    Map<String, Double> getCandidates(Patient referencePatient, int limit);
+
+    /**
+     * Index the current data of a new or modified patient.
+     *
+     * @param patient the patient to index, must not be {@code null}
+     */
+    void update(Patient patient);
+
+    /**
+     * Remove a patient from the index, for example after the patient has been deleted.
+     *
+     * @param patientId the identifier of the patient, i.e. the name of the patient document
+     */
+    void remove(String patientId);
+}
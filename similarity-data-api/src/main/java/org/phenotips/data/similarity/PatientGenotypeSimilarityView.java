@@ -20,6 +20,7 @@
 import org.xwiki.stability.Unstable;
 
 import net.sf.json.JSONArray;
+import net.sf.json.util.JSONBuilder;
 
 /**
  * View of a patient genotype as related to another reference genotype.
@@ -82,4 +83,14 @@ public interface PatientGenotypeSimilarityView extends PatientGenotype
      */
     @Override
     JSONArray toJSON();
+
+    /**
+     * Write the same data as {@link #toJSON()} directly to a streaming JSON builder, without creating the intermediate
+     * json-lib objects.
+     *
+     * @param json the builder to write to, positioned where a value is expected; a JSON {@code null} is written if the
+     *            necessary genetic information is not available or visible
+     * @since 1.0M7
+     */
+    void writeJSON(JSONBuilder json);
 }
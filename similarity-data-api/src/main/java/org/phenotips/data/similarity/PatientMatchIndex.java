@@ -0,0 +1,78 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity;
+
+import org.phenotips.data.Patient;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+import java.util.List;
+
+/**
+ * Precomputed index of the best matches of each patient. The matches of a patient are computed in the background
+ * whenever the patient changes, and stored, so that looking them up doesn't require scoring any patient pair.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Unstable
+@Role
+public interface PatientMatchIndex
+{
+    /**
+     * Return the precomputed best matches of a patient which are accessible to the current user.
+     *
+     * @param referencePatient the reference patient, must not be {@code null}
+     * @return the matched patients, in decreasing order of similarity; an empty list if no matches are found or if the
+     *         matches of the patient have not been computed yet
+     */
+    List<PatientSimilarityView> getMatches(Patient referencePatient);
+
+    /**
+     * The maximum number of matches returned by {@link #getMatches(Patient)}.
+     *
+     * @return a positive number
+     */
+    int getSize();
+
+    /**
+     * Whether the matches of all the existing patients have been computed. Until then, the matches of some patients
+     * are missing, and callers should find matches some other way. If the index is not ready, the missing matches
+     * start being computed in the background.
+     *
+     * @return {@code true} if {@link #getMatches(Patient)} can be used, {@code false} otherwise
+     */
+    boolean isReady();
+
+    /**
+     * Schedule the computation of the matches of a patient, replacing any previously computed matches. The matches of
+     * the other patients are also updated to take into account the changed patient. This method returns immediately,
+     * the matches are computed in the background.
+     *
+     * @param patient the new or modified patient, must not be {@code null}
+     */
+    void update(Patient patient);
+
+    /**
+     * Forget all the matches involving a patient, for example after the patient has been deleted.
+     *
+     * @param patientId the identifier of the patient, i.e. the name of the patient document
+     */
+    void remove(String patientId);
+}
@@ -22,6 +22,10 @@
 
 import org.xwiki.stability.Unstable;
 
+import java.util.Collection;
+
+import net.sf.json.util.JSONBuilder;
+
 /**
  * View of a patient as related to another reference patient.
  *
@@ -60,4 +64,14 @@ public interface PatientSimilarityView extends Patient
      *         match, with {@code 0} for patients with no similarities
      */
     double getScore();
+
+    /**
+     * Write the same data as {@link #toJSON(Collection)} directly to a streaming JSON builder, without creating the
+     * intermediate json-lib objects. This is meant for serializing long lists of matches straight to the response.
+     *
+     * @param json the builder to write to, positioned where a value is expected
+     * @param onlyFieldNames the names of the fields to write, {@code null} for writing all fields
+     * @since 1.0M7
+     */
+    void writeJSON(JSONBuilder json, Collection<String> onlyFieldNames);
 }
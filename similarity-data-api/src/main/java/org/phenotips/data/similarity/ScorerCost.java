@@ -0,0 +1,50 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity;
+
+import org.xwiki.stability.Unstable;
+
+/**
+ * How expensive computing a {@link FeatureSimilarityScorer feature similarity score} is, relative to the other scorers.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Unstable
+public enum ScorerCost
+{
+    /** Linear in the number of ancestors of the two phenotypes, e.g. set operations on ancestor closures. */
+    LOW,
+
+    /** Somewhat more expensive than linear, e.g. sorting or weighting each term separately. */
+    MEDIUM,
+
+    /** Quadratic in the number of terms, e.g. comparing every pair of terms of the two phenotypes. */
+    HIGH;
+
+    /**
+     * Check whether this cost is affordable.
+     *
+     * @param maxCost the highest acceptable cost
+     * @return {@code true} if this cost is not higher than {@code maxCost}
+     */
+    public boolean isAtMost(ScorerCost maxCost)
+    {
+        return compareTo(maxCost) <= 0;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+import java.util.Map;
+
+/**
+ * Provides the information content (the negative log of the prior probability) of vocabulary terms, as used for
+ * scoring patient similarity. Terms with a high information content are rare and specific, and thus informative when
+ * shared by two patients.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Unstable
+@Role
+public interface TermInformationContent
+{
+    /**
+     * Return the information content of a term.
+     *
+     * @param termId the identifier of the term, e.g. {@code HP:0001382}
+     * @return the information content of the term, {@code 0} if the term is unknown or carries no information
+     */
+    double getInformationContent(String termId);
+
+    /**
+     * Return the largest information content of any term, for normalizing.
+     *
+     * @return the maximum information content, {@code 0} if no information is available
+     */
+    double getMaxInformationContent();
+
+    /**
+     * Return the ancestors of a term (including the term itself) whose information content is at least a threshold.
+     *
+     * @param termId the identifier of the term, e.g. {@code HP:0001382}
+     * @param threshold the minimum information content of the returned ancestors
+     * @return a mapping from the identifiers of the informative ancestors to their information content, empty if the
+     *         term is unknown
+     */
+    Map<String, Double> getInformativeAncestors(String termId, double threshold);
+}
@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.FeatureSimilarityScorer;
+import org.phenotips.data.similarity.PatientSimilarityViewFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.inject.Inject;
+
+/**
+ * Base class for feature scorers working on the ontology compiled by the {@link DefaultPatientSimilarityViewFactory}.
+ * Terms are resolved into their ancestors, and unknown terms are ignored.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+public abstract class AbstractFeatureSimilarityScorer implements FeatureSimilarityScorer
+{
+    /** Not used directly, but ensures that the ontology has been compiled before scoring. */
+    @Inject
+    private PatientSimilarityViewFactory viewFactory;
+
+    @Override
+    public double getScore(Collection<String> referenceTerms, Collection<String> matchTerms)
+    {
+        CompiledOntology ontology = DefaultPatientSimilarityView.getOntology();
+        if (ontology == null) {
+            return 0.0;
+        }
+        int[] referenceIndexes = getTermIndexes(ontology, referenceTerms);
+        int[] matchIndexes = getTermIndexes(ontology, matchTerms);
+        if (referenceIndexes.length == 0 || matchIndexes.length == 0) {
+            return 0.0;
+        }
+        return getScore(ontology, referenceIndexes, matchIndexes);
+    }
+
+    /**
+     * Score two non-empty phenotypes.
+     *
+     * @param ontology the compiled ontology
+     * @param referenceTerms the ontology indexes of the reference terms, without duplicates
+     * @param matchTerms the ontology indexes of the matched terms, without duplicates
+     * @return a similarity score between {@code 0} and {@code 1}
+     */
+    protected abstract double getScore(CompiledOntology ontology, int[] referenceTerms, int[] matchTerms);
+
+    /**
+     * Return the ancestor closure of a phenotype.
+     *
+     * @param ontology the compiled ontology
+     * @param terms the ontology indexes of the terms
+     * @return the sorted ontology indexes of the terms and of all their ancestors
+     */
+    protected static int[] getAncestors(CompiledOntology ontology, int[] terms)
+    {
+        List<int[]> ancestors = new ArrayList<int[]>(terms.length);
+        for (int term : terms) {
+            ancestors.add(ontology.getAncestorsAndSelf(term));
+        }
+        return CompiledOntology.union(ancestors);
+    }
+
+    /**
+     * Return the ontology indexes of the known terms.
+     *
+     * @param ontology the compiled ontology
+     * @param termIds the identifiers of the terms
+     * @return the sorted ontology indexes of the known terms, without duplicates
+     */
+    private int[] getTermIndexes(CompiledOntology ontology, Collection<String> termIds)
+    {
+        Set<Integer> indexes = new TreeSet<Integer>();
+        for (String termId : termIds) {
+            int index = ontology.getIndex(termId);
+            if (index >= 0) {
+                indexes.add(index);
+            }
+        }
+        int[] result = new int[indexes.size()];
+        int i = 0;
+        for (Integer index : indexes) {
+            result[i++] = index;
+        }
+        return result;
+    }
+}
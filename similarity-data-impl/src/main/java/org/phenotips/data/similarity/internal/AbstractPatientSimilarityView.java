@@ -33,6 +33,7 @@
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
+import net.sf.json.util.JSONBuilder;
 
 /**
  * Base class for implementing {@link PatientSimilarityView}.
@@ -105,6 +106,38 @@ public AbstractPatientSimilarityView(Patient match, Patient reference, AccessTyp
      */
     protected abstract JSONArray getGenesJSON();
 
+    /**
+     * Write the {@code features} field with all the features visible in the patient, as returned by
+     * {@link #getFeaturesJSON()}, if there are any.
+     *
+     * @param json the builder to write to, positioned inside the serialized match
+     */
+    protected abstract void writeFeaturesJSON(JSONBuilder json);
+
+    /**
+     * Write the {@code disorders} field with all the disorders visible in the patient, as returned by
+     * {@link #getDisordersJSON()}, if there are any.
+     *
+     * @param json the builder to write to, positioned inside the serialized match
+     */
+    protected abstract void writeDisordersJSON(JSONBuilder json);
+
+    /**
+     * Write the {@code featureMatches} field with the feature matches, as returned by
+     * {@link #getFeatureMatchesJSON()}, if there are any.
+     *
+     * @param json the builder to write to, positioned inside the serialized match
+     */
+    protected abstract void writeFeatureMatchesJSON(JSONBuilder json);
+
+    /**
+     * Write the {@code genes} field with the gene matches, as returned by {@link #getGenesJSON()}, unless no data is
+     * available.
+     *
+     * @param json the builder to write to, positioned inside the serialized match
+     */
+    protected abstract void writeGenesJSON(JSONBuilder json);
+
     @Override
     public String getId()
     {
@@ -143,12 +176,12 @@ public String getContactToken()
             try {
                 ConnectionManager cm =
                     ComponentManagerRegistry.getContextComponentManager().getInstance(ConnectionManager.class);
-                token = String.valueOf(cm.getConnection(this).getId());
+                // Only computes the token, the connection is stored when the contact is actually requested
+                token = cm.getToken(this);
             } catch (ComponentLookupException e) {
                 // This should not happen
             } catch (Exception ex) {
-                // FIXME: this happens when an attempt to establish a connection between
-                //        a local and remote patient owners is made
+                // The token key is not available, contacting the owner will not be possible
             }
             this.contactToken = token;
         }
@@ -169,52 +202,129 @@ public Patient getReference()
 
     /**
      * {@inheritDoc} Adds data using access-level-aware getters: {@link #getId()}, {@link #getAccess()},
-     * {@link #getContactToken()}, etc.
+     * {@link #getContactToken()}, etc. All the fields are included, see {@link #toJSON(Collection)}.
      *
      * @see org.phenotips.data.Patient#toJSON()
      */
     @Override
     public JSONObject toJSON()
+    {
+        return toJSON(null);
+    }
+
+    /**
+     * {@inheritDoc} Only the selected fields are computed, so that listing matches doesn't have to pay for feature
+     * clustering, genotype matching or establishing connections for data that isn't displayed. The recognized fields
+     * are {@code id}, {@code token}, {@code owner}, {@code access}, {@code myCase}, {@code score},
+     * {@code featuresCount}, {@code features}, {@code featureMatches}, {@code disorders} and {@code genes}.
+     *
+     * @see org.phenotips.data.Patient#toJSON(Collection)
+     */
+    @Override
+    public JSONObject toJSON(Collection<String> onlyFieldNames)
     {
         JSONObject result = new JSONObject();
 
-        result.element("id", getId());
-        result.element("token", getContactToken());
-        if (getReporter() != null) {
+        if (isSelected(onlyFieldNames, "id")) {
+            result.element("id", getId());
+        }
+        if (isSelected(onlyFieldNames, "token")) {
+            result.element("token", getContactToken());
+        }
+        if (isSelected(onlyFieldNames, "owner") && getReporter() != null) {
             result.element("owner", getReporter().getName());
         }
-        if (this.access != null) {
+        if (isSelected(onlyFieldNames, "access") && this.access != null) {
             result.element("access", this.access.toString());
         }
-        result.element("myCase", Objects.equals(this.reference.getReporter(), getReporter()));
-        result.element("score", getScore());
-        result.element("featuresCount", getFeatures().size());
+        if (isSelected(onlyFieldNames, "myCase")) {
+            result.element("myCase", Objects.equals(this.reference.getReporter(), getReporter()));
+        }
+        if (isSelected(onlyFieldNames, "score")) {
+            result.element("score", getScore());
+        }
+        if (isSelected(onlyFieldNames, "featuresCount")) {
+            result.element("featuresCount", getFeatures().size());
+        }
         // Features visible in the match
-        JSONArray featuresJSON = getFeaturesJSON();
-        if (!featuresJSON.isEmpty()) {
-            result.element("features", featuresJSON);
+        if (isSelected(onlyFieldNames, "features")) {
+            JSONArray featuresJSON = getFeaturesJSON();
+            if (!featuresJSON.isEmpty()) {
+                result.element("features", featuresJSON);
+            }
         }
         // Feature matching
-        JSONArray featureMatchesJSON = getFeatureMatchesJSON();
-        if (!featureMatchesJSON.isEmpty()) {
-            result.element("featureMatches", featureMatchesJSON);
+        if (isSelected(onlyFieldNames, "featureMatches")) {
+            JSONArray featureMatchesJSON = getFeatureMatchesJSON();
+            if (!featureMatchesJSON.isEmpty()) {
+                result.element("featureMatches", featureMatchesJSON);
+            }
         }
         // Disorder matching
-        JSONArray disorderJSON = getDisordersJSON();
-        if (!disorderJSON.isEmpty()) {
-            result.element("disorders", disorderJSON);
+        if (isSelected(onlyFieldNames, "disorders")) {
+            JSONArray disorderJSON = getDisordersJSON();
+            if (!disorderJSON.isEmpty()) {
+                result.element("disorders", disorderJSON);
+            }
         }
         // Gene variant matching
-        result.elementOpt("genes", getGenesJSON());
+        if (isSelected(onlyFieldNames, "genes")) {
+            result.elementOpt("genes", getGenesJSON());
+        }
 
         return result;
     }
 
     @Override
-    public JSONObject toJSON(Collection<String> onlyFieldNames)
+    public void writeJSON(JSONBuilder json, Collection<String> onlyFieldNames)
+    {
+        json.object();
+        if (isSelected(onlyFieldNames, "id")) {
+            json.key("id").value(getId());
+        }
+        if (isSelected(onlyFieldNames, "token")) {
+            json.key("token").value(getContactToken());
+        }
+        if (isSelected(onlyFieldNames, "owner") && getReporter() != null) {
+            json.key("owner").value(getReporter().getName());
+        }
+        if (isSelected(onlyFieldNames, "access") && this.access != null) {
+            json.key("access").value(this.access.toString());
+        }
+        if (isSelected(onlyFieldNames, "myCase")) {
+            json.key("myCase").value(Objects.equals(this.reference.getReporter(), getReporter()));
+        }
+        if (isSelected(onlyFieldNames, "score")) {
+            json.key("score").value(getScore());
+        }
+        if (isSelected(onlyFieldNames, "featuresCount")) {
+            json.key("featuresCount").value(getFeatures().size());
+        }
+        if (isSelected(onlyFieldNames, "features")) {
+            writeFeaturesJSON(json);
+        }
+        if (isSelected(onlyFieldNames, "featureMatches")) {
+            writeFeatureMatchesJSON(json);
+        }
+        if (isSelected(onlyFieldNames, "disorders")) {
+            writeDisordersJSON(json);
+        }
+        if (isSelected(onlyFieldNames, "genes")) {
+            writeGenesJSON(json);
+        }
+        json.endObject();
+    }
+
+    /**
+     * Check if a field should be serialized.
+     *
+     * @param onlyFieldNames the selected field names, {@code null} for selecting all fields
+     * @param fieldName the name of the field to check
+     * @return {@code true} if the field was selected
+     */
+    private static boolean isSelected(Collection<String> onlyFieldNames, String fieldName)
     {
-        // FIXME This needs to actually take into account the selected field names
-        return toJSON();
+        return onlyFieldNames == null || onlyFieldNames.contains(fieldName);
     }
 
     @Override
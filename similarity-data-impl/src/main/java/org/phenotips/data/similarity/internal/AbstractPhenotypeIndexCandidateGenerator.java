@@ -0,0 +1,265 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.similarity.PatientCandidateGenerator;
+import org.phenotips.data.similarity.PatientSimilarityViewFactory;
+
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+
+/**
+ * Base class for candidate generators searching an in-memory {@link PhenotypeIndex} of the phenotypes of all the
+ * patients. The index is built from all the existing patients by a background thread, starting when the component is
+ * initialized and again whenever the ontology is recompiled; the generator is not {@link #isReady() ready} until the
+ * index is built. The index is then kept up to date by the {@link PhenotypeIndexUpdater}.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+public abstract class AbstractPhenotypeIndexCandidateGenerator
+    implements PatientCandidateGenerator, Initializable, Disposable
+{
+    /** Logging helper object. */
+    @Inject
+    protected Logger logger;
+
+    /** Not used directly, but ensures that the ontology has been compiled before indexing. */
+    @Inject
+    private PatientSimilarityViewFactory viewFactory;
+
+    /** Lists all the patients. */
+    @Inject
+    private QueryManager queryManager;
+
+    /** Provides access to patient data. */
+    @Inject
+    private PatientRepository patients;
+
+    /** Provides the current execution context, cloned for building the index in the background. */
+    @Inject
+    private Execution execution;
+
+    /** Clones or initializes execution contexts. */
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    /** The index, {@code null} until first built. */
+    private volatile PhenotypeIndex index;
+
+    /** The index being built, if any, which also receives the changes made while it is being built. */
+    private volatile PhenotypeIndex nextIndex;
+
+    /** Whether a build of the index is scheduled or in progress. */
+    private final AtomicBoolean building = new AtomicBoolean();
+
+    /** Builds the index in the background. */
+    private ExecutorService executor;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "phenotype-index-builder");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        scheduleBuild();
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    public boolean isReady()
+    {
+        return getIndex() != null;
+    }
+
+    @Override
+    public Map<String, Double> getCandidates(Patient referencePatient, int limit)
+    {
+        PhenotypeIndex currentIndex = getIndex();
+        if (currentIndex == null) {
+            return Collections.emptyMap();
+        }
+        PhenotypeProfile profile = DefaultPatientSimilarityView.getProfile(referencePatient);
+        return currentIndex.search(profile.getClosure(), profile.getTotalIC(), limit, getPatientId(referencePatient));
+    }
+
+    @Override
+    public void update(Patient patient)
+    {
+        // Nothing to do if no index was built yet, the patient will be indexed along with the others
+        CompiledOntology ontology = DefaultPatientSimilarityView.getOntology();
+        PhenotypeProfile profile = null;
+        for (PhenotypeIndex currentIndex : new PhenotypeIndex[] { this.index, this.nextIndex }) {
+            if (currentIndex != null && currentIndex.getOntology() == ontology) {
+                if (profile == null) {
+                    profile = DefaultPatientSimilarityView.getProfile(patient);
+                }
+                currentIndex.put(getPatientId(patient), profile.getClosure(), profile.getTotalIC());
+            }
+        }
+    }
+
+    @Override
+    public void remove(String patientId)
+    {
+        for (PhenotypeIndex currentIndex : new PhenotypeIndex[] { this.index, this.nextIndex }) {
+            if (currentIndex != null) {
+                currentIndex.remove(patientId);
+            }
+        }
+    }
+
+    /**
+     * Create a new, empty index.
+     *
+     * @param ontology the ontology whose terms will be indexed
+     * @return the new index
+     */
+    protected abstract PhenotypeIndex createIndex(CompiledOntology ontology);
+
+    /**
+     * Return the index, if it is built for the current ontology. Otherwise, a new index is built in the background.
+     *
+     * @return the index, or {@code null} if it isn't built yet
+     */
+    private PhenotypeIndex getIndex()
+    {
+        PhenotypeIndex currentIndex = this.index;
+        if (currentIndex != null && currentIndex.getOntology() == DefaultPatientSimilarityView.getOntology()) {
+            return currentIndex;
+        }
+        scheduleBuild();
+        return null;
+    }
+
+    /**
+     * Start building the index for the current ontology in the background, unless a build is already in progress.
+     */
+    private void scheduleBuild()
+    {
+        final CompiledOntology ontology = DefaultPatientSimilarityView.getOntology();
+        if (ontology == null || !this.building.compareAndSet(false, true)) {
+            return;
+        }
+        final ExecutionContext context;
+        try {
+            context = createContext();
+        } catch (ExecutionContextException ex) {
+            this.building.set(false);
+            this.logger.warn("Failed to schedule building the phenotype index: {}", ex.getMessage());
+            return;
+        }
+        this.executor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                AbstractPhenotypeIndexCandidateGenerator.this.execution.setContext(context);
+                try {
+                    buildIndex(ontology);
+                } catch (Exception ex) {
+                    AbstractPhenotypeIndexCandidateGenerator.this.logger.warn(
+                        "Failed to build the phenotype index: {}", ex.getMessage());
+                } finally {
+                    AbstractPhenotypeIndexCandidateGenerator.this.nextIndex = null;
+                    AbstractPhenotypeIndexCandidateGenerator.this.building.set(false);
+                    AbstractPhenotypeIndexCandidateGenerator.this.execution.removeContext();
+                }
+            }
+        });
+    }
+
+    /**
+     * Prepare the execution context of the background build: a clone of the current request's context, or a new
+     * context when there is no current request, for example when the component is initialized during startup.
+     *
+     * @return the execution context to use in the background
+     * @throws ExecutionContextException if the context cannot be cloned or initialized
+     */
+    private ExecutionContext createContext() throws ExecutionContextException
+    {
+        ExecutionContext current = this.execution.getContext();
+        if (current != null) {
+            return this.contextManager.clone(current);
+        }
+        ExecutionContext context = new ExecutionContext();
+        this.contextManager.initialize(context);
+        return context;
+    }
+
+    private void buildIndex(CompiledOntology ontology)
+    {
+        PhenotypeIndex result = createIndex(ontology);
+        this.nextIndex = result;
+        try {
+            Query query = this.queryManager.createQuery(DefaultPatientMatchIndex.ALL_PATIENTS_QUERY, Query.HQL);
+            List<String> ids = query.execute();
+            for (String id : ids) {
+                Patient patient = this.patients.getPatientById(id);
+                if (patient != null) {
+                    PhenotypeProfile profile = DefaultPatientSimilarityView.getProfile(patient);
+                    result.put(id, profile.getClosure(), profile.getTotalIC());
+                }
+            }
+            this.index = result;
+            this.logger.debug("Indexed the phenotypes of {} patients", result.size());
+        } catch (QueryException ex) {
+            this.logger.warn("Failed to list the patients to index: {}", ex.getMessage());
+        }
+    }
+
+    private String getPatientId(Patient patient)
+    {
+        return patient.getDocument().getName();
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index from ontology terms to the patients whose phenotype implies them. For each term of a
+ * {@link CompiledOntology}, a posting list holds the ordinals of the indexed patients whose ancestor closure contains
+ * the term, in increasing order. Posting lists are compressed: each ordinal is stored as its difference from the
+ * previous one, as a variable length integer, so that the common terms held by many patients only take about one byte
+ * per patient. Searching accumulates the information content of the terms shared with each indexed
+ * patient by walking only the posting lists of the reference closure, and gives the same scores as
+ * {@link PhenotypeKernel#getScore(long[], double, long[], double)}, without visiting patients that share nothing with
+ * the reference. Terms with no information content are not indexed, since they don't contribute to scores.
+ * <p>
+ * This class is thread safe: searches run concurrently, while updates are exclusive.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+public class AncestorIndex implements PhenotypeIndex
+{
+    /** Initial capacity of a posting list, in bytes. */
+    private static final int INITIAL_POSTINGS = 4;
+
+    /** The bits of a variable length integer byte holding the value. */
+    private static final int VARINT_VALUE_MASK = 0x7F;
+
+    /** The bit of a variable length integer byte set when more bytes follow. */
+    private static final int VARINT_CONTINUATION = 0x80;
+
+    /** The number of value bits in a variable length integer byte. */
+    private static final int VARINT_SHIFT = 7;
+
+    /** The maximum number of bytes of a variable length integer. */
+    private static final int MAX_VARINT_BYTES = 5;
+
+    /** Number of bits in a bitset word. */
+    private static final int WORD_BITS = 64;
+
+    /** The ontology indexed terms come from. */
+    private final CompiledOntology ontology;
+
+    /**
+     * The compressed patients in each posting list, by term index; only the first {@link #postingSizes} bytes are
+     * used.
+     */
+    private final byte[][] postings;
+
+    /** The number of bytes used by each posting list, by term index. */
+    private final int[] postingSizes;
+
+    /** The last patient of each posting list, by term index, which the next patient is stored relative to. */
+    private final int[] lastPostings;
+
+    /** The identifier of each patient, by ordinal. */
+    private final List<String> ids = new ArrayList<String>();
+
+    /** The total information content of each patient's closure, by ordinal. */
+    private double[] totalICs = new double[INITIAL_POSTINGS];
+
+    /** The ordinal of each indexed patient, by identifier. */
+    private final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+
+    /** Ordinals of removed or replaced patients, still present in the posting lists until the next compaction. */
+    private final BitSet removed = new BitSet();
+
+    /** Guards all the data. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Create an empty index.
+     *
+     * @param ontology the ontology whose terms are indexed
+     */
+    public AncestorIndex(CompiledOntology ontology)
+    {
+        this.ontology = ontology;
+        this.postings = new byte[ontology.size()][];
+        this.postingSizes = new int[ontology.size()];
+        this.lastPostings = new int[ontology.size()];
+    }
+
+    @Override
+    public CompiledOntology getOntology()
+    {
+        return this.ontology;
+    }
+
+    @Override
+    public int size()
+    {
+        this.lock.readLock().lock();
+        try {
+            return this.ordinals.size();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String id, long[] closure, double totalIC)
+    {
+        this.lock.writeLock().lock();
+        try {
+            removeOrdinal(id);
+            int ordinal = this.ids.size();
+            this.ids.add(id);
+            this.ordinals.put(id, ordinal);
+            if (ordinal == this.totalICs.length) {
+                this.totalICs = Arrays.copyOf(this.totalICs, ordinal * 2);
+            }
+            this.totalICs[ordinal] = totalIC;
+            for (int i = 0; i < closure.length; i++) {
+                long word = closure[i];
+                while (word != 0) {
+                    int term = i * WORD_BITS + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    if (term < this.postings.length && this.ontology.getIC(term) > 0) {
+                        addPosting(term, ordinal);
+                    }
+                }
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(String id)
+    {
+        this.lock.writeLock().lock();
+        try {
+            removeOrdinal(id);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Double> search(long[] closure, double totalIC, int limit, String excludedId)
+    {
+        this.lock.readLock().lock();
+        try {
+            double[] shared = new double[this.ids.size()];
+            int[] touched = new int[this.ids.size()];
+            int touchedCount = 0;
+            for (int i = 0; i < closure.length; i++) {
+                long word = closure[i];
+                while (word != 0) {
+                    int term = i * WORD_BITS + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    double ic = term < this.postings.length ? this.ontology.getIC(term) : 0;
+                    if (ic <= 0) {
+                        continue;
+                    }
+                    PostingReader posting = new PostingReader(this.postings[term], this.postingSizes[term]);
+                    while (posting.hasNext()) {
+                        int ordinal = posting.next();
+                        if (shared[ordinal] == 0) {
+                            touched[touchedCount++] = ordinal;
+                        }
+                        shared[ordinal] += ic;
+                    }
+                }
+            }
+            Integer excluded = excludedId == null ? null : this.ordinals.get(excludedId);
+            return selectTop(shared, touched, touchedCount, totalIC, limit, excluded == null ? -1 : excluded);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private Map<String, Double> selectTop(double[] shared, int[] touched, int touchedCount, double totalIC,
+        int limit, int excluded)
+    {
+        int keep = limit > 0 ? Math.min(limit, touchedCount) : touchedCount;
+        if (keep == 0) {
+            return Collections.emptyMap();
+        }
+        // Min-heap of the best candidates seen so far, the worst of them on top
+        PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(keep);
+        for (int i = 0; i < touchedCount; i++) {
+            int ordinal = touched[i];
+            if (ordinal == excluded || this.removed.get(ordinal)) {
+                continue;
+            }
+            double union = totalIC + this.totalICs[ordinal] - shared[ordinal];
+            double score = union > 0 ? shared[ordinal] / union : 0.0;
+            if (best.size() < keep) {
+                best.add(new Candidate(ordinal, score));
+            } else if (score > best.peek().score) {
+                best.poll();
+                best.add(new Candidate(ordinal, score));
+            }
+        }
+
+        List<Candidate> sorted = new ArrayList<Candidate>(best);
+        Collections.sort(sorted, Collections.reverseOrder());
+        Map<String, Double> results = new LinkedHashMap<String, Double>();
+        for (Candidate candidate : sorted) {
+            results.put(this.ids.get(candidate.ordinal), candidate.score);
+        }
+        return results;
+    }
+
+    private void addPosting(int term, int ordinal)
+    {
+        byte[] posting = this.postings[term];
+        if (posting == null) {
+            posting = new byte[INITIAL_POSTINGS];
+            this.postings[term] = posting;
+        }
+        // Ordinals are added in increasing order, so the gap is never negative; the first gap is the ordinal itself
+        int gap = ordinal - this.lastPostings[term];
+        int size = this.postingSizes[term];
+        while (size + MAX_VARINT_BYTES > posting.length) {
+            posting = Arrays.copyOf(posting, posting.length * 2);
+            this.postings[term] = posting;
+        }
+        this.postingSizes[term] = writeVarint(posting, size, gap);
+        this.lastPostings[term] = ordinal;
+    }
+
+    /**
+     * Write a non-negative number as a variable length integer: seven bits per byte, least significant first, with
+     * the high bit set on all the bytes but the last one.
+     *
+     * @param buffer the buffer to write to, with room for {@link #MAX_VARINT_BYTES} bytes
+     * @param position where to write
+     * @param value the number to write
+     * @return the position after the written bytes
+     */
+    private static int writeVarint(byte[] buffer, int position, int value)
+    {
+        int result = position;
+        int remaining = value;
+        while (remaining >= VARINT_CONTINUATION) {
+            buffer[result++] = (byte) (remaining | VARINT_CONTINUATION);
+            remaining >>>= VARINT_SHIFT;
+        }
+        buffer[result++] = (byte) remaining;
+        return result;
+    }
+
+    private void removeOrdinal(String id)
+    {
+        Integer ordinal = this.ordinals.remove(id);
+        if (ordinal == null) {
+            return;
+        }
+        this.removed.set(ordinal);
+        if (this.removed.cardinality() > this.ordinals.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Drop the removed patients from the posting lists, renumbering the remaining patients while keeping their order.
+     */
+    private void compact()
+    {
+        int[] newOrdinals = new int[this.ids.size()];
+        int live = 0;
+        for (int i = 0; i < this.ids.size(); i++) {
+            if (this.removed.get(i)) {
+                newOrdinals[i] = -1;
+            } else {
+                newOrdinals[i] = live;
+                this.ids.set(live, this.ids.get(i));
+                this.totalICs[live] = this.totalICs[i];
+                this.ordinals.put(this.ids.get(live), live);
+                ++live;
+            }
+        }
+        this.ids.subList(live, this.ids.size()).clear();
+        this.removed.clear();
+
+        // Renumbering only shrinks the gaps, so each posting list is rewritten in place, behind the bytes being read
+        for (int term = 0; term < this.postings.length; term++) {
+            PostingReader posting = new PostingReader(this.postings[term], this.postingSizes[term]);
+            int newLast = 0;
+            int size = 0;
+            while (posting.hasNext()) {
+                int ordinal = newOrdinals[posting.next()];
+                if (ordinal >= 0) {
+                    size = writeVarint(this.postings[term], size, ordinal - newLast);
+                    newLast = ordinal;
+                }
+            }
+            this.postingSizes[term] = size;
+            this.lastPostings[term] = newLast;
+        }
+    }
+
+    /** Decodes a compressed posting list, see {@link AncestorIndex#writeVarint(byte[], int, int)}. */
+    private static final class PostingReader
+    {
+        /** The compressed posting list, {@code null} if the term has no patients. */
+        private final byte[] posting;
+
+        /** The number of bytes used by the posting list. */
+        private final int size;
+
+        /** The position of the next byte to read. */
+        private int position;
+
+        /** The last decoded patient ordinal. */
+        private int ordinal;
+
+        PostingReader(byte[] posting, int size)
+        {
+            this.posting = posting;
+            this.size = size;
+        }
+
+        boolean hasNext()
+        {
+            return this.position < this.size;
+        }
+
+        int next()
+        {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = this.posting[this.position++];
+                gap |= (b & VARINT_VALUE_MASK) << shift;
+                shift += VARINT_SHIFT;
+            } while ((b & VARINT_CONTINUATION) != 0);
+            this.ordinal += gap;
+            return this.ordinal;
+        }
+    }
+
+    /** A scored candidate, ordered by score, then by ordinal so that results are deterministic. */
+    private static final class Candidate implements Comparable<Candidate>
+    {
+        /** The ordinal of the patient. */
+        private final int ordinal;
+
+        /** The similarity score. */
+        private final double score;
+
+        Candidate(int ordinal, double score)
+        {
+            this.ordinal = ordinal;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Candidate other)
+        {
+            int result = Double.compare(this.score, other.score);
+            return result != 0 ? result : Integer.compare(other.ordinal, this.ordinal);
+        }
+    }
+}
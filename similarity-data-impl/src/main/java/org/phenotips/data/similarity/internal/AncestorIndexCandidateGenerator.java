@@ -0,0 +1,44 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.xwiki.component.annotation.Component;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Generates candidate matches from an in-memory {@link AncestorIndex inverted index} of the phenotypes of all the
+ * patients, scored with the same kernel as {@link DefaultPatientSimilarityView#getPhenotypeScore()}. Unlike a search
+ * on the indexed terms, patients which only share ancestors of their features with the reference patient are also
+ * found.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Component
+@Named("ancestor-index")
+@Singleton
+public class AncestorIndexCandidateGenerator extends AbstractPhenotypeIndexCandidateGenerator
+{
+    @Override
+    protected PhenotypeIndex createIndex(CompiledOntology ontology)
+    {
+        return new AncestorIndex(ontology);
+    }
+}
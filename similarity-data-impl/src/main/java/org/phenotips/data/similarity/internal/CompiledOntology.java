@@ -0,0 +1,389 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, integer-indexed snapshot of an ontology, used for scoring patient pairs without allocating sets of
+ * {@link VocabularyTerm}s. Each term is assigned a dense index (in the order of term identifiers), its information
+ * content is stored in a {@code double[]}, and its ancestors (including the term itself) are precomputed as a sorted
+ * {@code int[]}.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+public class CompiledOntology
+{
+    /** Returned for terms which have no known ancestors. */
+    private static final int[] NO_TERMS = new int[0];
+
+    /** Maps term identifiers to their dense index. */
+    private final Map<String, Integer> indexes;
+
+    /** The compiled terms, by index. */
+    private final VocabularyTerm[] terms;
+
+    /** The information content of each term, by index, {@code 0} for terms with no known information content. */
+    private final double[] termICs;
+
+    /** The sorted indexes of the ancestors of each term, including the term itself, by index. */
+    private final int[][] termAncestors;
+
+    /** The largest information content found, for normalizing. */
+    private final double maxIC;
+
+    /** The most informative common ancestors of the pairs of terms compared so far. */
+    private final MicaCache micas;
+
+    /**
+     * Compile the given terms, along with all their ancestors.
+     *
+     * @param termICs the information content of each term, terms missing from this map have an information content of
+     *            {@code 0}
+     * @param terms the terms to compile; the terms in {@code termICs} and the ancestors of all terms are also included
+     */
+    public CompiledOntology(Map<VocabularyTerm, Double> termICs, Collection<VocabularyTerm> terms)
+    {
+        Map<String, VocabularyTerm> allTerms = new HashMap<String, VocabularyTerm>();
+        for (VocabularyTerm term : terms) {
+            addWithAncestors(term, allTerms);
+        }
+        for (VocabularyTerm term : termICs.keySet()) {
+            addWithAncestors(term, allTerms);
+        }
+
+        List<String> ids = new ArrayList<String>(allTerms.keySet());
+        Collections.sort(ids);
+        int size = ids.size();
+        this.indexes = new HashMap<String, Integer>(size * 2);
+        this.terms = new VocabularyTerm[size];
+        for (int i = 0; i < size; i++) {
+            this.indexes.put(ids.get(i), i);
+            this.terms[i] = allTerms.get(ids.get(i));
+        }
+
+        Map<String, Double> icsById = new HashMap<String, Double>(termICs.size() * 2);
+        for (Map.Entry<VocabularyTerm, Double> entry : termICs.entrySet()) {
+            if (entry.getKey() != null && entry.getValue() != null) {
+                icsById.put(entry.getKey().getId(), entry.getValue());
+            }
+        }
+        this.termICs = new double[size];
+        this.termAncestors = new int[size][];
+        double max = 0.0;
+        for (int i = 0; i < size; i++) {
+            Double ic = icsById.get(ids.get(i));
+            this.termICs[i] = ic == null ? 0.0 : ic;
+            max = Math.max(max, this.termICs[i]);
+            this.termAncestors[i] = toIndexes(this.terms[i].getAncestorsAndSelf());
+        }
+        this.maxIC = max;
+        this.micas = new MicaCache(this, (int) Math.min(MicaCache.DEFAULT_CAPACITY, 16L * size));
+    }
+
+    private static void addWithAncestors(VocabularyTerm term, Map<String, VocabularyTerm> allTerms)
+    {
+        if (term == null || term.getId() == null || allTerms.containsKey(term.getId())) {
+            return;
+        }
+        allTerms.put(term.getId(), term);
+        for (VocabularyTerm ancestor : term.getAncestorsAndSelf()) {
+            if (ancestor != null && ancestor.getId() != null && !allTerms.containsKey(ancestor.getId())) {
+                allTerms.put(ancestor.getId(), ancestor);
+            }
+        }
+    }
+
+    /**
+     * Return the number of compiled terms. Valid term indexes are between {@code 0} and {@code size() - 1}.
+     *
+     * @return the number of terms
+     */
+    public int size()
+    {
+        return this.terms.length;
+    }
+
+    /**
+     * Return the index of a term.
+     *
+     * @param termId the identifier of the term, e.g. {@code HP:0001382}
+     * @return the index of the term, or {@code -1} if the term is not part of this ontology
+     */
+    public int getIndex(String termId)
+    {
+        Integer index = termId == null ? null : this.indexes.get(termId);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Return the term with the given index.
+     *
+     * @param index a valid term index
+     * @return the corresponding term
+     */
+    public VocabularyTerm getTerm(int index)
+    {
+        return this.terms[index];
+    }
+
+    /**
+     * Return the information content of the term with the given index.
+     *
+     * @param index a valid term index
+     * @return the information content, {@code 0} if unknown
+     */
+    public double getIC(int index)
+    {
+        return this.termICs[index];
+    }
+
+    /**
+     * Return the largest information content of any term, for normalizing.
+     *
+     * @return the maximum information content
+     */
+    public double getMaxIC()
+    {
+        return this.maxIC;
+    }
+
+    /**
+     * Return the ancestors of a term, including the term itself.
+     *
+     * @param index a valid term index
+     * @return the sorted indexes of the ancestors; the returned array is shared and must not be modified
+     */
+    public int[] getAncestorsAndSelf(int index)
+    {
+        return this.termAncestors[index];
+    }
+
+    /**
+     * Return the ancestors of a term, including the term itself if it is part of this ontology. Terms not known to this
+     * ontology are compiled on the fly, keeping only their known ancestors.
+     *
+     * @param term the term to look up
+     * @return the sorted indexes of the ancestors; the returned array must not be modified
+     */
+    public int[] getAncestorsAndSelf(VocabularyTerm term)
+    {
+        int index = getIndex(term.getId());
+        if (index >= 0) {
+            return this.termAncestors[index];
+        }
+        return toIndexes(term.getAncestorsAndSelf());
+    }
+
+    /**
+     * Return the union of the ancestors of several terms.
+     *
+     * @param ancestors the sorted ancestor indexes of each term
+     * @return the sorted indexes of all the ancestors
+     */
+    public static int[] union(Collection<int[]> ancestors)
+    {
+        int[] result = NO_TERMS;
+        for (int[] termAncestors : ancestors) {
+            result = union(result, termAncestors);
+        }
+        return result;
+    }
+
+    /**
+     * Merge two sorted arrays of term indexes.
+     *
+     * @param a sorted term indexes
+     * @param b other sorted term indexes
+     * @return the sorted indexes found in either of the arrays
+     */
+    public static int[] union(int[] a, int[] b)
+    {
+        if (a.length == 0) {
+            return b;
+        } else if (b.length == 0) {
+            return a;
+        }
+        int[] result = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                result[k++] = a[i++];
+            } else if (a[i] > b[j]) {
+                result[k++] = b[j++];
+            } else {
+                result[k++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length) {
+            result[k++] = a[i++];
+        }
+        while (j < b.length) {
+            result[k++] = b[j++];
+        }
+        return k == result.length ? result : Arrays.copyOf(result, k);
+    }
+
+    /**
+     * Return the indexes found in both of two sorted arrays.
+     *
+     * @param a sorted term indexes
+     * @param b other sorted term indexes
+     * @return the sorted indexes found in both arrays
+     */
+    public static int[] intersection(int[] a, int[] b)
+    {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[k++] = a[i++];
+                j++;
+            }
+        }
+        return k == result.length ? result : Arrays.copyOf(result, k);
+    }
+
+    /**
+     * Return the total information content of a set of terms.
+     *
+     * @param indexes term indexes, without duplicates
+     * @return the sum of the information content of the terms
+     */
+    public double getTotalIC(int[] indexes)
+    {
+        double total = 0.0;
+        for (int index : indexes) {
+            total += this.termICs[index];
+        }
+        return total;
+    }
+
+    /**
+     * Return the total information content of the terms found in both of two sorted arrays, without building the
+     * intersection.
+     *
+     * @param a sorted term indexes
+     * @param b other sorted term indexes
+     * @return the sum of the information content of the shared terms
+     */
+    public double getSharedIC(int[] a, int[] b)
+    {
+        double total = 0.0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                total += this.termICs[a[i]];
+                i++;
+                j++;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Return the most informative common ancestor of two terms, which is looked up in a bounded cache shared by all
+     * users of this ontology.
+     *
+     * @param a a valid term index
+     * @param b another valid term index
+     * @return the index of the common ancestor of the two terms with the highest information content, the lowest such
+     *         index in case of ties, or {@code -1} if they have no common ancestor
+     */
+    public int getMostInformativeCommonAncestor(int a, int b)
+    {
+        return this.micas.get(a, b);
+    }
+
+    /**
+     * Return the term with the highest information content found in both of two sorted arrays, without building the
+     * intersection. This is also used directly for terms which are not part of the ontology, and thus can't be cached.
+     *
+     * @param a sorted term indexes
+     * @param b other sorted term indexes
+     * @return the index of the shared term with the highest information content, the lowest such index in case of
+     *         ties, or {@code -1} if the arrays have no term in common
+     */
+    public int getMostInformativeSharedTerm(int[] a, int[] b)
+    {
+        int result = -1;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                if (result < 0 || this.termICs[a[i]] > this.termICs[result]) {
+                    result = a[i];
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    private int[] toIndexes(Collection<VocabularyTerm> terms)
+    {
+        if (terms == null || terms.isEmpty()) {
+            return NO_TERMS;
+        }
+        int[] result = new int[terms.size()];
+        int count = 0;
+        for (VocabularyTerm term : terms) {
+            int index = term == null ? -1 : getIndex(term.getId());
+            if (index >= 0) {
+                result[count++] = index;
+            }
+        }
+        Arrays.sort(result, 0, count);
+        // Remove duplicates
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || result[unique - 1] != result[i]) {
+                result[unique++] = result[i];
+            }
+        }
+        return unique == result.length ? result : Arrays.copyOf(result, unique);
+    }
+}
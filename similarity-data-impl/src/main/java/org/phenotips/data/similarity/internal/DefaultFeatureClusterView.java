@@ -31,6 +31,7 @@
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
+import net.sf.json.util.JSONBuilder;
 
 /**
  * Implementation of {@link FeatureClusterView} that always reveals the full patient information; for use in trusted
@@ -195,4 +196,39 @@ public JSONObject toJSON()
 
         return featureMatchJSON;
     }
+
+    /**
+     * {@inheritDoc} Writes the same fields as {@link #toJSON()}.
+     *
+     * @see org.phenotips.data.similarity.FeatureClusterView#writeJSON(JSONBuilder)
+     */
+    @Override
+    public void writeJSON(JSONBuilder json)
+    {
+        json.object();
+        json.key("score").value(getScore());
+        json.key("category").object().key("id").value(getId()).key("name").value(getName()).endObject();
+        writeTermIds(json, "reference", this.reference);
+        writeTermIds(json, "match", getMatch());
+        json.endObject();
+    }
+
+    /**
+     * Write the identifiers of some features as an array, if there are any features.
+     *
+     * @param json the builder to write to, positioned inside an object
+     * @param key the name of the field to write
+     * @param features the features to list, where {@code null} features are written as empty identifiers
+     */
+    private void writeTermIds(JSONBuilder json, String key, Collection<Feature> features)
+    {
+        if (features == null || features.isEmpty()) {
+            return;
+        }
+        json.key(key).array();
+        for (Feature term : features) {
+            json.value(term == null ? "" : term.getId());
+        }
+        json.endArray();
+    }
 }
@@ -0,0 +1,53 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.ScorerCost;
+
+import org.xwiki.component.annotation.Component;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Scores term sets with the same phenotype kernel as {@link DefaultPatientSimilarityView#getPhenotypeScore()}: the
+ * information content of the ancestors shared by the two phenotypes over the information content of all their
+ * ancestors (also known as simGIC, or IC-weighted Jaccard). Disorders and genes are not taken into account.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Component
+@Named("default")
+@Singleton
+public class DefaultFeatureSimilarityScorer extends AbstractFeatureSimilarityScorer
+{
+    @Override
+    public ScorerCost getCost()
+    {
+        return ScorerCost.LOW;
+    }
+
+    @Override
+    protected double getScore(CompiledOntology ontology, int[] referenceTerms, int[] matchTerms)
+    {
+        PhenotypeKernel kernel = DefaultPatientSimilarityView.getKernel();
+        return kernel.getScore(kernel.toBitSet(getAncestors(ontology, referenceTerms)),
+            kernel.toBitSet(getAncestors(ontology, matchTerms)));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.FeatureSimilarityScorer;
+import org.phenotips.data.similarity.FeatureSimilarityScorerRegistry;
+import org.phenotips.data.similarity.ScorerCost;
+import org.phenotips.data.similarity.configuration.SimilarityConfiguration;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+/**
+ * Default implementation for the {@link FeatureSimilarityScorerRegistry} role, looking up scorers by their component
+ * hint. The configured scorer type is read from the {@link SimilarityConfiguration} at most once every few seconds,
+ * since scorers are needed for every pair of patients.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Component
+@Singleton
+public class DefaultFeatureSimilarityScorerRegistry implements FeatureSimilarityScorerRegistry
+{
+    /** The name of the default scorer. */
+    private static final String DEFAULT_TYPE = "default";
+
+    /** How long the configured scorer type is remembered, in ms. */
+    private static final long REFRESH_INTERVAL = 10000L;
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    /** Provides the configured scorer type. */
+    @Inject
+    private SimilarityConfiguration configuration;
+
+    /** Looks up the scorers. */
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> componentManager;
+
+    /** The default scorer, used when the configured one is missing. */
+    @Inject
+    private FeatureSimilarityScorer defaultScorer;
+
+    /** The last configured scorer type which exists. */
+    private volatile String scorerType = DEFAULT_TYPE;
+
+    /** When the configured scorer type must be read again. */
+    private volatile long refreshTime;
+
+    @Override
+    public String getScorerType()
+    {
+        long now = System.currentTimeMillis();
+        if (now >= this.refreshTime) {
+            this.refreshTime = now + REFRESH_INTERVAL;
+            try {
+                String configured = this.configuration.getScorerType();
+                this.scorerType = hasScorer(configured) ? configured : DEFAULT_TYPE;
+            } catch (RuntimeException ex) {
+                // No wiki context, keep using the last known scorer
+                this.logger.debug("Failed to read the configured scorer type: {}", ex.getMessage());
+            }
+        }
+        return this.scorerType;
+    }
+
+    @Override
+    public FeatureSimilarityScorer getScorer()
+    {
+        return getScorer(getScorerType());
+    }
+
+    @Override
+    public FeatureSimilarityScorer getScorer(String type)
+    {
+        if (type == null || DEFAULT_TYPE.equals(type)) {
+            return this.defaultScorer;
+        }
+        try {
+            return this.componentManager.get().getInstance(FeatureSimilarityScorer.class, type);
+        } catch (ComponentLookupException ex) {
+            this.logger.warn("Unknown feature scorer [{}], using the default scorer", type);
+            return this.defaultScorer;
+        }
+    }
+
+    @Override
+    public FeatureSimilarityScorer getScorer(ScorerCost maxCost)
+    {
+        FeatureSimilarityScorer configured = getScorer();
+        if (configured.getCost().isAtMost(maxCost)) {
+            return configured;
+        }
+        FeatureSimilarityScorer cheapest = this.defaultScorer;
+        try {
+            Map<String, FeatureSimilarityScorer> scorers =
+                this.componentManager.get().getInstanceMap(FeatureSimilarityScorer.class);
+            for (FeatureSimilarityScorer scorer : scorers.values()) {
+                if (scorer.getCost().compareTo(cheapest.getCost()) < 0) {
+                    cheapest = scorer;
+                }
+            }
+        } catch (ComponentLookupException ex) {
+            this.logger.warn("Failed to look up the feature scorers: {}", ex.getMessage());
+        }
+        return cheapest;
+    }
+
+    private boolean hasScorer(String type)
+    {
+        return type != null && this.componentManager.get().hasComponent(FeatureSimilarityScorer.class, type);
+    }
+}
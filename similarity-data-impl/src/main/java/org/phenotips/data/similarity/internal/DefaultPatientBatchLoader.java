@@ -0,0 +1,219 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.similarity.PatientBatchLoader;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+/**
+ * Default implementation for the {@link PatientBatchLoader} role. Requested names are resolved to document references
+ * in the {@code data} space, and checked against the patient records of their wiki with one HQL query per wiki. The
+ * loaded patients are kept in the current execution context, so they are forgotten at the end of the request.
+ * <p>
+ * The patient repository has no bulk loading method, so the patients that exist are still loaded one at a time, but
+ * only once per request, and never for stale names.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Component
+@Singleton
+public class DefaultPatientBatchLoader implements PatientBatchLoader
+{
+    /** Checks which of the given documents hold a patient record. */
+    private static final String EXISTING_PATIENTS_QUERY = "select doc.fullName from XWikiDocument doc, BaseObject obj"
+        + " where doc.fullName in (:names) and obj.name = doc.fullName and obj.className = 'PhenoTips.PatientClass'";
+
+    /** The maximum number of names checked by one query, to keep the query size reasonable. */
+    private static final int BATCH_SIZE = 500;
+
+    /** The execution context property holding the patients loaded during the current request. */
+    private static final String LOADED_PATIENTS = "phenotips.similarity.loadedPatients";
+
+    /** The space where patient records are stored, for resolving bare document names. */
+    private static final EntityReference PATIENTS_SPACE = new EntityReference("data", EntityType.SPACE);
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    /** Provides access to patient data. */
+    @Inject
+    private PatientRepository patients;
+
+    /** Checks which patients exist. */
+    @Inject
+    private QueryManager queryManager;
+
+    /** Provides the current execution context, which holds the loaded patients. */
+    @Inject
+    private Execution execution;
+
+    /** Resolves the requested names, in the current wiki unless they specify another one. */
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> resolver;
+
+    /** Serializes full document references, including the wiki, used as keys for the loaded patients. */
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    /** Serializes document references without the wiki, as stored in the database of the wiki. */
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Override
+    public Map<String, Patient> load(Collection<String> names)
+    {
+        Map<String, Patient> loaded = getLoadedPatients();
+
+        // The full reference of each requested name, and the names to load, by wiki and local document name
+        Map<String, String> references = new HashMap<String, String>();
+        Map<String, Map<String, String>> missing = new LinkedHashMap<String, Map<String, String>>();
+        for (String name : names) {
+            if (name == null || references.containsKey(name)) {
+                continue;
+            }
+            DocumentReference reference = this.resolver.resolve(name, PATIENTS_SPACE);
+            String fullName = this.serializer.serialize(reference);
+            references.put(name, fullName);
+            if (!loaded.containsKey(fullName)) {
+                String wiki = reference.getWikiReference().getName();
+                Map<String, String> inWiki = missing.get(wiki);
+                if (inWiki == null) {
+                    inWiki = new LinkedHashMap<String, String>();
+                    missing.put(wiki, inWiki);
+                }
+                inWiki.put(this.localSerializer.serialize(reference), fullName);
+            }
+        }
+
+        Set<String> stale = new HashSet<String>();
+        for (Map.Entry<String, Map<String, String>> wiki : missing.entrySet()) {
+            Set<String> existing = getExistingPatients(wiki.getKey(), wiki.getValue().keySet());
+            for (Map.Entry<String, String> name : wiki.getValue().entrySet()) {
+                if (existing != null && !existing.contains(name.getKey())) {
+                    stale.add(name.getValue());
+                    continue;
+                }
+                Patient patient = this.patients.getPatientById(name.getValue());
+                if (patient != null) {
+                    loaded.put(name.getValue(), patient);
+                }
+            }
+        }
+
+        Map<String, Patient> result = new LinkedHashMap<String, Patient>();
+        for (String name : names) {
+            String fullName = name == null ? null : references.get(name);
+            if (fullName != null && !stale.contains(fullName)) {
+                result.put(name, loaded.get(fullName));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the patients loaded during the current request.
+     *
+     * @return a mutable map of patients, by full document reference; without a current request, a new empty map
+     */
+    private Map<String, Patient> getLoadedPatients()
+    {
+        ExecutionContext context = this.execution.getContext();
+        if (context == null) {
+            return new HashMap<String, Patient>();
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Patient> loaded = (Map<String, Patient>) context.getProperty(LOADED_PATIENTS);
+        if (loaded == null) {
+            // Cloned contexts may share the map with background threads
+            loaded = new ConcurrentHashMap<String, Patient>();
+            context.setProperty(LOADED_PATIENTS, loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Check which of the given documents hold a patient record.
+     *
+     * @param wiki the wiki of the documents
+     * @param names the local names of the documents to check, without the wiki
+     * @return the local names of the existing patient documents, {@code null} if the check failed
+     */
+    private Set<String> getExistingPatients(String wiki, Collection<String> names)
+    {
+        Set<String> result = new HashSet<String>();
+        List<String> batch = new ArrayList<String>(Math.min(names.size(), BATCH_SIZE));
+        try {
+            for (String name : names) {
+                batch.add(name);
+                if (batch.size() == BATCH_SIZE) {
+                    result.addAll(queryExistingPatients(wiki, batch));
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                result.addAll(queryExistingPatients(wiki, batch));
+            }
+        } catch (QueryException ex) {
+            this.logger.warn("Failed to check which patients exist: {}", ex.getMessage());
+            return null;
+        }
+        return result;
+    }
+
+    private List<String> queryExistingPatients(String wiki, List<String> names) throws QueryException
+    {
+        Query query = this.queryManager.createQuery(EXISTING_PATIENTS_QUERY, Query.HQL);
+        query.setWiki(wiki);
+        query.bindValue("names", names);
+        return query.execute();
+    }
+}
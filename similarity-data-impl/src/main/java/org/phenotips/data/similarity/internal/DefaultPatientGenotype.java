@@ -95,7 +95,7 @@ public DefaultPatientGenotype(Patient patient)
      * @param p the {@link Patient}
      * @return a (potentially-empty) unmodifiable set of the names of candidate genes
      */
-    private static Set<String> getPatientCandidateGeneNames(Patient p)
+    static Set<String> getPatientCandidateGeneNames(Patient p)
     {
         PatientData<Map<String, String>> genesData = null;
         if (p != null) {
@@ -37,6 +37,7 @@
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
+import net.sf.json.util.JSONBuilder;
 
 /**
  * Implementation of {@link org.phenotips.data.similarity.PatientGenotypeSimilarityView} that always reveals the full
@@ -186,19 +187,7 @@ public JSONArray toJSON()
         }
 
         JSONArray genesJSON = new JSONArray();
-        // Gene genes, in order of decreasing score
-        List<Map.Entry<String, Double>> genes = new ArrayList<Map.Entry<String, Double>>(this.geneScores.entrySet());
-        Collections.sort(genes, new Comparator<Map.Entry<String, Double>>()
-        {
-            @Override
-            public int compare(Map.Entry<String, Double> e1, Map.Entry<String, Double> e2)
-            {
-                return Double.compare(e2.getValue(), e1.getValue());
-            }
-        });
-
-        int numGenesReported = 0;
-        for (Map.Entry<String, Double> geneEntry : genes) {
+        for (Map.Entry<String, Double> geneEntry : getReportedGenes()) {
             String gene = geneEntry.getKey();
             Double score = geneEntry.getValue();
 
@@ -207,13 +196,77 @@ public int compare(Map.Entry<String, Double> e1, Map.Entry<String, Double> e2)
             geneObject.element("score", score);
             geneObject.accumulateAll(getGeneJSON(gene));
             genesJSON.add(geneObject);
+        }
+        return genesJSON;
+    }
 
-            // FIXME: quick emergency fix to make PhenomeCentral responsive
-            numGenesReported++;
-            if (numGenesReported > 15) {
-                break;
+    @Override
+    public void writeJSON(JSONBuilder json)
+    {
+        if (!this.hasGenotypeData()) {
+            json.value((Object) null);
+            return;
+        }
+
+        json.array();
+        for (Map.Entry<String, Double> geneEntry : getReportedGenes()) {
+            String gene = geneEntry.getKey();
+            json.object();
+            json.key("gene").value(gene);
+            json.key("score").value(geneEntry.getValue().doubleValue());
+            if (this.refGenotype != null) {
+                json.key("reference");
+                writeVariantsJSON(json, this.refGenotype.getTopVariants(gene));
             }
+            if (this.matchGenotype != null) {
+                // Use potentially access-controlled method to try to get variants
+                json.key("match");
+                writeVariantsJSON(json, this.getTopVariants(gene));
+            }
+            json.endObject();
         }
-        return genesJSON;
+        json.endArray();
+    }
+
+    /**
+     * Write the variants in a particular patient in a single gene, in the same format as
+     * {@link #getVariantsJSON(List)}.
+     *
+     * @param json the builder to write to, positioned where a value is expected
+     * @param variants a list of {@link Variant}s to serialize
+     */
+    protected void writeVariantsJSON(JSONBuilder json, List<Variant> variants)
+    {
+        json.object();
+        // Only add element if there are variants
+        if (variants != null && !variants.isEmpty()) {
+            json.key("variants").array();
+            for (Variant v : variants) {
+                json.value(v.toJSON());
+            }
+            json.endArray();
+        }
+        json.endObject();
+    }
+
+    /**
+     * Return the genes to report, in order of decreasing score.
+     *
+     * @return the best scoring genes, with their scores
+     */
+    private List<Map.Entry<String, Double>> getReportedGenes()
+    {
+        List<Map.Entry<String, Double>> genes = new ArrayList<Map.Entry<String, Double>>(this.geneScores.entrySet());
+        Collections.sort(genes, new Comparator<Map.Entry<String, Double>>()
+        {
+            @Override
+            public int compare(Map.Entry<String, Double> e1, Map.Entry<String, Double> e2)
+            {
+                return Double.compare(e2.getValue(), e1.getValue());
+            }
+        });
+
+        // FIXME: quick emergency fix to make PhenomeCentral responsive
+        return genes.size() > 16 ? genes.subList(0, 16) : genes;
     }
 }
@@ -0,0 +1,613 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.permissions.AccessLevel;
+import org.phenotips.data.similarity.PatientBatchLoader;
+import org.phenotips.data.similarity.PatientCandidateGenerator;
+import org.phenotips.data.similarity.PatientMatchIndex;
+import org.phenotips.data.similarity.PatientSimilarityView;
+import org.phenotips.data.similarity.PatientSimilarityViewFactory;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
+
+/**
+ * Default implementation for the {@link PatientMatchIndex} role, storing the matches in the database through
+ * Hibernate. Matches are computed by a single background thread, using the {@link DefaultPatientSimilarityView
+ * unrestricted patient pairs}, so the stored matches don't depend on any user; access rights are checked when the
+ * matches are read.
+ * <p>
+ * More matches are stored than returned, so that enough of them remain once the patients the current user can't
+ * access are left out. When a patient changes, its matches are recomputed against the candidates found by a
+ * {@link PatientCandidateGenerator}, or against all the patients while the generator is not ready, and the patient is
+ * added to the stored matches of the other patients if it scores better than their worst stored match. Matches that
+ * fall out of a patient's list because of changes in other patients are only replaced the next time that patient is
+ * updated.
+ * </p>
+ * <p>
+ * The index is not {@link #isReady() ready} until the matches of the patients that have no stored matches, for example
+ * the patients that existed before the index was installed, are computed in the background.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Component
+@Singleton
+public class DefaultPatientMatchIndex implements PatientMatchIndex, Initializable, Disposable
+{
+    /** The configuration property setting the number of matches returned for each patient. */
+    private static final String SIZE_PROPERTY = "phenotips.similarity.matchIndex.size";
+
+    /** The default number of matches returned for each patient. */
+    private static final int DEFAULT_SIZE = 50;
+
+    /** The configuration property setting the number of matches stored for each patient, at least the returned size. */
+    private static final String STORED_PROPERTY = "phenotips.similarity.matchIndex.stored";
+
+    /** By default, the number of matches stored for each patient is this many times the number of returned matches. */
+    private static final int DEFAULT_STORED_FACTOR = 4;
+
+    /** The configuration property naming the {@link PatientCandidateGenerator} providing the patients to score. */
+    private static final String CANDIDATES_PROPERTY = "phenotips.similarity.matchIndex.candidates";
+
+    /** The default candidate generator, which estimates the scores with the same kernel as the patient pairs. */
+    private static final String DEFAULT_CANDIDATES = "ancestor-index";
+
+    /** The number of candidates scored for each patient is this many times the number of stored matches. */
+    private static final int CANDIDATES_FACTOR = 4;
+
+    /** Lists the names of all the patient documents, also used by the other patient indexes. */
+    static final String ALL_PATIENTS_QUERY = "select doc.name from XWikiDocument doc, BaseObject obj"
+        + " where doc.space = 'data' and obj.name = doc.fullName and obj.className = 'PhenoTips.PatientClass'"
+        + " and doc.name <> 'PatientTemplate'";
+
+    /** HQL parameter holding a patient identifier. */
+    private static final String PATIENT_PARAMETER = "patient";
+
+    /** HQL parameter holding the identifiers of the patients whose stored matches are checked. */
+    private static final String CANDIDATES_PARAMETER = "candidates";
+
+    /**
+     * Lists the worst stored match of each of the given patients, along with the number of matches stored for that
+     * patient. Several rows are returned for a patient whose worst matches have the same score.
+     */
+    private static final String WORST_MATCHES_QUERY = "select m, (select count(m2) from PatientMatch m2"
+        + " where m2.referencePatient = m.referencePatient) from PatientMatch m"
+        + " where m.referencePatient in (:candidates) and m.score = (select min(m3.score) from PatientMatch m3"
+        + " where m3.referencePatient = m.referencePatient)";
+
+    /** The maximum number of patients whose worst stored matches are looked up in one query. */
+    private static final int BATCH_SIZE = 500;
+
+    /** Sorts matches by ascending score. */
+    private static final Comparator<PatientMatch> SCORE_ORDER = new Comparator<PatientMatch>()
+    {
+        @Override
+        public int compare(PatientMatch o1, PatientMatch o2)
+        {
+            return Double.compare(o1.getScore(), o2.getScore());
+        }
+    };
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    /** Handles persistence. */
+    @Inject
+    private HibernateSessionFactory sessionFactory;
+
+    /** Lists all the patients. */
+    @Inject
+    private QueryManager queryManager;
+
+    /** Provides access to patient data. */
+    @Inject
+    private PatientRepository patients;
+
+    /** Loads the matched patients, all at once. */
+    @Inject
+    private PatientBatchLoader loader;
+
+    /** Creates the unrestricted patient pairs used for computing the matches. */
+    @Inject
+    private PatientSimilarityViewFactory publicFactory;
+
+    /** Creates the restricted patient pairs returned to the current user. */
+    @Inject
+    @Named("restricted")
+    private PatientSimilarityViewFactory restrictedFactory;
+
+    /** The minimal access level needed for including a patient in the matches returned to the current user. */
+    @Inject
+    @Named("match")
+    private AccessLevel accessLevelThreshold;
+
+    /** Provides the current execution context, cloned for the background updates. */
+    @Inject
+    private Execution execution;
+
+    /** Clones execution contexts. */
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    /** Provides the number of stored matches. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Looks up the candidate generator. */
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> componentManager;
+
+    /** The identifiers of the patients waiting to be updated, so that repeated changes are only processed once. */
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Whether the missing matches are being computed. */
+    private final AtomicBoolean building = new AtomicBoolean();
+
+    /** Whether the matches of all the patients have been computed. */
+    private volatile boolean ready;
+
+    /** The number of matches returned for each patient. */
+    private int size;
+
+    /** The number of matches stored for each patient. */
+    private int stored;
+
+    /** Finds the patients worth scoring, {@code null} if not available. */
+    private PatientCandidateGenerator candidateGenerator;
+
+    /** Computes matches in the background, one patient at a time. */
+    private ExecutorService executor;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.size = Math.max(1, this.configuration.getProperty(SIZE_PROPERTY, DEFAULT_SIZE));
+        this.stored = Math.max(this.size, this.configuration.getProperty(STORED_PROPERTY,
+            DEFAULT_STORED_FACTOR * this.size));
+        String generatorHint = this.configuration.getProperty(CANDIDATES_PROPERTY, DEFAULT_CANDIDATES);
+        if (StringUtils.isNotBlank(generatorHint)) {
+            try {
+                this.candidateGenerator =
+                    this.componentManager.get().getInstance(PatientCandidateGenerator.class, generatorHint);
+            } catch (ComponentLookupException ex) {
+                this.logger.warn("Unknown candidate generator [{}], scoring all the patients", generatorHint);
+            }
+        }
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "patient-match-index");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    public List<PatientSimilarityView> getMatches(Patient referencePatient)
+    {
+        List<PatientMatch> matches;
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        try {
+            @SuppressWarnings("unchecked")
+            List<PatientMatch> found = session
+                .createQuery("from PatientMatch m where m.referencePatient = :patient order by m.score desc")
+                .setString(PATIENT_PARAMETER, getPatientId(referencePatient)).list();
+            matches = found;
+        } catch (HibernateException ex) {
+            this.logger.warn("Failed to read the stored matches of patient [{}]: {}", referencePatient.getId(),
+                ex.getMessage());
+            return Collections.emptyList();
+        } finally {
+            session.close();
+        }
+
+        // Stored matches are best first, keep the best ones the current user can access, loading as few as possible
+        List<PatientSimilarityView> results = new ArrayList<PatientSimilarityView>(this.size);
+        for (int start = 0; start < matches.size() && results.size() < this.size; start += this.size) {
+            List<PatientMatch> batch = matches.subList(start, Math.min(start + this.size, matches.size()));
+            List<String> ids = new ArrayList<String>(batch.size());
+            for (PatientMatch match : batch) {
+                ids.add(match.getMatchedPatient());
+            }
+            Map<String, Patient> matchPatients = this.loader.load(ids);
+            for (PatientMatch match : batch) {
+                if (results.size() >= this.size) {
+                    break;
+                }
+                Patient matchPatient = matchPatients.get(match.getMatchedPatient());
+                if (matchPatient == null) {
+                    if (!matchPatients.containsKey(match.getMatchedPatient())) {
+                        scheduleRemoval(match.getMatchedPatient());
+                    }
+                    continue;
+                }
+                PatientSimilarityView result =
+                    this.restrictedFactory.makeSimilarPatient(matchPatient, referencePatient);
+                if (this.accessLevelThreshold.compareTo(result.getAccess()) <= 0) {
+                    results.add(result);
+                }
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public int getSize()
+    {
+        return this.size;
+    }
+
+    @Override
+    public boolean isReady()
+    {
+        if (!this.ready) {
+            scheduleBuild();
+        }
+        return this.ready;
+    }
+
+    @Override
+    public void update(Patient patient)
+    {
+        final String patientId = getPatientId(patient);
+        if (!this.pending.add(patientId)) {
+            // Already waiting to be updated, the update will see the latest data
+            return;
+        }
+        final ExecutionContext context;
+        try {
+            context = this.contextManager.clone(this.execution.getContext());
+        } catch (ExecutionContextException ex) {
+            this.pending.remove(patientId);
+            this.logger.warn("Failed to schedule the update of the matches of patient [{}]: {}", patientId,
+                ex.getMessage());
+            return;
+        }
+        this.executor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                DefaultPatientMatchIndex.this.execution.setContext(context);
+                try {
+                    DefaultPatientMatchIndex.this.pending.remove(patientId);
+                    updateNow(patientId);
+                } catch (Exception ex) {
+                    DefaultPatientMatchIndex.this.logger.warn("Failed to update the matches of patient [{}]: {}",
+                        patientId, ex.getMessage());
+                } finally {
+                    DefaultPatientMatchIndex.this.execution.removeContext();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void remove(String patientId)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        Transaction t = session.beginTransaction();
+        try {
+            deleteMatches(session, patientId);
+            t.commit();
+        } catch (HibernateException ex) {
+            t.rollback();
+            this.logger.warn("Failed to remove the matches of patient [{}]: {}", patientId, ex.getMessage());
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Start computing the matches of the patients that have none stored in the background, unless this is already in
+     * progress. The index becomes ready once done.
+     */
+    private void scheduleBuild()
+    {
+        if (!this.building.compareAndSet(false, true)) {
+            return;
+        }
+        final ExecutionContext context;
+        try {
+            context = createContext();
+        } catch (ExecutionContextException ex) {
+            this.building.set(false);
+            this.logger.warn("Failed to schedule computing the missing patient matches: {}", ex.getMessage());
+            return;
+        }
+        this.executor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                DefaultPatientMatchIndex.this.execution.setContext(context);
+                try {
+                    buildNow();
+                } catch (Exception ex) {
+                    DefaultPatientMatchIndex.this.logger.warn("Failed to compute the missing patient matches: {}",
+                        ex.getMessage());
+                } finally {
+                    DefaultPatientMatchIndex.this.building.set(false);
+                    DefaultPatientMatchIndex.this.execution.removeContext();
+                }
+            }
+        });
+    }
+
+    /**
+     * Prepare the execution context of the background computation: a clone of the current request's context, or a new
+     * context when there is no current request.
+     *
+     * @return the execution context to use in the background
+     * @throws ExecutionContextException if the context cannot be cloned or initialized
+     */
+    private ExecutionContext createContext() throws ExecutionContextException
+    {
+        ExecutionContext current = this.execution.getContext();
+        if (current != null) {
+            return this.contextManager.clone(current);
+        }
+        ExecutionContext context = new ExecutionContext();
+        this.contextManager.initialize(context);
+        return context;
+    }
+
+    /**
+     * Compute the matches of all the patients that have no stored matches, on the current thread.
+     *
+     * @throws QueryException if listing the patients fails
+     */
+    private void buildNow() throws QueryException
+    {
+        Set<String> computed = new HashSet<String>();
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        try {
+            @SuppressWarnings("unchecked")
+            List<String> found = session.createQuery("select distinct m.referencePatient from PatientMatch m").list();
+            computed.addAll(found);
+        } finally {
+            session.close();
+        }
+
+        Query query = this.queryManager.createQuery(ALL_PATIENTS_QUERY, Query.HQL);
+        int count = 0;
+        for (String id : query.<String>execute()) {
+            // Patients waiting to be updated will be computed anyway
+            if (!computed.contains(id) && !this.pending.contains(id)) {
+                updateNow(id);
+                ++count;
+            }
+        }
+        this.ready = true;
+        this.logger.debug("Computed the missing matches of {} patients", count);
+    }
+
+    /**
+     * Forget the matches of a deleted patient in the background, so that reading matches doesn't wait for it.
+     *
+     * @param patientId the identifier of the deleted patient
+     */
+    private void scheduleRemoval(final String patientId)
+    {
+        this.executor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                remove(patientId);
+            }
+        });
+    }
+
+    /**
+     * Recompute and store the matches of a patient, on the current thread.
+     *
+     * @param patientId the identifier of the changed patient
+     * @throws QueryException if listing the patients fails
+     */
+    private void updateNow(String patientId) throws QueryException
+    {
+        Patient patient = this.patients.getPatientById(patientId);
+        if (patient == null) {
+            remove(patientId);
+            return;
+        }
+
+        Map<String, Double> scores = score(patient, patientId, getCandidates(patient));
+        PriorityQueue<PatientMatch> best = new PriorityQueue<PatientMatch>(this.stored, SCORE_ORDER);
+        for (Map.Entry<String, Double> score : scores.entrySet()) {
+            best.add(new PatientMatch(patientId, score.getKey(), score.getValue()));
+            if (best.size() > this.stored) {
+                best.poll();
+            }
+        }
+
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        Transaction t = session.beginTransaction();
+        try {
+            deleteMatches(session, patientId);
+            for (PatientMatch match : best) {
+                session.save(match);
+            }
+            updateReverseMatches(session, patientId, scores);
+            t.commit();
+        } catch (HibernateException ex) {
+            t.rollback();
+            this.logger.warn("Failed to store the matches of patient [{}]: {}", patientId, ex.getMessage());
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * List the patients to score against a changed patient: the best candidates found by the candidate generator, or
+     * all the patients if the generator is not available.
+     *
+     * @param patient the changed patient
+     * @return the identifiers of the patients to score
+     * @throws QueryException if listing the patients fails
+     */
+    private Collection<String> getCandidates(Patient patient) throws QueryException
+    {
+        if (this.candidateGenerator != null && this.candidateGenerator.isReady()) {
+            return this.candidateGenerator.getCandidates(patient, CANDIDATES_FACTOR * this.stored).keySet();
+        }
+        Query query = this.queryManager.createQuery(ALL_PATIENTS_QUERY, Query.HQL);
+        return query.<String>execute();
+    }
+
+    /**
+     * Score a patient against other patients.
+     *
+     * @param patient the changed patient
+     * @param patientId the identifier of the changed patient
+     * @param ids the identifiers of the patients to score against
+     * @return the positive scores, by the identifier of the other patient
+     */
+    private Map<String, Double> score(Patient patient, String patientId, Collection<String> ids)
+    {
+        Map<String, Double> scores = new HashMap<String, Double>();
+        for (String id : ids) {
+            if (patientId.equals(id)) {
+                continue;
+            }
+            Patient other = this.patients.getPatientById(id);
+            if (other == null) {
+                continue;
+            }
+            double score = this.publicFactory.makeSimilarPatient(other, patient).getScore();
+            if (score > 0) {
+                scores.put(id, score);
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Add the changed patient to the stored matches of the other patients, where it scores better than their worst
+     * stored match.
+     *
+     * @param session the current session, with a transaction in progress
+     * @param patientId the identifier of the changed patient
+     * @param scores the scores of the changed patient against the other patients
+     */
+    private void updateReverseMatches(Session session, String patientId, Map<String, Double> scores)
+    {
+        List<String> ids = new ArrayList<String>(scores.keySet());
+        for (int start = 0; start < ids.size(); start += BATCH_SIZE) {
+            List<String> batch = ids.subList(start, Math.min(start + BATCH_SIZE, ids.size()));
+            @SuppressWarnings("unchecked")
+            List<Object[]> rows = session.createQuery(WORST_MATCHES_QUERY)
+                .setParameterList(CANDIDATES_PARAMETER, batch).list();
+            Map<String, Object[]> worstByPatient = new HashMap<String, Object[]>(rows.size() * 2);
+            for (Object[] row : rows) {
+                String referencePatient = ((PatientMatch) row[0]).getReferencePatient();
+                if (!worstByPatient.containsKey(referencePatient)) {
+                    worstByPatient.put(referencePatient, row);
+                }
+            }
+
+            for (String id : batch) {
+                Object[] row = worstByPatient.get(id);
+                if (row == null) {
+                    // The other patient's matches were never computed, they will be computed when it changes
+                    continue;
+                }
+                PatientMatch worst = (PatientMatch) row[0];
+                double score = scores.get(id);
+                if (((Number) row[1]).intValue() >= this.stored) {
+                    if (score <= worst.getScore()) {
+                        continue;
+                    }
+                    session.delete(worst);
+                }
+                session.save(new PatientMatch(id, patientId, score));
+            }
+        }
+    }
+
+    private void deleteMatches(Session session, String patientId)
+    {
+        session.createQuery("delete from PatientMatch m where m.referencePatient = :patient"
+            + " or m.matchedPatient = :patient").setString(PATIENT_PARAMETER, patientId).executeUpdate();
+    }
+
+    private String getPatientId(Patient patient)
+    {
+        return patient.getDocument().getName();
+    }
+}
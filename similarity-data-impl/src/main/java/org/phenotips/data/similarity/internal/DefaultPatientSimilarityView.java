@@ -17,28 +17,38 @@
  */
 package org.phenotips.data.similarity.internal;
 
+import org.phenotips.components.ComponentManagerRegistry;
 import org.phenotips.data.Disorder;
 import org.phenotips.data.Feature;
 import org.phenotips.data.Patient;
 import org.phenotips.data.similarity.AccessType;
 import org.phenotips.data.similarity.DisorderSimilarityView;
 import org.phenotips.data.similarity.FeatureClusterView;
+import org.phenotips.data.similarity.FeatureSimilarityScorerRegistry;
 import org.phenotips.data.similarity.PatientGenotypeSimilarityView;
 import org.phenotips.vocabulary.VocabularyManager;
 import org.phenotips.vocabulary.VocabularyTerm;
 
+import org.xwiki.cache.Cache;
+import org.xwiki.component.manager.ComponentLookupException;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import net.sf.json.JSONArray;
+import net.sf.json.util.JSONBuilder;
 
 /**
  * Implementation of {@link org.phenotips.data.similarity.PatientSimilarityView} that uses a mutual information metric
@@ -55,17 +65,44 @@ public class DefaultPatientSimilarityView extends AbstractPatientSimilarityView
     /** The root of the phenotypic abnormality portion of HPO. */
     private static final String PHENOTYPE_ROOT = "HP:0000118";
 
-    /** Pre-computed term information content (-logp), for each node t (i.e. t.inf). */
-    private static Map<VocabularyTerm, Double> termICs;
+    /** The name of the default feature scorer, which uses the {@link PhenotypeKernel}. */
+    private static final String DEFAULT_SCORER = "default";
+
+    /** Pre-computed term information content (-logp) and ancestors, for each node t (i.e. t.inf). */
+    private static CompiledOntology ontology;
 
-    /** The largest IC found, for normalizing. */
-    private static Double maxIC;
+    /** Scores ancestor closures represented as bitsets over the compiled ontology. */
+    private static PhenotypeKernel kernel;
+
+    /** Bounded cache of the phenotype profiles of the most recently seen patients, by patient ID. */
+    private static Cache<PhenotypeProfile> profiles;
 
     /** Provides access to the term vocabulary. */
     private static VocabularyManager vocabularyManager;
 
-    /** Memoized match score. */
-    private Double score;
+    /** Cache of the scores of patient pairs, which don't depend on the access level and are shared by all views. */
+    private static PairCache<PairScore> scoreCache;
+
+    /** Cache of the access-independent term clusters of patient pairs, shared by all views. */
+    private static PairCache<List<PhenotypeCluster>> clusterCache;
+
+    /** Selects the configured feature scorer, looked up when first needed. */
+    private static volatile FeatureSimilarityScorerRegistry scorers;
+
+    /** Whether the scorer registry was already looked up, so that a failed lookup isn't repeated for every view. */
+    private static volatile boolean scorersLookedUp;
+
+    /** The feature scorer used by this view, as configured when the view was created. */
+    private final String scorerType;
+
+    /** Memoized cache key of this pair of patients, computed at most once per view. */
+    private volatile String pairKey;
+
+    /** Memoized match score, computed at most once per view. */
+    private volatile PairScore score;
+
+    /** Memoized term clusters. */
+    private List<PhenotypeCluster> clusters;
 
     /** Links disorder values from this patient to the reference. */
     private Set<DisorderSimilarityView> matchedDisorders;
@@ -92,6 +129,28 @@ public DefaultPatientSimilarityView(Patient match, Patient reference, AccessType
                 "Static data of MutualInformationPatientSimilarityView was not initilized before instantiation";
             throw new NullPointerException(error);
         }
+        FeatureSimilarityScorerRegistry registry = getScorerRegistry();
+        this.scorerType = registry == null ? DEFAULT_SCORER : registry.getScorerType();
+    }
+
+    /**
+     * Return the registry selecting the configured feature scorer. The registry is looked up only once, until the
+     * static data is initialized again.
+     *
+     * @return the scorer registry, or {@code null} if it is not available, in which case the default kernel is used
+     */
+    private static FeatureSimilarityScorerRegistry getScorerRegistry()
+    {
+        if (!scorersLookedUp) {
+            try {
+                scorers = ComponentManagerRegistry.getContextComponentManager()
+                    .getInstance(FeatureSimilarityScorerRegistry.class);
+            } catch (ComponentLookupException | RuntimeException ex) {
+                // Not available, use the default kernel
+            }
+            scorersLookedUp = true;
+        }
+        return scorers;
     }
 
     /**
@@ -101,7 +160,7 @@ public DefaultPatientSimilarityView(Patient match, Patient reference, AccessType
      */
     public static boolean isInitialized()
     {
-        return termICs != null && vocabularyManager != null;
+        return ontology != null && vocabularyManager != null;
     }
 
     /**
@@ -112,9 +171,116 @@ public static boolean isInitialized()
      */
     public static void initializeStaticData(Map<VocabularyTerm, Double> termICs, VocabularyManager vocabularyManager)
     {
-        DefaultPatientSimilarityView.termICs = termICs;
+        initializeStaticData(new CompiledOntology(termICs, termICs.keySet()), vocabularyManager);
+    }
+
+    /**
+     * Set the static information for the class. Must be run before creating instances of this class.
+     *
+     * @param ontology the compiled ontology, with the information content and ancestors of each term
+     * @param vocabularyManager the vocabulary manager
+     */
+    public static void initializeStaticData(CompiledOntology ontology, VocabularyManager vocabularyManager)
+    {
+        DefaultPatientSimilarityView.ontology = ontology;
+        DefaultPatientSimilarityView.kernel = new PhenotypeKernel(ontology);
         DefaultPatientSimilarityView.vocabularyManager = vocabularyManager;
-        DefaultPatientSimilarityView.maxIC = Collections.max(termICs.values());
+        scorersLookedUp = false;
+        if (profiles != null) {
+            profiles.removeAll();
+        }
+    }
+
+    /**
+     * Return the compiled ontology used for scoring.
+     *
+     * @return the ontology, or {@code null} if the class was not initialized yet
+     */
+    static CompiledOntology getOntology()
+    {
+        return ontology;
+    }
+
+    /**
+     * Return the kernel used for scoring phenotypes.
+     *
+     * @return the kernel, or {@code null} if the class was not initialized yet
+     */
+    static PhenotypeKernel getKernel()
+    {
+        return kernel;
+    }
+
+    /**
+     * Set the caches used for sharing data between views of the same patients. Cached data doesn't depend on the access
+     * level, which is only applied when the data is displayed.
+     *
+     * @param profileCache the cache for the phenotype profiles of single patients, or {@code null} for not caching
+     *            profiles
+     * @param scores the cache for pair scores, or {@code null} for not caching scores
+     * @param clusters the cache for term clusters, or {@code null} for not caching clusters
+     */
+    public static void setCaches(Cache<PhenotypeProfile> profileCache, PairCache<PairScore> scores,
+        PairCache<List<PhenotypeCluster>> clusters)
+    {
+        profiles = profileCache;
+        scoreCache = scores;
+        clusterCache = clusters;
+    }
+
+    /**
+     * Forget all the cached phenotype profiles, scores and clusters.
+     */
+    public static void clearCache()
+    {
+        if (profiles != null) {
+            profiles.removeAll();
+        }
+        if (scoreCache != null) {
+            scoreCache.removeAll();
+        }
+        if (clusterCache != null) {
+            clusterCache.removeAll();
+        }
+    }
+
+    /**
+     * Forget the cached phenotype profile of a patient, along with all the cached scores and clusters involving it.
+     *
+     * @param id the document ID of the patient
+     */
+    public static void clearPatientCache(String id)
+    {
+        if (profiles != null) {
+            profiles.remove(id);
+        }
+        if (scoreCache != null) {
+            scoreCache.removeAssociated(id);
+        }
+        if (clusterCache != null) {
+            clusterCache.removeAssociated(id);
+        }
+    }
+
+    /**
+     * Return the phenotype profile of a patient, reusing the last computed profile as long as the patient's features
+     * haven't changed.
+     *
+     * @param patient the patient to profile
+     * @return the phenotype profile of the patient
+     */
+    protected static PhenotypeProfile getProfile(Patient patient)
+    {
+        String id = patient.getId();
+        Cache<PhenotypeProfile> cache = profiles;
+        PhenotypeProfile profile = id == null || cache == null ? null : cache.get(id);
+        if (profile == null || !profile.getFingerprint().equals(PhenotypeProfile.getFingerprint(patient))) {
+            profile = new PhenotypeProfile(patient, vocabularyManager, ontology, kernel);
+            if (id != null && cache != null) {
+                cache.set(id, profile);
+            }
+        }
+        return profile;
     }
 
     /**
@@ -205,83 +371,6 @@ protected Set<DisorderSimilarityView> getMatchedDisorders()
         return this.matchedDisorders;
     }
 
-    /**
-     * Return a (potentially empty) collection of terms present in the patient.
-     *
-     * @param patient
-     * @return a collection of terms present in the patient
-     */
-    private Collection<VocabularyTerm> getPresentPatientTerms(Patient patient)
-    {
-        Set<VocabularyTerm> terms = new HashSet<VocabularyTerm>();
-        for (Feature feature : patient.getFeatures()) {
-            if (!feature.isPresent()) {
-                continue;
-            }
-
-            VocabularyTerm term = vocabularyManager.resolveTerm(feature.getId());
-            if (term != null) {
-                // Only add resolvable terms
-                terms.add(term);
-            }
-        }
-        return terms;
-    }
-
-    /**
-     * Return a (potentially empty) mapping from VocabularyTerm IDs back to features in the patient. Un-mappable
-     * features are not included.
-     *
-     * @param patient
-     * @return a mapping from term IDs to features in the patient
-     */
-    private Map<String, Feature> getTermLookup(Patient patient)
-    {
-        Map<String, Feature> lookup = new HashMap<String, Feature>();
-        for (Feature feature : patient.getFeatures()) {
-            String id = feature.getId();
-            if (!id.isEmpty()) {
-                lookup.put(id, feature);
-            }
-        }
-        return lookup;
-    }
-
-    /**
-     * Return the set of terms implied by a collection of features in the vocabulary.
-     *
-     * @param terms a collection of terms
-     * @return all provided VocabularyTerm terms and their ancestors
-     */
-    private Set<VocabularyTerm> getAncestors(Collection<VocabularyTerm> terms)
-    {
-        Set<VocabularyTerm> ancestors = new HashSet<VocabularyTerm>(terms);
-        for (VocabularyTerm term : terms) {
-            // Add all ancestors
-            ancestors.addAll(term.getAncestorsAndSelf());
-        }
-        return ancestors;
-    }
-
-    /**
-     * Return the total IC across a collection of terms.
-     *
-     * @param terms (should include implied ancestors) that are present in the patient
-     * @return the total IC for all the terms
-     */
-    private double getTermICs(Collection<VocabularyTerm> terms)
-    {
-        double cost = 0;
-        for (VocabularyTerm term : terms) {
-            Double ic = termICs.get(term);
-            if (ic == null) {
-                ic = 0.0;
-            }
-            cost += ic;
-        }
-        return cost;
-    }
-
     /**
      * Get the phenotypic similarity score for this patient match.
      *
@@ -293,22 +382,20 @@ public double getPhenotypeScore()
             return 0.0;
         } else {
             // Get ancestors for both patients
-            Set<VocabularyTerm> refAncestors = getAncestors(getPresentPatientTerms(this.reference));
-            Set<VocabularyTerm> matchAncestors = getAncestors(getPresentPatientTerms(this.match));
+            PhenotypeProfile refProfile = getProfile(this.reference);
+            PhenotypeProfile matchProfile = getProfile(this.match);
+            long[] refAncestors = refProfile.getClosure();
+            long[] matchAncestors = matchProfile.getClosure();
 
-            if (refAncestors.isEmpty() || matchAncestors.isEmpty()) {
+            if (PhenotypeKernel.isEmpty(refAncestors) || PhenotypeKernel.isEmpty(matchAncestors)) {
                 return 0.0;
+            } else if (!DEFAULT_SCORER.equals(this.scorerType) && scorers != null) {
+                // A different scorer is configured
+                return scorers.getScorer(this.scorerType).getScore(refProfile.getTermIds(), matchProfile.getTermIds());
             } else {
                 // Score overlapping ancestors
-                Set<VocabularyTerm> commonAncestors = new HashSet<VocabularyTerm>();
-                commonAncestors.addAll(refAncestors);
-                commonAncestors.retainAll(matchAncestors);
-
-                Set<VocabularyTerm> allAncestors = new HashSet<VocabularyTerm>();
-                allAncestors.addAll(refAncestors);
-                allAncestors.addAll(matchAncestors);
-
-                return getTermICs(commonAncestors) / getTermICs(allAncestors);
+                return kernel.getScore(refAncestors, refProfile.getTotalIC(), matchAncestors,
+                    matchProfile.getTotalIC());
             }
         }
     }
@@ -340,28 +427,103 @@ private double adjustScoreWithDisordersScore(double baseScore)
         return adjustedScore;
     }
 
-    @Override
-    public double getScore()
+    /**
+     * Compute a version of the data of a patient relevant for matching: features, disorders and candidate genes.
+     *
+     * @param patient the patient whose data to version
+     * @return a SHA-1 digest of the data, which changes whenever the patient's score against any other patient might
+     *         change
+     */
+    protected static String getDataVersion(Patient patient)
     {
-        // Memoize the score
-        if (this.score == null) {
-            double phenotypeScore = getPhenotypeScore();
-            phenotypeScore = adjustScoreWithDisordersScore(phenotypeScore);
+        StringBuilder data = new StringBuilder(PhenotypeProfile.getFingerprint(patient));
+        List<String> disorders = new ArrayList<String>();
+        for (Disorder disorder : patient.getDisorders()) {
+            disorders.add(String.valueOf(disorder.getId()));
+        }
+        Collections.sort(disorders);
+        data.append(disorders);
+        data.append(new TreeSet<String>(DefaultPatientGenotype.getPatientCandidateGeneNames(patient)));
+        return DigestUtils.sha1Hex(data.toString());
+    }
 
-            // Factor in overlap between candidate genes
-            PatientGenotypeSimilarityView genotypeSimilarity = getGenotypeSimilarity();
-            Collection<String> sharedGenes = new HashSet<String>();
-            sharedGenes = genotypeSimilarity.getCandidateGenes();
+    /**
+     * Return a key identifying this pair of patients along with the current version of their data and the feature
+     * scorer in use, but not the access level, under which access-independent data about the pair can be cached. The
+     * key is computed only once per view, views being short lived.
+     *
+     * @return the cache key, or {@code null} if either patient has no identifier
+     */
+    public String getPairKey()
+    {
+        if (this.match.getId() == null || this.reference.getId() == null) {
+            return null;
+        }
+        String result = this.pairKey;
+        if (result == null) {
+            result = this.match.getId() + '|' + this.reference.getId() + '|' + getDataVersion(this.match) + '|'
+                + getDataVersion(this.reference) + '|' + this.scorerType;
+            this.pairKey = result;
+        }
+        return result;
+    }
 
-            double geneBoost = 0.0;
-            if (!sharedGenes.isEmpty()) {
-                geneBoost = 0.7;
-            }
+    /**
+     * Compute the score of this pair of patients, from their phenotypes, disorders and candidate genes.
+     *
+     * @return the score, along with the partial scores it was computed from
+     */
+    private PairScore computeScore()
+    {
+        double phenotypeScore = getPhenotypeScore();
+        double disorderScore = adjustScoreWithDisordersScore(phenotypeScore);
+
+        // Factor in overlap between candidate genes
+        PatientGenotypeSimilarityView genotypeSimilarity = getGenotypeSimilarity();
+        Collection<String> sharedGenes = genotypeSimilarity.getCandidateGenes();
+
+        double geneBoost = 0.0;
+        if (!sharedGenes.isEmpty()) {
+            geneBoost = 0.7;
+        }
+
+        // Return boosted score
+        return new PairScore(phenotypeScore, disorderScore, geneBoost, Math.pow(disorderScore, 1.0 - geneBoost));
+    }
 
-            // Return boosted score
-            return Math.pow(phenotypeScore, 1.0 - geneBoost);
+    /**
+     * Return the score of this pair of patients, along with the partial scores it was computed from, for diagnostics.
+     * The score is computed only once, even if requested concurrently, and is shared with the other views of the same
+     * pair of patients through the score cache.
+     *
+     * @return the score of this pair of patients
+     */
+    public PairScore getPairScore()
+    {
+        PairScore result = this.score;
+        if (result == null) {
+            synchronized (this) {
+                result = this.score;
+                if (result == null) {
+                    String cacheKey = scoreCache == null ? null : getPairKey();
+                    result = cacheKey == null ? null : scoreCache.get(cacheKey);
+                    if (result == null) {
+                        result = computeScore();
+                        if (cacheKey != null) {
+                            scoreCache.set(this.match.getId(), this.reference.getId(), cacheKey, result);
+                        }
+                    }
+                    this.score = result;
+                }
+            }
         }
-        return this.score;
+        return result;
+    }
+
+    @Override
+    public double getScore()
+    {
+        return getPairScore().getScore();
     }
 
     /**
@@ -383,6 +545,17 @@ public JSONArray getGenesJSON()
         return getGenotypeSimilarity().toJSON();
     }
 
+    @Override
+    protected void writeGenesJSON(JSONBuilder json)
+    {
+        PatientGenotypeSimilarityView genotypeSimilarity = getGenotypeSimilarity();
+        // Same conditions as for a null genotype JSON, which is left out
+        if (genotypeSimilarity.hasGenotypeData() && !this.access.isPrivateAccess()) {
+            json.key("genes");
+            genotypeSimilarity.writeJSON(json);
+        }
+    }
+
     /**
      * {@inheritDoc} Return the features present in the match patient. If the features in the match are not visible at
      * the current access level, an empty set will be returned.
@@ -408,6 +581,24 @@ protected JSONArray getFeaturesJSON()
         return featuresJSON;
     }
 
+    @Override
+    protected void writeFeaturesJSON(JSONBuilder json)
+    {
+        boolean empty = true;
+        for (Feature f : getFeatures()) {
+            if (f.isPresent()) {
+                if (empty) {
+                    json.key("features").array();
+                    empty = false;
+                }
+                json.value(f.toJSON());
+            }
+        }
+        if (!empty) {
+            json.endArray();
+        }
+    }
+
     @Override
     protected JSONArray getDisordersJSON()
     {
@@ -418,103 +609,115 @@ protected JSONArray getDisordersJSON()
         return disordersJSON;
     }
 
-    /**
-     * Find, remove, and return all terms with given ancestor.
-     *
-     * @param terms the terms, modified by removing terms with given ancestor
-     * @param ancestor the ancestor to search for
-     * @return the terms with the given ancestor (removed from given terms)
-     */
-    private Collection<VocabularyTerm> popTermsWithAncestor(Collection<VocabularyTerm> terms, VocabularyTerm ancestor)
+    @Override
+    protected void writeDisordersJSON(JSONBuilder json)
     {
-        Collection<VocabularyTerm> matched = new HashSet<VocabularyTerm>();
-        for (VocabularyTerm term : terms) {
-            if (term.getAncestorsAndSelf().contains(ancestor)) {
-                matched.add(term);
+        Set<? extends Disorder> disorders = getDisorders();
+        if (!disorders.isEmpty()) {
+            json.key("disorders").array();
+            for (Disorder disorder : disorders) {
+                json.value(disorder.toJSON());
             }
+            json.endArray();
         }
-        terms.removeAll(matched);
-        return matched;
     }
 
     /**
-     * Finds the best term match, removes these terms, and return the JSON for that match.
+     * Group the terms of the two patients into clusters of related terms.
      *
-     * @param refTerms the terms in the reference
-     * @param matchTerms the terms in the match
-     * @param matchFeatureLookup a mapping from VocabularyTerm IDs back to the original Features in the match patient
-     * @param refFeatureLookup a mapping from VocabularyTerm IDs back to the original Features in the reference patient
-     * @return the FeatureClusterView of the best-matching features from refTerms and matchTerms (removes the matched
-     *         terms from the passed lists) or null if the terms are not a good match (the term collections are then
-     *         unchanged)
+     * @return the clusters, with the unmatched terms (if any) grouped in a last cluster without a shared ancestor
      */
-    private FeatureClusterView popBestFeatureCluster(Collection<VocabularyTerm> matchTerms,
-        Collection<VocabularyTerm> refTerms, Map<String, Feature> matchFeatureLookup,
-        Map<String, Feature> refFeatureLookup)
-    {
-        Collection<VocabularyTerm> sharedAncestors = getAncestors(refTerms);
-        sharedAncestors.retainAll(getAncestors(matchTerms));
-
-        // Find ancestor with highest (normalized) information content
-        VocabularyTerm ancestor = null;
-        double ancestorScore = Double.NEGATIVE_INFINITY;
-        for (VocabularyTerm term : sharedAncestors) {
-            Double termIC = termICs.get(term);
-            if (termIC == null) {
-                termIC = 0.0;
-            }
+    private List<PhenotypeCluster> computePhenotypeClusters()
+    {
+        PhenotypeProfile matchProfile = getProfile(this.match);
+        PhenotypeProfile refProfile = getProfile(this.reference);
 
-            double termScore = termIC / maxIC;
-            if (termScore > ancestorScore) {
-                ancestorScore = termScore;
-                ancestor = term;
+        // Get the present vocabulary terms, and their ancestors
+        Map<VocabularyTerm, int[]> termAncestors = new HashMap<VocabularyTerm, int[]>();
+        Collection<VocabularyTerm> matchTerms = resolveTerms(matchProfile, termAncestors);
+        Collection<VocabularyTerm> refTerms = resolveTerms(refProfile, termAncestors);
+
+        // Keep grouping the most-related sets of terms until none match lower than HP roots
+        return new PhenotypeClusterer(ontology, Arrays.asList(HP_ROOT, PHENOTYPE_ROOT)).cluster(matchTerms, refTerms,
+            termAncestors);
+    }
+
+    /**
+     * Return the vocabulary terms of a phenotype profile, taken from the compiled ontology when possible.
+     *
+     * @param profile the profile whose terms to resolve
+     * @param termAncestors collects the ancestors of each resolved term
+     * @return the resolved terms
+     */
+    private Collection<VocabularyTerm> resolveTerms(PhenotypeProfile profile, Map<VocabularyTerm, int[]> termAncestors)
+    {
+        Collection<VocabularyTerm> result = new ArrayList<VocabularyTerm>(profile.getTermIds().size());
+        for (Map.Entry<String, int[]> entry : profile.getTermAncestors().entrySet()) {
+            int index = ontology.getIndex(entry.getKey());
+            VocabularyTerm term =
+                index >= 0 ? ontology.getTerm(index) : vocabularyManager.resolveTerm(entry.getKey());
+            if (term != null) {
+                result.add(term);
+                termAncestors.put(term, entry.getValue());
             }
         }
+        return result;
+    }
 
-        // If the top-scoring ancestor is the root (or phenotype root), report everything remaining as unmatched
-        if (ancestor == null || HP_ROOT.equals(ancestor.getId()) || PHENOTYPE_ROOT.equals(ancestor.getId())) {
-            return null;
+    /**
+     * Return the clusters of related terms of the two patients, which don't depend on the access level and are thus
+     * shared through the cluster cache with all the other views of the same pair of patients.
+     *
+     * @return the clusters, with the unmatched terms (if any) grouped in a last cluster without a shared ancestor
+     */
+    protected List<PhenotypeCluster> getPhenotypeClusters()
+    {
+        if (this.clusters == null) {
+            String cacheKey = clusterCache == null ? null : getPairKey();
+            List<PhenotypeCluster> result = cacheKey == null ? null : clusterCache.get(cacheKey);
+            if (result == null) {
+                result = computePhenotypeClusters();
+                if (cacheKey != null) {
+                    clusterCache.set(this.match.getId(), this.reference.getId(), cacheKey, result);
+                }
+            }
+            this.clusters = result;
         }
-
-        // Find, remove, and return all ref and match terms under the selected ancestor
-        Collection<VocabularyTerm> matchMatched = popTermsWithAncestor(matchTerms, ancestor);
-        Collection<VocabularyTerm> refMatched = popTermsWithAncestor(refTerms, ancestor);
-
-        // Return match json from matched terms
-        FeatureClusterView cluster = createFeatureClusterView(termsToFeatures(matchMatched, matchFeatureLookup),
-            termsToFeatures(refMatched, refFeatureLookup), this.access, ancestor, ancestorScore);
-        return cluster;
+        return this.clusters;
     }
 
     private Collection<FeatureClusterView> getMatchedFeatures()
     {
-        Collection<FeatureClusterView> clusters = new LinkedList<FeatureClusterView>();
+        Collection<FeatureClusterView> clusterViews = new LinkedList<FeatureClusterView>();
 
         // Get term -> feature lookups for creating cluster views
-        Map<String, Feature> matchFeatureLookup = getTermLookup(this.match);
-        Map<String, Feature> refFeatureLookup = getTermLookup(this.reference);
-
-        // Get the present vocabulary terms
-        Collection<VocabularyTerm> matchTerms = getPresentPatientTerms(this.match);
-        Collection<VocabularyTerm> refTerms = getPresentPatientTerms(this.reference);
-
-        // Keep removing most-related sets of terms until none match lower than HP roots
-        while (!refTerms.isEmpty() && !matchTerms.isEmpty()) {
-            FeatureClusterView cluster =
-                popBestFeatureCluster(matchTerms, refTerms, matchFeatureLookup, refFeatureLookup);
-            if (cluster == null) {
-                break;
-            }
-            clusters.add(cluster);
+        Map<String, Feature> matchFeatureLookup = getFeatureLookup(this.match);
+        Map<String, Feature> refFeatureLookup = getFeatureLookup(this.reference);
+
+        // Apply the current access level to the shared clusters
+        for (PhenotypeCluster cluster : getPhenotypeClusters()) {
+            clusterViews.add(createFeatureClusterView(termsToFeatures(cluster.getMatchTerms(), matchFeatureLookup),
+                termsToFeatures(cluster.getReferenceTerms(), refFeatureLookup), this.access, cluster.getRoot(),
+                cluster.getScore()));
         }
+        return clusterViews;
+    }
 
-        // Add any unmatched terms
-        if (!refTerms.isEmpty() || !matchTerms.isEmpty()) {
-            FeatureClusterView cluster = createFeatureClusterView(termsToFeatures(matchTerms, matchFeatureLookup),
-                termsToFeatures(refTerms, refFeatureLookup), this.access, null, 0.0);
-            clusters.add(cluster);
+    /**
+     * Return the mapping from term identifiers back to the features of a patient, including absent features.
+     *
+     * @param patient the patient whose features to map
+     * @return a mapping from term IDs to features in the patient
+     */
+    private Map<String, Feature> getFeatureLookup(Patient patient)
+    {
+        Map<String, Feature> lookup = new HashMap<String, Feature>();
+        for (Feature feature : patient.getFeatures()) {
+            if (StringUtils.isNotEmpty(feature.getId())) {
+                lookup.put(feature.getId(), feature);
+            }
         }
-        return clusters;
+        return lookup;
     }
 
     /**
@@ -550,4 +753,17 @@ protected JSONArray getFeatureMatchesJSON()
         }
         return matchesJSON;
     }
+
+    @Override
+    protected void writeFeatureMatchesJSON(JSONBuilder json)
+    {
+        Collection<FeatureClusterView> clusters = getMatchedFeatures();
+        if (!clusters.isEmpty()) {
+            json.key("featureMatches").array();
+            for (FeatureClusterView cluster : clusters) {
+                cluster.writeJSON(json);
+            }
+            json.endArray();
+        }
+    }
 }
@@ -27,7 +27,11 @@
 import org.phenotips.vocabulary.VocabularyManager;
 import org.phenotips.vocabulary.VocabularyTerm;
 
+import org.xwiki.cache.Cache;
 import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
@@ -36,6 +40,7 @@
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -60,6 +65,9 @@ public class DefaultPatientSimilarityViewFactory implements PatientSimilarityVie
     /** The root of the phenotypic abnormality portion of HPO. */
     private static final String HP_ROOT = "HP:0000118";
 
+    /** The maximum number of cached patient phenotype profiles. */
+    private static final int PROFILE_CACHE_CAPACITY = 10000;
+
     /** Small value used to round things too close to 0 or 1. */
     private static final double EPS = 1e-9;
 
@@ -85,8 +93,9 @@ public class DefaultPatientSimilarityViewFactory implements PatientSimilarityVie
     @Inject
     protected VocabularyManager vocabularyManager;
 
-    /** Cache for patient similarity views. */
-    private PairCache<PatientSimilarityView> viewCache;
+    /** Creates the cache of patient phenotype profiles. */
+    @Inject
+    private CacheManager cacheManager;
 
     /**
      * Create an instance of the PatientSimilarityView for this PatientSimilarityViewFactory. This can be overridden to
@@ -103,7 +112,8 @@ protected PatientSimilarityView createPatientSimilarityView(Patient match, Patie
     }
 
     /**
-     * Get PatientSimilarityView from cache or create a new one and add to the cache.
+     * Get a PatientSimilarityView for a pair of patients. Views are cheap to create, since the scores and term clusters
+     * of each pair of patients are cached independently of the access level, and only filtered by the view itself.
      *
      * @param match the match patient
      * @param reference the reference patient
@@ -112,19 +122,7 @@ protected PatientSimilarityView createPatientSimilarityView(Patient match, Patie
      */
     protected PatientSimilarityView getCachedPatientSimilarityView(Patient match, Patient reference, AccessType access)
     {
-        // Get potentially-cached patient similarity view
-        String cacheKey = match.getId() + '|' + reference.getId() + '|' + access.getAccessLevel().getName();
-        PatientSimilarityView result = null;
-        if (this.viewCache != null) {
-            // result = this.viewCache.get(cacheKey);
-        }
-        if (result == null) {
-            result = createPatientSimilarityView(match, reference, access);
-            if (this.viewCache != null) {
-                this.viewCache.set(match.getId(), reference.getId(), cacheKey, result);
-            }
-        }
-        return result;
+        return createPatientSimilarityView(match, reference, access);
     }
 
     @Override
@@ -362,13 +360,6 @@ private Map<VocabularyTerm, Double> getTermICs(Map<VocabularyTerm, Double> termF
     public void initialize() throws InitializationException
     {
         this.logger.info("Initializing...");
-        if (this.viewCache == null) {
-            try {
-                this.viewCache = new PairCache<PatientSimilarityView>();
-            } catch (CacheException e) {
-                this.logger.warn("Unable to create cache for PatientSimilarityViews");
-            }
-        }
         if (!DefaultPatientSimilarityView.isInitialized()) {
             // Load the OMIM/HPO mappings
             Vocabulary mim = this.vocabularyManager.getVocabulary("MIM");
@@ -385,22 +376,48 @@ public void initialize() throws InitializationException
             // Pre-compute term information content (-logp), for each node t (i.e. t.inf).
             Map<VocabularyTerm, Double> termICs = getTermICs(termFreq, termDescendants);
 
+            // Assign dense indexes to all terms, and pre-compute their ancestors
+            this.logger.info("Compiling ontology...");
+            CompiledOntology ontology = new CompiledOntology(termICs, termDescendants.keySet());
+            this.logger.info(String.format("  ... compiled %d terms.", ontology.size()));
+
             // Give data to views to use
             this.logger.info("Setting view globals...");
-            DefaultPatientSimilarityView.initializeStaticData(termICs, this.vocabularyManager);
+            DefaultPatientSimilarityView.initializeStaticData(ontology, this.vocabularyManager);
+            initializeCaches();
         }
         this.logger.info("Initialized.");
     }
 
+    /**
+     * Create the caches shared by all patient similarity views.
+     */
+    private void initializeCaches()
+    {
+        Cache<PhenotypeProfile> profileCache = null;
+        PairCache<PairScore> scoreCache = null;
+        PairCache<List<PhenotypeCluster>> clusterCache = null;
+        try {
+            CacheConfiguration config = new CacheConfiguration();
+            LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+            lru.setMaxEntries(PROFILE_CACHE_CAPACITY);
+            config.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+            profileCache = this.cacheManager.createNewLocalCache(config);
+            scoreCache = new PairCache<PairScore>();
+            clusterCache = new PairCache<List<PhenotypeCluster>>();
+        } catch (CacheException e) {
+            this.logger.warn("Unable to create caches for patient similarity data");
+        }
+        DefaultPatientSimilarityView.setCaches(profileCache, scoreCache, clusterCache);
+    }
+
     /**
      * Clear all cached patient similarity data.
      */
     public void clearCache()
     {
-        if (this.viewCache != null) {
-            this.viewCache.removeAll();
-            this.logger.info("Cleared cache.");
-        }
+        DefaultPatientSimilarityView.clearCache();
+        this.logger.info("Cleared cache.");
     }
 
     /**
@@ -410,9 +427,7 @@ public void clearCache()
      */
     public void clearPatientCache(String id)
     {
-        if (this.viewCache != null) {
-            this.viewCache.removeAssociated(id);
-            this.logger.info("Cleared patient from cache: " + id);
-        }
+        DefaultPatientSimilarityView.clearPatientCache(id);
+        this.logger.info("Cleared patient from cache: " + id);
     }
 }
@@ -0,0 +1,79 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.PatientSimilarityViewFactory;
+import org.phenotips.data.similarity.TermInformationContent;
+
+import org.xwiki.component.annotation.Component;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Provides the information content computed by the {@link DefaultPatientSimilarityViewFactory} from the frequency of
+ * phenotypes in OMIM diseases.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Component
+@Singleton
+public class DefaultTermInformationContent implements TermInformationContent
+{
+    /** Not used directly, but ensures that the ontology has been compiled before use. */
+    @Inject
+    private PatientSimilarityViewFactory viewFactory;
+
+    @Override
+    public double getInformationContent(String termId)
+    {
+        CompiledOntology ontology = DefaultPatientSimilarityView.getOntology();
+        int index = ontology == null ? -1 : ontology.getIndex(termId);
+        return index < 0 ? 0.0 : ontology.getIC(index);
+    }
+
+    @Override
+    public double getMaxInformationContent()
+    {
+        CompiledOntology ontology = DefaultPatientSimilarityView.getOntology();
+        return ontology == null ? 0.0 : ontology.getMaxIC();
+    }
+
+    @Override
+    public Map<String, Double> getInformativeAncestors(String termId, double threshold)
+    {
+        CompiledOntology ontology = DefaultPatientSimilarityView.getOntology();
+        int index = ontology == null ? -1 : ontology.getIndex(termId);
+        if (index < 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, Double> result = new HashMap<String, Double>();
+        for (int ancestor : ontology.getAncestorsAndSelf(index)) {
+            double ic = ontology.getIC(ancestor);
+            if (ic >= threshold) {
+                result.put(ontology.getTerm(ancestor).getId(), ic);
+            }
+        }
+        return result;
+    }
+}
@@ -50,6 +50,15 @@ public class ExomiserExome extends AbstractExome implements Exome
     /** Delimiter for fields in Exomiser output. */
     private static final String FIELD_DELIMITER = "\t";
 
+    /** Approximate memory used by each variant object, its annotation map and its list slots, in bytes. */
+    private static final int VARIANT_OVERHEAD = 160;
+
+    /** Approximate memory used by each annotation value and its map entry, besides the characters, in bytes. */
+    private static final int ANNOTATION_OVERHEAD = 80;
+
+    /** @see #getEstimatedSize() */
+    private long estimatedSize;
+
     /**
      * Constructor for empty {@link Exome} object.
      */
@@ -82,6 +91,7 @@ public class ExomiserExome extends AbstractExome implements Exome
 
             String[] values = line.split(FIELD_DELIMITER);
             Variant variant = parseVariant(columns, values);
+            this.estimatedSize += VARIANT_OVERHEAD + values.length * ANNOTATION_OVERHEAD + 2L * line.length();
 
             String gene = getRequiredAnnotation(variant, GENE_KEY);
             String rawGeneScore = getRequiredAnnotation(variant, GENE_SCORE_KEY);
@@ -113,6 +123,16 @@ public class ExomiserExome extends AbstractExome implements Exome
         }
     }
 
+    /**
+     * Estimate the memory used by this exome, based on the number of variants and the size of their annotations.
+     *
+     * @return an approximate size, in bytes
+     */
+    long getEstimatedSize()
+    {
+        return this.estimatedSize;
+    }
+
     /**
      * Parse a variant from an Exomiser TSV line.
      *
@@ -21,13 +21,10 @@
 import org.phenotips.data.similarity.Exome;
 import org.phenotips.data.similarity.ExomeManager;
 
-import org.xwiki.cache.Cache;
-import org.xwiki.cache.CacheException;
-import org.xwiki.cache.CacheManager;
-import org.xwiki.cache.config.CacheConfiguration;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.environment.Environment;
 
 import java.io.File;
@@ -35,6 +32,8 @@
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.Collections;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -64,16 +63,23 @@ public class ExomiserExomeManager implements ExomeManager, Initializable
     /** Suffix of patient exome files. */
     private static final String GENOTYPE_SUFFIX = ".variants.tsv.pass";
 
+    /** The configuration property holding the share of the maximum heap size that cached exomes may use. */
+    private static final String HEAP_SHARE_PROPERTY = "phenotips.similarity.exomeCache.maxHeapShare";
+
+    /** By default, cached exomes may use a tenth of the maximum heap size. */
+    private static final double DEFAULT_HEAP_SHARE = 0.1;
+
     /** Environment handle, to access exome data on filesystem. */
     @Inject
     protected Environment environment;
 
-    /** Manager to create exome caches. */
+    /** Provides the maximum share of the heap used by the exome cache. */
     @Inject
-    protected CacheManager cacheManager;
+    @Named("xwikiproperties")
+    protected ConfigurationSource configuration;
 
-    /** Cache for storing patient exomes. */
-    protected Cache<Exome> exomeCache;
+    /** Cache for storing patient exomes, bounded by their estimated memory footprint. */
+    protected WeightedCache<Exome> exomeCache;
 
     /** Directory containing exome information for all patients (e.g. Exomiser files). */
     protected File exomeDirectory;
@@ -84,11 +90,12 @@ public void initialize() throws InitializationException
         exomeDirectory = getExomeDirectory();
 
         // Set up exome cache
-        try {
-            exomeCache = cacheManager.createNewLocalCache(new CacheConfiguration());
-        } catch (CacheException e) {
-            logger.error("Unable to create patient genotype cache: " + e.toString());
+        double share = configuration.getProperty(HEAP_SHARE_PROPERTY, DEFAULT_HEAP_SHARE);
+        if (share <= 0 || share > 1) {
+            logger.warn("Invalid value for " + HEAP_SHARE_PROPERTY + ": " + share + ", using " + DEFAULT_HEAP_SHARE);
+            share = DEFAULT_HEAP_SHARE;
         }
+        exomeCache = new WeightedCache<Exome>((long) (Runtime.getRuntime().maxMemory() * share));
     }
 
     @Override
@@ -106,11 +113,12 @@ public Exome getExome(Patient patient)
 
         if (exome == null && exomeDirectory != null) {
             // Attempt to load exome from file
-            exome = loadExomeById(id);
+            ExomiserExome loaded = loadExomeById(id);
             // Cache exome
-            if (exome != null && exomeCache != null) {
-                exomeCache.set(id, exome);
+            if (loaded != null && exomeCache != null) {
+                exomeCache.set(id, loaded, loaded.getEstimatedSize());
             }
+            exome = loaded;
         }
         return exome;
     }
@@ -141,14 +149,14 @@ private File getExomeDirectory()
      * @param id the patient record identifier
      * @return the {@link ExomiserExome} for the corresponding patient
      */
-    private Exome loadExomeById(String id)
+    private ExomiserExome loadExomeById(String id)
     {
         File patientDirectory = new File(exomeDirectory, id);
         File exomeFile = new File(patientDirectory, id + GENOTYPE_SUFFIX);
         if (patientDirectory.isDirectory() && exomeFile.isFile()) {
             try {
                 Reader exomeReader = new FileReader(exomeFile);
-                Exome exome = new ExomiserExome(exomeReader);
+                ExomiserExome exome = new ExomiserExome(exomeReader);
                 logger.info("Loading genotype for " + id + " from: " + exomeFile);
                 return exome;
             } catch (FileNotFoundException e) {
@@ -160,6 +168,20 @@ private Exome loadExomeById(String id)
         return null;
     }
 
+    /**
+     * Return the statistics of the exome cache, to check if its size is appropriate.
+     *
+     * @return a map with the {@code hits}, {@code misses}, {@code evictions}, {@code size}, {@code weight} and
+     *         {@code capacity} of the cache, weights being estimated memory in bytes; an empty map if there is no cache
+     */
+    public Map<String, Long> getCacheStatistics()
+    {
+        if (exomeCache != null) {
+            return exomeCache.getStatistics();
+        }
+        return Collections.emptyMap();
+    }
+
     /**
      * Clear all cached patient exome data.
      */
@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lazily populated cache of the most informative common ancestor (MICA) of pairs of terms of a
+ * {@link CompiledOntology}, which is what best-match scorers compare terms by. Each entry packs the two term indexes
+ * and their MICA into a single {@code long}, stored in an open addressing table with a short linear probe; when all the
+ * probed slots are taken, the first one is overwritten, so the memory used never grows past the initial table. Reads
+ * and writes are atomic per slot, which makes the cache safe for concurrent use without locking; concurrent misses for
+ * the same pair just compute the same value twice.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+public class MicaCache
+{
+    /** The default maximum number of slots, 2MB worth of entries. */
+    public static final int DEFAULT_CAPACITY = 1 << 18;
+
+    /** The number of bits used for each of the packed term indexes. */
+    private static final int INDEX_BITS = 21;
+
+    /** Mask for extracting a packed term index. */
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    /** Marks used slots, so that a packed entry is never {@code 0}. */
+    private static final long USED = Long.MIN_VALUE;
+
+    /** How many consecutive slots are checked before overwriting an entry. */
+    private static final int PROBES = 4;
+
+    /** The ontology whose terms are compared. */
+    private final CompiledOntology ontology;
+
+    /** The packed entries, {@code 0} for empty slots; {@code null} if the ontology is too large to be packed. */
+    private final AtomicLongArray slots;
+
+    /** The number of bits to shift hashes by to get a slot index. */
+    private final int shift;
+
+    /**
+     * Create a cache for the given ontology.
+     *
+     * @param ontology the ontology whose terms are compared
+     * @param capacity the maximum number of cached pairs, rounded up to a power of two
+     */
+    public MicaCache(CompiledOntology ontology, int capacity)
+    {
+        this.ontology = ontology;
+        int size = Integer.highestOneBit(Math.max(PROBES, capacity - 1) << 1);
+        this.shift = Long.SIZE - Integer.numberOfTrailingZeros(size);
+        // The MICA is packed as index + 1, so that "no common ancestor" can be stored as well
+        this.slots = ontology.size() < INDEX_MASK ? new AtomicLongArray(size) : null;
+    }
+
+    /**
+     * Return the most informative common ancestor of two terms. When several shared ancestors have the same
+     * information content, the one with the lowest index is returned.
+     *
+     * @param a a valid term index
+     * @param b another valid term index
+     * @return the index of the common ancestor of the two terms with the highest information content, or {@code -1} if
+     *         they have no common ancestor
+     */
+    public int get(int a, int b)
+    {
+        if (this.slots == null) {
+            return compute(a, b);
+        }
+        long key = a < b ? ((long) a << INDEX_BITS) | b : ((long) b << INDEX_BITS) | a;
+        int mask = this.slots.length() - 1;
+        int home = (int) ((key * 0x9E3779B97F4A7C15L) >>> this.shift);
+        int free = -1;
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (home + i) & mask;
+            long entry = this.slots.get(slot);
+            if (entry == 0) {
+                free = slot;
+                break;
+            } else if ((entry & ((1L << (2 * INDEX_BITS)) - 1)) == key) {
+                return (int) ((entry >>> (2 * INDEX_BITS)) & INDEX_MASK) - 1;
+            }
+        }
+        int mica = compute(a, b);
+        long entry = USED | ((long) (mica + 1) << (2 * INDEX_BITS)) | key;
+        if (free >= 0) {
+            this.slots.compareAndSet(free, 0, entry);
+        } else {
+            this.slots.lazySet(home, entry);
+        }
+        return mica;
+    }
+
+    /**
+     * Forget all the cached pairs.
+     */
+    public void clear()
+    {
+        if (this.slots != null) {
+            for (int i = 0; i < this.slots.length(); i++) {
+                this.slots.lazySet(i, 0);
+            }
+        }
+    }
+
+    private int compute(int a, int b)
+    {
+        return this.ontology.getMostInformativeSharedTerm(this.ontology.getAncestorsAndSelf(a),
+            this.ontology.getAncestorsAndSelf(b));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Generates candidate matches with locality-sensitive hashing over weighted MinHash signatures of the patients'
+ * phenotypes, see {@link MinHashIndex}. Candidates are found in time independent of the number of patients, but
+ * some good matches may be missed. The number of bands and rows per band can be configured in
+ * {@code xwiki.properties}, with the {@code phenotips.similarity.minhash.bands} and
+ * {@code phenotips.similarity.minhash.rows} properties.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Component
+@Named("minhash")
+@Singleton
+public class MinHashCandidateGenerator extends AbstractPhenotypeIndexCandidateGenerator
+{
+    /** The configuration property setting the number of bands. */
+    private static final String BANDS_PROPERTY = "phenotips.similarity.minhash.bands";
+
+    /** The default number of bands. */
+    private static final int DEFAULT_BANDS = 32;
+
+    /** The configuration property setting the number of signature values in each band. */
+    private static final String ROWS_PROPERTY = "phenotips.similarity.minhash.rows";
+
+    /** The default number of signature values in each band. */
+    private static final int DEFAULT_ROWS = 3;
+
+    /** Seeds the hash functions; any value works, but it must stay the same for all the indexed patients. */
+    private static final long SEED = 0x5DEECE66DL;
+
+    /** Provides the number of bands and rows. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @Override
+    protected PhenotypeIndex createIndex(CompiledOntology ontology)
+    {
+        return new MinHashIndex(ontology, this.configuration.getProperty(BANDS_PROPERTY, DEFAULT_BANDS),
+            this.configuration.getProperty(ROWS_PROPERTY, DEFAULT_ROWS), SEED);
+    }
+}
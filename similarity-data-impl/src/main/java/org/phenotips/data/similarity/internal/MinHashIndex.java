@@ -0,0 +1,370 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Approximate {@link PhenotypeIndex} using locality-sensitive hashing on weighted MinHash signatures, for deployments
+ * where even walking posting lists is too costly.
+ * <p>
+ * Each term of the ontology is weighted by its information content. For each of the hash functions, every term gets
+ * an exponentially distributed priority with a rate equal to its weight, and the signature of a closure is the term
+ * with the lowest priority. Two closures then get the same value with a probability equal to their weighted Jaccard
+ * similarity, the same measure as {@link PhenotypeKernel#getScore(long[], long[])}. Signatures are split into bands
+ * of several values; patients sharing all the values of at least one band with the reference are the candidates, and
+ * they are ranked by the fraction of equal values in their signatures, an estimate of their similarity.
+ * </p>
+ * <p>
+ * More rows per band make candidates more similar but lower the recall, more bands raise the recall at the cost of
+ * more candidates. This class is thread safe: searches run concurrently, while updates are exclusive.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+public class MinHashIndex implements PhenotypeIndex
+{
+    /** Number of bits in a bitset word. */
+    private static final int WORD_BITS = 64;
+
+    /** Signature value of closures with no informative term. */
+    private static final int NO_TERM = -1;
+
+    /** Multiplier used for deriving independent hash functions, the golden ratio in fixed point. */
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    /** Scale for converting 53 random bits into a double in {@code [0, 1)}. */
+    private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+
+    /** The ontology indexed terms come from. */
+    private final CompiledOntology ontology;
+
+    /** The number of bands. */
+    private final int bands;
+
+    /** The number of signature values in each band. */
+    private final int rows;
+
+    /** Seeds the hash functions, so that signatures are reproducible. */
+    private final long seed;
+
+    /** For each band, the ordinals of the patients in each bucket, by bucket key. */
+    private final List<Map<Long, int[]>> buckets;
+
+    /** The signatures of all the patients, {@code bands * rows} values per patient, by ordinal. */
+    private int[] signatures = new int[0];
+
+    /** The identifier of each patient, by ordinal. */
+    private final List<String> ids = new ArrayList<String>();
+
+    /** The ordinal of each indexed patient, by identifier. */
+    private final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+
+    /** Ordinals of removed or replaced patients, still present in the buckets until the next compaction. */
+    private final BitSet removed = new BitSet();
+
+    /** Guards all the data. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Create an empty index.
+     *
+     * @param ontology the ontology whose terms are indexed
+     * @param bands the number of bands, at least {@code 1}
+     * @param rows the number of signature values in each band, at least {@code 1}
+     * @param seed seeds the hash functions
+     */
+    public MinHashIndex(CompiledOntology ontology, int bands, int rows, long seed)
+    {
+        this.ontology = ontology;
+        this.bands = Math.max(bands, 1);
+        this.rows = Math.max(rows, 1);
+        this.seed = seed;
+        this.buckets = new ArrayList<Map<Long, int[]>>(this.bands);
+        for (int i = 0; i < this.bands; i++) {
+            this.buckets.add(new HashMap<Long, int[]>());
+        }
+    }
+
+    @Override
+    public CompiledOntology getOntology()
+    {
+        return this.ontology;
+    }
+
+    @Override
+    public int size()
+    {
+        this.lock.readLock().lock();
+        try {
+            return this.ordinals.size();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String id, long[] closure, double totalIC)
+    {
+        int[] signature = getSignature(closure);
+        this.lock.writeLock().lock();
+        try {
+            removeOrdinal(id);
+            int ordinal = this.ids.size();
+            this.ids.add(id);
+            this.ordinals.put(id, ordinal);
+            int length = signature.length;
+            if ((ordinal + 1) * length > this.signatures.length) {
+                this.signatures = Arrays.copyOf(this.signatures, Math.max(length, this.signatures.length * 2));
+            }
+            System.arraycopy(signature, 0, this.signatures, ordinal * length, length);
+            addToBuckets(ordinal, signature, 0);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(String id)
+    {
+        this.lock.writeLock().lock();
+        try {
+            removeOrdinal(id);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Double> search(long[] closure, double totalIC, int limit, String excludedId)
+    {
+        int[] signature = getSignature(closure);
+        if (signature[0] == NO_TERM) {
+            return Collections.emptyMap();
+        }
+        this.lock.readLock().lock();
+        try {
+            Integer excluded = excludedId == null ? null : this.ordinals.get(excludedId);
+            BitSet candidates = new BitSet(this.ids.size());
+            for (int band = 0; band < this.bands; band++) {
+                int[] bucket = this.buckets.get(band).get(getBucketKey(signature, 0, band));
+                if (bucket == null) {
+                    continue;
+                }
+                for (int i = 1; i <= bucket[0]; i++) {
+                    candidates.set(bucket[i]);
+                }
+            }
+            candidates.andNot(this.removed);
+            if (excluded != null) {
+                candidates.clear(excluded);
+            }
+            return selectTop(signature, candidates, limit);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compute the weighted MinHash signature of a closure.
+     *
+     * @param closure the ancestor closure, as a bitset over the ontology
+     * @return the index of the selected term for each hash function, {@link #NO_TERM} if the closure holds no
+     *         informative term
+     */
+    int[] getSignature(long[] closure)
+    {
+        int length = this.bands * this.rows;
+        int[] signature = new int[length];
+        double[] priorities = new double[length];
+        Arrays.fill(signature, NO_TERM);
+        Arrays.fill(priorities, Double.POSITIVE_INFINITY);
+        for (int i = 0; i < closure.length; i++) {
+            long word = closure[i];
+            while (word != 0) {
+                int term = i * WORD_BITS + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                double ic = term < this.ontology.size() ? this.ontology.getIC(term) : 0;
+                if (ic <= 0) {
+                    continue;
+                }
+                for (int h = 0; h < length; h++) {
+                    // Exponentially distributed with rate ic, so heavier terms tend to have lower priorities
+                    double priority = -Math.log(getUniform(h, term)) / ic;
+                    if (priority < priorities[h]) {
+                        priorities[h] = priority;
+                        signature[h] = term;
+                    }
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Deterministic pseudo-random number for a hash function and a term, using the SplitMix64 finalizer.
+     *
+     * @param hash the index of the hash function
+     * @param term the index of the term
+     * @return a number in {@code (0, 1)}
+     */
+    private double getUniform(int hash, int term)
+    {
+        long z = this.seed + (((long) hash << 32) | term) * GOLDEN_GAMMA;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return ((z >>> 11) + 0.5) * DOUBLE_UNIT;
+    }
+
+    private long getBucketKey(int[] signature, int offset, int band)
+    {
+        long key = band;
+        for (int i = band * this.rows; i < (band + 1) * this.rows; i++) {
+            key = key * 31 + signature[offset + i];
+        }
+        return key;
+    }
+
+    private void addToBuckets(int ordinal, int[] signature, int offset)
+    {
+        if (signature[offset] == NO_TERM) {
+            // Nothing in common with any other closure
+            return;
+        }
+        for (int band = 0; band < this.bands; band++) {
+            Map<Long, int[]> bandBuckets = this.buckets.get(band);
+            Long key = getBucketKey(signature, offset, band);
+            // The first element of a bucket holds its size
+            int[] bucket = bandBuckets.get(key);
+            if (bucket == null) {
+                bucket = new int[4];
+                bandBuckets.put(key, bucket);
+            } else if (bucket[0] + 1 == bucket.length) {
+                bucket = Arrays.copyOf(bucket, bucket.length * 2);
+                bandBuckets.put(key, bucket);
+            }
+            bucket[++bucket[0]] = ordinal;
+        }
+    }
+
+    private Map<String, Double> selectTop(int[] signature, BitSet candidates, int limit)
+    {
+        int count = candidates.cardinality();
+        int keep = limit > 0 ? Math.min(limit, count) : count;
+        if (keep == 0) {
+            return Collections.emptyMap();
+        }
+        int length = signature.length;
+        // Min-heap of the best candidates seen so far, the worst of them on top
+        PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(keep);
+        for (int ordinal = candidates.nextSetBit(0); ordinal >= 0; ordinal = candidates.nextSetBit(ordinal + 1)) {
+            int equal = 0;
+            int offset = ordinal * length;
+            for (int h = 0; h < length; h++) {
+                if (this.signatures[offset + h] == signature[h]) {
+                    ++equal;
+                }
+            }
+            double estimate = (double) equal / length;
+            if (best.size() < keep) {
+                best.add(new Candidate(ordinal, estimate));
+            } else if (estimate > best.peek().score) {
+                best.poll();
+                best.add(new Candidate(ordinal, estimate));
+            }
+        }
+
+        List<Candidate> sorted = new ArrayList<Candidate>(best);
+        Collections.sort(sorted, Collections.reverseOrder());
+        Map<String, Double> results = new LinkedHashMap<String, Double>();
+        for (Candidate candidate : sorted) {
+            results.put(this.ids.get(candidate.ordinal), candidate.score);
+        }
+        return results;
+    }
+
+    private void removeOrdinal(String id)
+    {
+        Integer ordinal = this.ordinals.remove(id);
+        if (ordinal == null) {
+            return;
+        }
+        this.removed.set(ordinal);
+        if (this.removed.cardinality() > this.ordinals.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Drop the removed patients, renumbering the remaining patients and rebuilding the buckets from their signatures.
+     */
+    private void compact()
+    {
+        int length = this.bands * this.rows;
+        int live = 0;
+        for (Map<Long, int[]> bandBuckets : this.buckets) {
+            bandBuckets.clear();
+        }
+        for (int i = 0; i < this.ids.size(); i++) {
+            if (!this.removed.get(i)) {
+                this.ids.set(live, this.ids.get(i));
+                this.ordinals.put(this.ids.get(live), live);
+                System.arraycopy(this.signatures, i * length, this.signatures, live * length, length);
+                addToBuckets(live, this.signatures, live * length);
+                ++live;
+            }
+        }
+        this.ids.subList(live, this.ids.size()).clear();
+        this.removed.clear();
+    }
+
+    /** A candidate with its estimated score, ordered by score, then by ordinal so that results are deterministic. */
+    private static final class Candidate implements Comparable<Candidate>
+    {
+        /** The ordinal of the patient. */
+        private final int ordinal;
+
+        /** The estimated similarity score. */
+        private final double score;
+
+        Candidate(int ordinal, double score)
+        {
+            this.ordinal = ordinal;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Candidate other)
+        {
+            int result = Double.compare(this.score, other.score);
+            return result != 0 ? result : Integer.compare(other.ordinal, this.ordinal);
+        }
+    }
+}
@@ -23,42 +23,71 @@
 import org.xwiki.cache.CacheException;
 import org.xwiki.cache.CacheManager;
 import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.event.CacheEntryEvent;
+import org.xwiki.cache.event.CacheEntryListener;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
 
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
- * Wrapper over an xwiki cache to better handle keys corresponding to pairs of entities.
+ * Wrapper over an xwiki cache to better handle keys corresponding to pairs of entities. The cache is bounded, evicting
+ * the least recently used entries, and safe for concurrent use. Since entries can be shared between concurrent
+ * requests, cached values should be immutable.
  *
  * @version $Id$
- * @param <T>
+ * @param <T> the type of the cached values
  * @since 1.0M2
  */
-public class PairCache<T>
+public class PairCache<T> implements CacheEntryListener<T>
 {
+    /** The default maximum number of entries in the cache. */
+    public static final int DEFAULT_CAPACITY = 10000;
+
     /** The cache being wrapped. */
     private Cache<T> cache;
 
     /** Keys of all cache entries involving one of the IDs. */
-    private Map<String, Collection<String>> idEntries;
+    private ConcurrentMap<String, Set<String>> idEntries;
+
+    /** The pair of IDs associated with each cache entry, for cleaning up {@link #idEntries} on eviction. */
+    private ConcurrentMap<String, String[]> entryIds;
 
     /**
-     * Create a cache that associates a pair of IDs with each cache entry.
+     * Create a cache that associates a pair of IDs with each cache entry, holding at most {@link #DEFAULT_CAPACITY}
+     * entries.
      *
      * @throws CacheException if the cache cannot be created.
      */
     public PairCache() throws CacheException
     {
-        this.idEntries = new HashMap<String, Collection<String>>();
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a cache that associates a pair of IDs with each cache entry.
+     *
+     * @param capacity the maximum number of entries to hold; the least recently used entries are evicted first
+     * @throws CacheException if the cache cannot be created.
+     */
+    public PairCache(int capacity) throws CacheException
+    {
+        this.idEntries = new ConcurrentHashMap<String, Set<String>>();
+        this.entryIds = new ConcurrentHashMap<String, String[]>();
 
         try {
             ComponentManager componentManager = ComponentManagerRegistry.getContextComponentManager();
             CacheManager cacheManager = componentManager.getInstance(CacheManager.class);
-            this.cache = cacheManager.createNewLocalCache(new CacheConfiguration());
+            CacheConfiguration config = new CacheConfiguration();
+            LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+            lru.setMaxEntries(capacity);
+            config.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+            this.cache = cacheManager.createNewLocalCache(config);
         } catch (ComponentLookupException e) {
             this.cache = null;
         }
@@ -66,6 +95,7 @@ public PairCache() throws CacheException
         if (this.cache == null) {
             throw new CacheException("Error getting local cache factory");
         }
+        this.cache.addCacheEntryListener(this);
     }
 
     /**
@@ -76,14 +106,35 @@ public PairCache() throws CacheException
      */
     private void associateWithCacheKey(String id, String cacheKey)
     {
-        Collection<String> associatedKeys = this.idEntries.get(id);
+        Set<String> associatedKeys = this.idEntries.get(id);
         if (associatedKeys == null) {
-            associatedKeys = new HashSet<String>();
-            this.idEntries.put(id, associatedKeys);
+            Set<String> newKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            associatedKeys = this.idEntries.putIfAbsent(id, newKeys);
+            if (associatedKeys == null) {
+                associatedKeys = newKeys;
+            }
         }
         associatedKeys.add(cacheKey);
     }
 
+    /**
+     * Remove the cacheKey from the collection of cache keys associated with the given ID.
+     *
+     * @param id the ID associated with the cache key.
+     * @param cacheKey the cache key to dissociate.
+     */
+    private void dissociateFromCacheKey(String id, String cacheKey)
+    {
+        Set<String> associatedKeys = this.idEntries.get(id);
+        if (associatedKeys != null) {
+            associatedKeys.remove(cacheKey);
+            // Drop the empty set, unless a concurrent association just reused it
+            if (associatedKeys.isEmpty()) {
+                this.idEntries.remove(id, associatedKeys);
+            }
+        }
+    }
+
     /**
      * Store the cacheKey and corresponding value in the cache, and associate this entry with the pair of id strings.
      *
@@ -94,11 +145,12 @@ private void associateWithCacheKey(String id, String cacheKey)
      */
     public void set(String id1, String id2, String cacheKey, T value)
     {
-        this.cache.set(cacheKey, value);
-
         // Associate each key with the cacheKey
+        this.entryIds.put(cacheKey, new String[] { id1, id2 });
         associateWithCacheKey(id1, cacheKey);
         associateWithCacheKey(id2, cacheKey);
+
+        this.cache.set(cacheKey, value);
     }
 
     /**
@@ -135,5 +187,31 @@ public void removeAll()
     {
         this.cache.removeAll();
         this.idEntries.clear();
+        this.entryIds.clear();
+    }
+
+    @Override
+    public void cacheEntryAdded(CacheEntryEvent<T> event)
+    {
+        // Entries are associated with their IDs before being added
+    }
+
+    @Override
+    public void cacheEntryRemoved(CacheEntryEvent<T> event)
+    {
+        // Called both for explicit removals and for evictions
+        String cacheKey = event.getEntry().getKey();
+        String[] ids = this.entryIds.remove(cacheKey);
+        if (ids != null) {
+            for (String id : ids) {
+                dissociateFromCacheKey(id, cacheKey);
+            }
+        }
+    }
+
+    @Override
+    public void cacheEntryModified(CacheEntryEvent<T> event)
+    {
+        // The IDs associated with a key don't change
     }
 }
@@ -0,0 +1,105 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+/**
+ * The score of a pair of patients, along with the partial scores it was computed from. Immutable, so that it can be
+ * shared between threads and cached.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+public class PairScore
+{
+    /** The phenotypic similarity score. */
+    private final double phenotypeScore;
+
+    /** The phenotypic score, boosted by matching disorders. */
+    private final double disorderScore;
+
+    /** The boost given by shared candidate genes. */
+    private final double geneBoost;
+
+    /** The final score. */
+    private final double score;
+
+    /**
+     * Simple constructor.
+     *
+     * @param phenotypeScore the phenotypic similarity score, between {@code 0} and {@code 1}
+     * @param disorderScore the phenotypic score adjusted for matching disorders, between {@code 0} and {@code 1}
+     * @param geneBoost the boost given by shared candidate genes, between {@code 0} (no boost) and {@code 1}
+     * @param score the final score, between {@code 0} and {@code 1}
+     */
+    public PairScore(double phenotypeScore, double disorderScore, double geneBoost, double score)
+    {
+        this.phenotypeScore = phenotypeScore;
+        this.disorderScore = disorderScore;
+        this.geneBoost = geneBoost;
+        this.score = score;
+    }
+
+    /**
+     * Return the phenotypic similarity score, computed from the features of the two patients.
+     *
+     * @return a score between {@code 0} (a poor match) and {@code 1} (a good match)
+     */
+    public double getPhenotypeScore()
+    {
+        return this.phenotypeScore;
+    }
+
+    /**
+     * Return the phenotypic score, adjusted for the disorders common to both patients.
+     *
+     * @return a score between {@code 0} and {@code 1}, never lower than the {@link #getPhenotypeScore() phenotype
+     *         score}
+     */
+    public double getDisorderScore()
+    {
+        return this.disorderScore;
+    }
+
+    /**
+     * Return the boost given to the score by the candidate genes common to both patients. The final score is the
+     * {@link #getDisorderScore() disorder-adjusted score} raised to the power of {@code 1 - boost}.
+     *
+     * @return the gene boost, {@code 0} if the patients have no candidate genes in common
+     */
+    public double getGeneBoost()
+    {
+        return this.geneBoost;
+    }
+
+    /**
+     * Return the final score of the pair of patients.
+     *
+     * @return a score between {@code 0} (a poor match) and {@code 1} (a good match)
+     */
+    public double getScore()
+    {
+        return this.score;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%.4f (phenotype: %.4f, with disorders: %.4f, gene boost: %.2f)", this.score,
+            this.phenotypeScore, this.disorderScore, this.geneBoost);
+    }
+}
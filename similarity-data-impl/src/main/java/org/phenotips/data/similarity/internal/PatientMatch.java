@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+import org.hibernate.annotations.Index;
+
+/**
+ * Stores one precomputed match of a reference patient, as maintained by the {@link DefaultPatientMatchIndex patient
+ * match index}. Patients are identified by the name of their document.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Entity
+@Table(uniqueConstraints = { @UniqueConstraint(columnNames = { "referencePatient", "matchedPatient" }) })
+public class PatientMatch
+{
+    /** @see #getId() */
+    @Id
+    @GeneratedValue
+    private long id;
+
+    /** @see #getReferencePatient() */
+    @Index(name = "patientMatchReferenceIndex")
+    private String referencePatient;
+
+    /** @see #getMatchedPatient() */
+    @Index(name = "patientMatchMatchedIndex")
+    private String matchedPatient;
+
+    /** @see #getScore() */
+    private double score;
+
+    /** Default constructor used by Hibernate. */
+    public PatientMatch()
+    {
+        // Nothing to do, Hibernate will populate all the fields from the database
+    }
+
+    /**
+     * Constructor passing all the data.
+     *
+     * @param referencePatient the identifier of the reference patient
+     * @param matchedPatient the identifier of the matched patient
+     * @param score the similarity score of the two patients
+     */
+    public PatientMatch(String referencePatient, String matchedPatient, double score)
+    {
+        this.referencePatient = referencePatient;
+        this.matchedPatient = matchedPatient;
+        this.score = score;
+    }
+
+    /**
+     * The identifier of this match, as generated by the database.
+     *
+     * @return a numerical identifier
+     */
+    public Long getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * The patient whose matches are stored.
+     *
+     * @return the name of the reference patient document
+     */
+    public String getReferencePatient()
+    {
+        return this.referencePatient;
+    }
+
+    /**
+     * The patient matching the reference patient.
+     *
+     * @return the name of the matched patient document
+     */
+    public String getMatchedPatient()
+    {
+        return this.matchedPatient;
+    }
+
+    /**
+     * The similarity score of the two patients, as computed when the match was stored.
+     *
+     * @return a score between {@code 0} and {@code 1}
+     */
+    public double getScore()
+    {
+        return this.score;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.similarity.PatientMatchIndex;
+
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.ApplicationStartedEvent;
+import org.xwiki.observation.event.Event;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
+
+/**
+ * Keeps the {@link PatientMatchIndex patient match index} up to date: registers the {@link PatientMatch match entity}
+ * in the Hibernate configuration at startup, and schedules the update of the matches of a patient whenever the
+ * patient is created, modified or deleted.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Component
+@Named("patient-match-index-updater")
+@Singleton
+public class PatientMatchIndexUpdater implements EventListener
+{
+    /** The space where patient records are stored. */
+    private static final String PATIENTS_SPACE = "data";
+
+    /** The Hibernate session factory where the entity must be registered. */
+    @Inject
+    private HibernateSessionFactory sessionFactory;
+
+    /** Provides access to patient data. */
+    @Inject
+    private PatientRepository patients;
+
+    /** The index to update, lazily obtained since it can't be used before the entity is registered. */
+    @Inject
+    private Provider<PatientMatchIndex> index;
+
+    @Override
+    public String getName()
+    {
+        return "patient-match-index-updater";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new ApplicationStartedEvent(), new DocumentCreatedEvent(),
+            new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (event instanceof ApplicationStartedEvent) {
+            this.sessionFactory.getConfiguration().addAnnotatedClass(PatientMatch.class);
+            return;
+        }
+        if (!(source instanceof DocumentModelBridge)) {
+            return;
+        }
+        DocumentReference reference = ((DocumentModelBridge) source).getDocumentReference();
+        if (reference == null || !PATIENTS_SPACE.equals(reference.getLastSpaceReference().getName())) {
+            return;
+        }
+        if (event instanceof DocumentDeletedEvent) {
+            this.index.get().remove(reference.getName());
+            return;
+        }
+        Patient patient = this.patients.getPatientById(reference.getName());
+        if (patient != null) {
+            this.index.get().update(patient);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * A group of related terms from a pair of patients, sharing a common ancestor. Unlike {@link DefaultFeatureClusterView}
+ * this only holds the matched vocabulary terms and not the patients' features, so it doesn't depend on the access the
+ * current user has on the patients and can be cached and shared between users; access-controlled views are built from
+ * it when displaying the match.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+public class PhenotypeCluster
+{
+    /** The terms from the matched patient. */
+    private final Collection<VocabularyTerm> matchTerms;
+
+    /** The terms from the reference patient. */
+    private final Collection<VocabularyTerm> referenceTerms;
+
+    /** The shared ancestor, {@code null} for the cluster of unmatched terms. */
+    private final VocabularyTerm root;
+
+    /** The score of the shared ancestor. */
+    private final double score;
+
+    /**
+     * Simple constructor.
+     *
+     * @param matchTerms the terms from the matched patient
+     * @param referenceTerms the terms from the reference patient
+     * @param root the shared ancestor of the terms, or {@code null} if the terms are not related
+     * @param score the score of the shared ancestor
+     */
+    public PhenotypeCluster(Collection<VocabularyTerm> matchTerms, Collection<VocabularyTerm> referenceTerms,
+        VocabularyTerm root, double score)
+    {
+        this.matchTerms = Collections.unmodifiableCollection(matchTerms);
+        this.referenceTerms = Collections.unmodifiableCollection(referenceTerms);
+        this.root = root;
+        this.score = score;
+    }
+
+    /**
+     * Return the terms from the matched patient.
+     *
+     * @return an unmodifiable collection of terms
+     */
+    public Collection<VocabularyTerm> getMatchTerms()
+    {
+        return this.matchTerms;
+    }
+
+    /**
+     * Return the terms from the reference patient.
+     *
+     * @return an unmodifiable collection of terms
+     */
+    public Collection<VocabularyTerm> getReferenceTerms()
+    {
+        return this.referenceTerms;
+    }
+
+    /**
+     * Return the shared ancestor of the terms.
+     *
+     * @return the shared ancestor, or {@code null} if the terms are not related
+     */
+    public VocabularyTerm getRoot()
+    {
+        return this.root;
+    }
+
+    /**
+     * Return the score of the shared ancestor.
+     *
+     * @return the normalized information content of the shared ancestor, {@code 0} for unrelated terms
+     */
+    public double getScore()
+    {
+        return this.score;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups the terms of two phenotypes into clusters of related terms. The shared ancestor with the highest information
+ * content is repeatedly selected, and all the remaining terms under it form a cluster, until the best shared ancestor
+ * is one of the stop terms (usually the roots of the ontology). Instead of recomputing the shared ancestors of the
+ * remaining terms for each cluster, the ancestors are collected once, along with the terms under each of them and the
+ * number of remaining terms from each phenotype under them, and then visited in decreasing order of information
+ * content. Since information content doesn't change, the queue is only sorted once; consuming terms updates the
+ * counts, and ancestors no longer shared by the remaining terms are skipped when they come up.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+public class PhenotypeClusterer
+{
+    /** The compiled ontology providing information content and the terms behind indexes. */
+    private final CompiledOntology ontology;
+
+    /** Identifiers of the ancestors which are too general to form a cluster. */
+    private final Set<String> stopTerms;
+
+    /**
+     * Simple constructor.
+     *
+     * @param ontology the compiled ontology the term ancestors refer to
+     * @param stopTerms identifiers of the ancestors which are too general to form a cluster; once one of them is the
+     *            best shared ancestor, the remaining terms are reported as unmatched
+     */
+    public PhenotypeClusterer(CompiledOntology ontology, Collection<String> stopTerms)
+    {
+        this.ontology = ontology;
+        this.stopTerms = new HashSet<String>(stopTerms);
+    }
+
+    /**
+     * Group the terms of the two phenotypes into clusters of related terms.
+     *
+     * @param matchTerms the terms of the matched patient
+     * @param refTerms the terms of the reference patient
+     * @param termAncestors the ancestors of each of the terms, including the term itself, as sorted ontology indexes
+     * @return the clusters, by decreasing score, with the unmatched terms (if any) grouped in a last cluster without a
+     *         shared ancestor
+     */
+    public List<PhenotypeCluster> cluster(Collection<VocabularyTerm> matchTerms, Collection<VocabularyTerm> refTerms,
+        Map<VocabularyTerm, int[]> termAncestors)
+    {
+        // Match terms come first, followed by reference terms
+        int matchCount = matchTerms.size();
+        VocabularyTerm[] terms = new VocabularyTerm[matchCount + refTerms.size()];
+        int t = 0;
+        for (VocabularyTerm term : matchTerms) {
+            terms[t++] = term;
+        }
+        for (VocabularyTerm term : refTerms) {
+            terms[t++] = term;
+        }
+
+        // Collect all the ancestors, and renumber them densely
+        List<int[]> ancestorLists = new ArrayList<int[]>(terms.length);
+        for (VocabularyTerm term : terms) {
+            ancestorLists.add(termAncestors.get(term));
+        }
+        final int[] ancestors = CompiledOntology.union(ancestorLists);
+        int[][] localAncestors = new int[terms.length][];
+        int[] termsUnder = new int[ancestors.length + 1];
+        int[] matchUnder = new int[ancestors.length];
+        int[] refUnder = new int[ancestors.length];
+        for (t = 0; t < terms.length; t++) {
+            int[] global = ancestorLists.get(t);
+            int[] local = new int[global.length];
+            for (int i = 0; i < global.length; i++) {
+                local[i] = Arrays.binarySearch(ancestors, global[i]);
+                termsUnder[local[i] + 1]++;
+                if (t < matchCount) {
+                    matchUnder[local[i]]++;
+                } else {
+                    refUnder[local[i]]++;
+                }
+            }
+            localAncestors[t] = local;
+        }
+
+        // The terms under each ancestor, as consecutive ranges in a single array
+        for (int a = 0; a < ancestors.length; a++) {
+            termsUnder[a + 1] += termsUnder[a];
+        }
+        int[] descendants = new int[termsUnder[ancestors.length]];
+        int[] filled = Arrays.copyOf(termsUnder, ancestors.length);
+        for (t = 0; t < terms.length; t++) {
+            for (int a : localAncestors[t]) {
+                descendants[filled[a]++] = t;
+            }
+        }
+
+        // Visit the shared ancestors by decreasing information content, lowest index first in case of ties
+        List<Integer> queue = new ArrayList<Integer>();
+        for (int a = 0; a < ancestors.length; a++) {
+            if (matchUnder[a] > 0 && refUnder[a] > 0) {
+                queue.add(a);
+            }
+        }
+        Collections.sort(queue, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+                int result = Double.compare(PhenotypeClusterer.this.ontology.getIC(ancestors[b]),
+                    PhenotypeClusterer.this.ontology.getIC(ancestors[a]));
+                return result != 0 ? result : Integer.compare(a, b);
+            }
+        });
+
+        List<PhenotypeCluster> clusters = new ArrayList<PhenotypeCluster>();
+        boolean[] consumed = new boolean[terms.length];
+        double maxIC = this.ontology.getMaxIC();
+        for (int a : queue) {
+            if (matchUnder[a] == 0 || refUnder[a] == 0) {
+                // No longer shared by the remaining terms
+                continue;
+            }
+            VocabularyTerm ancestor = this.ontology.getTerm(ancestors[a]);
+            if (this.stopTerms.contains(ancestor.getId())) {
+                break;
+            }
+            Collection<VocabularyTerm> matchMatched = new HashSet<VocabularyTerm>();
+            Collection<VocabularyTerm> refMatched = new HashSet<VocabularyTerm>();
+            for (int i = termsUnder[a]; i < termsUnder[a + 1]; i++) {
+                int term = descendants[i];
+                if (consumed[term]) {
+                    continue;
+                }
+                consumed[term] = true;
+                if (term < matchCount) {
+                    matchMatched.add(terms[term]);
+                    decrement(matchUnder, localAncestors[term]);
+                } else {
+                    refMatched.add(terms[term]);
+                    decrement(refUnder, localAncestors[term]);
+                }
+            }
+            double score = maxIC > 0 ? this.ontology.getIC(ancestors[a]) / maxIC : 0.0;
+            clusters.add(new PhenotypeCluster(matchMatched, refMatched, ancestor, score));
+        }
+
+        // Add any unmatched terms
+        Collection<VocabularyTerm> matchUnmatched = new HashSet<VocabularyTerm>();
+        Collection<VocabularyTerm> refUnmatched = new HashSet<VocabularyTerm>();
+        for (t = 0; t < terms.length; t++) {
+            if (!consumed[t] && t < matchCount) {
+                matchUnmatched.add(terms[t]);
+            } else if (!consumed[t]) {
+                refUnmatched.add(terms[t]);
+            }
+        }
+        if (!matchUnmatched.isEmpty() || !refUnmatched.isEmpty()) {
+            clusters.add(new PhenotypeCluster(matchUnmatched, refUnmatched, null, 0.0));
+        }
+        return Collections.unmodifiableList(clusters);
+    }
+
+    private static void decrement(int[] counts, int[] indexes)
+    {
+        for (int index : indexes) {
+            counts[index]--;
+        }
+    }
+}
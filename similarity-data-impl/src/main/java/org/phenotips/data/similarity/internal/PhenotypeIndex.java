@@ -0,0 +1,74 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.util.Map;
+
+/**
+ * In-memory index of the phenotypes of many patients, searchable by phenotype similarity. Phenotypes are given as
+ * ancestor closures over a {@link CompiledOntology}, as computed by {@link PhenotypeProfile}. Implementations must be
+ * thread safe.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+public interface PhenotypeIndex
+{
+    /**
+     * Return the ontology whose terms are indexed.
+     *
+     * @return the compiled ontology
+     */
+    CompiledOntology getOntology();
+
+    /**
+     * Return the number of indexed patients.
+     *
+     * @return the number of patients
+     */
+    int size();
+
+    /**
+     * Add a patient to the index, replacing any previously indexed phenotype of the same patient.
+     *
+     * @param id the identifier of the patient
+     * @param closure the ancestor closure of the patient's phenotype, as a bitset over the ontology
+     * @param totalIC the total information content of the closure
+     */
+    void put(String id, long[] closure, double totalIC);
+
+    /**
+     * Remove a patient from the index.
+     *
+     * @param id the identifier of the patient
+     */
+    void remove(String id);
+
+    /**
+     * Find the indexed patients most similar to a reference phenotype.
+     *
+     * @param closure the ancestor closure of the reference phenotype, as a bitset over the ontology
+     * @param totalIC the total information content of the reference closure
+     * @param limit the maximum number of patients to return, all the patients found if not positive
+     * @param excludedId the identifier of a patient to leave out of the results, usually the reference patient, may be
+     *            {@code null}
+     * @return the identifiers of the most similar patients with a positive score, with their (possibly estimated)
+     *         scores, in decreasing order of score
+     */
+    Map<String, Double> search(long[] closure, double totalIC, int limit, String excludedId);
+}
@@ -0,0 +1,115 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.similarity.PatientCandidateGenerator;
+
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+/**
+ * Keeps the indexes of all the {@link PatientCandidateGenerator candidate generators} up to date whenever a patient is
+ * created, modified or deleted.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Component
+@Named("phenotype-index-updater")
+@Singleton
+public class PhenotypeIndexUpdater implements EventListener
+{
+    /** The space where patient records are stored. */
+    private static final String PATIENTS_SPACE = "data";
+
+    /** Provides access to patient data. */
+    @Inject
+    private PatientRepository patients;
+
+    /** Looks up the candidate generators to update. */
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> componentManager;
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    @Override
+    public String getName()
+    {
+        return "phenotype-index-updater";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(),
+            new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (!(source instanceof DocumentModelBridge)) {
+            return;
+        }
+        DocumentReference reference = ((DocumentModelBridge) source).getDocumentReference();
+        if (reference == null || !PATIENTS_SPACE.equals(reference.getLastSpaceReference().getName())) {
+            return;
+        }
+        Collection<PatientCandidateGenerator> generators;
+        try {
+            generators = this.componentManager.get()
+                .<PatientCandidateGenerator>getInstanceMap(PatientCandidateGenerator.class).values();
+        } catch (ComponentLookupException ex) {
+            this.logger.warn("Failed to look up the candidate generators: {}", ex.getMessage());
+            return;
+        }
+        Patient patient = event instanceof DocumentDeletedEvent ? null
+            : this.patients.getPatientById(reference.getName());
+        for (PatientCandidateGenerator generator : generators) {
+            if (patient == null) {
+                generator.remove(reference.getName());
+            } else {
+                generator.update(patient);
+            }
+        }
+    }
+}
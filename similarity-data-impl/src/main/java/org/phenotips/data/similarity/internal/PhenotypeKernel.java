@@ -0,0 +1,176 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+/**
+ * Phenotype similarity kernel working on ancestor closures represented as bitsets over a {@link CompiledOntology}: bit
+ * {@code i} of the closure is set if the term with index {@code i} is implied by the patient's phenotype. The
+ * similarity of two closures is the information content of their intersection divided by the information content of
+ * their union.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+public class PhenotypeKernel
+{
+    /** Number of bits in a bitset word. */
+    private static final int WORD_BITS = 64;
+
+    /** Shift for converting a bit index into a word index. */
+    private static final int WORD_SHIFT = 6;
+
+    /** The ontology providing the information content of each bit. */
+    private final CompiledOntology ontology;
+
+    /** Number of words needed to represent a closure. */
+    private final int words;
+
+    /**
+     * Create a kernel for closures over the given ontology.
+     *
+     * @param ontology the compiled ontology, must not be {@code null}
+     */
+    public PhenotypeKernel(CompiledOntology ontology)
+    {
+        this.ontology = ontology;
+        this.words = (ontology.size() + WORD_BITS - 1) >>> WORD_SHIFT;
+    }
+
+    /**
+     * Convert an ancestor closure to its bitset representation.
+     *
+     * @param indexes the ontology indexes of the terms in the closure
+     * @return a bitset with the bits of all the terms set
+     */
+    public long[] toBitSet(int[] indexes)
+    {
+        long[] bits = new long[this.words];
+        for (int index : indexes) {
+            bits[index >>> WORD_SHIFT] |= 1L << index;
+        }
+        return bits;
+    }
+
+    /**
+     * Check whether a closure is empty.
+     *
+     * @param bits a closure bitset
+     * @return {@code true} if no bit is set
+     */
+    public static boolean isEmpty(long[] bits)
+    {
+        for (long word : bits) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the total information content of the terms in a closure.
+     *
+     * @param bits a closure bitset
+     * @return the sum of the information content of all set bits
+     */
+    public double getTotalIC(long[] bits)
+    {
+        double total = 0.0;
+        for (int i = 0; i < bits.length; i++) {
+            total += getWordIC(bits[i], i);
+        }
+        return total;
+    }
+
+    /**
+     * Return the total information content of the terms present in both closures.
+     *
+     * @param a a closure bitset
+     * @param b another closure bitset
+     * @return the sum of the information content of the bits set in both closures
+     */
+    public double getSharedIC(long[] a, long[] b)
+    {
+        double total = 0.0;
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            total += getWordIC(a[i] & b[i], i);
+        }
+        return total;
+    }
+
+    /**
+     * Return the total information content of the terms present in at least one of the closures.
+     *
+     * @param a a closure bitset
+     * @param b another closure bitset
+     * @return the sum of the information content of the bits set in either closure
+     */
+    public double getUnionIC(long[] a, long[] b)
+    {
+        double total = 0.0;
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            total += getWordIC(a[i] | b[i], i);
+        }
+        return total;
+    }
+
+    /**
+     * Score two closures as the information content of their intersection over the information content of their union.
+     *
+     * @param a a closure bitset
+     * @param b another closure bitset
+     * @return a similarity score between {@code 0} and {@code 1}, {@code 0} if either closure carries no information
+     */
+    public double getScore(long[] a, long[] b)
+    {
+        double union = getUnionIC(a, b);
+        return union > 0 ? getSharedIC(a, b) / union : 0.0;
+    }
+
+    /**
+     * Score two closures whose total information content is already known. The union is not computed, since its
+     * information content is the sum of the two totals minus the information content of the intersection.
+     *
+     * @param a a closure bitset
+     * @param aIC the total information content of {@code a}, as returned by {@link #getTotalIC(long[])}
+     * @param b another closure bitset
+     * @param bIC the total information content of {@code b}
+     * @return a similarity score between {@code 0} and {@code 1}, {@code 0} if either closure carries no information
+     */
+    public double getScore(long[] a, double aIC, long[] b, double bIC)
+    {
+        double shared = getSharedIC(a, b);
+        double union = aIC + bIC - shared;
+        return union > 0 ? shared / union : 0.0;
+    }
+
+    private double getWordIC(long word, int wordIndex)
+    {
+        double total = 0.0;
+        int base = wordIndex << WORD_SHIFT;
+        long remaining = word;
+        while (remaining != 0) {
+            total += this.ontology.getIC(base + Long.numberOfTrailingZeros(remaining));
+            // Clear the lowest set bit
+            remaining &= remaining - 1;
+        }
+        return total;
+    }
+}
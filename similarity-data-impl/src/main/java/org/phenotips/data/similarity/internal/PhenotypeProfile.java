@@ -0,0 +1,177 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.Feature;
+import org.phenotips.data.FeatureMetadatum;
+import org.phenotips.data.Patient;
+import org.phenotips.vocabulary.VocabularyManager;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The parts of a patient's phenotype needed for scoring and clustering, resolved against a {@link CompiledOntology}
+ * once per patient instead of once per compared pair: the identifiers of the resolved present terms, the ancestors of
+ * each term, and the ancestor closure of the whole phenotype (as a {@link PhenotypeKernel} bitset) with its total
+ * information content. Profiles are immutable and don't reference the patient's data, so that they can be cached
+ * independently of the patient; a profile built for an older version of a patient is recognized by its
+ * {@link #getFingerprint() fingerprint}.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+public class PhenotypeProfile
+{
+    /** Identifies the feature data this profile was computed from. */
+    private final String fingerprint;
+
+    /** The identifiers of the resolved present terms. */
+    private final Set<String> termIds;
+
+    /** The ancestors of each of the present terms, including the term itself, as sorted ontology indexes. */
+    private final Map<String, int[]> termAncestors;
+
+    /** The ancestor closure of all the present terms, as a bitset over the ontology. */
+    private final long[] closure;
+
+    /** The total information content of the closure. */
+    private final double totalIC;
+
+    /**
+     * Compute the phenotype profile of a patient.
+     *
+     * @param patient the patient to profile, must not be {@code null}
+     * @param vocabularyManager used for resolving the patient's features into vocabulary terms
+     * @param ontology the compiled ontology providing term ancestors
+     * @param kernel the kernel used for building and measuring the closure
+     */
+    public PhenotypeProfile(Patient patient, VocabularyManager vocabularyManager, CompiledOntology ontology,
+        PhenotypeKernel kernel)
+    {
+        this.fingerprint = getFingerprint(patient);
+
+        Map<String, int[]> ancestors = new HashMap<String, int[]>();
+        for (Feature feature : patient.getFeatures()) {
+            if (!feature.isPresent()) {
+                continue;
+            }
+
+            VocabularyTerm term = vocabularyManager.resolveTerm(feature.getId());
+            if (term != null && term.getId() != null) {
+                // Only add resolvable terms
+                ancestors.put(term.getId(), ontology.getAncestorsAndSelf(term));
+            }
+        }
+        this.termIds = Collections.unmodifiableSet(ancestors.keySet());
+        this.termAncestors = Collections.unmodifiableMap(ancestors);
+        this.closure = kernel.toBitSet(CompiledOntology.union(ancestors.values()));
+        this.totalIC = kernel.getTotalIC(this.closure);
+    }
+
+    /**
+     * Compute a fingerprint of the phenotypic data of a patient, which changes whenever the profile of the patient
+     * would change. The patient API doesn't expose the document version, so the fingerprint is computed from the
+     * features themselves: their identifiers, status, notes and metadata.
+     *
+     * @param patient the patient to fingerprint, must not be {@code null}
+     * @return a string identifying the current feature data of the patient
+     */
+    public static String getFingerprint(Patient patient)
+    {
+        List<String> entries = new ArrayList<String>();
+        for (Feature feature : patient.getFeatures()) {
+            StringBuilder entry = new StringBuilder();
+            entry.append(feature.isPresent() ? '+' : '-').append(feature.getId());
+            entry.append('|').append(feature.getNotes());
+            Map<String, ? extends FeatureMetadatum> metadata = feature.getMetadata();
+            if (metadata != null) {
+                for (Map.Entry<String, ? extends FeatureMetadatum> meta : new TreeMap<String, FeatureMetadatum>(
+                    metadata).entrySet()) {
+                    entry.append('|').append(meta.getKey()).append('=')
+                        .append(meta.getValue() == null ? null : meta.getValue().getId());
+                }
+            }
+            entries.add(entry.toString());
+        }
+        Collections.sort(entries);
+        StringBuilder result = new StringBuilder();
+        for (String entry : entries) {
+            result.append(entry).append('\n');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Return the fingerprint of the feature data this profile was computed from.
+     *
+     * @return the fingerprint, as returned by {@link #getFingerprint(Patient)} at the time the profile was computed
+     */
+    public String getFingerprint()
+    {
+        return this.fingerprint;
+    }
+
+    /**
+     * Return the identifiers of the present features of the patient which could be resolved into vocabulary terms.
+     *
+     * @return an unmodifiable, potentially empty, set of term identifiers
+     */
+    public Set<String> getTermIds()
+    {
+        return this.termIds;
+    }
+
+    /**
+     * Return the ancestors of each of the {@link #getTermIds() present terms}.
+     *
+     * @return an unmodifiable mapping from each term identifier to the ancestors of the term (including itself), as
+     *         sorted ontology indexes
+     */
+    public Map<String, int[]> getTermAncestors()
+    {
+        return this.termAncestors;
+    }
+
+    /**
+     * Return the ancestor closure of all the present terms.
+     *
+     * @return a bitset over the compiled ontology; the returned array is shared and must not be modified
+     */
+    public long[] getClosure()
+    {
+        return this.closure;
+    }
+
+    /**
+     * Return the total information content of the {@link #getClosure() ancestor closure}.
+     *
+     * @return the sum of the information content of all the terms implied by the patient's phenotype
+     */
+    public double getTotalIC()
+    {
+        return this.totalIC;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.ScorerCost;
+
+import org.xwiki.component.annotation.Component;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Scores term sets with the symmetric best-match average of Resnik similarities: each term is paired with the most
+ * similar term of the other phenotype, the similarity of two terms being the information content of their most
+ * informative common ancestor, and the best matches are averaged in both directions. Scores are normalized by the
+ * largest information content. Every pair of terms is compared, which makes this the most expensive scorer, even
+ * though common ancestors are looked up in the cache shared through the {@link CompiledOntology}.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Component
+@Named("resnik-bma")
+@Singleton
+public class ResnikFeatureSimilarityScorer extends AbstractFeatureSimilarityScorer
+{
+    @Override
+    public ScorerCost getCost()
+    {
+        return ScorerCost.HIGH;
+    }
+
+    @Override
+    protected double getScore(CompiledOntology ontology, int[] referenceTerms, int[] matchTerms)
+    {
+        double maxIC = ontology.getMaxIC();
+        if (maxIC <= 0) {
+            return 0.0;
+        }
+        double[] bestForMatch = new double[matchTerms.length];
+        double referenceTotal = 0.0;
+        for (int reference : referenceTerms) {
+            double best = 0.0;
+            for (int i = 0; i < matchTerms.length; i++) {
+                int mica = ontology.getMostInformativeCommonAncestor(reference, matchTerms[i]);
+                double ic = mica < 0 ? 0.0 : ontology.getIC(mica);
+                best = Math.max(best, ic);
+                bestForMatch[i] = Math.max(bestForMatch[i], ic);
+            }
+            referenceTotal += best;
+        }
+        double matchTotal = 0.0;
+        for (double best : bestForMatch) {
+            matchTotal += best;
+        }
+        double average = (referenceTotal / referenceTerms.length + matchTotal / matchTerms.length) / 2;
+        return Math.min(1.0, average / maxIC);
+    }
+}
@@ -26,6 +26,7 @@
 import java.util.List;
 
 import net.sf.json.JSONArray;
+import net.sf.json.util.JSONBuilder;
 
 /**
  * Implementation of {@link org.phenotips.data.similarity.PatientGenotypeSimilarityView} that reveals the full patient
@@ -80,4 +81,14 @@ public JSONArray toJSON()
             return super.toJSON();
         }
     }
+
+    @Override
+    public void writeJSON(JSONBuilder json)
+    {
+        if (this.access.isPrivateAccess()) {
+            json.value((Object) null);
+        } else {
+            super.writeJSON(json);
+        }
+    }
 }
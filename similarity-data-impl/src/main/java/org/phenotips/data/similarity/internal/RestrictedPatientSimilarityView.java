@@ -33,6 +33,7 @@
 import java.util.Set;
 
 import net.sf.json.JSONObject;
+import net.sf.json.util.JSONBuilder;
 
 /**
  * Implementation of {@link org.phenotips.data.similarity.PatientSimilarityView} that reveals the full patient
@@ -132,12 +133,22 @@ public <T> PatientData<T> getData(String name)
     }
 
     @Override
-    public JSONObject toJSON()
+    public JSONObject toJSON(Collection<String> onlyFieldNames)
     {
         if (this.access.isPrivateAccess()) {
             return new JSONObject(true);
         } else {
-            return super.toJSON();
+            return super.toJSON(onlyFieldNames);
+        }
+    }
+
+    @Override
+    public void writeJSON(JSONBuilder json, Collection<String> onlyFieldNames)
+    {
+        if (this.access.isPrivateAccess()) {
+            json.value(new JSONObject(true));
+        } else {
+            super.writeJSON(json, onlyFieldNames);
         }
     }
 }
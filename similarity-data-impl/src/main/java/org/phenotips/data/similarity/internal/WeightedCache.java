@@ -0,0 +1,228 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache bounded by the total weight of its values instead of their number, for values whose memory footprint varies
+ * widely, such as exomes. When adding a value exceeds the capacity, the least recently used values are evicted until
+ * the total weight fits again; values heavier than the whole capacity are not cached at all. The cache counts hits,
+ * misses and evictions, and is safe for concurrent use.
+ *
+ * @version $Id$
+ * @param <T> the type of the cached values
+ * @since 1.0M7
+ */
+public class WeightedCache<T>
+{
+    /** The cached values with their weight, in access order. */
+    private final LinkedHashMap<String, Entry<T>> entries = new LinkedHashMap<String, Entry<T>>(16, 0.75f, true);
+
+    /** The maximum total weight of the cached values. */
+    private final long capacity;
+
+    /** The total weight of the cached values. */
+    private long weight;
+
+    /** @see #getHits() */
+    private long hits;
+
+    /** @see #getMisses() */
+    private long misses;
+
+    /** @see #getEvictions() */
+    private long evictions;
+
+    /**
+     * Create an empty cache.
+     *
+     * @param capacity the maximum total weight of the cached values
+     */
+    public WeightedCache(long capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Return a cached value, marking it as recently used.
+     *
+     * @param key the key of the value
+     * @return the cached value, or {@code null} if the value is not cached
+     */
+    public synchronized T get(String key)
+    {
+        Entry<T> entry = this.entries.get(key);
+        if (entry == null) {
+            ++this.misses;
+            return null;
+        }
+        ++this.hits;
+        return entry.value;
+    }
+
+    /**
+     * Cache a value, replacing any value previously cached for the same key, and evicting the least recently used
+     * values if needed.
+     *
+     * @param key the key of the value
+     * @param value the value to cache
+     * @param valueWeight the weight of the value, in the same unit as the capacity
+     */
+    public synchronized void set(String key, T value, long valueWeight)
+    {
+        remove(key);
+        if (valueWeight > this.capacity) {
+            return;
+        }
+        this.entries.put(key, new Entry<T>(value, valueWeight));
+        this.weight += valueWeight;
+        Iterator<Entry<T>> eldest = this.entries.values().iterator();
+        while (this.weight > this.capacity) {
+            this.weight -= eldest.next().weight;
+            eldest.remove();
+            ++this.evictions;
+        }
+    }
+
+    /**
+     * Remove a value from the cache, if present. This doesn't count as an eviction.
+     *
+     * @param key the key of the value
+     */
+    public synchronized void remove(String key)
+    {
+        Entry<T> entry = this.entries.remove(key);
+        if (entry != null) {
+            this.weight -= entry.weight;
+        }
+    }
+
+    /** Remove all the values from the cache. This doesn't count as evictions, and doesn't reset the statistics. */
+    public synchronized void removeAll()
+    {
+        this.entries.clear();
+        this.weight = 0;
+    }
+
+    /**
+     * The maximum total weight of the cached values.
+     *
+     * @return the capacity passed to the constructor
+     */
+    public long getCapacity()
+    {
+        return this.capacity;
+    }
+
+    /**
+     * The total weight of the cached values.
+     *
+     * @return a weight, at most the {@link #getCapacity() capacity}
+     */
+    public synchronized long getWeight()
+    {
+        return this.weight;
+    }
+
+    /**
+     * The number of cached values.
+     *
+     * @return a positive number
+     */
+    public synchronized int getSize()
+    {
+        return this.entries.size();
+    }
+
+    /**
+     * How many lookups found a cached value.
+     *
+     * @return a positive number
+     */
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    /**
+     * How many lookups didn't find a cached value.
+     *
+     * @return a positive number
+     */
+    public synchronized long getMisses()
+    {
+        return this.misses;
+    }
+
+    /**
+     * How many values were removed to make room for new values.
+     *
+     * @return a positive number
+     */
+    public synchronized long getEvictions()
+    {
+        return this.evictions;
+    }
+
+    /**
+     * Return all the statistics of the cache at once.
+     *
+     * @return a map with the {@code hits}, {@code misses}, {@code evictions}, {@code size}, {@code weight} and
+     *         {@code capacity} of the cache
+     */
+    public synchronized Map<String, Long> getStatistics()
+    {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        result.put("hits", this.hits);
+        result.put("misses", this.misses);
+        result.put("evictions", this.evictions);
+        result.put("size", (long) this.entries.size());
+        result.put("weight", this.weight);
+        result.put("capacity", this.capacity);
+        return result;
+    }
+
+    /**
+     * A cached value with its weight.
+     *
+     * @param <T> the type of the value
+     */
+    private static final class Entry<T>
+    {
+        /** The cached value. */
+        private final T value;
+
+        /** The weight of the value. */
+        private final long weight;
+
+        /**
+         * Simple constructor.
+         *
+         * @param value the cached value
+         * @param weight the weight of the value
+         */
+        Entry(T value, long weight)
+        {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
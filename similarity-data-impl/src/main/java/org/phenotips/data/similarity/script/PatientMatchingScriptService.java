@@ -17,7 +17,10 @@
  */
 package org.phenotips.data.similarity.script;
 
+import org.phenotips.data.Patient;
 import org.phenotips.data.similarity.ExomeManager;
+import org.phenotips.data.similarity.PatientMatchIndex;
+import org.phenotips.data.similarity.PatientSimilarityView;
 import org.phenotips.data.similarity.PatientSimilarityViewFactory;
 import org.phenotips.data.similarity.internal.DefaultPatientSimilarityViewFactory;
 import org.phenotips.data.similarity.internal.ExomiserExomeManager;
@@ -26,6 +29,10 @@
 import org.xwiki.script.service.ScriptService;
 import org.xwiki.stability.Unstable;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -51,9 +58,40 @@ public class PatientMatchingScriptService implements ScriptService
     @Named("exomiser")
     private ExomeManager exomeManager;
 
+    @Inject
+    private PatientMatchIndex matchIndex;
+
     @Inject
     private Logger logger;
 
+    /**
+     * Returns the precomputed best matches of a patient, without scoring any patient pair. Only matches accessible to
+     * the current user are returned.
+     *
+     * @param referencePatient the reference patient
+     * @return the matched patients, in decreasing order of similarity; an empty list if the reference patient is
+     *         {@code null} or if its matches have not been computed yet
+     * @since 1.0M7
+     */
+    public List<PatientSimilarityView> getPrecomputedMatches(Patient referencePatient)
+    {
+        if (referencePatient == null) {
+            return Collections.emptyList();
+        }
+        return this.matchIndex.getMatches(referencePatient);
+    }
+
+    /**
+     * Returns the hit, miss and eviction counts of the exome cache, along with its size and estimated memory use.
+     *
+     * @return the cache statistics, see {@link ExomiserExomeManager#getCacheStatistics()}
+     * @since 1.0M7
+     */
+    public Map<String, Long> getExomeCacheStatistics()
+    {
+        return ((ExomiserExomeManager) exomeManager).getCacheStatistics();
+    }
+
     /**
      * Clear all (phenotype and genotype) patient similarity caches.
      */
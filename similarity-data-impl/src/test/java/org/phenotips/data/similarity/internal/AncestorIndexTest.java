@@ -0,0 +1,169 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.internal.mocks.MockVocabularyTerm;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link AncestorIndex} class.
+ *
+ * @version $Id$
+ */
+public class AncestorIndexTest
+{
+    private static final double DELTA = 1e-9;
+
+    private final VocabularyTerm root = new MockVocabularyTerm("HP:0000001", null);
+
+    private final VocabularyTerm skeletal = new MockVocabularyTerm("HP:0000924", Collections.singleton(this.root));
+
+    private final VocabularyTerm nervous = new MockVocabularyTerm("HP:0000707", Collections.singleton(this.root));
+
+    private final VocabularyTerm joint = new MockVocabularyTerm("HP:0001367", Collections.singleton(this.skeletal));
+
+    private final VocabularyTerm limb = new MockVocabularyTerm("HP:0040064", Collections.singleton(this.skeletal));
+
+    private CompiledOntology ontology;
+
+    private PhenotypeKernel kernel;
+
+    private AncestorIndex compile()
+    {
+        Map<VocabularyTerm, Double> termICs = new HashMap<VocabularyTerm, Double>();
+        termICs.put(this.skeletal, 1.0);
+        termICs.put(this.nervous, 2.0);
+        termICs.put(this.joint, 3.0);
+        termICs.put(this.limb, 2.0);
+        this.ontology = new CompiledOntology(termICs, Collections.<VocabularyTerm>emptySet());
+        this.kernel = new PhenotypeKernel(this.ontology);
+        return new AncestorIndex(this.ontology);
+    }
+
+    private long[] closure(VocabularyTerm... terms)
+    {
+        List<int[]> ancestors = new ArrayList<int[]>();
+        for (VocabularyTerm term : terms) {
+            ancestors.add(this.ontology.getAncestorsAndSelf(term));
+        }
+        return this.kernel.toBitSet(CompiledOntology.union(ancestors));
+    }
+
+    private void put(AncestorIndex index, String id, VocabularyTerm... terms)
+    {
+        long[] bits = closure(terms);
+        index.put(id, bits, this.kernel.getTotalIC(bits));
+    }
+
+    /** Scores are the same as the kernel's, and patients sharing only ancestors are found. */
+    @Test
+    public void testSearchMatchesKernel()
+    {
+        AncestorIndex index = compile();
+        put(index, "P1", this.joint);
+        put(index, "P2", this.limb);
+        put(index, "P3", this.nervous);
+        put(index, "P4", this.joint, this.nervous);
+
+        long[] reference = closure(this.joint);
+        double referenceIC = this.kernel.getTotalIC(reference);
+        Map<String, Double> results = index.search(reference, referenceIC, 0, null);
+        Assert.assertEquals(Arrays.asList("P1", "P4", "P2"), new ArrayList<String>(results.keySet()));
+        Assert.assertEquals(1.0, results.get("P1"), DELTA);
+        Assert.assertEquals(this.kernel.getScore(reference, closure(this.limb)), results.get("P2"), DELTA);
+        Assert.assertEquals(this.kernel.getScore(reference, closure(this.joint, this.nervous)), results.get("P4"),
+            DELTA);
+    }
+
+    /** The limit and the excluded patient are respected. */
+    @Test
+    public void testLimitAndExclusion()
+    {
+        AncestorIndex index = compile();
+        put(index, "P1", this.joint);
+        put(index, "P2", this.limb);
+        put(index, "P4", this.joint, this.nervous);
+
+        long[] reference = closure(this.joint);
+        Map<String, Double> results = index.search(reference, this.kernel.getTotalIC(reference), 1, "P1");
+        Assert.assertEquals(Collections.singleton("P4"), results.keySet());
+    }
+
+    /** Updated patients are re-indexed, removed patients disappear, also after compaction. */
+    @Test
+    public void testUpdateAndRemove()
+    {
+        AncestorIndex index = compile();
+        put(index, "P1", this.joint);
+        put(index, "P2", this.limb);
+        put(index, "P1", this.nervous);
+        Assert.assertEquals(2, index.size());
+
+        long[] reference = closure(this.joint);
+        double referenceIC = this.kernel.getTotalIC(reference);
+        Assert.assertEquals(Collections.singleton("P2"), index.search(reference, referenceIC, 0, null).keySet());
+
+        index.remove("P2");
+        index.remove("P1");
+        Assert.assertEquals(0, index.size());
+        Assert.assertTrue(index.search(reference, referenceIC, 0, null).isEmpty());
+
+        put(index, "P3", this.joint);
+        Assert.assertEquals(1.0, index.search(reference, referenceIC, 0, null).get("P3"), DELTA);
+    }
+
+    /** Posting lists stay correct when patients sharing a term are far apart, and after compacting them. */
+    @Test
+    public void testSparsePostingsAndCompaction()
+    {
+        AncestorIndex index = compile();
+        for (int i = 0; i < 400; i++) {
+            put(index, "P" + i, i % 150 == 0 ? this.joint : this.nervous);
+        }
+        long[] reference = closure(this.joint);
+        double referenceIC = this.kernel.getTotalIC(reference);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("P0", "P150", "P300")),
+            index.search(reference, referenceIC, 0, null).keySet());
+
+        // Removing most of the patients compacts the index
+        for (int i = 1; i < 400; i++) {
+            if (i % 150 != 0 && i % 7 != 0) {
+                index.remove("P" + i);
+            }
+        }
+        put(index, "P400", this.joint);
+        Map<String, Double> results = index.search(reference, referenceIC, 0, null);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("P0", "P150", "P300", "P400")), results.keySet());
+        for (Double score : results.values()) {
+            Assert.assertEquals(1.0, score, DELTA);
+        }
+        Assert.assertEquals(57, index.search(closure(this.nervous), this.kernel.getTotalIC(closure(this.nervous)), 0,
+            null).size());
+    }
+}
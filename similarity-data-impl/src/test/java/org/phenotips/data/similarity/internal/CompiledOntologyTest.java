@@ -0,0 +1,132 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.internal.mocks.MockVocabularyTerm;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link CompiledOntology} class.
+ *
+ * @version $Id$
+ */
+public class CompiledOntologyTest
+{
+    private static final double DELTA = 1e-9;
+
+    private final VocabularyTerm root = new MockVocabularyTerm("HP:0000001", null);
+
+    private final VocabularyTerm phenotypes = new MockVocabularyTerm("HP:0000118", Collections.singleton(this.root));
+
+    private final VocabularyTerm skeletal =
+        new MockVocabularyTerm("HP:0000924", Collections.singleton(this.phenotypes));
+
+    private final VocabularyTerm nervous = new MockVocabularyTerm("HP:0000707", Collections.singleton(this.phenotypes));
+
+    private final VocabularyTerm joint = new MockVocabularyTerm("HP:0001367", Collections.singleton(this.skeletal));
+
+    private CompiledOntology compile()
+    {
+        Map<VocabularyTerm, Double> termICs = new HashMap<VocabularyTerm, Double>();
+        termICs.put(this.skeletal, 1.0);
+        termICs.put(this.nervous, 2.0);
+        termICs.put(this.joint, 3.0);
+        return new CompiledOntology(termICs, Collections.singleton(this.phenotypes));
+    }
+
+    /** All terms and their ancestors are indexed, in identifier order. */
+    @Test
+    public void testIndexes()
+    {
+        CompiledOntology ontology = compile();
+        Assert.assertEquals(5, ontology.size());
+        Assert.assertEquals(0, ontology.getIndex("HP:0000001"));
+        Assert.assertEquals(4, ontology.getIndex("HP:0001367"));
+        Assert.assertEquals(-1, ontology.getIndex("HP:0000002"));
+        Assert.assertEquals(-1, ontology.getIndex(null));
+        Assert.assertEquals("HP:0000707", ontology.getTerm(ontology.getIndex("HP:0000707")).getId());
+    }
+
+    /** Information content is stored by index, with unknown values as 0. */
+    @Test
+    public void testICs()
+    {
+        CompiledOntology ontology = compile();
+        Assert.assertEquals(3.0, ontology.getIC(ontology.getIndex("HP:0001367")), DELTA);
+        Assert.assertEquals(0.0, ontology.getIC(ontology.getIndex("HP:0000001")), DELTA);
+        Assert.assertEquals(3.0, ontology.getMaxIC(), DELTA);
+    }
+
+    /** Ancestors include the term itself, and are sorted. */
+    @Test
+    public void testAncestors()
+    {
+        CompiledOntology ontology = compile();
+        int[] ancestors = ontology.getAncestorsAndSelf(ontology.getIndex("HP:0001367"));
+        Assert.assertArrayEquals(new int[] { 0, 1, 3, 4 }, ancestors);
+        Assert.assertEquals(4.0, ontology.getTotalIC(ancestors), DELTA);
+    }
+
+    /** Unknown terms are compiled on the fly, using their known ancestors. */
+    @Test
+    public void testAncestorsOfUnknownTerm()
+    {
+        CompiledOntology ontology = compile();
+        VocabularyTerm unknown = new MockVocabularyTerm("HP:0001382", Collections.singleton(this.joint));
+        Assert.assertArrayEquals(new int[] { 0, 1, 3, 4 }, ontology.getAncestorsAndSelf(unknown));
+    }
+
+    /** Set operations on sorted indexes. */
+    @Test
+    public void testSetOperations()
+    {
+        CompiledOntology ontology = compile();
+        int[] a = new int[] { 0, 1, 2, 4 };
+        int[] b = new int[] { 0, 1, 3 };
+        Assert.assertArrayEquals(new int[] { 0, 1, 2, 3, 4 }, CompiledOntology.union(a, b));
+        Assert.assertArrayEquals(new int[] { 0, 1 }, CompiledOntology.intersection(a, b));
+        Assert.assertArrayEquals(new int[] { 0, 1, 2, 3, 4 }, CompiledOntology.union(Arrays.asList(a, b)));
+        Assert.assertEquals(0.0, ontology.getSharedIC(a, b), DELTA);
+        Assert.assertEquals(5.0, ontology.getSharedIC(a, new int[] { 2, 4 }), DELTA);
+    }
+
+    /** The most informative common ancestor is the shared term with the highest information content. */
+    @Test
+    public void testMostInformativeCommonAncestor()
+    {
+        CompiledOntology ontology = compile();
+        int joint = ontology.getIndex("HP:0001367");
+        int skeletal = ontology.getIndex("HP:0000924");
+        int nervous = ontology.getIndex("HP:0000707");
+        Assert.assertEquals(joint, ontology.getMostInformativeCommonAncestor(joint, joint));
+        Assert.assertEquals(skeletal, ontology.getMostInformativeCommonAncestor(joint, skeletal));
+        Assert.assertEquals(skeletal, ontology.getMostInformativeCommonAncestor(skeletal, joint));
+        // Both roots have no information content, the lowest index wins
+        Assert.assertEquals(0, ontology.getMostInformativeCommonAncestor(joint, nervous));
+        Assert.assertEquals(-1, ontology.getMostInformativeSharedTerm(new int[] { 2, 4 }, new int[] { 3 }));
+        Assert.assertEquals(4, ontology.getMostInformativeSharedTerm(new int[] { 0, 2, 4 }, new int[] { 0, 4 }));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.similarity.PatientBatchLoader;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DefaultPatientBatchLoader} implementation of the {@link PatientBatchLoader} role.
+ *
+ * @version $Id$
+ */
+public class DefaultPatientBatchLoaderTest
+{
+    private static final String P1 = "P0000001";
+
+    private static final String P2 = "xwiki:data.P0000002";
+
+    private static final String P3 = "P0000003";
+
+    private static final String P4 = "other:data.P0000004";
+
+    @Rule
+    public final MockitoComponentMockingRule<PatientBatchLoader> mocker =
+        new MockitoComponentMockingRule<PatientBatchLoader>(DefaultPatientBatchLoader.class);
+
+    private PatientRepository patients;
+
+    private QueryManager queries;
+
+    private Query mainWikiQuery;
+
+    private Query otherWikiQuery;
+
+    private Patient patient1;
+
+    private Patient patient2;
+
+    @Before
+    public void setup() throws Exception
+    {
+        Execution execution = this.mocker.getInstance(Execution.class);
+        when(execution.getContext()).thenReturn(new ExecutionContext());
+
+        // Bare names are resolved in the data space of the current wiki
+        DocumentReferenceResolver<String> resolver =
+            this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+        when(resolver.resolve(Matchers.anyString(), Matchers.anyVararg())).thenAnswer(new Answer<DocumentReference>()
+        {
+            @Override
+            public DocumentReference answer(InvocationOnMock invocation)
+            {
+                String name = (String) invocation.getArguments()[0];
+                String wiki = name.contains(":") ? name.substring(0, name.indexOf(':')) : "xwiki";
+                return new DocumentReference(wiki, "data", name.substring(name.lastIndexOf('.') + 1));
+            }
+        });
+        EntityReferenceSerializer<String> serializer =
+            this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING);
+        when(serializer.serialize(Matchers.any(DocumentReference.class))).thenAnswer(new Answer<String>()
+        {
+            @Override
+            public String answer(InvocationOnMock invocation)
+            {
+                DocumentReference reference = (DocumentReference) invocation.getArguments()[0];
+                return reference.getWikiReference().getName() + ":data." + reference.getName();
+            }
+        });
+        EntityReferenceSerializer<String> localSerializer =
+            this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING, "local");
+        when(localSerializer.serialize(Matchers.any(DocumentReference.class))).thenAnswer(new Answer<String>()
+        {
+            @Override
+            public String answer(InvocationOnMock invocation)
+            {
+                return "data." + ((DocumentReference) invocation.getArguments()[0]).getName();
+            }
+        });
+
+        // The third patient was deleted, the fourth one exists in another wiki but can't be loaded
+        this.queries = this.mocker.getInstance(QueryManager.class);
+        this.mainWikiQuery = mock(Query.class);
+        when(this.mainWikiQuery.<String>execute()).thenReturn(Arrays.asList("data.P0000001", "data.P0000002"));
+        this.otherWikiQuery = mock(Query.class);
+        when(this.otherWikiQuery.<String>execute()).thenReturn(Collections.singletonList("data.P0000004"));
+        when(this.queries.createQuery(Matchers.anyString(), Matchers.eq(Query.HQL))).thenReturn(this.mainWikiQuery,
+            this.otherWikiQuery);
+
+        this.patients = this.mocker.getInstance(PatientRepository.class);
+        this.patient1 = mock(Patient.class);
+        when(this.patients.getPatientById("xwiki:data.P0000001")).thenReturn(this.patient1);
+        this.patient2 = mock(Patient.class);
+        when(this.patients.getPatientById("xwiki:data.P0000002")).thenReturn(this.patient2);
+    }
+
+    /** Existing patients are checked with one query per wiki, and stale names are left out. */
+    @Test
+    public void testLoadChecksAllPatientsAtOnce() throws Exception
+    {
+        Map<String, Patient> result = this.mocker.getComponentUnderTest().load(Arrays.asList(P1, P2, P3, P4));
+
+        Assert.assertEquals(Arrays.asList(P1, P2, P4), Arrays.asList(result.keySet().toArray()));
+        Assert.assertSame(this.patient1, result.get(P1));
+        Assert.assertSame(this.patient2, result.get(P2));
+        Assert.assertNull(result.get(P4));
+        Mockito.verify(this.queries, Mockito.times(2)).createQuery(Matchers.anyString(), Matchers.eq(Query.HQL));
+        Mockito.verify(this.mainWikiQuery).setWiki("xwiki");
+        Mockito.verify(this.mainWikiQuery).bindValue("names",
+            Arrays.asList("data.P0000001", "data.P0000002", "data.P0000003"));
+        Mockito.verify(this.otherWikiQuery).setWiki("other");
+        Mockito.verify(this.patients, Mockito.never()).getPatientById("xwiki:data.P0000003");
+    }
+
+    /** Patients already loaded during the request are reused, whatever the form of their name. */
+    @Test
+    public void testLoadedPatientsAreRemembered() throws Exception
+    {
+        PatientBatchLoader loader = this.mocker.getComponentUnderTest();
+        loader.load(Collections.singletonList(P1));
+        Map<String, Patient> result = loader.load(Arrays.asList("xwiki:data.P0000001", P1));
+
+        Assert.assertEquals(2, result.size());
+        Assert.assertSame(this.patient1, result.get(P1));
+        Assert.assertSame(this.patient1, result.get("xwiki:data.P0000001"));
+        Mockito.verify(this.queries, Mockito.times(1)).createQuery(Matchers.anyString(), Matchers.eq(Query.HQL));
+        Mockito.verify(this.patients, Mockito.times(1)).getPatientById("xwiki:data.P0000001");
+    }
+
+    /** Nothing is reported as stale when the existence check fails. */
+    @Test
+    public void testFailedCheckDoesNotReportStalePatients() throws Exception
+    {
+        when(this.mainWikiQuery.<String>execute()).thenThrow(new QueryException("Database unavailable", null, null));
+        List<String> names = Arrays.asList(P1, P3);
+
+        Map<String, Patient> result = this.mocker.getComponentUnderTest().load(names);
+
+        Assert.assertEquals(names, Arrays.asList(result.keySet().toArray()));
+        Assert.assertSame(this.patient1, result.get(P1));
+        Assert.assertNull(result.get(P3));
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.permissions.AccessLevel;
+import org.phenotips.data.similarity.PatientBatchLoader;
+import org.phenotips.data.similarity.PatientMatchIndex;
+import org.phenotips.data.similarity.PatientSimilarityView;
+import org.phenotips.data.similarity.PatientSimilarityViewFactory;
+
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DefaultPatientMatchIndex} implementation of the {@link PatientMatchIndex} role. The database is
+ * replaced by a mocked Hibernate session, and patients score against each other as set up in {@link #SCORES}.
+ *
+ * @version $Id$
+ */
+public class DefaultPatientMatchIndexTest
+{
+    /** How long to wait for the background thread, in milliseconds. */
+    private static final int WAIT = 5000;
+
+    private static final String P1 = "P0000001";
+
+    private static final String P2 = "P0000002";
+
+    private static final String P3 = "P0000003";
+
+    private static final String P4 = "P0000004";
+
+    /** The scores of the other patients against the first one. */
+    private static final Map<String, Double> SCORES = new LinkedHashMap<String, Double>();
+
+    static {
+        SCORES.put(P2, 0.2);
+        SCORES.put(P3, 0.5);
+        SCORES.put(P4, 0.9);
+    }
+
+    @Rule
+    public final MockitoComponentMockingRule<PatientMatchIndex> mocker =
+        new MockitoComponentMockingRule<PatientMatchIndex>(DefaultPatientMatchIndex.class);
+
+    private Map<String, Patient> patients = new HashMap<String, Patient>();
+
+    private Session session;
+
+    private Transaction transaction;
+
+    private Query readQuery;
+
+    private Query worstQuery;
+
+    private Query deleteQuery;
+
+    private Query computedQuery;
+
+    @Before
+    public void setup() throws Exception
+    {
+        // Return two matches and store two matches for each patient; no candidate generator, all patients are scored
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        when(configuration.getProperty(Matchers.eq("phenotips.similarity.matchIndex.size"), Matchers.anyInt()))
+            .thenReturn(2);
+        when(configuration.getProperty(Matchers.eq("phenotips.similarity.matchIndex.stored"), Matchers.anyInt()))
+            .thenReturn(2);
+        when(configuration.getProperty(Matchers.eq("phenotips.similarity.matchIndex.candidates"),
+            Matchers.anyString())).thenReturn("");
+
+        PatientRepository repository = this.mocker.getInstance(PatientRepository.class);
+        PatientSimilarityViewFactory publicFactory = this.mocker.getInstance(PatientSimilarityViewFactory.class);
+        Patient reference = mockPatient(P1);
+        when(repository.getPatientById(P1)).thenReturn(reference);
+        for (Map.Entry<String, Double> score : SCORES.entrySet()) {
+            Patient other = mockPatient(score.getKey());
+            when(repository.getPatientById(score.getKey())).thenReturn(other);
+            PatientSimilarityView view = mock(PatientSimilarityView.class);
+            when(view.getScore()).thenReturn(score.getValue());
+            when(publicFactory.makeSimilarPatient(other, reference)).thenReturn(view);
+        }
+        org.xwiki.query.Query allPatients = mock(org.xwiki.query.Query.class);
+        when(allPatients.<String>execute()).thenReturn(Arrays.asList(P1, P2, P3, P4));
+        QueryManager queryManager = this.mocker.getInstance(QueryManager.class);
+        when(queryManager.createQuery(DefaultPatientMatchIndex.ALL_PATIENTS_QUERY, org.xwiki.query.Query.HQL))
+            .thenReturn(allPatients);
+
+        HibernateSessionFactory sessionFactory = this.mocker.getInstance(HibernateSessionFactory.class);
+        SessionFactory factory = mock(SessionFactory.class);
+        when(sessionFactory.getSessionFactory()).thenReturn(factory);
+        this.session = mock(Session.class);
+        when(factory.openSession()).thenReturn(this.session);
+        this.transaction = mock(Transaction.class);
+        when(this.session.beginTransaction()).thenReturn(this.transaction);
+        this.readQuery = mockQuery(Matchers.startsWith("from PatientMatch"));
+        this.worstQuery = mockQuery(Matchers.startsWith("select m, "));
+        this.deleteQuery = mockQuery(Matchers.startsWith("delete from PatientMatch"));
+        this.computedQuery = mockQuery(Matchers.startsWith("select distinct"));
+    }
+
+    /** The best matches of an updated patient replace its stored matches, and its matches in other patients. */
+    @Test
+    public void testUpdateStoresTheBestMatches() throws Exception
+    {
+        this.mocker.getComponentUnderTest().update(this.patients.get(P1));
+
+        verify(this.transaction, timeout(WAIT)).commit();
+        verify(this.deleteQuery).setString("patient", P1);
+        verify(this.deleteQuery).executeUpdate();
+        @SuppressWarnings("rawtypes")
+        ArgumentCaptor<Collection> candidates = ArgumentCaptor.forClass(Collection.class);
+        verify(this.worstQuery).setParameterList(Matchers.eq("candidates"), candidates.capture());
+        Assert.assertEquals(SCORES.keySet(), new HashSet<Object>(candidates.getValue()));
+        List<PatientMatch> saved = getSavedMatches();
+        Assert.assertEquals(2, saved.size());
+        assertMatch(P1, P3, 0.5, saved.get(0));
+        assertMatch(P1, P4, 0.9, saved.get(1));
+    }
+
+    /** The updated patient is added to the stored matches of the patients whose matches aren't full yet. */
+    @Test
+    public void testUpdateAddsReverseMatches() throws Exception
+    {
+        mockWorstMatches(new Object[] { new PatientMatch(P4, P3, 0.1), 1L });
+
+        this.mocker.getComponentUnderTest().update(this.patients.get(P1));
+
+        verify(this.transaction, timeout(WAIT)).commit();
+        List<PatientMatch> saved = getSavedMatches();
+        Assert.assertEquals(3, saved.size());
+        assertMatch(P4, P1, 0.9, saved.get(2));
+        verify(this.session, Mockito.never()).delete(Matchers.any());
+    }
+
+    /** In full match lists, the updated patient only replaces the worst match if it scores better. */
+    @Test
+    public void testUpdateEvictsTheWorstMatch() throws Exception
+    {
+        PatientMatch worstOfP2 = new PatientMatch(P2, P4, 0.4);
+        PatientMatch worstOfP3 = new PatientMatch(P3, P4, 0.3);
+        mockWorstMatches(new Object[] { worstOfP2, 2L }, new Object[] { worstOfP3, 2L });
+
+        this.mocker.getComponentUnderTest().update(this.patients.get(P1));
+
+        verify(this.transaction, timeout(WAIT)).commit();
+        verify(this.session).delete(worstOfP3);
+        verify(this.session, Mockito.never()).delete(worstOfP2);
+        List<PatientMatch> saved = getSavedMatches();
+        Assert.assertEquals(3, saved.size());
+        assertMatch(P3, P1, 0.5, saved.get(2));
+    }
+
+    /** Removing a patient deletes its matches, and its appearances in the matches of other patients. */
+    @Test
+    public void testRemoveDeletesAllMatches() throws Exception
+    {
+        this.mocker.getComponentUnderTest().remove(P2);
+
+        verify(this.session).createQuery(
+            "delete from PatientMatch m where m.referencePatient = :patient or m.matchedPatient = :patient");
+        verify(this.deleteQuery).setString("patient", P2);
+        verify(this.deleteQuery).executeUpdate();
+        verify(this.transaction).commit();
+        verify(this.session).close();
+    }
+
+    /** Only the matches accessible to the current user are returned, stored matches filling in for the others. */
+    @Test
+    public void testGetMatchesLeavesOutInaccessiblePatients() throws Exception
+    {
+        doReturn(Arrays.asList(new PatientMatch(P1, P4, 0.9), new PatientMatch(P1, P3, 0.5),
+            new PatientMatch(P1, P2, 0.2))).when(this.readQuery).list();
+        PatientBatchLoader loader = this.mocker.getInstance(PatientBatchLoader.class);
+        when(loader.load(Matchers.<Collection<String>>any())).thenAnswer(new Answer<Map<String, Patient>>()
+        {
+            @Override
+            public Map<String, Patient> answer(InvocationOnMock invocation)
+            {
+                Map<String, Patient> result = new LinkedHashMap<String, Patient>();
+                for (Object name : (Collection<?>) invocation.getArguments()[0]) {
+                    result.put((String) name, DefaultPatientMatchIndexTest.this.patients.get(name));
+                }
+                return result;
+            }
+        });
+        Patient reference = this.patients.get(P1);
+        PatientSimilarityViewFactory factory =
+            this.mocker.getInstance(PatientSimilarityViewFactory.class, "restricted");
+        AccessLevel threshold = this.mocker.getInstance(AccessLevel.class, "match");
+        AccessLevel denied = mock(AccessLevel.class);
+        when(threshold.compareTo(denied)).thenReturn(1);
+        Map<String, PatientSimilarityView> views = new HashMap<String, PatientSimilarityView>();
+        for (String id : SCORES.keySet()) {
+            PatientSimilarityView view = mock(PatientSimilarityView.class);
+            when(factory.makeSimilarPatient(this.patients.get(id), reference)).thenReturn(view);
+            views.put(id, view);
+        }
+        when(views.get(P4).getAccess()).thenReturn(denied);
+
+        List<PatientSimilarityView> results = this.mocker.getComponentUnderTest().getMatches(reference);
+
+        Assert.assertEquals(Arrays.asList(views.get(P3), views.get(P2)), results);
+        verify(this.readQuery).setString("patient", P1);
+        verify(loader).load(Arrays.asList(P4, P3));
+        verify(loader).load(Collections.singletonList(P2));
+    }
+
+    /** The index is ready once the matches of the patients without stored matches have been computed. */
+    @Test
+    public void testIndexIsReadyOnceMissingMatchesAreComputed() throws Exception
+    {
+        // Only the first patient has no stored matches; hold the computation until the index was checked
+        final CountDownLatch checked = new CountDownLatch(1);
+        when(this.computedQuery.list()).thenAnswer(new Answer<List<String>>()
+        {
+            @Override
+            public List<String> answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                checked.await();
+                return Arrays.asList(P2, P3, P4);
+            }
+        });
+        PatientMatchIndex index = this.mocker.getComponentUnderTest();
+
+        Assert.assertFalse(index.isReady());
+        checked.countDown();
+        verify(this.transaction, timeout(WAIT)).commit();
+        verify(this.deleteQuery).setString("patient", P1);
+        for (int i = 0; i < WAIT / 10 && !index.isReady(); ++i) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(index.isReady());
+        verify(this.deleteQuery, Mockito.times(1)).executeUpdate();
+    }
+
+    private Patient mockPatient(String id)
+    {
+        Patient patient = mock(Patient.class);
+        when(patient.getDocument()).thenReturn(new DocumentReference("xwiki", "data", id));
+        this.patients.put(id, patient);
+        return patient;
+    }
+
+    private Query mockQuery(String hql)
+    {
+        Query query = mock(Query.class);
+        when(this.session.createQuery(hql)).thenReturn(query);
+        when(query.setString(Matchers.anyString(), Matchers.anyString())).thenReturn(query);
+        when(query.setParameterList(Matchers.anyString(), Matchers.<Collection<?>>any())).thenReturn(query);
+        doReturn(Collections.emptyList()).when(query).list();
+        return query;
+    }
+
+    private void mockWorstMatches(Object[]... rows)
+    {
+        doReturn(Arrays.asList(rows)).when(this.worstQuery).list();
+    }
+
+    private List<PatientMatch> getSavedMatches()
+    {
+        ArgumentCaptor<Object> saved = ArgumentCaptor.forClass(Object.class);
+        verify(this.session, Mockito.atLeastOnce()).save(saved.capture());
+        List<PatientMatch> result = new ArrayList<PatientMatch>();
+        for (Object match : saved.getAllValues()) {
+            result.add((PatientMatch) match);
+        }
+        return result;
+    }
+
+    private void assertMatch(String reference, String matched, double score, PatientMatch match)
+    {
+        Assert.assertEquals(reference, match.getReferencePatient());
+        Assert.assertEquals(matched, match.getMatchedPatient());
+        Assert.assertEquals(score, match.getScore(), 1.0E-6);
+    }
+}
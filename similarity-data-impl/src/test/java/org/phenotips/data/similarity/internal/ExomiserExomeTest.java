@@ -65,6 +65,22 @@ public void testParseExomiser()
         Assert.assertEquals(3, exome.getGenes().size());
     }
 
+    /** The estimated size grows with the number of variants, and at least covers the raw text. */
+    @Test
+    public void testEstimatedSize()
+    {
+        String header = TEST_FILE.substring(0, TEST_FILE.indexOf('\n') + 1);
+        String firstVariant = TEST_FILE.substring(header.length(), TEST_FILE.indexOf('\n', header.length()) + 1);
+        ExomiserExome empty = (ExomiserExome) parseExomeFromString(header);
+        ExomiserExome one = (ExomiserExome) parseExomeFromString(header + firstVariant);
+        ExomiserExome all = (ExomiserExome) parseExomeFromString(TEST_FILE);
+
+        Assert.assertEquals(0, empty.getEstimatedSize());
+        Assert.assertTrue(one.getEstimatedSize() > 2 * firstVariant.length());
+        Assert.assertTrue(all.getEstimatedSize() > 4 * one.getEstimatedSize());
+        Assert.assertTrue(all.getEstimatedSize() > 2 * (TEST_FILE.length() - header.length()));
+    }
+
     /** Ensure variants are parsed properly. */
     @Test
     public void testVariantDetails()
@@ -0,0 +1,103 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.ScorerCost;
+import org.phenotips.data.similarity.internal.mocks.MockVocabularyTerm;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link DefaultFeatureSimilarityScorer}, {@link JaccardFeatureSimilarityScorer} and
+ * {@link ResnikFeatureSimilarityScorer} classes.
+ *
+ * @version $Id$
+ */
+public class FeatureSimilarityScorersTest
+{
+    private static final double DELTA = 1e-9;
+
+    private static final String JOINT = "HP:0001367";
+
+    private static final String LIMB = "HP:0040064";
+
+    private static final String NERVOUS = "HP:0000707";
+
+    private static final List<String> REFERENCE = Collections.singletonList(JOINT);
+
+    private static final List<String> MATCH = Arrays.asList(LIMB, NERVOUS);
+
+    @Before
+    public void setUp()
+    {
+        VocabularyTerm root = new MockVocabularyTerm("HP:0000001", null);
+        VocabularyTerm skeletal = new MockVocabularyTerm("HP:0000924", Collections.singleton(root));
+        Map<VocabularyTerm, Double> termICs = new HashMap<VocabularyTerm, Double>();
+        termICs.put(skeletal, 1.0);
+        termICs.put(new MockVocabularyTerm(NERVOUS, Collections.singleton(root)), 2.0);
+        termICs.put(new MockVocabularyTerm(JOINT, Collections.singleton(skeletal)), 3.0);
+        termICs.put(new MockVocabularyTerm(LIMB, Collections.singleton(skeletal)), 2.0);
+        DefaultPatientSimilarityView.initializeStaticData(
+            new CompiledOntology(termICs, Collections.<VocabularyTerm>emptySet()), null);
+    }
+
+    /** The default scorer uses the information content of shared and all ancestors. */
+    @Test
+    public void testDefaultScorer()
+    {
+        DefaultFeatureSimilarityScorer scorer = new DefaultFeatureSimilarityScorer();
+        Assert.assertEquals(ScorerCost.LOW, scorer.getCost());
+        // Shared: skeletal (1); all: skeletal, joint, limb, nervous (8)
+        Assert.assertEquals(1.0 / 8, scorer.getScore(REFERENCE, MATCH), DELTA);
+        Assert.assertEquals(1.0, scorer.getScore(REFERENCE, REFERENCE), DELTA);
+        Assert.assertEquals(0.0, scorer.getScore(REFERENCE, Collections.singletonList("HP:9999999")), DELTA);
+    }
+
+    /** The Jaccard scorer counts ancestors, including the root. */
+    @Test
+    public void testJaccardScorer()
+    {
+        JaccardFeatureSimilarityScorer scorer = new JaccardFeatureSimilarityScorer();
+        Assert.assertEquals(ScorerCost.LOW, scorer.getCost());
+        // Shared: root, skeletal; all: root, skeletal, joint, limb, nervous
+        Assert.assertEquals(2.0 / 5, scorer.getScore(REFERENCE, MATCH), DELTA);
+    }
+
+    /** The Resnik scorer averages the best term matches in both directions. */
+    @Test
+    public void testResnikScorer()
+    {
+        ResnikFeatureSimilarityScorer scorer = new ResnikFeatureSimilarityScorer();
+        Assert.assertEquals(ScorerCost.HIGH, scorer.getCost());
+        // Joint's best match is limb (skeletal, 1); limb's is joint (1), nervous' is joint (root, 0)
+        double expected = (1.0 + (1.0 + 0.0) / 2) / 2 / 3.0;
+        Assert.assertEquals(expected, scorer.getScore(REFERENCE, MATCH), DELTA);
+        Assert.assertEquals(1.0, scorer.getScore(REFERENCE, REFERENCE), DELTA);
+        Assert.assertTrue(ScorerCost.LOW.isAtMost(ScorerCost.HIGH));
+        Assert.assertFalse(scorer.getCost().isAtMost(ScorerCost.MEDIUM));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.internal.mocks.MockVocabularyTerm;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link MicaCache} class.
+ *
+ * @version $Id$
+ */
+public class MicaCacheTest
+{
+    /** A random tree with decreasing information content towards the root. */
+    private CompiledOntology compile(int size)
+    {
+        Random random = new Random(42);
+        List<VocabularyTerm> terms = new ArrayList<VocabularyTerm>();
+        Map<VocabularyTerm, Double> termICs = new HashMap<VocabularyTerm, Double>();
+        terms.add(new MockVocabularyTerm("HP:0000001", null));
+        for (int i = 1; i < size; i++) {
+            VocabularyTerm parent = terms.get(random.nextInt(i));
+            VocabularyTerm term =
+                new MockVocabularyTerm(String.format("HP:%07d", i + 1), Collections.singleton(parent));
+            terms.add(term);
+            termICs.put(term, (double) random.nextInt(5) + i / 10);
+        }
+        return new CompiledOntology(termICs, terms);
+    }
+
+    /** Cached ancestors are the same as computed ones, in both directions, even when entries are evicted. */
+    @Test
+    public void testCachedMatchesComputed()
+    {
+        CompiledOntology ontology = compile(200);
+        MicaCache cache = new MicaCache(ontology, 16);
+        Random random = new Random(7);
+        for (int i = 0; i < 5000; i++) {
+            int a = random.nextInt(ontology.size());
+            int b = random.nextInt(ontology.size());
+            int expected =
+                ontology.getMostInformativeSharedTerm(ontology.getAncestorsAndSelf(a), ontology.getAncestorsAndSelf(b));
+            Assert.assertEquals(expected, cache.get(a, b));
+            Assert.assertEquals(expected, cache.get(b, a));
+        }
+    }
+
+    /** Pairs with no shared ancestor are cached as well. */
+    @Test
+    public void testNoCommonAncestor()
+    {
+        VocabularyTerm first = new MockVocabularyTerm("HP:0000001", null);
+        VocabularyTerm second = new MockVocabularyTerm("HP:0000002", null);
+        Map<VocabularyTerm, Double> termICs = new HashMap<VocabularyTerm, Double>();
+        termICs.put(first, 1.0);
+        termICs.put(second, 1.0);
+        CompiledOntology ontology = new CompiledOntology(termICs, Collections.<VocabularyTerm>emptySet());
+        MicaCache cache = new MicaCache(ontology, 16);
+        Assert.assertEquals(-1, cache.get(0, 1));
+        Assert.assertEquals(-1, cache.get(1, 0));
+        Assert.assertEquals(0, cache.get(0, 0));
+        cache.clear();
+        Assert.assertEquals(-1, cache.get(0, 1));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the search latency of the {@link MinHashIndex} and {@link AncestorIndex} candidate generators with the
+ * exhaustive scoring of all the patients, on a {@link SyntheticCohort synthetic cohort}, and prints the timings. This
+ * is not run by the regular build, since the class name doesn't match the test class patterns; run it with
+ * {@code mvn test -Dtest=MinHashIndexBenchmark}.
+ *
+ * @version $Id$
+ */
+public class MinHashIndexBenchmark
+{
+    private static final int COHORT = 5000;
+
+    private static final int QUERIES = 100;
+
+    private static final int TOP = 10;
+
+    private static final int CANDIDATES = 50;
+
+    /** Untimed rounds, letting the JIT compile the searches first. */
+    private static final int WARMUP = 3;
+
+    private static final double NANOS_PER_MS = 1e6;
+
+    private final SyntheticCohort cohort = new SyntheticCohort(new Random(42));
+
+    /** Time the same queries against the exhaustive scoring and both indexes. */
+    @Test
+    public void benchmarkSearchLatency()
+    {
+        this.cohort.generate(COHORT);
+        MinHashIndex minHash = new MinHashIndex(this.cohort.getOntology(), 32, 3, 7L);
+        this.cohort.index(minHash);
+        AncestorIndex ancestors = new AncestorIndex(this.cohort.getOntology());
+        this.cohort.index(ancestors);
+        List<String> queries = new ArrayList<String>(QUERIES);
+        for (int q = 0; q < QUERIES; q++) {
+            queries.add(this.cohort.pick());
+        }
+
+        long exhaustiveTime = 0;
+        long minHashTime = 0;
+        long ancestorTime = 0;
+        for (int round = 0; round <= WARMUP; round++) {
+            exhaustiveTime = 0;
+            minHashTime = 0;
+            ancestorTime = 0;
+            for (String queryId : queries) {
+                long[] query = this.cohort.getPatients().get(queryId);
+                double queryIC = this.cohort.getTotalIC(queryId);
+
+                long start = System.nanoTime();
+                this.cohort.exhaustiveTop(queryId, TOP);
+                exhaustiveTime += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                minHash.search(query, queryIC, CANDIDATES, queryId);
+                minHashTime += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                ancestors.search(query, queryIC, CANDIDATES, queryId);
+                ancestorTime += System.nanoTime() - start;
+            }
+        }
+        System.out.println(String.format("Search latency on %d patients, for the best %d candidates:"
+            + " %.3f ms per query for MinHash LSH, %.3f ms for the ancestor index,"
+            + " %.3f ms for exhaustive scoring", COHORT, CANDIDATES, minHashTime / NANOS_PER_MS / QUERIES,
+            ancestorTime / NANOS_PER_MS / QUERIES, exhaustiveTime / NANOS_PER_MS / QUERIES));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link MinHashIndex} class, including the recall of its candidates against exhaustive scoring on a
+ * synthetic cohort. See {@link MinHashIndexBenchmark} for the search latency.
+ *
+ * @version $Id$
+ */
+public class MinHashIndexTest
+{
+    private static final int COHORT = 5000;
+
+    private static final int QUERIES = 100;
+
+    private static final int TOP = 10;
+
+    private static final int CANDIDATES = 50;
+
+    private final SyntheticCohort cohort = new SyntheticCohort(new Random(42));
+
+    /** Signatures only depend on the closure, and identical closures collide in every band. */
+    @Test
+    public void testIdenticalPhenotypes()
+    {
+        PhenotypeKernel kernel = this.cohort.getKernel();
+        List<VocabularyTerm> leaves = this.cohort.getLeaves();
+        MinHashIndex index = new MinHashIndex(this.cohort.getOntology(), 8, 2, 1L);
+        long[] a = this.cohort.closure(Collections.singleton(leaves.get(0)));
+        long[] b = this.cohort.closure(Collections.singleton(leaves.get(leaves.size() - 1)));
+        index.put("A", a, kernel.getTotalIC(a));
+        index.put("B", b, kernel.getTotalIC(b));
+        Map<String, Double> results = index.search(a, kernel.getTotalIC(a), 0, null);
+        Assert.assertEquals(1.0, results.get("A"), 0.0);
+        Assert.assertFalse(results.containsKey("B"));
+        Assert.assertFalse(index.search(a, kernel.getTotalIC(a), 0, "A").containsKey("A"));
+
+        index.remove("A");
+        Assert.assertEquals(1, index.size());
+        Assert.assertTrue(index.search(a, kernel.getTotalIC(a), 0, null).isEmpty());
+    }
+
+    /** Most of the best exhaustively scored matches are found among the LSH candidates. */
+    @Test
+    public void testRecallAgainstExhaustiveScoring()
+    {
+        this.cohort.generate(COHORT);
+        MinHashIndex index = new MinHashIndex(this.cohort.getOntology(), 32, 3, 7L);
+        this.cohort.index(index);
+
+        int found = 0;
+        int expected = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            String queryId = this.cohort.pick();
+            List<String> truth = this.cohort.exhaustiveTop(queryId, TOP);
+            Set<String> candidates = index.search(this.cohort.getPatients().get(queryId),
+                this.cohort.getTotalIC(queryId), CANDIDATES, queryId).keySet();
+
+            expected += truth.size();
+            for (String id : truth) {
+                if (candidates.contains(id)) {
+                    ++found;
+                }
+            }
+        }
+        double recall = (double) found / expected;
+        Assert.assertTrue("Recall@" + TOP + " within " + CANDIDATES + " candidates too low: " + recall,
+            recall >= 0.8);
+    }
+}
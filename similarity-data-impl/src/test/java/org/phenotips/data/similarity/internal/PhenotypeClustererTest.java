@@ -0,0 +1,197 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.internal.mocks.MockVocabularyTerm;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link PhenotypeClusterer} class.
+ *
+ * @version $Id$
+ */
+public class PhenotypeClustererTest
+{
+    private static final double DELTA = 1e-9;
+
+    private static final String ROOT = "HP:0000001";
+
+    private static final List<String> STOP_TERMS = Collections.singletonList(ROOT);
+
+    private static Map<VocabularyTerm, int[]> getAncestors(CompiledOntology ontology,
+        Collection<VocabularyTerm> terms)
+    {
+        Map<VocabularyTerm, int[]> result = new HashMap<VocabularyTerm, int[]>();
+        for (VocabularyTerm term : terms) {
+            result.put(term, ontology.getAncestorsAndSelf(term));
+        }
+        return result;
+    }
+
+    /** Terms are grouped under their most informative shared ancestor, and the rest is reported as unmatched. */
+    @Test
+    public void testClusters()
+    {
+        VocabularyTerm root = new MockVocabularyTerm(ROOT, null);
+        VocabularyTerm skeletal = new MockVocabularyTerm("HP:0000924", Collections.singleton(root));
+        VocabularyTerm limb = new MockVocabularyTerm("HP:0040064", Collections.singleton(skeletal));
+        VocabularyTerm arm = new MockVocabularyTerm("HP:0040070", Collections.singleton(limb));
+        VocabularyTerm leg = new MockVocabularyTerm("HP:0040068", Collections.singleton(limb));
+        VocabularyTerm spine = new MockVocabularyTerm("HP:0000925", Collections.singleton(skeletal));
+        VocabularyTerm nervous = new MockVocabularyTerm("HP:0000707", Collections.singleton(root));
+        VocabularyTerm eye = new MockVocabularyTerm("HP:0000478", Collections.singleton(root));
+        Map<VocabularyTerm, Double> termICs = new HashMap<VocabularyTerm, Double>();
+        termICs.put(skeletal, 1.0);
+        termICs.put(limb, 2.0);
+        termICs.put(arm, 4.0);
+        termICs.put(leg, 4.0);
+        termICs.put(spine, 3.0);
+        termICs.put(nervous, 1.0);
+        termICs.put(eye, 1.0);
+        CompiledOntology ontology = new CompiledOntology(termICs, Collections.<VocabularyTerm>emptySet());
+
+        Collection<VocabularyTerm> match = Arrays.asList(arm, spine, nervous);
+        Collection<VocabularyTerm> reference = Arrays.asList(leg, arm, eye);
+        Set<VocabularyTerm> all = new HashSet<VocabularyTerm>(match);
+        all.addAll(reference);
+        List<PhenotypeCluster> clusters =
+            new PhenotypeClusterer(ontology, STOP_TERMS).cluster(match, reference, getAncestors(ontology, all));
+
+        Assert.assertEquals(3, clusters.size());
+        Assert.assertEquals(arm, clusters.get(0).getRoot());
+        Assert.assertEquals(1.0, clusters.get(0).getScore(), DELTA);
+        Assert.assertEquals(Collections.singleton(arm), new HashSet<VocabularyTerm>(clusters.get(0).getMatchTerms()));
+        Assert.assertEquals(Collections.singleton(arm),
+            new HashSet<VocabularyTerm>(clusters.get(0).getReferenceTerms()));
+        // The limb is no longer shared once the arms are matched
+        Assert.assertEquals(skeletal, clusters.get(1).getRoot());
+        Assert.assertEquals(0.25, clusters.get(1).getScore(), DELTA);
+        Assert.assertEquals(Collections.singleton(spine), new HashSet<VocabularyTerm>(clusters.get(1).getMatchTerms()));
+        Assert.assertEquals(Collections.singleton(leg),
+            new HashSet<VocabularyTerm>(clusters.get(1).getReferenceTerms()));
+        Assert.assertNull(clusters.get(2).getRoot());
+        Assert.assertEquals(Collections.singleton(nervous),
+            new HashSet<VocabularyTerm>(clusters.get(2).getMatchTerms()));
+        Assert.assertEquals(Collections.singleton(eye),
+            new HashSet<VocabularyTerm>(clusters.get(2).getReferenceTerms()));
+    }
+
+    /** The clusters are the same as the ones found by repeatedly intersecting the ancestors of the remaining terms. */
+    @Test
+    public void testSameAsIterativeClustering()
+    {
+        Random random = new Random(42);
+        List<VocabularyTerm> terms = new ArrayList<VocabularyTerm>();
+        Map<VocabularyTerm, Double> termICs = new HashMap<VocabularyTerm, Double>();
+        terms.add(new MockVocabularyTerm(ROOT, null));
+        for (int i = 1; i < 300; i++) {
+            Set<VocabularyTerm> parents = new HashSet<VocabularyTerm>();
+            parents.add(terms.get(random.nextInt(i)));
+            if (i > 10 && random.nextInt(4) == 0) {
+                parents.add(terms.get(random.nextInt(i)));
+            }
+            VocabularyTerm term = new MockVocabularyTerm(String.format("HP:%07d", i + 1), parents);
+            terms.add(term);
+            termICs.put(term, (double) random.nextInt(8));
+        }
+        CompiledOntology ontology = new CompiledOntology(termICs, terms);
+        PhenotypeClusterer clusterer = new PhenotypeClusterer(ontology, STOP_TERMS);
+
+        for (int run = 0; run < 50; run++) {
+            Set<VocabularyTerm> match = new HashSet<VocabularyTerm>();
+            Set<VocabularyTerm> reference = new HashSet<VocabularyTerm>();
+            for (int i = 0; i < 40; i++) {
+                match.add(terms.get(1 + random.nextInt(terms.size() - 1)));
+                reference.add(terms.get(1 + random.nextInt(terms.size() - 1)));
+            }
+            Set<VocabularyTerm> all = new HashSet<VocabularyTerm>(match);
+            all.addAll(reference);
+            Map<VocabularyTerm, int[]> ancestors = getAncestors(ontology, all);
+
+            List<PhenotypeCluster> expected = clusterIteratively(ontology, match, reference, ancestors);
+            List<PhenotypeCluster> actual = clusterer.cluster(match, reference, ancestors);
+            Assert.assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertEquals(expected.get(i).getRoot(), actual.get(i).getRoot());
+                Assert.assertEquals(expected.get(i).getScore(), actual.get(i).getScore(), DELTA);
+                Assert.assertEquals(new HashSet<VocabularyTerm>(expected.get(i).getMatchTerms()),
+                    new HashSet<VocabularyTerm>(actual.get(i).getMatchTerms()));
+                Assert.assertEquals(new HashSet<VocabularyTerm>(expected.get(i).getReferenceTerms()),
+                    new HashSet<VocabularyTerm>(actual.get(i).getReferenceTerms()));
+            }
+        }
+    }
+
+    /** The straightforward clustering, recomputing the shared ancestors of the remaining terms for each cluster. */
+    private static List<PhenotypeCluster> clusterIteratively(CompiledOntology ontology, Set<VocabularyTerm> match,
+        Set<VocabularyTerm> reference, Map<VocabularyTerm, int[]> ancestors)
+    {
+        List<PhenotypeCluster> clusters = new ArrayList<PhenotypeCluster>();
+        Set<VocabularyTerm> matchTerms = new HashSet<VocabularyTerm>(match);
+        Set<VocabularyTerm> refTerms = new HashSet<VocabularyTerm>(reference);
+        while (!matchTerms.isEmpty() && !refTerms.isEmpty()) {
+            int best = ontology.getMostInformativeSharedTerm(union(matchTerms, ancestors), union(refTerms, ancestors));
+            if (best < 0 || ROOT.equals(ontology.getTerm(best).getId())) {
+                break;
+            }
+            Set<VocabularyTerm> matchMatched = new HashSet<VocabularyTerm>();
+            Set<VocabularyTerm> refMatched = new HashSet<VocabularyTerm>();
+            for (VocabularyTerm term : matchTerms) {
+                if (Arrays.binarySearch(ancestors.get(term), best) >= 0) {
+                    matchMatched.add(term);
+                }
+            }
+            for (VocabularyTerm term : refTerms) {
+                if (Arrays.binarySearch(ancestors.get(term), best) >= 0) {
+                    refMatched.add(term);
+                }
+            }
+            matchTerms.removeAll(matchMatched);
+            refTerms.removeAll(refMatched);
+            clusters.add(new PhenotypeCluster(matchMatched, refMatched, ontology.getTerm(best),
+                ontology.getIC(best) / ontology.getMaxIC()));
+        }
+        if (!matchTerms.isEmpty() || !refTerms.isEmpty()) {
+            clusters.add(new PhenotypeCluster(matchTerms, refTerms, null, 0.0));
+        }
+        return clusters;
+    }
+
+    private static int[] union(Collection<VocabularyTerm> terms, Map<VocabularyTerm, int[]> ancestors)
+    {
+        List<int[]> result = new ArrayList<int[]>();
+        for (VocabularyTerm term : terms) {
+            result.add(ancestors.get(term));
+        }
+        return CompiledOntology.union(result);
+    }
+}
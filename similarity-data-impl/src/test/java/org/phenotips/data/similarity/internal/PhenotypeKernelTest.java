@@ -0,0 +1,89 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.internal.mocks.MockVocabularyTerm;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link PhenotypeKernel} class.
+ *
+ * @version $Id$
+ */
+public class PhenotypeKernelTest
+{
+    private static final double DELTA = 1e-9;
+
+    /** Build a chain of 100 terms, so that closures span more than one bitset word. */
+    private CompiledOntology compileChain()
+    {
+        Map<VocabularyTerm, Double> termICs = new HashMap<VocabularyTerm, Double>();
+        List<VocabularyTerm> terms = new ArrayList<VocabularyTerm>();
+        VocabularyTerm parent = null;
+        for (int i = 0; i < 100; i++) {
+            VocabularyTerm term = new MockVocabularyTerm(String.format("HP:%07d", i),
+                parent == null ? null : Collections.singleton(parent));
+            termICs.put(term, 1.0);
+            terms.add(term);
+            parent = term;
+        }
+        return new CompiledOntology(termICs, terms);
+    }
+
+    /** Bitsets hold the same terms as the index closures. */
+    @Test
+    public void testToBitSet()
+    {
+        CompiledOntology ontology = compileChain();
+        PhenotypeKernel kernel = new PhenotypeKernel(ontology);
+        long[] bits = kernel.toBitSet(new int[] { 0, 63, 64, 99 });
+        Assert.assertEquals(2, bits.length);
+        Assert.assertEquals(1L | (1L << 63), bits[0]);
+        Assert.assertEquals(1L | (1L << 35), bits[1]);
+        Assert.assertFalse(PhenotypeKernel.isEmpty(bits));
+        Assert.assertTrue(PhenotypeKernel.isEmpty(kernel.toBitSet(new int[0])));
+        Assert.assertEquals(4.0, kernel.getTotalIC(bits), DELTA);
+    }
+
+    /** The score is the information content of the intersection over that of the union. */
+    @Test
+    public void testScore()
+    {
+        CompiledOntology ontology = compileChain();
+        PhenotypeKernel kernel = new PhenotypeKernel(ontology);
+        int[] deep = ontology.getAncestorsAndSelf(ontology.getIndex("HP:0000079"));
+        int[] shallow = ontology.getAncestorsAndSelf(ontology.getIndex("HP:0000019"));
+        long[] a = kernel.toBitSet(deep);
+        long[] b = kernel.toBitSet(shallow);
+        Assert.assertEquals(20.0, kernel.getSharedIC(a, b), DELTA);
+        Assert.assertEquals(80.0, kernel.getUnionIC(a, b), DELTA);
+        Assert.assertEquals(0.25, kernel.getScore(a, b), DELTA);
+        Assert.assertEquals(0.25, kernel.getScore(a, kernel.getTotalIC(a), b, kernel.getTotalIC(b)), DELTA);
+        Assert.assertEquals(1.0, kernel.getScore(a, a), DELTA);
+        Assert.assertEquals(0.0, kernel.getScore(a, kernel.toBitSet(new int[0])), DELTA);
+    }
+}
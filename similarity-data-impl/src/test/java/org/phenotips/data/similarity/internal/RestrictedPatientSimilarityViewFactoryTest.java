@@ -31,7 +31,6 @@
 import org.phenotips.data.similarity.internal.mocks.MockFeature;
 import org.phenotips.data.similarity.internal.mocks.MockFeatureMetadatum;
 import org.phenotips.data.similarity.internal.mocks.MockVocabularyTerm;
-import org.phenotips.messaging.Connection;
 import org.phenotips.messaging.ConnectionManager;
 import org.phenotips.vocabulary.VocabularyManager;
 import org.phenotips.vocabulary.VocabularyTerm;
@@ -210,9 +209,7 @@ public void setupComponents() throws Exception
 
         // Mock up the contact token
         ConnectionManager connManager = this.mocker.registerMockComponent(ConnectionManager.class);
-        Connection conn = mock(Connection.class);
-        when(connManager.getConnection(Matchers.any(PatientSimilarityView.class))).thenReturn(conn);
-        when(conn.getId()).thenReturn(Long.valueOf(42));
+        when(connManager.getToken(Matchers.any(PatientSimilarityView.class))).thenReturn("42");
 
         // Setup the vocabulary manager
         VocabularyManager vocabularyManager = mock(VocabularyManager.class);
@@ -34,7 +34,6 @@
 import org.phenotips.data.similarity.internal.mocks.MockFeatureMetadatum;
 import org.phenotips.data.similarity.internal.mocks.MockVocabularyTerm;
 import org.phenotips.data.similarity.permissions.internal.MatchAccessLevel;
-import org.phenotips.messaging.Connection;
 import org.phenotips.messaging.ConnectionManager;
 import org.phenotips.vocabulary.VocabularyManager;
 import org.phenotips.vocabulary.VocabularyTerm;
@@ -49,7 +48,9 @@
 import org.xwiki.component.util.ReflectionUtils;
 import org.xwiki.model.reference.DocumentReference;
 
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -68,6 +69,7 @@
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
+import net.sf.json.util.JSONBuilder;
 
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
@@ -541,6 +543,49 @@ public void testToJSONWithNoPhenotypesOrDiseases() throws ComponentLookupExcepti
         Assert.assertFalse(result.has("disorders"));
     }
 
+    /** Only the selected fields are serialized. */
+    @Test
+    public void testToJSONWithSelectedFields() throws ComponentLookupException
+    {
+        Patient mockMatch = getBasicMockMatch();
+        Patient mockReference = getBasicMockReference();
+
+        PatientSimilarityView o = new RestrictedPatientSimilarityView(mockMatch, mockReference, open);
+
+        JSONObject result = o.toJSON(Arrays.asList("id", "score", "access"));
+        Assert.assertEquals(3, result.size());
+        Assert.assertTrue(result.has("id"));
+        Assert.assertTrue(result.has("score"));
+        Assert.assertTrue(result.has("access"));
+        Assert.assertFalse(result.has("token"));
+        Assert.assertFalse(result.has("featureMatches"));
+
+        Assert.assertTrue(o.toJSON(Collections.<String>emptySet()).isEmpty());
+        Assert.assertTrue(new RestrictedPatientSimilarityView(mockMatch, mockReference, priv)
+            .toJSON(Arrays.asList("id", "score")).isNullObject());
+    }
+
+    /** The streamed JSON is the same as the one built in memory. */
+    @Test
+    public void testWriteJSONMatchesToJSON() throws ComponentLookupException
+    {
+        Patient mockMatch = getBasicMockMatch();
+        Patient mockReference = getBasicMockReference();
+
+        for (AccessType access : Arrays.asList(open, limited, priv)) {
+            PatientSimilarityView o = new RestrictedPatientSimilarityView(mockMatch, mockReference, access);
+
+            StringWriter out = new StringWriter();
+            o.writeJSON(new JSONBuilder(out), null);
+            Assert.assertEquals(o.toJSON().toString(), JSONObject.fromObject(out.toString()).toString());
+
+            out = new StringWriter();
+            o.writeJSON(new JSONBuilder(out), Arrays.asList("id", "featureMatches"));
+            Assert.assertEquals(o.toJSON(Arrays.asList("id", "featureMatches")).toString(),
+                JSONObject.fromObject(out.toString()).toString());
+        }
+    }
+
     @BeforeClass
     @SuppressWarnings("unchecked")
     public static void setupComponents() throws ComponentLookupException, CacheException
@@ -566,9 +611,7 @@ public static void setupComponents() throws ComponentLookupException, CacheExcep
         // Mock up the contact token
         ConnectionManager connManager = mock(ConnectionManager.class);
         when(componentManager.getInstance(ConnectionManager.class)).thenReturn(connManager);
-        Connection c = mock(Connection.class);
-        when(connManager.getConnection(Matchers.any(PatientSimilarityView.class))).thenReturn(c);
-        when(c.getId()).thenReturn(Long.valueOf(42));
+        when(connManager.getToken(Matchers.any(PatientSimilarityView.class))).thenReturn("42");
 
         // Wire up mocked genetics
         PatientGenotypeManager genotypeManager = new DefaultPatientGenotypeManager();
@@ -0,0 +1,212 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.internal.mocks.MockVocabularyTerm;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A synthetic ontology and cohort for comparing candidate generators against exhaustive scoring. The ontology is a
+ * balanced tree, where the information content of a term grows with its depth; patients are noisy subsets of disorder
+ * prototypes, plus an unrelated term.
+ *
+ * @version $Id$
+ */
+class SyntheticCohort
+{
+    private static final int BRANCHING = 6;
+
+    private static final int DEPTH = 5;
+
+    private static final int PROTOTYPES = 100;
+
+    private static final int PROTOTYPE_TERMS = 6;
+
+    private static final int PATIENT_TERMS = 4;
+
+    private final Random random;
+
+    private final List<VocabularyTerm> leaves = new ArrayList<VocabularyTerm>();
+
+    private final CompiledOntology ontology;
+
+    private final PhenotypeKernel kernel;
+
+    /** The closure of each patient, by identifier. */
+    private final Map<String, long[]> patients = new LinkedHashMap<String, long[]>();
+
+    /** The total information content of each patient, by identifier. */
+    private final Map<String, Double> totalICs = new HashMap<String, Double>();
+
+    /**
+     * Build the ontology, without any patients.
+     *
+     * @param random the source of randomness, seeded for reproducible results
+     */
+    SyntheticCohort(Random random)
+    {
+        this.random = random;
+        Map<VocabularyTerm, Double> termICs = new HashMap<VocabularyTerm, Double>();
+        List<VocabularyTerm> level = Collections.<VocabularyTerm>singletonList(new MockVocabularyTerm("HP:0", null));
+        for (int depth = 1; depth <= DEPTH; depth++) {
+            List<VocabularyTerm> next = new ArrayList<VocabularyTerm>();
+            for (VocabularyTerm parent : level) {
+                for (int i = 0; i < BRANCHING; i++) {
+                    VocabularyTerm term =
+                        new MockVocabularyTerm(parent.getId() + "." + i, Collections.singleton(parent));
+                    termICs.put(term, depth * (0.5 + this.random.nextDouble()));
+                    next.add(term);
+                }
+            }
+            level = next;
+        }
+        this.leaves.addAll(level);
+        this.ontology = new CompiledOntology(termICs, Collections.<VocabularyTerm>emptySet());
+        this.kernel = new PhenotypeKernel(this.ontology);
+    }
+
+    CompiledOntology getOntology()
+    {
+        return this.ontology;
+    }
+
+    PhenotypeKernel getKernel()
+    {
+        return this.kernel;
+    }
+
+    List<VocabularyTerm> getLeaves()
+    {
+        return this.leaves;
+    }
+
+    Map<String, long[]> getPatients()
+    {
+        return this.patients;
+    }
+
+    double getTotalIC(String id)
+    {
+        return this.totalICs.get(id);
+    }
+
+    long[] closure(Set<VocabularyTerm> terms)
+    {
+        List<int[]> ancestors = new ArrayList<int[]>();
+        for (VocabularyTerm term : terms) {
+            ancestors.add(this.ontology.getAncestorsAndSelf(term));
+        }
+        return this.kernel.toBitSet(CompiledOntology.union(ancestors));
+    }
+
+    /**
+     * Generate the patients of the cohort, named {@code P0} to {@code P<size - 1>}.
+     *
+     * @param size the number of patients
+     */
+    void generate(int size)
+    {
+        List<List<VocabularyTerm>> prototypes = new ArrayList<List<VocabularyTerm>>();
+        for (int i = 0; i < PROTOTYPES; i++) {
+            List<VocabularyTerm> prototype = new ArrayList<VocabularyTerm>();
+            for (int j = 0; j < PROTOTYPE_TERMS; j++) {
+                prototype.add(this.leaves.get(this.random.nextInt(this.leaves.size())));
+            }
+            prototypes.add(prototype);
+        }
+        for (int i = 0; i < size; i++) {
+            List<VocabularyTerm> prototype = new ArrayList<VocabularyTerm>(prototypes.get(i % PROTOTYPES));
+            Collections.shuffle(prototype, this.random);
+            Set<VocabularyTerm> terms = new HashSet<VocabularyTerm>(prototype.subList(0, PATIENT_TERMS));
+            terms.add(this.leaves.get(this.random.nextInt(this.leaves.size())));
+            long[] closure = closure(terms);
+            this.patients.put("P" + i, closure);
+            this.totalICs.put("P" + i, this.kernel.getTotalIC(closure));
+        }
+    }
+
+    /**
+     * Add all the patients of the cohort to an index.
+     *
+     * @param index the index to fill
+     */
+    void index(PhenotypeIndex index)
+    {
+        for (Map.Entry<String, long[]> patient : this.patients.entrySet()) {
+            index.put(patient.getKey(), patient.getValue(), this.totalICs.get(patient.getKey()));
+        }
+    }
+
+    /**
+     * Pick a random patient of the cohort.
+     *
+     * @return the identifier of the patient
+     */
+    String pick()
+    {
+        return "P" + this.random.nextInt(this.patients.size());
+    }
+
+    /**
+     * Score a patient against all the others, and return the best matches.
+     *
+     * @param queryId the identifier of the patient to match
+     * @param top the number of matches to return
+     * @return the identifiers of the best matches, best first
+     */
+    List<String> exhaustiveTop(String queryId, int top)
+    {
+        long[] query = this.patients.get(queryId);
+        double queryIC = this.totalICs.get(queryId);
+        final Map<String, Double> scores = new HashMap<String, Double>();
+        for (Map.Entry<String, long[]> patient : this.patients.entrySet()) {
+            if (!patient.getKey().equals(queryId)) {
+                double score =
+                    this.kernel.getScore(query, queryIC, patient.getValue(), this.totalICs.get(patient.getKey()));
+                if (score > 0) {
+                    scores.put(patient.getKey(), score);
+                }
+            }
+        }
+        List<Map.Entry<String, Double>> sorted = new ArrayList<Map.Entry<String, Double>>(scores.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<String, Double>>()
+        {
+            @Override
+            public int compare(Map.Entry<String, Double> o1, Map.Entry<String, Double> o2)
+            {
+                return Double.compare(o2.getValue(), o1.getValue());
+            }
+        });
+        List<String> result = new ArrayList<String>(top);
+        for (Map.Entry<String, Double> entry : sorted.subList(0, Math.min(top, sorted.size()))) {
+            result.add(entry.getKey());
+        }
+        return result;
+    }
+}
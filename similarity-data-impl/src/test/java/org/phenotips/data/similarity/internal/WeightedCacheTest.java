@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link WeightedCache} class.
+ *
+ * @version $Id$
+ */
+public class WeightedCacheTest
+{
+    /** Cached values are returned, and lookups are counted. */
+    @Test
+    public void testGetCountsHitsAndMisses()
+    {
+        WeightedCache<String> cache = new WeightedCache<String>(100);
+        cache.set("a", "A", 10);
+
+        Assert.assertEquals("A", cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals("A", cache.get("a"));
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(0, cache.getEvictions());
+        Assert.assertEquals(10, cache.getWeight());
+    }
+
+    /** The least recently used values are evicted until the total weight fits the capacity. */
+    @Test
+    public void testEvictsLeastRecentlyUsedByWeight()
+    {
+        WeightedCache<String> cache = new WeightedCache<String>(100);
+        cache.set("a", "A", 40);
+        cache.set("b", "B", 30);
+        cache.set("c", "C", 20);
+        // "a" becomes the most recently used
+        cache.get("a");
+        cache.set("d", "D", 50);
+
+        Assert.assertEquals("A", cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertNull(cache.get("c"));
+        Assert.assertEquals("D", cache.get("d"));
+        Assert.assertEquals(2, cache.getEvictions());
+        Assert.assertEquals(90, cache.getWeight());
+        Assert.assertEquals(2, cache.getSize());
+    }
+
+    /** Replacing a value updates the total weight, and values heavier than the capacity are not cached. */
+    @Test
+    public void testReplaceAndOversizedValues()
+    {
+        WeightedCache<String> cache = new WeightedCache<String>(100);
+        cache.set("a", "A", 40);
+        cache.set("a", "A2", 60);
+        Assert.assertEquals(60, cache.getWeight());
+        Assert.assertEquals("A2", cache.get("a"));
+
+        cache.set("b", "B", 101);
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals("A2", cache.get("a"));
+        Assert.assertEquals(0, cache.getEvictions());
+
+        cache.set("a", "A3", 200);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(0, cache.getWeight());
+    }
+
+    /** Removals don't count as evictions, and the statistics are all reported. */
+    @Test
+    public void testRemoveAndStatistics()
+    {
+        WeightedCache<String> cache = new WeightedCache<String>(100);
+        cache.set("a", "A", 40);
+        cache.set("b", "B", 30);
+        cache.remove("a");
+        Assert.assertEquals(30, cache.getWeight());
+        cache.removeAll();
+        Assert.assertEquals(0, cache.getWeight());
+        Assert.assertNull(cache.get("b"));
+
+        Map<String, Long> statistics = cache.getStatistics();
+        Assert.assertEquals(Long.valueOf(0), statistics.get("hits"));
+        Assert.assertEquals(Long.valueOf(1), statistics.get("misses"));
+        Assert.assertEquals(Long.valueOf(0), statistics.get("evictions"));
+        Assert.assertEquals(Long.valueOf(0), statistics.get("size"));
+        Assert.assertEquals(Long.valueOf(0), statistics.get("weight"));
+        Assert.assertEquals(Long.valueOf(100), statistics.get("capacity"));
+    }
+}
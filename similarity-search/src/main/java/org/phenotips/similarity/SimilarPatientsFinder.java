@@ -23,7 +23,9 @@
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Allows searching for patients similar to a reference patient in the current PhenoTips instance.
@@ -45,6 +47,20 @@
      */
     List<PatientSimilarityView> findSimilarPatients(Patient referencePatient);
 
+    /**
+     * Returns one page of the list of patients similar to a reference patient, as returned by
+     * {@link #findSimilarPatients(Patient)}. Only the requested page is retained while searching, so this is cheaper
+     * than retrieving the whole list when only the best matches are needed.
+     *
+     * @param referencePatient the reference patient, must not be {@code null}
+     * @param limit the maximum number of patients to return
+     * @param offset the number of best matching patients to skip
+     * @return the similar patients found in the database, ordered by decreasing score, an empty list if no patients are
+     *         found, if the offset is past the last result, or if the reference patient is invalid
+     * @since 1.0M7
+     */
+    List<PatientSimilarityView> findSimilarPatients(Patient referencePatient, int limit, int offset);
+
     /**
      * Returns a list of template patients similar to a reference patient. The reference patient must be owned by the
      * current user (or one of their groups).
@@ -55,12 +71,43 @@
      */
     List<PatientSimilarityView> findSimilarPrototypes(Patient referencePatient);
 
+    /**
+     * Returns one page of the list of template patients similar to a reference patient, as returned by
+     * {@link #findSimilarPrototypes(Patient)}.
+     *
+     * @param referencePatient the reference patient, must not be {@code null}
+     * @param limit the maximum number of templates to return
+     * @param offset the number of best matching templates to skip
+     * @return the similar patient templates found in the database, ordered by decreasing score, an empty list if no
+     *         templates are found, if the offset is past the last result, or if the reference patient is invalid
+     * @since 1.0M7
+     */
+    List<PatientSimilarityView> findSimilarPrototypes(Patient referencePatient, int limit, int offset);
+
     /**
      * Checks how many patients similar to a reference patient exist, and returns their count. The reference patient
      * must be owned by the current user (or one of their groups). Only accessible patients are counted.
+     * <p>
+     * Since 1.0M7, a patient counts as similar if it shares at least one of the reference patient's present features,
+     * or one of their informative ancestors: terms whose information content is at least a quarter of the highest
+     * information content. Thus patients sharing only a broad, but still informative, ancestor term are counted, while
+     * absent features are no longer taken into account. These are the same patients that are considered as candidates
+     * by {@link #findSimilarPatients(Patient)}, so the count is an upper bound of the number of patients found.
+     * </p>
      *
      * @param referencePatient the reference patient, must not be {@code null}
      * @return the number of similar patients found in the database, or {@code 0} if the reference patient is invalid
      */
     long countSimilarPatients(Patient referencePatient);
+
+    /**
+     * Counts the patients similar to each of several reference patients, at once. The counts are the same as those
+     * returned by {@link #countSimilarPatients(Patient)}.
+     *
+     * @param referencePatients the reference patients, must not be {@code null}
+     * @return the number of similar patients found for each of the reference patients, in the same order as the
+     *         reference patients; invalid reference patients have a count of {@code 0}
+     * @since 1.0M7
+     */
+    Map<Patient, Long> countSimilarPatients(Collection<Patient> referencePatients);
 }
@@ -0,0 +1,186 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.similarity.internal;
+
+import org.phenotips.data.similarity.FeatureSimilarityScorer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.solr.common.SolrDocument;
+
+/**
+ * Keeps the candidate documents whose indexed phenotypes are the most similar to the reference phenotype, without
+ * loading any patient. Documents are offered one at a time, so that results can be consumed as they are retrieved
+ * from the index, while only a bounded number of them is retained.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+public class CandidateShortlist
+{
+    /** Scores the indexed phenotypes. */
+    private final FeatureSimilarityScorer scorer;
+
+    /** The identifiers of the terms present in the reference phenotype. */
+    private final Collection<String> referenceTerms;
+
+    /** The indexed fields holding phenotypes. */
+    private final Set<String> termFields;
+
+    /**
+     * The maximum number of documents to keep, {@code 0} for keeping all of them without ranking; capacities that
+     * can't be reached, such as {@link Integer#MAX_VALUE}, also mean keeping all the documents.
+     */
+    private final int capacity;
+
+    /**
+     * The documents offered so far, as long as they fit in the shortlist; they are only ranked once the capacity is
+     * exceeded, so that small result sets are never scored.
+     */
+    private List<SolrDocument> all = new ArrayList<SolrDocument>();
+
+    /**
+     * Min-heap of the best ranked documents seen so far, the worst of them on top, {@code null} while all the documents
+     * fit in the shortlist. The heap grows as needed, it is never preallocated from the capacity.
+     */
+    private PriorityQueue<RankedDocument> best;
+
+    /**
+     * Simple constructor.
+     *
+     * @param scorer scores the indexed phenotypes against the reference phenotype
+     * @param referenceTerms the identifiers of the terms present in the reference phenotype
+     * @param termFields the indexed fields holding phenotypes
+     * @param capacity the maximum number of documents to keep, or {@code 0} for keeping all the documents
+     */
+    public CandidateShortlist(FeatureSimilarityScorer scorer, Collection<String> referenceTerms,
+        Set<String> termFields, int capacity)
+    {
+        this.scorer = scorer;
+        this.referenceTerms = referenceTerms;
+        this.termFields = termFields;
+        this.capacity = capacity <= 0 || capacity == Integer.MAX_VALUE ? 0 : capacity;
+    }
+
+    /**
+     * Offer a document to the shortlist. Documents with no indexed phenotype can't be ranked, so they are ranked first.
+     *
+     * @param doc the document to offer
+     * @return {@code true} if the document was kept, {@code false} if it doesn't rank among the best documents
+     */
+    public boolean offer(SolrDocument doc)
+    {
+        if (this.best == null) {
+            if (this.capacity == 0 || this.all.size() < this.capacity) {
+                this.all.add(doc);
+                return true;
+            }
+            // The capacity is exceeded for the first time, rank the documents kept so far
+            this.best = new PriorityQueue<RankedDocument>();
+            for (SolrDocument kept : this.all) {
+                this.best.add(new RankedDocument(kept, score(kept)));
+            }
+            this.all = null;
+        }
+
+        double score = score(doc);
+        if (score > this.best.peek().score) {
+            this.best.poll();
+            this.best.add(new RankedDocument(doc, score));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check whether the shortlist is full, meaning that new documents are only kept if they rank better than one of
+     * the current documents.
+     *
+     * @return {@code true} if the shortlist is bounded and full
+     */
+    public boolean isFull()
+    {
+        return this.best != null || this.capacity > 0 && this.all.size() >= this.capacity;
+    }
+
+    /**
+     * Return the documents kept.
+     *
+     * @return the best ranked documents, in no particular order
+     */
+    public List<SolrDocument> getDocuments()
+    {
+        if (this.best == null) {
+            return this.all;
+        }
+        List<SolrDocument> result = new ArrayList<SolrDocument>(this.best.size());
+        for (RankedDocument ranked : this.best) {
+            result.add(ranked.doc);
+        }
+        return result;
+    }
+
+    /**
+     * Score the indexed phenotype of a document against the reference phenotype.
+     *
+     * @param doc the document to score
+     * @return the similarity score, or {@link Double#POSITIVE_INFINITY} if the document has no indexed phenotype
+     */
+    private double score(SolrDocument doc)
+    {
+        Collection<String> matchTerms = new HashSet<String>();
+        for (String field : this.termFields) {
+            Collection<Object> values = doc.getFieldValues(field);
+            if (values != null) {
+                for (Object value : values) {
+                    matchTerms.add(String.valueOf(value));
+                }
+            }
+        }
+        return matchTerms.isEmpty() ? Double.POSITIVE_INFINITY : this.scorer.getScore(this.referenceTerms, matchTerms);
+    }
+
+    /**
+     * A matched document along with the score of its indexed phenotype, ordered by increasing score.
+     */
+    private static final class RankedDocument implements Comparable<RankedDocument>
+    {
+        /** The matched document. */
+        private final SolrDocument doc;
+
+        /** The score of the indexed phenotype. */
+        private final double score;
+
+        RankedDocument(SolrDocument doc, double score)
+        {
+            this.doc = doc;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(RankedDocument other)
+        {
+            return Double.compare(this.score, other.score);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.similarity.internal;
+
+import org.phenotips.data.Feature;
+import org.phenotips.data.Patient;
+import org.phenotips.data.similarity.TermInformationContent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.params.CommonParams;
+
+/**
+ * Builds Solr queries matching patients similar to a reference patient. Each present feature of the reference patient
+ * becomes a clause boosted by the information content of the term, so that Solr already ranks patients sharing rare
+ * phenotypes first. Informative ancestors of the features are added with a lower boost, to also match patients
+ * described with less specific terms. Only the most informative clauses are kept. Absent features are not searched
+ * for. The same queries are used for counting similar patients, see
+ * {@link org.phenotips.similarity.SimilarPatientsFinder#countSimilarPatients(Patient)}.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+public class PhenotypeQueryBuilder
+{
+    /** The indexed field holding the patient document name. */
+    public static final String DOCUMENT_FIELD = "document";
+
+    /** The indexed field holding the present phenotypes. */
+    public static final String PHENOTYPE_FIELD = "phenotype";
+
+    /** Ancestors are only added if their information content is at least this fraction of the maximum. */
+    private static final double ANCESTOR_THRESHOLD = 0.25;
+
+    /** The boost of an ancestor clause, relative to its information content. */
+    private static final double ANCESTOR_WEIGHT = 0.5;
+
+    /** The boost of terms with no known information content. */
+    private static final double DEFAULT_BOOST = 1.0;
+
+    /** Sorts clauses by decreasing boost, then alphabetically, so that the same features always give the same query. */
+    private static final Comparator<Map.Entry<String, Double>> BOOST_ORDER =
+        new Comparator<Map.Entry<String, Double>>()
+        {
+            @Override
+            public int compare(Map.Entry<String, Double> o1, Map.Entry<String, Double> o2)
+            {
+                int result = Double.compare(o2.getValue(), o1.getValue());
+                return result != 0 ? result : o1.getKey().compareTo(o2.getKey());
+            }
+        };
+
+    /** Provides the information content of terms. */
+    private final TermInformationContent informationContent;
+
+    /** The maximum number of term clauses in a query. */
+    private final int maxClauses;
+
+    /**
+     * Simple constructor.
+     *
+     * @param informationContent provides the information content of terms, used for boosting
+     * @param maxClauses the maximum number of term clauses in a query
+     */
+    public PhenotypeQueryBuilder(TermInformationContent informationContent, int maxClauses)
+    {
+        this.informationContent = informationContent;
+        this.maxClauses = maxClauses;
+    }
+
+    /**
+     * Return the indexed fields holding the phenotypes to compare with the reference patient: the types of the
+     * reference patient's present features.
+     *
+     * @param referencePatient the reference patient
+     * @return the names of the fields to compare
+     */
+    public Set<String> getTermFields(Patient referencePatient)
+    {
+        Set<String> fields = new HashSet<String>();
+        fields.add(PHENOTYPE_FIELD);
+        for (Feature phenotype : referencePatient.getFeatures()) {
+            if (phenotype.isPresent() && StringUtils.isNotBlank(phenotype.getType())) {
+                fields.add(phenotype.getType());
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Generates a Solr query that tries to match patients similar to the reference, returning the document name and
+     * the phenotype fields of the matched patients. The number of rows to retrieve is left to the caller.
+     *
+     * @param referencePatient the reference patient
+     * @param prototypes whether to search for disease prototypes instead of patients
+     * @return a query populated with terms from the patient phenotype, or {@code null} if the patient has no present
+     *         features to search for
+     */
+    public SolrQuery build(Patient referencePatient, boolean prototypes)
+    {
+        List<Map.Entry<String, Double>> clauses = new ArrayList<Map.Entry<String, Double>>(getClauses(referencePatient)
+            .entrySet());
+        if (clauses.isEmpty()) {
+            return null;
+        }
+        Collections.sort(clauses, BOOST_ORDER);
+
+        StringBuilder q = new StringBuilder();
+        for (Map.Entry<String, Double> clause : clauses.subList(0, Math.min(clauses.size(), this.maxClauses))) {
+            q.append(clause.getKey()).append(String.format(Locale.ROOT, "^%.3f ", clause.getValue()));
+        }
+        // Ignore the reference patient itself (unless reference patient is a temporary in-memory only
+        // patient, e.g. a RemoteMatchingPatient created from remote patient data obtained via remote-matching API)
+        if (referencePatient.getDocument() != null) {
+            q.append("-document:" + ClientUtils.escapeQueryChars(referencePatient.getDocument().toString()));
+        }
+        q.append(prototypes ? " +" : " -").append("document:xwiki\\:data.MIM*");
+
+        SolrQuery query = new SolrQuery();
+        query.add(CommonParams.Q, q.toString());
+        query.setFields(DOCUMENT_FIELD);
+        for (String field : getTermFields(referencePatient)) {
+            query.addField(field);
+        }
+        return query;
+    }
+
+    /**
+     * Collect the term clauses for the reference patient's present features and their informative ancestors.
+     *
+     * @param referencePatient the reference patient
+     * @return a mapping from each clause ({@code field:term}) to its boost
+     */
+    private Map<String, Double> getClauses(Patient referencePatient)
+    {
+        double threshold = ANCESTOR_THRESHOLD * this.informationContent.getMaxInformationContent();
+        Map<String, Double> clauses = new HashMap<String, Double>();
+        for (Feature phenotype : referencePatient.getFeatures()) {
+            String id = phenotype.getId();
+            if (!phenotype.isPresent() || StringUtils.isBlank(id) || StringUtils.isBlank(phenotype.getType())) {
+                continue;
+            }
+            String prefix = phenotype.getType() + ':';
+            for (Map.Entry<String, Double> ancestor : this.informationContent.getInformativeAncestors(id, threshold)
+                .entrySet()) {
+                if (!id.equals(ancestor.getKey())) {
+                    addClause(clauses, prefix + ClientUtils.escapeQueryChars(ancestor.getKey()),
+                        ANCESTOR_WEIGHT * ancestor.getValue());
+                }
+            }
+            double ic = this.informationContent.getInformationContent(id);
+            addClause(clauses, prefix + ClientUtils.escapeQueryChars(id), ic > 0 ? ic : DEFAULT_BOOST);
+        }
+        return clauses;
+    }
+
+    private void addClause(Map<String, Double> clauses, String clause, double boost)
+    {
+        Double previous = clauses.get(clause);
+        if (previous == null || previous < boost) {
+            clauses.put(clause, boost);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.similarity.internal;
+
+import org.phenotips.similarity.SimilarPatientsFinder;
+
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+/**
+ * Clears the cached similar patient counts whenever a patient record is created, modified or deleted, since that also
+ * changes the indexed patients that the counts are computed from.
+ *
+ * @version $Id$
+ * @since 1.0M7
+ */
+@Component
+@Named("similar-patients-count-invalidator")
+@Singleton
+public class SimilarPatientsCountInvalidator implements EventListener
+{
+    /** The space where patient records are stored. */
+    private static final String PATIENTS_SPACE = "data";
+
+    /** The finder holding the count cache, lazily obtained to avoid initializing it at startup. */
+    @Inject
+    private Provider<SimilarPatientsFinder> finder;
+
+    @Override
+    public String getName()
+    {
+        return "similar-patients-count-invalidator";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(),
+            new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (!(source instanceof DocumentModelBridge)) {
+            return;
+        }
+        DocumentReference reference = ((DocumentModelBridge) source).getDocumentReference();
+        if (reference == null || !PATIENTS_SPACE.equals(reference.getLastSpaceReference().getName())) {
+            return;
+        }
+        SimilarPatientsFinder patientsFinder = this.finder.get();
+        if (patientsFinder instanceof SolrSimilarPatientsFinder) {
+            ((SolrSimilarPatientsFinder) patientsFinder).clearCountCache();
+        }
+    }
+}
@@ -19,39 +19,69 @@
 
 import org.phenotips.data.Feature;
 import org.phenotips.data.Patient;
-import org.phenotips.data.PatientRepository;
 import org.phenotips.data.permissions.AccessLevel;
+import org.phenotips.data.similarity.FeatureSimilarityScorerRegistry;
+import org.phenotips.data.similarity.PatientBatchLoader;
+import org.phenotips.data.similarity.PatientCandidateGenerator;
+import org.phenotips.data.similarity.PatientMatchIndex;
 import org.phenotips.data.similarity.PatientSimilarityView;
 import org.phenotips.data.similarity.PatientSimilarityViewFactory;
+import org.phenotips.data.similarity.ScorerCost;
+import org.phenotips.data.similarity.TermInformationContent;
 import org.phenotips.similarity.SimilarPatientsFinder;
 import org.phenotips.vocabulary.SolrCoreContainerHandler;
 
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
-import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.slf4j.Logger;
 
-import groovy.lang.Singleton;
-
 /**
  * Implementation for {@link SimilarPatientsFinder} based on Solr indexing of existing patients.
  *
@@ -60,15 +90,94 @@
  */
 @Component
 @Singleton
-public class SolrSimilarPatientsFinder implements SimilarPatientsFinder, Initializable
+public class SolrSimilarPatientsFinder implements SimilarPatientsFinder, Initializable, Disposable
 {
+    /** The configuration property setting the number of threads used for scoring candidates. */
+    private static final String PARALLELISM_PROPERTY = "phenotips.similarity.search.parallelism";
+
+    /** The configuration property setting the maximum time spent scoring the candidates of one search, in ms. */
+    private static final String TIMEOUT_PROPERTY = "phenotips.similarity.search.timeout";
+
+    /** The default maximum time spent scoring the candidates of one search, in ms. */
+    private static final long DEFAULT_TIMEOUT = 30000L;
+
+    /** The configuration property setting the number of candidates fully scored after ranking indexed phenotypes. */
+    private static final String SHORTLIST_PROPERTY = "phenotips.similarity.search.shortlist";
+
+    /** The default number of candidates fully scored after ranking indexed phenotypes. */
+    private static final int DEFAULT_SHORTLIST = 200;
+
+    /** The configuration property setting the maximum number of documents retrieved from the index for a search. */
+    private static final String ROWS_PROPERTY = "phenotips.similarity.search.rows";
+
+    /** The default maximum number of documents retrieved from the index for a search. */
+    private static final int DEFAULT_ROWS = 10000;
+
+    /** The configuration property setting the number of documents retrieved from the index at once. */
+    private static final String PAGE_SIZE_PROPERTY = "phenotips.similarity.search.pageSize";
+
+    /** The default number of documents retrieved from the index at once. */
+    private static final int DEFAULT_PAGE_SIZE = 500;
+
+    /** The configuration property setting the maximum number of phenotype clauses in a search query. */
+    private static final String MAX_CLAUSES_PROPERTY = "phenotips.similarity.search.maxClauses";
+
+    /** The default maximum number of phenotype clauses in a search query. */
+    private static final int DEFAULT_MAX_CLAUSES = 100;
+
+    /**
+     * The configuration property naming the {@link PatientCandidateGenerator} used instead of the Solr index for
+     * finding candidate patients; the Solr index is used if not set, or while the generator is not ready.
+     */
+    private static final String CANDIDATES_PROPERTY = "phenotips.similarity.search.candidates";
+
+    /**
+     * The configuration property enabling the early end of candidate retrieval, as soon as a whole page of documents
+     * doesn't improve a full shortlist. This assumes that the index relevance agrees with the shortlist ranking, which
+     * only approximately holds for information content weighted scorers, so it is disabled by default.
+     */
+    private static final String EARLY_STOP_PROPERTY = "phenotips.similarity.search.earlyStop";
+
+    /**
+     * The configuration property enabling the use of the {@link PatientMatchIndex precomputed matches}, when available,
+     * for the paged searches of similar patients that only need the best matches.
+     */
+    private static final String MATCH_INDEX_PROPERTY = "phenotips.similarity.search.matchIndex";
+
+    /** The maximum number of cached similar patient counts. */
+    private static final int COUNT_CACHE_CAPACITY = 1000;
+
+    /**
+     * The configuration property holding how long, in ms, counts aren't cached after a patient changed. The patients
+     * index is updated after the change is notified, so counts computed meanwhile may still miss the change.
+     */
+    private static final String COUNT_CACHE_DELAY_PROPERTY = "phenotips.similarity.search.countCacheDelay";
+
+    /** The default delay before counts are cached again after a patient changed, in ms. */
+    private static final long DEFAULT_COUNT_CACHE_DELAY = 60000L;
+
+    /** Sorts patient pairs by descending score. */
+    private static final Comparator<PatientSimilarityView> SCORE_ORDER = new Comparator<PatientSimilarityView>()
+    {
+        @Override
+        public int compare(PatientSimilarityView o1, PatientSimilarityView o2)
+        {
+            return Double.compare(o2.getScore(), o1.getScore());
+        }
+    };
+
     /** Logging helper object. */
     @Inject
     private Logger logger;
 
-    /** Provides access to patient data. */
+    /** Loads the candidate patients, all at once. */
     @Inject
-    private PatientRepository patients;
+    private PatientBatchLoader patients;
+
+    /** Looks up the configured candidate generator. */
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> componentManager;
 
     /** The minimal access level needed for including a patient in the result. */
     @Inject
@@ -83,105 +192,599 @@ public class SolrSimilarPatientsFinder implements SimilarPatientsFinder, Initial
     @Inject
     private SolrCoreContainerHandler cores;
 
+    /** Provides the information content of terms, for boosting query clauses. */
+    @Inject
+    private TermInformationContent informationContent;
+
+    /** Provides a cheap scorer for ranking candidates using only their indexed phenotypes. */
+    @Inject
+    private FeatureSimilarityScorerRegistry scorers;
+
+    /** Creates the count cache. */
+    @Inject
+    private CacheManager cacheManager;
+
+    /** Provides the scoring parallelism and timeout. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
     /** The Solr server instance used. */
     private SolrClient server;
 
+    /** Builds the search queries. */
+    private PhenotypeQueryBuilder queryBuilder;
+
+    /**
+     * Cached similar patient counts, keyed by the query generated for the reference patient, which only depends on its
+     * features. Counts don't depend on the current user, so they're shared.
+     */
+    private Cache<Long> countCache;
+
+    /** How long counts aren't cached after a patient changed, in ms. */
+    private long countCacheDelay;
+
+    /** When the count cache was last cleared, in ms since the epoch. */
+    private volatile long lastCountChange;
+
+    /** Finds the candidate patients, {@code null} if the Solr index is used. */
+    private PatientCandidateGenerator candidateGenerator;
+
+    /** Provides the precomputed best matches, {@code null} if not available or disabled. */
+    private PatientMatchIndex matchIndex;
+
+    /** Scores candidates in parallel, {@code null} if candidates are scored on the request thread. */
+    private ExecutorService scoringExecutor;
+
+    /** Removes leftover documents from the patients index, in the background. */
+    private ExecutorService indexCleaner;
+
+    /** The maximum time spent scoring the candidates of one search, in ms. */
+    private long timeout;
+
+    /** The number of candidates fully scored after ranking indexed phenotypes, all candidates if not positive. */
+    private int shortlistSize;
+
+    /** The maximum number of documents retrieved from the index for a search. */
+    private int maxRows;
+
+    /** The number of documents retrieved from the index at once. */
+    private int pageSize;
+
+    /** Whether candidate retrieval stops at the first page that doesn't improve a full shortlist. */
+    private boolean earlyStop;
+
     @Override
     public void initialize() throws InitializationException
     {
         this.server = new EmbeddedSolrServer(this.cores.getContainer(), "patients");
+
+        int parallelism =
+            this.configuration.getProperty(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors());
+        this.timeout = this.configuration.getProperty(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT);
+        this.shortlistSize = this.configuration.getProperty(SHORTLIST_PROPERTY, DEFAULT_SHORTLIST);
+        this.maxRows = this.configuration.getProperty(ROWS_PROPERTY, DEFAULT_ROWS);
+        this.pageSize = Math.max(1, this.configuration.getProperty(PAGE_SIZE_PROPERTY, DEFAULT_PAGE_SIZE));
+        this.earlyStop = this.configuration.getProperty(EARLY_STOP_PROPERTY, Boolean.FALSE);
+        this.countCacheDelay = this.configuration.getProperty(COUNT_CACHE_DELAY_PROPERTY, DEFAULT_COUNT_CACHE_DELAY);
+        this.queryBuilder = new PhenotypeQueryBuilder(this.informationContent,
+            this.configuration.getProperty(MAX_CLAUSES_PROPERTY, DEFAULT_MAX_CLAUSES));
+
+        String generatorHint = this.configuration.getProperty(CANDIDATES_PROPERTY, "");
+        if (StringUtils.isNotBlank(generatorHint)) {
+            try {
+                this.candidateGenerator =
+                    this.componentManager.get().getInstance(PatientCandidateGenerator.class, generatorHint);
+            } catch (ComponentLookupException ex) {
+                this.logger.warn("Unknown candidate generator [{}], using the patients index", generatorHint);
+            }
+        }
+
+        if (this.configuration.getProperty(MATCH_INDEX_PROPERTY, Boolean.TRUE)) {
+            try {
+                this.matchIndex = this.componentManager.get().getInstance(PatientMatchIndex.class);
+            } catch (ComponentLookupException ex) {
+                this.logger.debug("No patient match index available, always searching the patients index");
+            }
+        }
+
+        try {
+            CacheConfiguration cacheConfig = new CacheConfiguration();
+            LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+            lru.setMaxEntries(COUNT_CACHE_CAPACITY);
+            cacheConfig.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+            this.countCache = this.cacheManager.createNewLocalCache(cacheConfig);
+        } catch (CacheException ex) {
+            this.logger.warn("Unable to create cache for similar patient counts: {}", ex.getMessage());
+        }
+        this.indexCleaner = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "similar-patients-index-cleaner");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        if (parallelism > 1) {
+            this.scoringExecutor = Executors.newFixedThreadPool(parallelism, new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "similar-patients-scorer-" + this.count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.indexCleaner.shutdownNow();
+        if (this.scoringExecutor != null) {
+            this.scoringExecutor.shutdownNow();
+        }
+        if (this.countCache != null) {
+            this.countCache.dispose();
+        }
     }
 
     @Override
     public List<PatientSimilarityView> findSimilarPatients(Patient referencePatient)
     {
-        return find(referencePatient, false);
+        return find(referencePatient, false, Integer.MAX_VALUE, 0);
+    }
+
+    @Override
+    public List<PatientSimilarityView> findSimilarPatients(Patient referencePatient, int limit, int offset)
+    {
+        if (limit <= 0 || offset < 0) {
+            return Collections.emptyList();
+        }
+        List<PatientSimilarityView> precomputed = findPrecomputed(referencePatient, limit, offset);
+        if (precomputed != null) {
+            return precomputed;
+        }
+        return find(referencePatient, false, limit, offset);
     }
 
     @Override
     public List<PatientSimilarityView> findSimilarPrototypes(Patient referencePatient)
     {
-        return find(referencePatient, true);
+        return find(referencePatient, true, Integer.MAX_VALUE, 0);
+    }
+
+    @Override
+    public List<PatientSimilarityView> findSimilarPrototypes(Patient referencePatient, int limit, int offset)
+    {
+        if (limit <= 0 || offset < 0) {
+            return Collections.emptyList();
+        }
+        return find(referencePatient, true, limit, offset);
     }
 
     @Override
     public long countSimilarPatients(Patient referencePatient)
     {
-        SolrQuery query = generateQuery(referencePatient, false);
-        return count(query);
+        SolrQuery query = this.queryBuilder.build(referencePatient, false);
+        if (query == null) {
+            return 0;
+        }
+        String key = query.get(CommonParams.Q);
+        Long result = this.countCache == null ? null : this.countCache.get(key);
+        if (result == null) {
+            long started = System.currentTimeMillis();
+            result = count(query);
+            cacheCount(key, result, started);
+        }
+        return result;
     }
 
-    private List<PatientSimilarityView> find(Patient referencePatient, boolean prototypes)
+    @Override
+    public Map<Patient, Long> countSimilarPatients(Collection<Patient> referencePatients)
     {
-        //logger.error("Searching for patients using access level: {}", this.accessLevelThreshold.getName());
-        SolrQuery query = generateQuery(referencePatient, prototypes);
-        SolrDocumentList docs = search(query);
-        List<PatientSimilarityView> results = new ArrayList<PatientSimilarityView>(docs.size());
-        for (SolrDocument doc : docs) {
-            String name = (String) doc.getFieldValue("document");
-            Patient matchPatient = this.patients.getPatientById(name);
+        Map<Patient, Long> result = new LinkedHashMap<Patient, Long>();
+        Map<String, List<Patient>> pending = new LinkedHashMap<String, List<Patient>>();
+        for (Patient referencePatient : referencePatients) {
+            SolrQuery query = this.queryBuilder.build(referencePatient, false);
+            String key = query == null ? null : query.get(CommonParams.Q);
+            Long count = key == null ? Long.valueOf(0) : this.countCache == null ? null : this.countCache.get(key);
+            result.put(referencePatient, count);
+            if (count == null) {
+                List<Patient> samePhenotype = pending.get(key);
+                if (samePhenotype == null) {
+                    samePhenotype = new ArrayList<Patient>();
+                    pending.put(key, samePhenotype);
+                }
+                samePhenotype.add(referencePatient);
+            }
+        }
+        if (pending.isEmpty()) {
+            return result;
+        }
+
+        // Count all the remaining queries at once, as facets over the whole index
+        long started = System.currentTimeMillis();
+        SolrQuery query = new SolrQuery("*:*");
+        query.setRows(0);
+        query.setFacet(true);
+        for (String key : pending.keySet()) {
+            query.addFacetQuery(key);
+        }
+        QueryResponse response = query(query);
+        Map<String, Integer> counts = response == null ? null : response.getFacetQuery();
+        for (Map.Entry<String, List<Patient>> entry : pending.entrySet()) {
+            Integer count = counts == null ? null : counts.get(entry.getKey());
+            long value = count == null ? 0 : count;
+            if (count != null) {
+                cacheCount(entry.getKey(), value, started);
+            }
+            for (Patient referencePatient : entry.getValue()) {
+                result.put(referencePatient, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forget all the cached similar patient counts. Counts may change whenever a patient is created, modified or
+     * deleted. Since the patients index is only updated after that, counts computed shortly after aren't cached.
+     */
+    public void clearCountCache()
+    {
+        this.lastCountChange = System.currentTimeMillis();
+        if (this.countCache != null) {
+            this.countCache.removeAll();
+        }
+    }
+
+    /**
+     * Caches a count, unless it was computed too soon after a patient changed, when the index may still be outdated.
+     *
+     * @param key the query whose matches were counted
+     * @param count the number of matches
+     * @param started when the count was started, in ms since the epoch
+     */
+    private void cacheCount(String key, long count, long started)
+    {
+        if (this.countCache != null && started - this.lastCountChange >= this.countCacheDelay) {
+            this.countCache.set(key, count);
+        }
+    }
+
+    /**
+     * Reads a page of similar patients from the precomputed matches, if the page is within the matches stored for the
+     * reference patient.
+     *
+     * @param referencePatient the reference patient
+     * @param limit the maximum number of matches to return
+     * @param offset the number of best matches to skip
+     * @return the requested page of matches, or {@code null} if it cannot be read from the precomputed matches: the
+     *         match index is not available or not ready yet, the page goes beyond the stored matches, or no matches
+     *         are stored for the reference patient, for example because it was just created
+     */
+    private List<PatientSimilarityView> findPrecomputed(Patient referencePatient, int limit, int offset)
+    {
+        if (this.matchIndex == null || referencePatient.getDocument() == null
+            || (long) limit + offset > this.matchIndex.getSize() || !this.matchIndex.isReady()) {
+            return null;
+        }
+        List<PatientSimilarityView> matches = this.matchIndex.getMatches(referencePatient);
+        if (matches.isEmpty()) {
+            return null;
+        }
+        int start = Math.min(offset, matches.size());
+        return new ArrayList<PatientSimilarityView>(matches.subList(start, Math.min(start + limit, matches.size())));
+    }
+
+    private List<PatientSimilarityView> find(Patient referencePatient, boolean prototypes, int limit, int offset)
+    {
+        // Only load and fully score the best candidates; unpaged searches keep all of them
+        long wanted = (long) limit + offset;
+        int keep = this.shortlistSize <= 0 || wanted >= Integer.MAX_VALUE ? 0
+            : (int) Math.max(this.shortlistSize, wanted);
+        boolean indexed = this.candidateGenerator == null || prototypes || !this.candidateGenerator.isReady();
+
+        // Candidates the current user can't access are only left out after loading them, so if too few of them are
+        // accessible to fill the page, a longer shortlist is retrieved, and only its new candidates are loaded
+        Set<String> seen = new HashSet<String>();
+        List<PatientSimilarityView> candidates = new ArrayList<PatientSimilarityView>();
+        while (true) {
+            List<String> names;
+            if (indexed) {
+                names = findCandidates(referencePatient, prototypes, keep);
+            } else {
+                names = new ArrayList<String>(
+                    this.candidateGenerator.getCandidates(referencePatient, keep > 0 ? keep : this.maxRows).keySet());
+            }
+            List<String> newNames = new ArrayList<String>(names.size());
+            for (String name : names) {
+                if (name != null && seen.add(name)) {
+                    newNames.add(name);
+                }
+            }
+            addAccessibleCandidates(referencePatient, newNames, indexed, candidates);
+
+            if (keep == 0 || candidates.size() >= wanted || names.size() < keep || keep >= this.maxRows) {
+                break;
+            }
+            keep = (int) Math.min(this.maxRows, 2L * keep);
+        }
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        return selectTop(score(candidates), limit, offset);
+    }
+
+    /**
+     * Load the candidate patients and keep the ones the current user can access. Loading patients and checking access
+     * rights need the XWiki context, so this stays on the request thread.
+     *
+     * @param referencePatient the reference patient
+     * @param names the names of the candidates
+     * @param indexed whether the names come from the patients index, which is cleaned of the stale names
+     * @param candidates collects the accessible candidate patient pairs
+     */
+    private void addAccessibleCandidates(Patient referencePatient, List<String> names, boolean indexed,
+        List<PatientSimilarityView> candidates)
+    {
+        if (names.isEmpty()) {
+            return;
+        }
+        Map<String, Patient> matchPatients = this.patients.load(names);
+        List<String> stale = new ArrayList<String>();
+        for (String name : names) {
+            Patient matchPatient = matchPatients.get(name);
             if (matchPatient == null) {
-                // Leftover patient in the index, should be removed
+                if (!matchPatients.containsKey(name)) {
+                    stale.add(name);
+                }
                 continue;
             }
             PatientSimilarityView result = this.factory.makeSimilarPatient(matchPatient, referencePatient);
-            //logger.error("Found match: found {}, score: {}, accessLevel: {}, accessCompare: {}",
-            //             name, result.getScore(), result.getAccess().getName(),
-            //             this.accessLevelThreshold.compareTo(result.getAccess()));
-            if (this.accessLevelThreshold.compareTo(result.getAccess()) <= 0 && result.getScore() > 0) {
-                //logger.error("added match");
-                results.add(result);
+            if (this.accessLevelThreshold.compareTo(result.getAccess()) <= 0) {
+                candidates.add(result);
             }
         }
+        if (indexed && !stale.isEmpty()) {
+            removeStaleDocuments(stale);
+        }
+    }
 
-        Collections.sort(results, new Comparator<PatientSimilarityView>()
+    /**
+     * Remove leftover documents from the patients index in the background, so that searches don't wait for it.
+     *
+     * @param names the indexed names of the documents which no longer hold a patient record
+     */
+    private void removeStaleDocuments(final List<String> names)
+    {
+        this.indexCleaner.submit(new Runnable()
         {
             @Override
-            public int compare(PatientSimilarityView o1, PatientSimilarityView o2)
+            public void run()
             {
-                return (int) Math.signum(o2.getScore() - o1.getScore());
+                try {
+                    SolrSimilarPatientsFinder.this.server.deleteById(names);
+                    SolrSimilarPatientsFinder.this.server.commit();
+                    SolrSimilarPatientsFinder.this.logger.debug("Removed {} deleted patients from the index",
+                        names.size());
+                } catch (IOException | SolrServerException ex) {
+                    SolrSimilarPatientsFinder.this.logger.warn("Failed to remove deleted patients from the index: {}",
+                        ex.getMessage());
+                }
             }
         });
-        return results;
     }
 
     /**
-     * Generates a Solr query that tries to match patients similar to the reference.
+     * Searches the Solr index for the candidates with the best indexed phenotypes.
+     *
+     * @param referencePatient the reference patient
+     * @param prototypes whether to search for disorder prototypes instead of patients
+     * @param keep the number of candidates to keep, all of them if {@code 0}
+     * @return the names of the candidate documents
+     */
+    private List<String> findCandidates(Patient referencePatient, boolean prototypes, int keep)
+    {
+        SolrQuery query = this.queryBuilder.build(referencePatient, prototypes);
+        if (query == null) {
+            return Collections.emptyList();
+        }
+        // Ranking all the retrieved documents must stay cheap, whatever the configured scorer
+        CandidateShortlist shortlist = new CandidateShortlist(this.scorers.getScorer(ScorerCost.LOW),
+            getReferenceTerms(referencePatient), this.queryBuilder.getTermFields(referencePatient), keep);
+        fetchCandidates(query, shortlist);
+
+        List<SolrDocument> docs = shortlist.getDocuments();
+        List<String> names = new ArrayList<String>(docs.size());
+        for (SolrDocument doc : docs) {
+            names.add((String) doc.getFieldValue(PhenotypeQueryBuilder.DOCUMENT_FIELD));
+        }
+        return names;
+    }
+
+    /**
+     * Selects one page of the best scoring patient pairs. Only the pairs up to the end of the requested page are kept
+     * in a bounded heap, instead of sorting all of them.
+     *
+     * @param scored the scored patient pairs
+     * @param limit the maximum number of pairs to return
+     * @param offset the number of best scoring pairs to skip
+     * @return the selected pairs, ordered by decreasing score
+     */
+    private List<PatientSimilarityView> selectTop(List<PatientSimilarityView> scored, int limit, int offset)
+    {
+        int keep = (int) Math.min((long) limit + offset, scored.size());
+        if (offset >= keep) {
+            return Collections.emptyList();
+        } else if (keep == scored.size()) {
+            Collections.sort(scored, SCORE_ORDER);
+            return offset == 0 ? scored : new ArrayList<PatientSimilarityView>(scored.subList(offset, keep));
+        }
+
+        // Min-heap of the best pairs seen so far, the worst of them on top
+        PriorityQueue<PatientSimilarityView> best =
+            new PriorityQueue<PatientSimilarityView>(keep, Collections.reverseOrder(SCORE_ORDER));
+        for (PatientSimilarityView pair : scored) {
+            if (best.size() < keep) {
+                best.add(pair);
+            } else if (pair.getScore() > best.peek().getScore()) {
+                best.poll();
+                best.add(pair);
+            }
+        }
+
+        List<PatientSimilarityView> results = new ArrayList<PatientSimilarityView>(best);
+        Collections.sort(results, SCORE_ORDER);
+        return new ArrayList<PatientSimilarityView>(results.subList(offset, keep));
+    }
+
+    /**
+     * Return the identifiers of the terms present in the reference patient.
      *
      * @param referencePatient the reference patient
-     * @return a query populated with terms from the patient phenotype
+     * @return a set of term identifiers
      */
-    private SolrQuery generateQuery(Patient referencePatient, boolean prototypes)
+    private Collection<String> getReferenceTerms(Patient referencePatient)
     {
-        SolrQuery query = new SolrQuery();
-        StringBuilder q = new StringBuilder();
-        // FIXME This is a very basic implementation, to be revisited
+        Collection<String> referenceTerms = new HashSet<String>();
         for (Feature phenotype : referencePatient.getFeatures()) {
-            if (StringUtils.isNotBlank(phenotype.getId())) {
-                q.append(phenotype.getType() + ":" + ClientUtils.escapeQueryChars(phenotype.getId()) + " ");
+            if (phenotype.isPresent() && StringUtils.isNotBlank(phenotype.getId())) {
+                referenceTerms.add(phenotype.getId());
+            }
+        }
+        return referenceTerms;
+    }
+
+    /**
+     * Retrieves the documents matched by a query one page at a time, using a cursor, and offers them to the
+     * shortlist. Retrieval stops at the end of the results or after {@link #maxRows} documents. If {@link #earlyStop}
+     * is enabled, it also stops as soon as a whole page of documents didn't make it into an already full shortlist,
+     * since documents come in decreasing order of relevance.
+     *
+     * @param query the query prepared with {@link PhenotypeQueryBuilder#build(Patient, boolean)}
+     * @param shortlist collects the best candidates
+     */
+    private void fetchCandidates(SolrQuery query, CandidateShortlist shortlist)
+    {
+        // Cursors need a total order, including the unique key
+        query.setSort("score", SolrQuery.ORDER.desc);
+        query.addSort(PhenotypeQueryBuilder.DOCUMENT_FIELD, SolrQuery.ORDER.asc);
+        String cursor = CursorMarkParams.CURSOR_MARK_START;
+        int fetched = 0;
+        while (fetched < this.maxRows) {
+            query.setRows(Math.min(this.pageSize, this.maxRows - fetched));
+            query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursor);
+            QueryResponse response = query(query);
+            if (response == null || response.getResults() == null) {
+                return;
             }
+            SolrDocumentList page = response.getResults();
+            boolean improved = false;
+            for (SolrDocument doc : page) {
+                improved |= shortlist.offer(doc);
+            }
+            fetched += page.size();
+
+            String next = response.getNextCursorMark();
+            if (page.isEmpty() || next == null || next.equals(cursor)
+                || (this.earlyStop && shortlist.isFull() && !improved)) {
+                return;
+            }
+            cursor = next;
+        }
+    }
+
+    /**
+     * Scores the candidates, in parallel if a scoring executor is configured, and keeps those with a positive score.
+     * Candidates not scored before the search timeout are left out of the results.
+     *
+     * @param candidates the candidate patient pairs
+     * @return the candidates with a positive score, in no particular order
+     */
+    private List<PatientSimilarityView> score(List<PatientSimilarityView> candidates)
+    {
+        List<PatientSimilarityView> results = new ArrayList<PatientSimilarityView>(candidates.size());
+        if (this.scoringExecutor == null || candidates.size() < 2) {
+            for (PatientSimilarityView candidate : candidates) {
+                if (candidate.getScore() > 0) {
+                    results.add(candidate);
+                }
+            }
+            return results;
+        }
+
+        List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(candidates.size());
+        for (final PatientSimilarityView candidate : candidates) {
+            tasks.add(new Callable<Double>()
+            {
+                @Override
+                public Double call()
+                {
+                    return candidate.getScore();
+                }
+            });
         }
-        // Ignore the reference patient itself (unless reference patient is a temporary in-memory only
-        // patient, e.g. a RemoteMatchingPatient created from remote patient data obtained via remote-matching API)
-        if (referencePatient.getDocument() != null) {
-            q.append("-document:" + ClientUtils.escapeQueryChars(referencePatient.getDocument().toString()));
+
+        List<Future<Double>> scores;
+        try {
+            scores = this.scoringExecutor.invokeAll(tasks, this.timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return results;
         }
-        q.append(prototypes ? " +" : " -").append("document:xwiki\\:data.MIM*");
-        query.add(CommonParams.Q, q.toString());
-        //logger.error("SOLRQUERY generated: {}", query.toString());
-        return query;
+        int timedOut = 0;
+        for (int i = 0; i < scores.size(); i++) {
+            try {
+                if (scores.get(i).get() > 0) {
+                    results.add(candidates.get(i));
+                }
+            } catch (CancellationException ex) {
+                ++timedOut;
+            } catch (ExecutionException ex) {
+                this.logger.warn("Failed to score a candidate patient: {}", ex.getCause().getMessage());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (timedOut > 0) {
+            this.logger.warn("Similar patients search timed out, {} of {} candidates were not scored", timedOut,
+                candidates.size());
+        }
+        return results;
     }
 
     /**
      * Performs a search in the Solr index, returning the matched documents.
      *
-     * @param query the query prepared with {@link #generateQuery(Patient)}
+     * @param query the query prepared with {@link PhenotypeQueryBuilder#build(Patient, boolean)}
      * @return the documents matched by the query, if any
      */
     private SolrDocumentList search(SolrQuery query)
+    {
+        QueryResponse response = query(query);
+        return response == null ? null : response.getResults();
+    }
+
+    /**
+     * Performs a search in the Solr index.
+     *
+     * @param query the query prepared with {@link PhenotypeQueryBuilder#build(Patient, boolean)}
+     * @return the response to the query, {@code null} if the query failed
+     */
+    private QueryResponse query(SolrQuery query)
     {
         try {
-            return this.server.query(query).getResults();
+            return this.server.query(query);
         } catch (IOException | SolrServerException ex) {
             this.logger.warn("Failed to query the patients index: {}",
                     ex.getMessage());
@@ -192,7 +795,7 @@ private SolrDocumentList search(SolrQuery query)
     /**
      * Performs a search in the Solr index, returning only the total number of matches found.
      *
-     * @param query the query prepared with {@link #generateQuery(Patient)}
+     * @param query the query prepared with {@link PhenotypeQueryBuilder#build(Patient, boolean)}
      * @return the total number of document matched by the query, {@code 0} if none match
      */
     private long count(SolrQuery query)
@@ -25,12 +25,18 @@
 import org.xwiki.script.service.ScriptService;
 import org.xwiki.stability.Unstable;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import net.sf.json.util.JSONBuilder;
+
 /**
  * Allows searching for patients similar to a reference patient in the current PhenoTips instance.
  *
@@ -60,6 +66,23 @@ public List<PatientSimilarityView> findSimilarPatients(Patient referencePatient)
         return this.finder.findSimilarPatients(referencePatient);
     }
 
+    /**
+     * Returns one page of the list of patients similar to a reference patient, ordered by decreasing score. The
+     * reference patient must be owned by the current user (or one of their groups). Only accessible patients are
+     * returned.
+     *
+     * @param referencePatient the reference patient, must not be {@code null}
+     * @param limit the maximum number of patients to return
+     * @param offset the number of best matching patients to skip
+     * @return the similar patients found in the database, an empty list if no patients are found or if the reference
+     *         patient is invalid
+     * @since 1.0M7
+     */
+    public List<PatientSimilarityView> findSimilarPatients(Patient referencePatient, int limit, int offset)
+    {
+        return this.finder.findSimilarPatients(referencePatient, limit, offset);
+    }
+
     /**
      * Returns a list of patients similar to a reference patient. The reference patient must be owned by the current
      * user (or one of their groups). Only accessible patients are returned.
@@ -73,9 +96,26 @@ public List<PatientSimilarityView> findSimilarPrototypes(Patient referencePatien
         return this.finder.findSimilarPrototypes(referencePatient);
     }
 
+    /**
+     * Returns one page of the list of template patients similar to a reference patient, ordered by decreasing score.
+     * The reference patient must be owned by the current user (or one of their groups).
+     *
+     * @param referencePatient the reference patient, must not be {@code null}
+     * @param limit the maximum number of templates to return
+     * @param offset the number of best matching templates to skip
+     * @return the similar patient templates found in the database, an empty list if no templates are found or if the
+     *         reference patient is invalid
+     * @since 1.0M7
+     */
+    public List<PatientSimilarityView> findSimilarPrototypes(Patient referencePatient, int limit, int offset)
+    {
+        return this.finder.findSimilarPrototypes(referencePatient, limit, offset);
+    }
+
     /**
      * Checks how many patients similar to a reference patient exist, and returns their count. The reference patient
-     * must be owned by the current user (or one of their groups). Only accessible patients are counted.
+     * must be owned by the current user (or one of their groups). Only accessible patients are counted. See
+     * {@link SimilarPatientsFinder#countSimilarPatients(Patient)} for which patients count as similar.
      *
      * @param referencePatient the reference patient, must not be {@code null}
      * @return the number of similar patients found in the database, or {@code 0} if the reference patient is invalid
@@ -84,4 +124,48 @@ public long countSimilarPatients(Patient referencePatient)
     {
         return this.finder.countSimilarPatients(referencePatient);
     }
+
+    /**
+     * Counts the patients similar to each of several reference patients, at once, which is much faster than counting
+     * them one by one. Only accessible patients are counted.
+     *
+     * @param referencePatients the reference patients, must not be {@code null}
+     * @return the number of similar patients found for each of the reference patients, in the same order as the
+     *         reference patients; invalid reference patients have a count of {@code 0}
+     * @since 1.0M7
+     */
+    public Map<Patient, Long> countSimilarPatients(Collection<Patient> referencePatients)
+    {
+        return this.finder.countSimilarPatients(referencePatients);
+    }
+
+    /**
+     * Writes a list of matches directly to an output stream, as a JSON object holding the serialized reference patient
+     * ({@code query}), the number of matches ({@code resultsCount}) and the serialized matches ({@code results}). The
+     * matches are streamed one by one instead of being collected in a JSON tree, which keeps the memory needed for
+     * long result lists low.
+     *
+     * @param referencePatient the reference patient, must not be {@code null}
+     * @param matches the matches to serialize, as returned by {@link #findSimilarPatients(Patient)}
+     * @param onlyFieldNames the names of the fields to write for each match, {@code null} or empty for all fields
+     * @param writer where to write the JSON to
+     * @throws IOException if writing to the output fails
+     * @since 1.0M7
+     */
+    public void writeJSON(Patient referencePatient, Collection<PatientSimilarityView> matches,
+        Collection<String> onlyFieldNames, Writer writer) throws IOException
+    {
+        Collection<String> fields = onlyFieldNames == null || onlyFieldNames.isEmpty() ? null : onlyFieldNames;
+        JSONBuilder json = new JSONBuilder(writer);
+        json.object();
+        json.key("query").value(referencePatient.toJSON());
+        json.key("resultsCount").value(matches.size());
+        json.key("results").array();
+        for (PatientSimilarityView match : matches) {
+            match.writeJSON(json, fields);
+        }
+        json.endArray();
+        json.endObject();
+        writer.flush();
+    }
 }
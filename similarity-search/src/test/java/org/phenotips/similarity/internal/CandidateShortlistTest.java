@@ -0,0 +1,125 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.similarity.internal;
+
+import org.phenotips.data.similarity.FeatureSimilarityScorer;
+import org.phenotips.data.similarity.ScorerCost;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.solr.common.SolrDocument;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link CandidateShortlist} class.
+ *
+ * @version $Id$
+ */
+public class CandidateShortlistTest
+{
+    /** The reference phenotype. */
+    private static final Collection<String> REFERENCE = Collections.singleton("HP:0000001");
+
+    /** The indexed fields holding phenotypes. */
+    private static final Set<String> FIELDS = Collections.singleton("phenotype");
+
+    /** Scores phenotypes with their number of terms, counting how many times it was called. */
+    private final CountingScorer scorer = new CountingScorer();
+
+    private SolrDocument document(String name, String... terms)
+    {
+        SolrDocument doc = new SolrDocument();
+        doc.setField("document", name);
+        doc.setField("phenotype", Arrays.asList(terms));
+        return doc;
+    }
+
+    private Set<Object> names(List<SolrDocument> docs)
+    {
+        Set<Object> result = new HashSet<Object>();
+        for (SolrDocument doc : docs) {
+            result.add(doc.getFieldValue("document"));
+        }
+        return result;
+    }
+
+    /** An unbounded capacity keeps all the documents, without allocating for the capacity or scoring them. */
+    @Test
+    public void testUnboundedCapacityKeepsEverything()
+    {
+        CandidateShortlist shortlist = new CandidateShortlist(this.scorer, REFERENCE, FIELDS, Integer.MAX_VALUE);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(shortlist.offer(document("P" + i, "HP:0000002")));
+        }
+        Assert.assertFalse(shortlist.isFull());
+        Assert.assertEquals(1000, shortlist.getDocuments().size());
+        Assert.assertEquals(0, this.scorer.calls);
+    }
+
+    /** Documents are not scored as long as they all fit in the shortlist. */
+    @Test
+    public void testSmallResultsAreNotScored()
+    {
+        CandidateShortlist shortlist = new CandidateShortlist(this.scorer, REFERENCE, FIELDS, 3);
+        shortlist.offer(document("P1", "HP:0000002"));
+        shortlist.offer(document("P2", "HP:0000002"));
+        Assert.assertFalse(shortlist.isFull());
+        shortlist.offer(document("P3", "HP:0000002"));
+        Assert.assertTrue(shortlist.isFull());
+        Assert.assertEquals(3, shortlist.getDocuments().size());
+        Assert.assertEquals(0, this.scorer.calls);
+    }
+
+    /** Once the capacity is exceeded, only the best scoring documents are kept. */
+    @Test
+    public void testBoundedCapacityKeepsBestDocuments()
+    {
+        CandidateShortlist shortlist = new CandidateShortlist(this.scorer, REFERENCE, FIELDS, 2);
+        Assert.assertTrue(shortlist.offer(document("P1", "HP:0000002")));
+        Assert.assertTrue(shortlist.offer(document("P2", "HP:0000002", "HP:0000003", "HP:0000004")));
+        Assert.assertTrue(shortlist.offer(document("P3", "HP:0000002", "HP:0000003")));
+        Assert.assertFalse(shortlist.offer(document("P4", "HP:0000002")));
+        Assert.assertTrue(shortlist.isFull());
+        Assert.assertEquals(new HashSet<Object>(Arrays.asList("P2", "P3")), names(shortlist.getDocuments()));
+    }
+
+    /** Scores a phenotype with its number of terms, out of ten. */
+    private static final class CountingScorer implements FeatureSimilarityScorer
+    {
+        private int calls;
+
+        @Override
+        public double getScore(Collection<String> referenceTerms, Collection<String> matchTerms)
+        {
+            ++this.calls;
+            return matchTerms.size() / 10.0;
+        }
+
+        @Override
+        public ScorerCost getCost()
+        {
+            return ScorerCost.LOW;
+        }
+    }
+}
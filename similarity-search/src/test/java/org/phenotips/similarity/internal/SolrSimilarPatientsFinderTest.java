@@ -0,0 +1,471 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.similarity.internal;
+
+import org.phenotips.data.Feature;
+import org.phenotips.data.Patient;
+import org.phenotips.data.permissions.AccessLevel;
+import org.phenotips.data.similarity.FeatureSimilarityScorer;
+import org.phenotips.data.similarity.FeatureSimilarityScorerRegistry;
+import org.phenotips.data.similarity.PatientBatchLoader;
+import org.phenotips.data.similarity.PatientMatchIndex;
+import org.phenotips.data.similarity.PatientSimilarityView;
+import org.phenotips.data.similarity.PatientSimilarityViewFactory;
+import org.phenotips.data.similarity.ScorerCost;
+import org.phenotips.similarity.SimilarPatientsFinder;
+import org.phenotips.vocabulary.SolrCoreContainerHandler;
+
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.cache.Cache;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Provider;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.core.CoreContainer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the Solr based {@link SimilarPatientsFinder} implementation, {@link SolrSimilarPatientsFinder}.
+ *
+ * @version $Id$
+ */
+public class SolrSimilarPatientsFinderTest
+{
+    /** The number of documents returned by the patients index. */
+    private static final int MATCHES = 3;
+
+    @Rule
+    public final MockitoComponentMockingRule<SimilarPatientsFinder> mocker =
+        new MockitoComponentMockingRule<SimilarPatientsFinder>(SolrSimilarPatientsFinder.class);
+
+    private Patient reference;
+
+    private FeatureSimilarityScorer scorer;
+
+    /** The existing patients, by name. */
+    private Map<String, Patient> patients = new HashMap<String, Patient>();
+
+    private PatientBatchLoader loader;
+
+    @Before
+    public void setup() throws Exception
+    {
+        // Use the default value of all the configuration properties, but score on the request thread
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        Answer<Object> defaultValue = new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return invocation.getArguments()[1];
+            }
+        };
+        doAnswer(defaultValue).when(configuration).getProperty(Matchers.anyString(), Matchers.anyInt());
+        doAnswer(defaultValue).when(configuration).getProperty(Matchers.anyString(), Matchers.anyLong());
+        doAnswer(defaultValue).when(configuration).getProperty(Matchers.anyString(), Matchers.anyString());
+        doAnswer(defaultValue).when(configuration).getProperty(Matchers.anyString(), Matchers.anyBoolean());
+        doReturn(1).when(configuration).getProperty(Matchers.eq("phenotips.similarity.search.parallelism"),
+            Matchers.anyInt());
+        SolrCoreContainerHandler cores = this.mocker.getInstance(SolrCoreContainerHandler.class);
+        when(cores.getContainer()).thenReturn(mock(CoreContainer.class));
+        this.scorer = mock(FeatureSimilarityScorer.class);
+        FeatureSimilarityScorerRegistry scorers = this.mocker.getInstance(FeatureSimilarityScorerRegistry.class);
+        when(scorers.getScorer(ScorerCost.LOW)).thenReturn(this.scorer);
+
+        this.reference = mock(Patient.class);
+        Feature feature = mock(Feature.class);
+        when(feature.getId()).thenReturn("HP:0000118");
+        when(feature.getType()).thenReturn("phenotype");
+        when(feature.isPresent()).thenReturn(true);
+        doReturn(Collections.singleton(feature)).when(this.reference).getFeatures();
+
+        SolrDocumentList docs = new SolrDocumentList();
+        PatientSimilarityViewFactory factory =
+            this.mocker.getInstance(PatientSimilarityViewFactory.class, "restricted");
+        for (int i = 1; i <= MATCHES; i++) {
+            SolrDocument doc = new SolrDocument();
+            doc.setField("document", "P000000" + i);
+            doc.setField("phenotype", Collections.singletonList("HP:0000118"));
+            docs.add(doc);
+            docs.setNumFound(i);
+
+            Patient match = mock(Patient.class);
+            this.patients.put("P000000" + i, match);
+            PatientSimilarityView view = mock(PatientSimilarityView.class);
+            when(view.getScore()).thenReturn(i / 10.0);
+            when(factory.makeSimilarPatient(match, this.reference)).thenReturn(view);
+        }
+
+        this.loader = this.mocker.getInstance(PatientBatchLoader.class);
+        when(this.loader.load(Matchers.<Collection<String>>any())).thenAnswer(new Answer<Map<String, Patient>>()
+        {
+            @Override
+            public Map<String, Patient> answer(InvocationOnMock invocation)
+            {
+                Map<String, Patient> result = new LinkedHashMap<String, Patient>();
+                for (Object name : (Collection<?>) invocation.getArguments()[0]) {
+                    if (SolrSimilarPatientsFinderTest.this.patients.containsKey(name)) {
+                        result.put((String) name, SolrSimilarPatientsFinderTest.this.patients.get(name));
+                    }
+                }
+                return result;
+            }
+        });
+
+        SolrClient server = mock(SolrClient.class);
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(docs);
+        when(response.getNextCursorMark()).thenReturn("*");
+        when(server.query(Matchers.any(SolrQuery.class))).thenReturn(response);
+        ReflectionUtils.setFieldValue(this.mocker.getComponentUnderTest(), "server", server);
+    }
+
+    /** Unpaged searches keep all the candidates, without allocating for an unbounded shortlist. */
+    @Test
+    public void testFindSimilarPatientsReturnsAllCandidates() throws Exception
+    {
+        assertAllMatches(this.mocker.getComponentUnderTest().findSimilarPatients(this.reference));
+    }
+
+    /** Unpaged prototype searches keep all the candidates, without allocating for an unbounded shortlist. */
+    @Test
+    public void testFindSimilarPrototypesReturnsAllCandidates() throws Exception
+    {
+        assertAllMatches(this.mocker.getComponentUnderTest().findSimilarPrototypes(this.reference));
+    }
+
+    /** A page covering fewer documents than the shortlist doesn't need ranking either. */
+    @Test
+    public void testFindSimilarPatientsPage() throws Exception
+    {
+        List<PatientSimilarityView> results =
+            this.mocker.getComponentUnderTest().findSimilarPatients(this.reference, 2, 1);
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals(0.2, results.get(0).getScore(), 1.0E-6);
+        Assert.assertEquals(0.1, results.get(1).getScore(), 1.0E-6);
+        Mockito.verifyZeroInteractions(this.scorer);
+    }
+
+    /** Candidates are loaded all at once, and documents left in the index are removed in the background. */
+    @Test
+    public void testStaleDocumentsAreRemovedFromTheIndex() throws Exception
+    {
+        SimilarPatientsFinder finder = this.mocker.getComponentUnderTest();
+        SolrClient server = (SolrClient) ReflectionUtils.getFieldValue(finder, "server");
+        this.patients.remove("P0000002");
+
+        List<PatientSimilarityView> results = finder.findSimilarPatients(this.reference);
+        Assert.assertEquals(2, results.size());
+        Mockito.verify(this.loader, Mockito.times(1)).load(Matchers.<Collection<String>>any());
+        Mockito.verify(server, Mockito.timeout(5000)).deleteById(Collections.singletonList("P0000002"));
+        Mockito.verify(server, Mockito.timeout(5000)).commit();
+    }
+
+    /** When the current user can't access enough of the shortlisted candidates, more candidates are retrieved. */
+    @Test
+    public void testShortlistGrowsUntilThePageIsFilled() throws Exception
+    {
+        SimilarPatientsFinder finder = this.mocker.getComponentUnderTest();
+        ReflectionUtils.setFieldValue(finder, "shortlistSize", 1);
+        AccessLevel threshold = this.mocker.getInstance(AccessLevel.class, "match");
+        AccessLevel denied = mock(AccessLevel.class);
+        when(threshold.compareTo(denied)).thenReturn(1);
+        PatientSimilarityViewFactory factory =
+            this.mocker.getInstance(PatientSimilarityViewFactory.class, "restricted");
+        PatientSimilarityView inaccessible = factory.makeSimilarPatient(this.patients.get("P0000001"), this.reference);
+        when(inaccessible.getAccess()).thenReturn(denied);
+
+        // All the candidates rank the same, so the first one is shortlisted first
+        List<PatientSimilarityView> results = finder.findSimilarPatients(this.reference, 1, 0);
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(0.2, results.get(0).getScore(), 1.0E-6);
+        Mockito.verify(this.loader, Mockito.times(2)).load(Matchers.<Collection<String>>any());
+        Mockito.verify(this.loader).load(Collections.singletonList("P0000002"));
+    }
+
+    /**
+     * The index relevance doesn't always agree with the shortlist ranking, so by default retrieval goes on after a
+     * page that didn't improve the shortlist.
+     */
+    @Test
+    public void testRetrievalDoesNotStopEarlyByDefault() throws Exception
+    {
+        SimilarPatientsFinder finder = this.mocker.getComponentUnderTest();
+        ReflectionUtils.setFieldValue(finder, "shortlistSize", 1);
+        ReflectionUtils.setFieldValue(finder, "pageSize", 1);
+        when(this.scorer.getScore(Matchers.<Collection<String>>any(), Matchers.<Collection<String>>any()))
+            .thenAnswer(new Answer<Double>()
+            {
+                @Override
+                public Double answer(InvocationOnMock invocation)
+                {
+                    return (double) ((Collection<?>) invocation.getArguments()[1]).size();
+                }
+            });
+
+        // Each page holds one document, the last one having the best ranked phenotype
+        SolrClient server = mock(SolrClient.class);
+        QueryResponse first = mockPage("P0000001", "a", "HP:0000118");
+        QueryResponse second = mockPage("P0000002", "b", "HP:0000118");
+        QueryResponse third = mockPage("P0000003", "b", "HP:0000118", "HP:0000152", "HP:0000707");
+        when(server.query(Matchers.any(SolrQuery.class))).thenReturn(first, second, third);
+        ReflectionUtils.setFieldValue(finder, "server", server);
+
+        List<PatientSimilarityView> results = finder.findSimilarPatients(this.reference, 1, 0);
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(0.3, results.get(0).getScore(), 1.0E-6);
+        Mockito.verify(server, Mockito.times(3)).query(Matchers.any(SolrQuery.class));
+    }
+
+    /** Pages within the precomputed matches are read from the match index, without searching. */
+    @Test
+    public void testPagedSearchUsesTheMatchIndex() throws Exception
+    {
+        SimilarPatientsFinder finder = this.mocker.getComponentUnderTest();
+        SolrClient server = (SolrClient) ReflectionUtils.getFieldValue(finder, "server");
+        when(this.reference.getDocument()).thenReturn(new DocumentReference("xwiki", "data", "P0000009"));
+        PatientMatchIndex index = mock(PatientMatchIndex.class);
+        when(index.getSize()).thenReturn(2);
+        when(index.isReady()).thenReturn(true);
+        PatientSimilarityView best = mock(PatientSimilarityView.class);
+        PatientSimilarityView second = mock(PatientSimilarityView.class);
+        when(index.getMatches(this.reference)).thenReturn(Arrays.asList(best, second));
+        ReflectionUtils.setFieldValue(finder, "matchIndex", index);
+
+        Assert.assertEquals(Collections.singletonList(second), finder.findSimilarPatients(this.reference, 1, 1));
+        Assert.assertEquals(Arrays.asList(best, second), finder.findSimilarPatients(this.reference, 2, 0));
+        Mockito.verifyZeroInteractions(server, this.loader);
+
+        // Pages beyond the precomputed matches are searched
+        Assert.assertEquals(2, finder.findSimilarPatients(this.reference, 2, 1).size());
+        Mockito.verify(server).query(Matchers.any(SolrQuery.class));
+    }
+
+    /** Until the match index is ready, or when it has no matches for the patient, similar patients are searched. */
+    @Test
+    public void testSearchFallsBackWhileTheMatchIndexIsNotReady() throws Exception
+    {
+        SimilarPatientsFinder finder = this.mocker.getComponentUnderTest();
+        SolrClient server = (SolrClient) ReflectionUtils.getFieldValue(finder, "server");
+        when(this.reference.getDocument()).thenReturn(new DocumentReference("xwiki", "data", "P0000009"));
+        PatientMatchIndex index = mock(PatientMatchIndex.class);
+        when(index.getSize()).thenReturn(50);
+        when(index.isReady()).thenReturn(false, true);
+        when(index.getMatches(this.reference)).thenReturn(Collections.<PatientSimilarityView>emptyList());
+        ReflectionUtils.setFieldValue(finder, "matchIndex", index);
+
+        Assert.assertEquals(1, finder.findSimilarPatients(this.reference, 1, 0).size());
+        Mockito.verify(index, Mockito.never()).getMatches(this.reference);
+        Assert.assertEquals(1, finder.findSimilarPatients(this.reference, 1, 0).size());
+        Mockito.verify(index).getMatches(this.reference);
+        Mockito.verify(server, Mockito.times(2)).query(Matchers.any(SolrQuery.class));
+    }
+
+    /** Counts are cached by query, so counting again doesn't query the index. */
+    @Test
+    public void testCachedCountSkipsTheIndex() throws Exception
+    {
+        SimilarPatientsFinder finder = this.mocker.getComponentUnderTest();
+        mockCountCache(finder);
+        SolrClient server = (SolrClient) ReflectionUtils.getFieldValue(finder, "server");
+
+        Assert.assertEquals(MATCHES, finder.countSimilarPatients(this.reference));
+        Assert.assertEquals(MATCHES, finder.countSimilarPatients(this.reference));
+        Assert.assertEquals(MATCHES, finder.countSimilarPatients(Collections.singleton(this.reference))
+            .get(this.reference).longValue());
+        Mockito.verify(server, Mockito.times(1)).query(Matchers.any(SolrQuery.class));
+    }
+
+    /** Counting several patients at once gives the same counts as counting them one by one, with a single query. */
+    @Test
+    public void testBatchCountsEqualSingleCounts() throws Exception
+    {
+        SimilarPatientsFinder finder = this.mocker.getComponentUnderTest();
+        Patient other = mock(Patient.class);
+        Feature feature = mock(Feature.class);
+        when(feature.getId()).thenReturn("HP:0000707");
+        when(feature.getType()).thenReturn("phenotype");
+        when(feature.isPresent()).thenReturn(true);
+        doReturn(Collections.singleton(feature)).when(other).getFeatures();
+        Patient unknown = mock(Patient.class);
+        doReturn(Collections.emptySet()).when(unknown).getFeatures();
+
+        // Queries searching for HP:0000118 match all the patients, the others only one
+        SolrClient server = mock(SolrClient.class);
+        when(server.query(Matchers.any(SolrQuery.class))).thenAnswer(new Answer<QueryResponse>()
+        {
+            @Override
+            public QueryResponse answer(InvocationOnMock invocation)
+            {
+                SolrQuery query = (SolrQuery) invocation.getArguments()[0];
+                QueryResponse response = mock(QueryResponse.class);
+                if (query.getFacetQuery() != null) {
+                    Map<String, Integer> counts = new HashMap<String, Integer>();
+                    for (String facet : query.getFacetQuery()) {
+                        counts.put(facet, facet.contains("0000118") ? MATCHES : 1);
+                    }
+                    when(response.getFacetQuery()).thenReturn(counts);
+                } else {
+                    SolrDocumentList docs = new SolrDocumentList();
+                    docs.setNumFound(query.getQuery().contains("0000118") ? MATCHES : 1);
+                    when(response.getResults()).thenReturn(docs);
+                }
+                return response;
+            }
+        });
+        ReflectionUtils.setFieldValue(finder, "server", server);
+
+        Map<Patient, Long> counts = finder.countSimilarPatients(Arrays.asList(this.reference, other, unknown));
+        Mockito.verify(server, Mockito.times(1)).query(Matchers.any(SolrQuery.class));
+        Assert.assertEquals(3, counts.size());
+        Assert.assertEquals(finder.countSimilarPatients(this.reference), counts.get(this.reference).longValue());
+        Assert.assertEquals(finder.countSimilarPatients(other), counts.get(other).longValue());
+        Assert.assertEquals(finder.countSimilarPatients(unknown), counts.get(unknown).longValue());
+        Assert.assertEquals(MATCHES, counts.get(this.reference).longValue());
+        Assert.assertEquals(1, counts.get(other).longValue());
+        Assert.assertEquals(0, counts.get(unknown).longValue());
+    }
+
+    /**
+     * Changing a patient clears the cached counts, and the counts computed while the index is being updated aren't
+     * cached.
+     */
+    @Test
+    public void testInvalidatorClearsTheCountCache() throws Exception
+    {
+        final SimilarPatientsFinder finder = this.mocker.getComponentUnderTest();
+        Map<String, Long> cached = mockCountCache(finder);
+        SolrClient server = (SolrClient) ReflectionUtils.getFieldValue(finder, "server");
+        finder.countSimilarPatients(this.reference);
+        Assert.assertEquals(1, cached.size());
+
+        SimilarPatientsCountInvalidator invalidator = new SimilarPatientsCountInvalidator();
+        ReflectionUtils.setFieldValue(invalidator, "finder", new Provider<SimilarPatientsFinder>()
+        {
+            @Override
+            public SimilarPatientsFinder get()
+            {
+                return finder;
+            }
+        });
+        DocumentModelBridge document = mock(DocumentModelBridge.class);
+        when(document.getDocumentReference()).thenReturn(new DocumentReference("xwiki", "data", "P0000001"));
+        invalidator.onEvent(new DocumentUpdatedEvent(), document, null);
+        Assert.assertTrue(cached.isEmpty());
+
+        // Right after the change the index may still be outdated, so the count isn't cached
+        Assert.assertEquals(MATCHES, finder.countSimilarPatients(this.reference));
+        Assert.assertTrue(cached.isEmpty());
+        Mockito.verify(server, Mockito.times(2)).query(Matchers.any(SolrQuery.class));
+
+        // Once the delay is over, counts are cached again
+        ReflectionUtils.setFieldValue(finder, "lastCountChange", 0L);
+        finder.countSimilarPatients(this.reference);
+        finder.countSimilarPatients(this.reference);
+        Assert.assertEquals(1, cached.size());
+        Mockito.verify(server, Mockito.times(3)).query(Matchers.any(SolrQuery.class));
+    }
+
+    /** Backs the count cache of the finder with a map, since the cache manager is mocked. */
+    @SuppressWarnings("unchecked")
+    private Map<String, Long> mockCountCache(SimilarPatientsFinder finder)
+    {
+        final Map<String, Long> cached = new HashMap<String, Long>();
+        Cache<Long> cache = mock(Cache.class);
+        doAnswer(new Answer<Long>()
+        {
+            @Override
+            public Long answer(InvocationOnMock invocation)
+            {
+                return cached.get(invocation.getArguments()[0]);
+            }
+        }).when(cache).get(Matchers.anyString());
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+            {
+                cached.put((String) invocation.getArguments()[0], (Long) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(cache).set(Matchers.anyString(), Matchers.anyLong());
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+            {
+                cached.clear();
+                return null;
+            }
+        }).when(cache).removeAll();
+        ReflectionUtils.setFieldValue(finder, "countCache", cache);
+        return cached;
+    }
+
+    private QueryResponse mockPage(String name, String nextCursor, String... terms)
+    {
+        SolrDocument doc = new SolrDocument();
+        doc.setField("document", name);
+        doc.setField("phenotype", Arrays.asList(terms));
+        SolrDocumentList docs = new SolrDocumentList();
+        docs.add(doc);
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(docs);
+        when(response.getNextCursorMark()).thenReturn(nextCursor);
+        return response;
+    }
+
+    private void assertAllMatches(List<PatientSimilarityView> results)
+    {
+        Assert.assertEquals(MATCHES, results.size());
+        for (int i = 0; i < MATCHES; i++) {
+            Assert.assertEquals((MATCHES - i) / 10.0, results.get(i).getScore(), 1.0E-6);
+        }
+        // All the documents fit in the shortlist, so none of them needs to be ranked
+        Mockito.verifyZeroInteractions(this.scorer);
+    }
+}